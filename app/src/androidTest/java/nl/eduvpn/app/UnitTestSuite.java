@@ -17,11 +17,30 @@
 
 package nl.eduvpn.app;
 
+import nl.eduvpn.app.network.CircuitBreakerTest;
+import nl.eduvpn.app.network.ContentDecoderTest;
+import nl.eduvpn.app.network.HttpCacheTest;
+import nl.eduvpn.app.network.PooledHttpTransportTest;
+import nl.eduvpn.app.network.RemoteProberTest;
+import nl.eduvpn.app.network.RequestSchedulerTest;
+import nl.eduvpn.app.network.RetryPolicyTest;
+import nl.eduvpn.app.network.RttEstimatorTest;
+import nl.eduvpn.app.service.APIServiceTest;
+import nl.eduvpn.app.service.AccountingServiceTest;
+import nl.eduvpn.app.service.CollectionStoreTest;
+import nl.eduvpn.app.service.ConnectionEventBusTest;
+import nl.eduvpn.app.service.ConnectionTimingServiceTest;
 import nl.eduvpn.app.service.HistoryServiceTest;
 import nl.eduvpn.app.service.PreferencesServiceTest;
+import nl.eduvpn.app.service.ProfileListLoaderTest;
+import nl.eduvpn.app.service.ProfilePrefetcherTest;
 import nl.eduvpn.app.service.SerializerServiceTest;
 import nl.eduvpn.app.utils.FormattingUtilsTest;
+import nl.eduvpn.app.utils.IndexedListTest;
+import nl.eduvpn.app.utils.LatencyHistogramTest;
 import nl.eduvpn.app.utils.TTLCacheTest;
+import nl.eduvpn.app.utils.TrafficHistoryTest;
+import nl.eduvpn.app.utils.UpdateThrottleTest;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -32,7 +51,13 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ SerializerServiceTest.class, PreferencesServiceTest.class, HistoryServiceTest.class,
-        FormattingUtilsTest.class, TTLCacheTest.class})
+        FormattingUtilsTest.class, TTLCacheTest.class, PooledHttpTransportTest.class,
+        APIServiceTest.class, HttpCacheTest.class, RequestSchedulerTest.class,
+        RetryPolicyTest.class, CircuitBreakerTest.class, RttEstimatorTest.class,
+        ContentDecoderTest.class, ProfileListLoaderTest.class, ProfilePrefetcherTest.class,
+        TrafficHistoryTest.class, UpdateThrottleTest.class, ConnectionEventBusTest.class,
+        AccountingServiceTest.class, LatencyHistogramTest.class, ConnectionTimingServiceTest.class,
+        RemoteProberTest.class, IndexedListTest.class, CollectionStoreTest.class })
 public class UnitTestSuite {
     // Test suite used to run all unit tests at once.
     // To run the tests, right click on the class name, and select "Run 'UnitTestSuite'".
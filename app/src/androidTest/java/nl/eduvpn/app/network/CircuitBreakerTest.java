@@ -0,0 +1,106 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the circuit breaker.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CircuitBreakerTest {
+
+    private static final String HOST = "vpn.example.com";
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 60000);
+        circuitBreaker.recordFailure(HOST);
+        circuitBreaker.recordFailure(HOST);
+        // A success resets the count.
+        circuitBreaker.recordSuccess(HOST);
+        circuitBreaker.recordFailure(HOST);
+        circuitBreaker.recordFailure(HOST);
+        assertFalse(circuitBreaker.isOpen(HOST));
+        circuitBreaker.recordFailure(HOST);
+        assertTrue(circuitBreaker.isOpen(HOST));
+        assertTrue(circuitBreaker.isRequestAllowed("other.example.com"));
+        try {
+            circuitBreaker.checkRequestAllowed(HOST);
+            fail("Request should not be allowed!");
+        } catch (CircuitBreaker.CircuitOpenException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testHalfOpenAfterDuration() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100);
+        circuitBreaker.recordFailure(HOST);
+        assertTrue(circuitBreaker.isOpen(HOST));
+        Thread.sleep(150);
+        // Requests are let through to find out if the host has recovered.
+        assertTrue(circuitBreaker.isRequestAllowed(HOST));
+        circuitBreaker.recordFailure(HOST);
+        assertTrue(circuitBreaker.isOpen(HOST));
+        Thread.sleep(150);
+        circuitBreaker.recordSuccess(HOST);
+        assertFalse(circuitBreaker.isOpen(HOST));
+    }
+
+    @Test
+    public void testSingleProbeWhenHalfOpen() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100);
+        circuitBreaker.recordFailure(HOST);
+        Thread.sleep(150);
+        // The first request is the probe, the others fail right away until its outcome is known.
+        circuitBreaker.checkRequestAllowed(HOST);
+        assertFalse(circuitBreaker.isRequestAllowed(HOST));
+        try {
+            circuitBreaker.checkRequestAllowed(HOST);
+            fail("Only a single probe should be allowed!");
+        } catch (CircuitBreaker.CircuitOpenException ex) {
+            // Expected.
+        }
+        circuitBreaker.recordSuccess(HOST);
+        circuitBreaker.checkRequestAllowed(HOST);
+        circuitBreaker.checkRequestAllowed(HOST);
+        assertFalse(circuitBreaker.isOpen(HOST));
+    }
+
+    @Test
+    public void testAbandonedProbeIsReplaced() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100);
+        circuitBreaker.recordFailure(HOST);
+        Thread.sleep(150);
+        circuitBreaker.checkRequestAllowed(HOST);
+        assertFalse(circuitBreaker.isRequestAllowed(HOST));
+        // The probe never reported back, a new one is allowed after the open duration.
+        Thread.sleep(150);
+        circuitBreaker.checkRequestAllowed(HOST);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the content decoder and the transfer statistics.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ContentDecoderTest {
+
+    private static final String ENDPOINT = "vpn.example.com/info.json";
+
+    private static byte[] _createBody() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            builder.append("{\"display_name\": \"Internet\", \"profile_id\": \"internet\"},");
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] _readFully(@NonNull InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] _deflate(@NonNull byte[] body, boolean nowrap) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(outputStream, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        deflaterStream.write(body);
+        deflaterStream.close();
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        byte[] body = _createBody();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream);
+        gzipStream.write(body);
+        gzipStream.close();
+        byte[] compressed = outputStream.toByteArray();
+        assertArrayEquals(body, _readFully(ContentDecoder.decode(new ByteArrayInputStream(compressed), "gzip")));
+    }
+
+    @Test
+    public void testDeflateWithAndWithoutZlibHeader() throws Exception {
+        byte[] body = _createBody();
+        assertArrayEquals(body, _readFully(ContentDecoder.decode(new ByteArrayInputStream(_deflate(body, false)), "deflate")));
+        assertArrayEquals(body, _readFully(ContentDecoder.decode(new ByteArrayInputStream(_deflate(body, true)), "Deflate")));
+    }
+
+    @Test
+    public void testIdentityAndUnsupported() throws Exception {
+        byte[] body = _createBody();
+        assertArrayEquals(body, _readFully(ContentDecoder.decode(new ByteArrayInputStream(body), null)));
+        assertArrayEquals(body, _readFully(ContentDecoder.decode(new ByteArrayInputStream(body), "identity")));
+        try {
+            ContentDecoder.decode(new ByteArrayInputStream(body), "br");
+            fail("Unsupported encoding should not be decoded!");
+        } catch (IOException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testTransferStats() throws Exception {
+        byte[] body = _createBody();
+        byte[] compressed = _deflate(body, false);
+        TransferStats transferStats = new TransferStats();
+        assertArrayEquals(body, _readFully(transferStats.track(ENDPOINT, new ByteArrayInputStream(compressed), "deflate")));
+        assertEquals(compressed.length, transferStats.getTransferredBytes(ENDPOINT));
+        assertEquals(body.length, transferStats.getDecodedBytes(ENDPOINT));
+        assertEquals(1, transferStats.getResponseCount(ENDPOINT));
+        assertTrue(transferStats.getTransferredBytes(ENDPOINT) < transferStats.getDecodedBytes(ENDPOINT) / 10);
+        assertEquals(0, transferStats.getResponseCount("other.example.com/info.json"));
+    }
+
+    @Test
+    public void testCountingInputStream() throws Exception {
+        AtomicLong counter = new AtomicLong();
+        InputStream inputStream = new CountingInputStream(new ByteArrayInputStream(new byte[100]), counter);
+        assertEquals(0, inputStream.read());
+        assertEquals(10, inputStream.read(new byte[10]));
+        assertEquals(20, inputStream.skip(20));
+        _readFully(inputStream);
+        assertEquals(100, counter.get());
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the on-disk HTTP cache.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class HttpCacheTest {
+
+    private static final int BODY_SIZE = 1000;
+
+    private LoopbackServer _server;
+    private PooledHttpTransport _transport;
+    private File _directory;
+
+    @Before
+    public void setUp() throws Exception {
+        final byte[] body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte)'a');
+        _server = new LoopbackServer(null, new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, body).header("ETag", "\"" + request.getPath() + "\"");
+            }
+        });
+        _server.start();
+        _transport = new PooledHttpTransport();
+        _directory = new File(InstrumentationRegistry.getContext().getCacheDir(), "http_cache_test");
+        _deleteDirectory();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _server.stop();
+        _deleteDirectory();
+    }
+
+    private void _deleteDirectory() {
+        File[] files = _directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        _directory.delete();
+    }
+
+    /**
+     * Downloads a resource and stores it in the cache.
+     *
+     * @param httpCache The cache to store the response in.
+     * @param path      The path of the resource on the server.
+     * @return The key of the cache entry.
+     */
+    private String _store(HttpCache httpCache, String path) throws IOException {
+        String url = _server.getUrl(path);
+        String key = HttpCache.createKey(url, null);
+        HttpURLConnection connection = _transport.openConnection(new URL(url));
+        try {
+            assertEquals(200, connection.getResponseCode());
+            HttpCache.Writer writer = httpCache.startWriting(key, url, connection);
+            assertNotNull(writer);
+            InputStream inputStream = writer.wrap(connection.getInputStream());
+            // Read only a part of the body, the writer should take care of the rest.
+            assertTrue(inputStream.read(new byte[10]) > 0);
+            writer.commit();
+        } finally {
+            _transport.release(connection);
+        }
+        return key;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        // Room for 3 entries, but not for 4.
+        HttpCache httpCache = new HttpCache(_directory, 3 * BODY_SIZE + 3 * 200);
+        String first = _store(httpCache, "/first");
+        String second = _store(httpCache, "/second");
+        String third = _store(httpCache, "/third");
+        assertNotNull(httpCache.get(first));
+        String fourth = _store(httpCache, "/fourth");
+        assertNotNull(httpCache.get(first));
+        assertNull(httpCache.get(second));
+        assertNotNull(httpCache.get(third));
+        assertNotNull(httpCache.get(fourth));
+        assertTrue(httpCache.getSize() <= 3 * BODY_SIZE + 3 * 200);
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() throws Exception {
+        HttpCache httpCache = new HttpCache(_directory, HttpCache.DEFAULT_MAX_SIZE_BYTES);
+        String key = _store(httpCache, "/info.json");
+        HttpCache restartedCache = new HttpCache(_directory, HttpCache.DEFAULT_MAX_SIZE_BYTES);
+        HttpCache.Entry entry = restartedCache.get(key);
+        assertNotNull(entry);
+        assertEquals("\"/info.json\"", entry.getETag());
+        assertEquals(_server.getUrl("/info.json"), entry.getUrl());
+        InputStream inputStream = restartedCache.openBody(entry, false);
+        try {
+            int length = 0;
+            while (inputStream.read() != -1) {
+                ++length;
+            }
+            assertEquals(BODY_SIZE, length);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void testKeyDependsOnCredentials() {
+        String url = "https://example.com/profile_list";
+        assertTrue(!HttpCache.createKey(url, "first").equals(HttpCache.createKey(url, "second")));
+        assertTrue(!HttpCache.createKey(url, null).equals(HttpCache.createKey(url, "first")));
+        assertEquals(HttpCache.createKey(url, "first"), HttpCache.createKey(url, "first"));
+    }
+
+    @Test
+    public void testFreshnessUsesAllDirectives() {
+        long now = 1000000L;
+        assertEquals(now + 60000L, HttpCache._getExpiresAt("max-age=60", null, 0, now));
+        assertEquals(now + 60000L, HttpCache._getExpiresAt("Public, MAX-AGE=\"60\"", null, 0, now));
+        // No-cache and no-store win, regardless of their position.
+        assertEquals(0, HttpCache._getExpiresAt("max-age=60, no-cache", null, 0, now));
+        assertEquals(0, HttpCache._getExpiresAt("no-cache, max-age=60", null, 0, now));
+        assertEquals(0, HttpCache._getExpiresAt("max-age=60, no-store", null, 0, now));
+        // Only stale responses have to be revalidated because of must-revalidate.
+        assertEquals(now + 60000L, HttpCache._getExpiresAt("max-age=60, must-revalidate", null, 0, now));
+        // An invalid max-age makes the response stale, even if it has an Expires header.
+        assertEquals(0, HttpCache._getExpiresAt("max-age=soon", null, now + 60000L, now));
+        // Without max-age, the Expires header is used.
+        assertEquals(now + 60000L, HttpCache._getExpiresAt(null, null, now + 60000L, now));
+        assertEquals(now + 60000L, HttpCache._getExpiresAt("public", null, now + 60000L, now));
+    }
+
+    @Test
+    public void testAgeIsSubtractedFromMaxAge() {
+        long now = 1000000L;
+        assertEquals(now + 45000L, HttpCache._getExpiresAt("max-age=60", "15", 0, now));
+        assertEquals(0, HttpCache._getExpiresAt("max-age=60", "60", 0, now));
+        assertEquals(0, HttpCache._getExpiresAt("max-age=60", "3600", 0, now));
+        // An invalid Age header is ignored.
+        assertEquals(now + 60000L, HttpCache._getExpiresAt("max-age=60", "a while", 0, now));
+    }
+
+    @Test
+    public void testNoStoreResponseIsNotCached() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, "body").header("ETag", "\"v1\"").header("Cache-Control", "private, No-Store");
+            }
+        });
+        HttpCache httpCache = new HttpCache(_directory, HttpCache.DEFAULT_MAX_SIZE_BYTES);
+        String url = _server.getUrl("/info.json");
+        HttpURLConnection connection = _transport.openConnection(new URL(url));
+        try {
+            assertEquals(200, connection.getResponseCode());
+            assertNull(httpCache.startWriting(HttpCache.createKey(url, null), url, connection));
+        } finally {
+            _transport.release(connection);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Minimal HTTP/1.1 server running on the loopback interface, used by the networking tests.
+ * Keeps the connections alive, and answers the requests with the responses of its responder.
+ */
+public class LoopbackServer {
+
+    /**
+     * A request received by the server.
+     */
+    public static class Request {
+        private final String _method;
+        private final String _path;
+        private final Map<String, String> _headers;
+        private final byte[] _body;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body) {
+            _method = method;
+            _path = path;
+            _headers = headers;
+            _body = body;
+        }
+
+        public String getMethod() {
+            return _method;
+        }
+
+        public String getPath() {
+            return _path;
+        }
+
+        /**
+         * Returns the value of a request header.
+         *
+         * @param name The name of the header, case insensitive.
+         * @return The value of the header, or null if it was not sent.
+         */
+        @Nullable
+        public String getHeader(@NonNull String name) {
+            return _headers.get(name.toLowerCase(Locale.US));
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+    }
+
+    /**
+     * A response sent by the server.
+     */
+    public static class Response {
+        private final int _statusCode;
+        private final Map<String, String> _headers = new LinkedHashMap<>();
+        private final byte[] _body;
+        private long _delayMs;
+
+        public Response(int statusCode, @NonNull byte[] body) {
+            _statusCode = statusCode;
+            _body = body;
+        }
+
+        public Response(int statusCode, @NonNull String body) {
+            this(statusCode, _toBytes(body));
+        }
+
+        /**
+         * Adds a header to the response.
+         *
+         * @param name  The name of the header.
+         * @param value The value of the header.
+         * @return This response.
+         */
+        public Response header(@NonNull String name, @NonNull String value) {
+            _headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Delays sending the response, to simulate a slow server.
+         *
+         * @param delayMs The delay in milliseconds.
+         * @return This response.
+         */
+        public Response delay(long delayMs) {
+            _delayMs = delayMs;
+            return this;
+        }
+
+        private static byte[] _toBytes(String body) {
+            try {
+                return body.getBytes("UTF-8");
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * Creates the responses for the requests received by the server. Called on the thread of the connection.
+     */
+    public interface Responder {
+        /**
+         * Creates a response for a request.
+         *
+         * @param request The request received.
+         * @return The response to send.
+         */
+        @NonNull
+        Response respond(@NonNull Request request);
+    }
+
+    private final ServerSocket _serverSocket;
+    private final AtomicInteger _connectionCount = new AtomicInteger();
+    private final AtomicInteger _handshakeCount = new AtomicInteger();
+    private final AtomicInteger _requestCount = new AtomicInteger();
+    private volatile Responder _responder;
+    private Thread _acceptThread;
+
+    /**
+     * Constructor.
+     *
+     * @param sslContext The context used to serve HTTPS. If null, plain HTTP is served.
+     * @param responder  The responder which answers the requests.
+     * @throws IOException Thrown if the server socket could not be created.
+     */
+    public LoopbackServer(@Nullable SSLContext sslContext, @NonNull Responder responder) throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        if (sslContext == null) {
+            _serverSocket = new ServerSocket(0, 50, loopback);
+        } else {
+            _serverSocket = sslContext.getServerSocketFactory().createServerSocket(0, 50, loopback);
+        }
+        _responder = responder;
+    }
+
+    /**
+     * Returns the URL of a path on this server.
+     *
+     * @param path The path, starting with a slash.
+     * @return The URL as a string.
+     */
+    public String getUrl(@NonNull String path) {
+        String scheme = _serverSocket instanceof SSLServerSocket ? "https" : "http";
+        return scheme + "://127.0.0.1:" + getPort() + path;
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return _connectionCount.get();
+    }
+
+    public int getHandshakeCount() {
+        return _handshakeCount.get();
+    }
+
+    public int getRequestCount() {
+        return _requestCount.get();
+    }
+
+    /**
+     * Replaces the responder of the server.
+     *
+     * @param responder The new responder.
+     */
+    public void setResponder(@NonNull Responder responder) {
+        _responder = responder;
+    }
+
+    public void start() {
+        _acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!_serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = _serverSocket.accept();
+                        _connectionCount.incrementAndGet();
+                        if (socket instanceof SSLSocket) {
+                            ((SSLSocket)socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                                @Override
+                                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                                    _handshakeCount.incrementAndGet();
+                                }
+                            });
+                        }
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                _serve(socket);
+                            }
+                        }).start();
+                    } catch (IOException ex) {
+                        // Server socket was closed.
+                    }
+                }
+            }
+        });
+        _acceptThread.start();
+    }
+
+    public void stop() throws IOException, InterruptedException {
+        _serverSocket.close();
+        _acceptThread.join();
+    }
+
+    private void _serve(Socket socket) {
+        try {
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = _readLine(inputStream)) != null) {
+                if (requestLine.length() == 0) {
+                    // Empty line between two requests.
+                    continue;
+                }
+                String[] requestParts = requestLine.split(" ");
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = _readLine(inputStream)) != null && line.length() > 0) {
+                    int separator = line.indexOf(':');
+                    if (separator > 0) {
+                        headers.put(line.substring(0, separator).trim().toLowerCase(Locale.US), line.substring(separator + 1).trim());
+                    }
+                }
+                byte[] body = new byte[0];
+                String contentLength = headers.get("content-length");
+                if (contentLength != null) {
+                    body = _readBytes(inputStream, Integer.parseInt(contentLength));
+                }
+                _requestCount.incrementAndGet();
+                Request request = new Request(requestParts[0], requestParts.length > 1 ? requestParts[1] : "/",
+                        Collections.unmodifiableMap(headers), body);
+                Response response = _responder.respond(request);
+                if (response._delayMs > 0) {
+                    try {
+                        Thread.sleep(response._delayMs);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                StringBuilder responseHeaders = new StringBuilder();
+                responseHeaders.append("HTTP/1.1 ").append(response._statusCode).append(" Status\r\n");
+                for (Map.Entry<String, String> header : response._headers.entrySet()) {
+                    responseHeaders.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+                boolean hasBody = response._statusCode != 204 && response._statusCode != 304 && !"HEAD".equals(request.getMethod());
+                if (hasBody) {
+                    responseHeaders.append("Content-Length: ").append(response._body.length).append("\r\n");
+                }
+                responseHeaders.append("Connection: keep-alive\r\n\r\n");
+                outputStream.write(responseHeaders.toString().getBytes("US-ASCII"));
+                if (hasBody) {
+                    outputStream.write(response._body);
+                }
+                outputStream.flush();
+            }
+        } catch (IOException ex) {
+            // Client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Ignore.
+            }
+        }
+    }
+
+    private static String _readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int read;
+        while ((read = inputStream.read()) != -1) {
+            if (read == '\n') {
+                String result = line.toString("US-ASCII");
+                return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+            }
+            line.write(read);
+        }
+        return line.size() == 0 ? null : line.toString("US-ASCII");
+    }
+
+    private static byte[] _readBytes(InputStream inputStream, int length) throws IOException {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = inputStream.read(result, offset, length - offset);
+            if (read == -1) {
+                throw new IOException("Unexpected end of request body.");
+            }
+            offset += read;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests if the pooled transport reuses connections and TLS sessions.
+ * The requests are made against a small HTTPS server running on the loopback interface.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PooledHttpTransportTest {
+
+    private static final String KEYSTORE_ASSET = "loopback.p12";
+    private static final String KEYSTORE_PASSWORD = "loopback";
+    private static final String KEYSTORE_ALIAS = "loopback";
+    private static final String RESPONSE_BODY = "{\"version\": 1}";
+    private static final int REQUEST_COUNT = 20;
+
+    private LoopbackServer _server;
+    private PooledHttpTransport _transport;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream keyStoreStream = InstrumentationRegistry.getContext().getAssets().open(KEYSTORE_ASSET);
+        try {
+            keyStore.load(keyStoreStream, KEYSTORE_PASSWORD.toCharArray());
+        } finally {
+            keyStoreStream.close();
+        }
+        // Server side: present the self-signed certificate.
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        _server = new LoopbackServer(serverContext, new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, RESPONSE_BODY).header("Content-Type", "application/json");
+            }
+        });
+        _server.start();
+        // Client side: trust only the self-signed certificate.
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry(KEYSTORE_ALIAS, keyStore.getCertificate(KEYSTORE_ALIAS));
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        _transport = new PooledHttpTransport(PooledHttpTransport.DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST,
+                PooledHttpTransport.DEFAULT_IDLE_EVICTION_MS, clientContext);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _server.stop();
+    }
+
+    @Test
+    public void testWarmRequestsSkipHandshake() throws Exception {
+        URL url = new URL(_server.getUrl("/info.json"));
+        for (int i = 0; i < REQUEST_COUNT; ++i) {
+            HttpURLConnection connection = _transport.openConnection(url);
+            try {
+                connection.connect();
+                assertEquals(200, connection.getResponseCode());
+                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+                assertEquals(RESPONSE_BODY, reader.readLine());
+            } finally {
+                _transport.release(connection);
+            }
+        }
+        assertEquals(REQUEST_COUNT, _server.getRequestCount());
+        // Only the first request should have paid for a connection and a handshake.
+        assertEquals(1, _server.getConnectionCount());
+        assertEquals(1, _server.getHandshakeCount());
+        assertEquals(1, _transport.getSocketCount());
+        assertEquals(1, _transport.getHandshakeCount());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the remote prober.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RemoteProberTest {
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private static RemoteProber _createProber() {
+        return new RemoteProber(Executors.newCachedThreadPool(), new Handler(Looper.getMainLooper()), 2000, 60);
+    }
+
+    private static Map<String, Long> _probe(RemoteProber prober, String... keys) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Map<String, Long>> result = new AtomicReference<>();
+        prober.probe(Arrays.asList(keys), new RemoteProber.Callback() {
+            @Override
+            public void onProbed(@NonNull Map<String, Long> roundTripTimes) {
+                result.set(roundTripTimes);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static int _getClosedPort() throws IOException {
+        ServerSocket closedSocket = new ServerSocket(0);
+        int closedPort = closedSocket.getLocalPort();
+        closedSocket.close();
+        return closedPort;
+    }
+
+    @Test
+    public void testListeningAndClosedPorts() throws Exception {
+        ServerSocket listeningSocket = new ServerSocket(0);
+        int closedPort = _getClosedPort();
+        String listeningKey = RemoteProber.createKey(LOCALHOST, listeningSocket.getLocalPort(), false);
+        String closedTcpKey = RemoteProber.createKey(LOCALHOST, closedPort, false);
+        String closedUdpKey = RemoteProber.createKey(LOCALHOST, closedPort, true);
+        try {
+            Map<String, Long> result = _probe(_createProber(), listeningKey, closedTcpKey, closedUdpKey);
+            assertEquals(3, result.size());
+            assertTrue(result.get(listeningKey) >= 0);
+            // A TCP remote which refuses the connection can't be used.
+            assertEquals(RemoteProber.UNREACHABLE, (long)result.get(closedTcpKey));
+            // For a UDP remote the refused connection is a round trip to the host.
+            assertTrue(result.get(closedUdpKey) >= 0);
+        } finally {
+            listeningSocket.close();
+        }
+    }
+
+    @Test
+    public void testResultsAreCached() throws Exception {
+        RemoteProber prober = _createProber();
+        ServerSocket listeningSocket = new ServerSocket(0);
+        String listeningKey = RemoteProber.createKey(LOCALHOST, listeningSocket.getLocalPort(), false);
+        String unknownHostKey = RemoteProber.createKey("unknown.invalid", 1194, false);
+        Map<String, Long> firstResult = _probe(prober, listeningKey, unknownHostKey);
+        assertEquals(RemoteProber.UNREACHABLE, (long)firstResult.get(unknownHostKey));
+        listeningSocket.close();
+        Map<String, Long> secondResult = _probe(prober, listeningKey, unknownHostKey);
+        assertNotNull(secondResult.get(listeningKey));
+        assertEquals(firstResult.get(listeningKey), secondResult.get(listeningKey));
+        assertEquals(RemoteProber.UNREACHABLE, (long)secondResult.get(unknownHostKey));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        RemoteProber prober = _createProber();
+        int port = _getClosedPort();
+        String key = RemoteProber.createKey(LOCALHOST, port, false);
+        assertEquals(RemoteProber.UNREACHABLE, (long)_probe(prober, key).get(key));
+        ServerSocket listeningSocket = new ServerSocket(port);
+        try {
+            // The remote is up now, it is probed again instead of using the failure from before.
+            assertTrue(_probe(prober, key).get(key) >= 0);
+        } finally {
+            listeningSocket.close();
+        }
+    }
+
+    @Test
+    public void testOrder() {
+        List<Long> roundTripTimes = new ArrayList<>(Arrays.asList(RemoteProber.UNREACHABLE, null, 300L, 20L));
+        Collections.sort(roundTripTimes, new Comparator<Long>() {
+            @Override
+            public int compare(Long lhs, Long rhs) {
+                return RemoteProber.compare(lhs, rhs);
+            }
+        });
+        assertEquals(Arrays.asList(20L, 300L, null, RemoteProber.UNREACHABLE), roundTripTimes);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the request scheduler.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RequestSchedulerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Task which blocks its thread until it is released.
+     */
+    private static class BlockingTask implements Runnable {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Task which records its name when it runs.
+     */
+    private static Runnable _recordingTask(@NonNull final List<String> executionOrder, @NonNull final String name,
+                                           @NonNull final CountDownLatch finished) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                executionOrder.add(name);
+                finished.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testHigherPriorityRunsFirst() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1, 1, new int[]{ 10, 10, 10 });
+        BlockingTask blockingTask = new BlockingTask();
+        scheduler.newTicket(RequestScheduler.Priority.DEFAULT, "a.example.com").execute(blockingTask);
+        assertTrue(blockingTask.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        List<String> executionOrder = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch finished = new CountDownLatch(3);
+        scheduler.newTicket(RequestScheduler.Priority.BACKGROUND, "a.example.com")
+                .execute(_recordingTask(executionOrder, "background", finished));
+        scheduler.newTicket(RequestScheduler.Priority.DEFAULT, "a.example.com")
+                .execute(_recordingTask(executionOrder, "default", finished));
+        scheduler.newTicket(RequestScheduler.Priority.USER_INITIATED, "a.example.com")
+                .execute(_recordingTask(executionOrder, "user", finished));
+        assertEquals(1, scheduler.getQueueDepth(RequestScheduler.Priority.BACKGROUND));
+        assertEquals(1, scheduler.getQueueDepth(RequestScheduler.Priority.USER_INITIATED));
+        blockingTask.release.countDown();
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(3, executionOrder.size());
+        assertEquals("user", executionOrder.get(0));
+        assertEquals("default", executionOrder.get(1));
+        assertEquals("background", executionOrder.get(2));
+        assertEquals(0, scheduler.getQueueDepth(RequestScheduler.Priority.BACKGROUND));
+        assertEquals(1, scheduler.getPeakQueueDepth(RequestScheduler.Priority.BACKGROUND));
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1, 1, new int[]{ 10, 10, 2 });
+        BlockingTask blockingTask = new BlockingTask();
+        scheduler.newTicket(RequestScheduler.Priority.DEFAULT, "a.example.com").execute(blockingTask);
+        assertTrue(blockingTask.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        CountDownLatch finished = new CountDownLatch(3);
+        List<String> executionOrder = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.newTicket(RequestScheduler.Priority.BACKGROUND, "a.example.com")
+                .execute(_recordingTask(executionOrder, "first", finished));
+        scheduler.newTicket(RequestScheduler.Priority.BACKGROUND, "a.example.com")
+                .execute(_recordingTask(executionOrder, "second", finished));
+        try {
+            scheduler.newTicket(RequestScheduler.Priority.BACKGROUND, "a.example.com")
+                    .execute(_recordingTask(executionOrder, "third", finished));
+            fail("Request should have been rejected!");
+        } catch (RejectedExecutionException ex) {
+            // Expected.
+        }
+        assertEquals(1, scheduler.getRejectedCount(RequestScheduler.Priority.BACKGROUND));
+        // The other lanes still accept requests.
+        scheduler.newTicket(RequestScheduler.Priority.USER_INITIATED, "a.example.com")
+                .execute(_recordingTask(executionOrder, "user", finished));
+        assertEquals(0, scheduler.getRejectedCount(RequestScheduler.Priority.USER_INITIATED));
+        blockingTask.release.countDown();
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(3, executionOrder.size());
+    }
+
+    @Test
+    public void testPerHostLimit() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(4, 1, new int[]{ 10, 10, 10 });
+        BlockingTask slowHostTask = new BlockingTask();
+        scheduler.newTicket(RequestScheduler.Priority.DEFAULT, "slow.example.com").execute(slowHostTask);
+        assertTrue(slowHostTask.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        List<String> executionOrder = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch slowHostFinished = new CountDownLatch(1);
+        CountDownLatch otherHostFinished = new CountDownLatch(1);
+        scheduler.newTicket(RequestScheduler.Priority.USER_INITIATED, "slow.example.com")
+                .execute(_recordingTask(executionOrder, "slow", slowHostFinished));
+        scheduler.newTicket(RequestScheduler.Priority.BACKGROUND, "fast.example.com")
+                .execute(_recordingTask(executionOrder, "fast", otherHostFinished));
+        // The request to the other host does not wait for the busy host, even though it has a lower priority.
+        assertTrue(otherHostFinished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, scheduler.getQueueDepth(RequestScheduler.Priority.USER_INITIATED));
+        slowHostTask.release.countDown();
+        assertTrue(slowHostFinished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("fast", executionOrder.get(0));
+        assertEquals("slow", executionOrder.get(1));
+    }
+
+    @Test
+    public void testPromoteWaitingRequest() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1, 1, new int[]{ 10, 10, 10 });
+        BlockingTask blockingTask = new BlockingTask();
+        scheduler.newTicket(RequestScheduler.Priority.DEFAULT, "a.example.com").execute(blockingTask);
+        assertTrue(blockingTask.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        List<String> executionOrder = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch finished = new CountDownLatch(2);
+        scheduler.newTicket(RequestScheduler.Priority.DEFAULT, "a.example.com")
+                .execute(_recordingTask(executionOrder, "default", finished));
+        RequestScheduler.Ticket backgroundTicket = scheduler.newTicket(RequestScheduler.Priority.BACKGROUND, "a.example.com");
+        backgroundTicket.execute(_recordingTask(executionOrder, "promoted", finished));
+        backgroundTicket.promote(RequestScheduler.Priority.USER_INITIATED);
+        assertEquals(RequestScheduler.Priority.USER_INITIATED, backgroundTicket.getPriority());
+        assertEquals(0, scheduler.getQueueDepth(RequestScheduler.Priority.BACKGROUND));
+        // Lowering the priority is not possible.
+        backgroundTicket.promote(RequestScheduler.Priority.BACKGROUND);
+        assertEquals(RequestScheduler.Priority.USER_INITIATED, backgroundTicket.getPriority());
+        blockingTask.release.countDown();
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("promoted", executionOrder.get(0));
+        assertEquals("default", executionOrder.get(1));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.os.Build;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the retry policy.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RetryPolicyTest {
+
+    @Test
+    public void testDelayGrowsWithinBounds() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000, new Random(42));
+        for (int i = 0; i < 100; ++i) {
+            long firstDelay = retryPolicy.getDelayMs(1);
+            assertTrue(firstDelay >= 50 && firstDelay <= 100);
+            long thirdDelay = retryPolicy.getDelayMs(3);
+            assertTrue(thirdDelay >= 200 && thirdDelay <= 400);
+            // Capped at the maximum delay.
+            long lastDelay = retryPolicy.getDelayMs(40);
+            assertTrue(lastDelay >= 500 && lastDelay <= 1000);
+        }
+    }
+
+    @Test
+    public void testMaxAttempts() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000, new Random());
+        IOException timeout = new SocketTimeoutException();
+        assertTrue(retryPolicy.shouldRetry(timeout, 1, true));
+        assertTrue(retryPolicy.shouldRetry(timeout, 2, true));
+        assertFalse(retryPolicy.shouldRetry(timeout, 3, true));
+    }
+
+    @Test
+    public void testClassification() {
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException(), true));
+        assertTrue(RetryPolicy.isRetryable(new HttpStatusException(503, "Unavailable"), true));
+        assertTrue(RetryPolicy.isRetryable(new HttpStatusException(429, "Too many requests"), true));
+        assertFalse(RetryPolicy.isRetryable(new HttpStatusException(400, "Bad request"), true));
+        assertFalse(RetryPolicy.isRetryable(new FileNotFoundException(), true));
+        assertFalse(RetryPolicy.isRetryable(new SSLHandshakeException("Untrusted"), true));
+        assertFalse(RetryPolicy.isRetryable(new CircuitBreaker.CircuitOpenException("example.com"), true));
+        // A request with side effects is only retried if it could not have reached the server.
+        assertFalse(RetryPolicy.isRetryable(new SocketTimeoutException(), false));
+        assertFalse(RetryPolicy.isRetryable(new HttpStatusException(503, "Unavailable"), false));
+        assertTrue(RetryPolicy.isRetryable(new ConnectException(), false));
+        // Only server problems count against the health of the host.
+        assertTrue(RetryPolicy.isHostFailure(new HttpStatusException(502, "Bad gateway")));
+        assertTrue(RetryPolicy.isHostFailure(new SocketTimeoutException()));
+        assertFalse(RetryPolicy.isHostFailure(new HttpStatusException(404, "Not found")));
+    }
+
+    @Test
+    public void testLocalNetworkFailuresAreNotHostFailures() {
+        assertFalse(RetryPolicy.isHostFailure(new UnknownHostException("example.com")));
+        assertFalse(RetryPolicy.isHostFailure(new NoRouteToHostException()));
+        assertFalse(RetryPolicy.isHostFailure(new ConnectException(
+                "failed to connect to example.com/192.0.2.1 (port 443): connect failed: ENETUNREACH (Network is unreachable)")));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            ConnectException unreachable = new ConnectException("failed to connect to example.com/192.0.2.1 (port 443)");
+            unreachable.initCause(new ErrnoException("connect", OsConstants.ENETUNREACH));
+            assertFalse(RetryPolicy.isHostFailure(unreachable));
+            // A refused connection comes from the host itself.
+            ConnectException refused = new ConnectException("failed to connect to example.com/192.0.2.1 (port 443)");
+            refused.initCause(new ErrnoException("connect", OsConstants.ECONNREFUSED));
+            assertTrue(RetryPolicy.isHostFailure(refused));
+        }
+        // They are still retried, the network might be back by then.
+        assertTrue(RetryPolicy.isRetryable(new UnknownHostException("example.com"), true));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the RTT estimator.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RttEstimatorTest {
+
+    private static final String HOST = "vpn.example.com";
+
+    @Test
+    public void testUnknownHostUsesCeilings() {
+        RttEstimator estimator = new RttEstimator(500, 10000, 2000, 20000);
+        assertEquals(10000, estimator.getConnectTimeoutMs(HOST));
+        assertEquals(20000, estimator.getReadTimeoutMs(HOST));
+        assertEquals(-1, estimator.getSmoothedRttMs(HOST));
+    }
+
+    @Test
+    public void testFastHostGetsShortTimeouts() {
+        RttEstimator estimator = new RttEstimator(500, 10000, 2000, 20000);
+        for (int i = 0; i < 20; ++i) {
+            estimator.recordConnectSample(HOST, 100);
+            estimator.recordSample(HOST, 100);
+        }
+        assertEquals(100, estimator.getSmoothedRttMs(HOST));
+        // The variation converges to zero, so the floors are used.
+        assertEquals(500, estimator.getConnectTimeoutMs(HOST));
+        assertEquals(2000, estimator.getReadTimeoutMs(HOST));
+    }
+
+    @Test
+    public void testSlowHostGetsLongerTimeouts() {
+        RttEstimator estimator = new RttEstimator(500, 10000, 2000, 20000);
+        estimator.recordConnectSample(HOST, 1000);
+        estimator.recordConnectSample(HOST, 3000);
+        estimator.recordSample(HOST, 1000);
+        estimator.recordSample(HOST, 3000);
+        // SRTT = 1250, RTTVAR = 0.75 * 500 + 0.25 * 2000 = 875, RTO = 1250 + 4 * 875 = 4750
+        assertEquals(4750, estimator.getConnectTimeoutMs(HOST));
+        assertEquals(9500, estimator.getReadTimeoutMs(HOST));
+    }
+
+    @Test
+    public void testTimeoutBacksOff() {
+        RttEstimator estimator = new RttEstimator(500, 10000, 2000, 20000);
+        estimator.recordConnectSample(HOST, 400);
+        estimator.recordSample(HOST, 400);
+        // RTO = 400 + 4 * 200 = 1200
+        assertEquals(1200, estimator.getConnectTimeoutMs(HOST));
+        estimator.recordTimeout(HOST);
+        assertEquals(2400, estimator.getConnectTimeoutMs(HOST));
+        estimator.recordTimeout(HOST);
+        assertEquals(4800, estimator.getConnectTimeoutMs(HOST));
+        for (int i = 0; i < 10; ++i) {
+            estimator.recordTimeout(HOST);
+        }
+        // The backoff is limited as well.
+        assertEquals(9600, estimator.getConnectTimeoutMs(HOST));
+        assertEquals(19200, estimator.getReadTimeoutMs(HOST));
+        // A response resets the backoff.
+        estimator.recordSample(HOST, 400);
+        assertTrue(estimator.getConnectTimeoutMs(HOST) < 2400);
+    }
+
+    @Test
+    public void testConnectAndResponseAreEstimatedSeparately() {
+        RttEstimator estimator = new RttEstimator(500, 10000, 2000, 20000);
+        for (int i = 0; i < 50; ++i) {
+            estimator.recordConnectSample(HOST, 2000);
+            estimator.recordSample(HOST, 100);
+        }
+        assertEquals(2000, estimator.getSmoothedConnectMs(HOST));
+        assertEquals(100, estimator.getSmoothedRttMs(HOST));
+        // A slow network does not make the read timeout longer, and a quick server does not shorten the connect timeout.
+        assertEquals(2000, estimator.getConnectTimeoutMs(HOST));
+        assertEquals(2000, estimator.getReadTimeoutMs(HOST));
+        // Hosts with only a connect sample still use the longest read timeout.
+        estimator.recordConnectSample("other.example.com", 100);
+        assertEquals(20000, estimator.getReadTimeoutMs("other.example.com"));
+        assertEquals(20000, estimator.getReadTimeoutCeilingMs());
+    }
+
+    @Test
+    public void testDefaultConnectTimeoutAllowsRadioWakeUp() {
+        RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 20; ++i) {
+            estimator.recordConnectSample(HOST, 20);
+        }
+        assertEquals(RttEstimator.DEFAULT_CONNECT_TIMEOUT_FLOOR_MS, estimator.getConnectTimeoutMs(HOST));
+        assertTrue(estimator.getConnectTimeoutMs(HOST) >= 3000);
+    }
+}
@@ -0,0 +1,829 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import nl.eduvpn.app.entity.DiscoveredAPI;
+import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.CircuitBreaker;
+import nl.eduvpn.app.network.HttpCache;
+import nl.eduvpn.app.network.LoopbackServer;
+import nl.eduvpn.app.network.PooledHttpTransport;
+import nl.eduvpn.app.network.RequestGroup;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.network.RetryPolicy;
+import nl.eduvpn.app.network.RttEstimator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the API service, running against a small HTTP server on the loopback interface.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class APIServiceTest {
+
+    private static final String DISCOVERED_API_JSON = "{\"version\": 1, " +
+            "\"authorization_endpoint\": \"https://example.com/authorize\", " +
+            "\"api\": {\"create_config\": \"https://example.com/create_config\", " +
+            "\"profile_list\": \"https://example.com/profile_list\"}}";
+    private static final String PROFILE_LIST_JSON = "{\"profile_list\": {\"data\": [" +
+            "{\"display_name\": \"Internet\", \"profile_id\": \"internet\", \"two_factor\": false}]}}";
+    private static final long RESPONSE_DELAY_MS = 500;
+    private static final long TIMEOUT_MS = 10000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 20;
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+
+    private LoopbackServer _server;
+    private APIService _apiService;
+    private ConnectionService _connectionService;
+    private PreferencesService _preferencesService;
+    private HttpCache _httpCache;
+    private CircuitBreaker _circuitBreaker;
+    private RttEstimator _rttEstimator;
+    private File _cacheDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new LoopbackServer(null, new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, DISCOVERED_API_JSON).delay(RESPONSE_DELAY_MS);
+            }
+        });
+        _server.start();
+        SerializerService serializerService = new SerializerService();
+        Context context = InstrumentationRegistry.getTargetContext();
+        _preferencesService = new PreferencesService(context, serializerService);
+        _preferencesService._clear();
+        HistoryService historyService = new HistoryService(_preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        _connectionService = new ConnectionService(context, _preferencesService, historyService);
+        _cacheDirectory = new File(context.getCacheDir(), "api_service_test");
+        _deleteCacheDirectory();
+        _httpCache = new HttpCache(_cacheDirectory, HttpCache.DEFAULT_MAX_SIZE_BYTES);
+        _circuitBreaker = new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, TIMEOUT_MS);
+        _rttEstimator = new RttEstimator();
+        _apiService = new APIService(_connectionService, serializerService, new PooledHttpTransport(), _httpCache,
+                new RequestScheduler(), new RetryPolicy(MAX_ATTEMPTS, RETRY_DELAY_MS, RETRY_DELAY_MS, new Random()),
+                _circuitBreaker, _rttEstimator);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _server.stop();
+        _preferencesService._clear();
+        _deleteCacheDirectory();
+    }
+
+    private void _deleteCacheDirectory() {
+        File[] files = _cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        _cacheDirectory.delete();
+    }
+
+    /**
+     * Fetches a discovered API and waits for the result.
+     *
+     * @param url The URL of the discovery document.
+     * @return The discovered API, or null if there was an error.
+     */
+    private DiscoveredAPI _fetchDiscoveredAPI(final String url) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final DiscoveredAPI[] result = new DiscoveredAPI[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                _apiService.getDiscoveredAPI(url, RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                    @Override
+                    public void onSuccess(DiscoveredAPI discoveredAPI) {
+                        result[0] = discoveredAPI;
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return result[0];
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        final int callerCount = 5;
+        final String url = _server.getUrl("/info.json");
+        final CountDownLatch latch = new CountDownLatch(callerCount);
+        final List<DiscoveredAPI> results = Collections.synchronizedList(new ArrayList<DiscoveredAPI>());
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < callerCount; ++i) {
+                    _apiService.getDiscoveredAPI(url, RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                        @Override
+                        public void onSuccess(DiscoveredAPI result) {
+                            results.add(result);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(String errorMessage) {
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(callerCount, results.size());
+        for (DiscoveredAPI result : results) {
+            // All callers share the same parsed result.
+            assertSame(results.get(0), result);
+        }
+        assertEquals("https://example.com/create_config", results.get(0).getCreateConfigAPI());
+        assertEquals(1, _server.getRequestCount());
+        assertEquals(callerCount - 1, _apiService.getCoalescedRequestCount());
+    }
+
+    @Test
+    public void testCoalescedCallbacksReceiveOwnResult() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, PROFILE_LIST_JSON).delay(RESPONSE_DELAY_MS);
+            }
+        });
+        final String url = _server.getUrl("/profile_list");
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<List<Profile>> results = Collections.synchronizedList(new ArrayList<List<Profile>>());
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2; ++i) {
+                    _apiService.getProfileList(url, new APIService.Callback<List<Profile>>() {
+                        @Override
+                        public void onSuccess(List<Profile> result) {
+                            results.add(new ArrayList<>(result));
+                            // Modifying the result must not affect the other callback.
+                            result.clear();
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(String errorMessage) {
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, results.size());
+        for (List<Profile> result : results) {
+            assertEquals(1, result.size());
+            assertEquals("internet", result.get(0).getProfileId());
+        }
+        assertEquals(1, _server.getRequestCount());
+        assertEquals(1, _apiService.getCoalescedRequestCount());
+    }
+
+    @Test
+    public void testCancelledRequestIsNotDelivered() throws Exception {
+        final String url = _server.getUrl("/info.json");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final RequestGroup requestGroup = new RequestGroup();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                requestGroup.add(_apiService.getDiscoveredAPI(url, RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                    @Override
+                    public void onSuccess(DiscoveredAPI result) {
+                        delivered.add("cancelled");
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        delivered.add("cancelled");
+                    }
+                }));
+                _apiService.getDiscoveredAPI(url, RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                    @Override
+                    public void onSuccess(DiscoveredAPI result) {
+                        delivered.add("waiting");
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        latch.countDown();
+                    }
+                });
+                // The second caller still needs the result, so the request keeps running.
+                requestGroup.cancelAll();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList("waiting"), delivered);
+        assertEquals(1, _server.getRequestCount());
+        assertEquals(0, requestGroup.getRunningCount());
+    }
+
+    @Test
+    public void testCancelAbortsRunningRequest() throws Exception {
+        final String url = _server.getUrl("/info.json");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Cancellable[] handle = new Cancellable[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                handle[0] = _apiService.getDiscoveredAPI(url, RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                    @Override
+                    public void onSuccess(DiscoveredAPI result) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        // Wait until the request reached the server, which delays its response.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (_server.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(handle[0].isFinished());
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                handle[0].cancel();
+            }
+        });
+        assertTrue(handle[0].isFinished());
+        assertFalse(latch.await(RESPONSE_DELAY_MS * 2, TimeUnit.MILLISECONDS));
+        // The same request can be made again right away.
+        assertNotNull(_fetchDiscoveredAPI(url));
+    }
+
+    @Test
+    public void testRequestsWithDifferentCredentialsAreNotCoalesced() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, PROFILE_LIST_JSON).delay(RESPONSE_DELAY_MS);
+            }
+        });
+        final String url = _server.getUrl("/profile_list");
+        final CountDownLatch latch = new CountDownLatch(2);
+        final APIService.Callback<List<Profile>> callback = new APIService.Callback<List<Profile>>() {
+            @Override
+            public void onSuccess(List<Profile> result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                latch.countDown();
+            }
+        };
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                _connectionService.setAccessToken("first_token");
+                _apiService.getProfileList(url, callback);
+                _connectionService.setAccessToken("second_token");
+                _apiService.getProfileList(url, callback);
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, _server.getRequestCount());
+        assertEquals(0, _apiService.getCoalescedRequestCount());
+    }
+
+    /**
+     * Parser which returns a fixed value, so two instances of the same class produce different results.
+     */
+    private static class NamedParser implements APIService.ResponseParser<String> {
+        private final String _name;
+
+        NamedParser(String name) {
+            _name = name;
+        }
+
+        @Override
+        public String parse(@NonNull InputStream inputStream) {
+            return _name;
+        }
+    }
+
+    @Test
+    public void testGenericRequestsAreNotCoalesced() throws Exception {
+        final String url = _server.getUrl("/config");
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        final APIService.Callback<String> callback = new APIService.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                results.add(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                latch.countDown();
+            }
+        };
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // The parsers are of the same class, but hold different state.
+                _apiService.getResource(url, false, new NamedParser("first"), callback);
+                _apiService.getResource(url, false, new NamedParser("second"), callback);
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, _server.getRequestCount());
+        assertEquals(0, _apiService.getCoalescedRequestCount());
+        assertTrue(results.contains("first"));
+        assertTrue(results.contains("second"));
+    }
+
+    @Test
+    public void testPerRequestCredentials() throws Exception {
+        final int instanceCount = 4;
+        final Set<String> receivedAuthorizations = Collections.synchronizedSet(new HashSet<String>());
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                receivedAuthorizations.add(request.getHeader("Authorization"));
+                return new LoopbackServer.Response(200, PROFILE_LIST_JSON).delay(RESPONSE_DELAY_MS);
+            }
+        });
+        final String url = _server.getUrl("/profile_list");
+        final CountDownLatch latch = new CountDownLatch(instanceCount);
+        final List<Profile> results = Collections.synchronizedList(new ArrayList<Profile>());
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < instanceCount; ++i) {
+                    Instance instance = new Instance("https://vpn" + i + ".example.com", "VPN " + i, null, false);
+                    _apiService.getProfileList(url, new SavedToken(instance, "token_" + i), new APIService.Callback<List<Profile>>() {
+                        @Override
+                        public void onSuccess(List<Profile> result) {
+                            results.addAll(result);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(String errorMessage) {
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(instanceCount, results.size());
+        // Each request was sent with its own token, and the token of the current connection was left alone.
+        assertEquals(instanceCount, _server.getRequestCount());
+        for (int i = 0; i < instanceCount; ++i) {
+            assertTrue(receivedAuthorizations.contains("Bearer token_" + i));
+        }
+        assertNull(_connectionService.getAccessToken());
+    }
+
+    @Test
+    public void testUnchangedResourceIsRevalidated() throws Exception {
+        final String eTag = "\"v1\"";
+        final List<String> receivedValidators = Collections.synchronizedList(new ArrayList<String>());
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                String ifNoneMatch = request.getHeader("If-None-Match");
+                receivedValidators.add(ifNoneMatch);
+                if (eTag.equals(ifNoneMatch)) {
+                    return new LoopbackServer.Response(304, "");
+                }
+                return new LoopbackServer.Response(200, DISCOVERED_API_JSON).header("ETag", eTag);
+            }
+        });
+        String url = _server.getUrl("/info.json");
+        DiscoveredAPI first = _fetchDiscoveredAPI(url);
+        DiscoveredAPI second = _fetchDiscoveredAPI(url);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(first.getCreateConfigAPI(), second.getCreateConfigAPI());
+        assertEquals(2, _server.getRequestCount());
+        assertNull(receivedValidators.get(0));
+        assertEquals(eTag, receivedValidators.get(1));
+        assertEquals(1, _httpCache.getMissCount());
+        assertEquals(1, _httpCache.getRevalidatedCount());
+        assertEquals(0, _httpCache.getHitCount());
+        assertEquals(DISCOVERED_API_JSON.length(), _httpCache.getBytesSaved());
+    }
+
+    @Test
+    public void testFreshResourceSkipsNetwork() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, DISCOVERED_API_JSON).header("Cache-Control", "max-age=60");
+            }
+        });
+        String url = _server.getUrl("/info.json");
+        assertNotNull(_fetchDiscoveredAPI(url));
+        assertNotNull(_fetchDiscoveredAPI(url));
+        assertEquals(1, _server.getRequestCount());
+        assertEquals(1, _httpCache.getMissCount());
+        assertEquals(1, _httpCache.getHitCount());
+    }
+
+    @Test
+    public void testCachedResponsesAreBoundToCredentials() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, PROFILE_LIST_JSON).header("Cache-Control", "max-age=60");
+            }
+        });
+        final String url = _server.getUrl("/profile_list");
+        final CountDownLatch latch = new CountDownLatch(2);
+        final APIService.Callback<List<Profile>> callback = new APIService.Callback<List<Profile>>() {
+            @Override
+            public void onSuccess(List<Profile> result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                latch.countDown();
+            }
+        };
+        final Instance instance = new Instance("https://vpn.example.com", "VPN", null, false);
+        for (final String accessToken : new String[]{ "first_token", "second_token" }) {
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    _apiService.getProfileList(url, new SavedToken(instance, accessToken), callback);
+                }
+            });
+            // Wait a bit, so the requests are not coalesced.
+            Thread.sleep(RESPONSE_DELAY_MS);
+        }
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The response for the first user must not be served to the second one.
+        assertEquals(2, _server.getRequestCount());
+        assertEquals(0, _httpCache.getHitCount());
+    }
+
+    @Test
+    public void testServerErrorIsRetried() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            private int _requestCount = 0;
+
+            @NonNull
+            @Override
+            public synchronized LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                if (++_requestCount < MAX_ATTEMPTS) {
+                    return new LoopbackServer.Response(503, "Try again later");
+                }
+                return new LoopbackServer.Response(200, DISCOVERED_API_JSON);
+            }
+        });
+        assertNotNull(_fetchDiscoveredAPI(_server.getUrl("/info.json")));
+        assertEquals(MAX_ATTEMPTS, _server.getRequestCount());
+    }
+
+    @Test
+    public void testRetryDoesNotHoldHostSlot() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            private boolean _hasFailed = false;
+
+            @NonNull
+            @Override
+            public synchronized LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                if (request.getPath().equals("/failing.json") && !_hasFailed) {
+                    _hasFailed = true;
+                    return new LoopbackServer.Response(503, "Try again later");
+                }
+                return new LoopbackServer.Response(200, DISCOVERED_API_JSON);
+            }
+        });
+        // A single request per host, and a long delay before the retry.
+        final APIService apiService = new APIService(_connectionService, new SerializerService(), new PooledHttpTransport(), _httpCache,
+                new RequestScheduler(RequestScheduler.DEFAULT_MAX_CONCURRENT_REQUESTS, 1, RequestScheduler.DEFAULT_QUEUE_CAPACITIES),
+                new RetryPolicy(2, 2000, 2000, new Random()), _circuitBreaker, _rttEstimator);
+        final List<String> finishedPaths = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        final String[] paths = { "/failing.json", "/info.json" };
+        for (final String path : paths) {
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    apiService.getDiscoveredAPI(_server.getUrl(path), RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                        @Override
+                        public void onSuccess(DiscoveredAPI result) {
+                            finishedPaths.add(path);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(String errorMessage) {
+                            latch.countDown();
+                        }
+                    });
+                }
+            });
+            // Wait until the first attempt failed, so the second request is made while the first one waits for its retry.
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (_server.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The second request did not have to wait for the backoff of the first one.
+        assertEquals(Arrays.asList("/info.json", "/failing.json"), finishedPaths);
+        assertEquals(3, _server.getRequestCount());
+    }
+
+    @Test
+    public void testMalformedResponseIsNotRetried() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, "{\"unexpected\": true}");
+            }
+        });
+        assertNull(_fetchDiscoveredAPI(_server.getUrl("/info.json")));
+        assertEquals(1, _server.getRequestCount());
+    }
+
+    @Test
+    public void testConnectionIsClosedAfterMalformedResponse() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                if (request.getPath().contains("malformed")) {
+                    return new LoopbackServer.Response(200, "{\"unexpected\": true}");
+                }
+                return new LoopbackServer.Response(200, DISCOVERED_API_JSON);
+            }
+        });
+        assertNotNull(_fetchDiscoveredAPI(_server.getUrl("/first.json")));
+        assertNotNull(_fetchDiscoveredAPI(_server.getUrl("/second.json")));
+        // The connection is kept alive after a response which was parsed.
+        assertEquals(1, _server.getConnectionCount());
+        assertNull(_fetchDiscoveredAPI(_server.getUrl("/malformed.json")));
+        assertNotNull(_fetchDiscoveredAPI(_server.getUrl("/third.json")));
+        // The rest of the malformed response is not read, its connection is closed instead.
+        assertEquals(2, _server.getConnectionCount());
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws Exception {
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                return new LoopbackServer.Response(500, "Internal server error");
+            }
+        });
+        String url = _server.getUrl("/info.json");
+        assertNull(_fetchDiscoveredAPI(url));
+        assertEquals(MAX_ATTEMPTS, _server.getRequestCount());
+        assertTrue(_circuitBreaker.isOpen("127.0.0.1"));
+        // The server is not contacted anymore while the circuit is open.
+        assertNull(_fetchDiscoveredAPI(url));
+        assertEquals(MAX_ATTEMPTS, _server.getRequestCount());
+    }
+
+    @Test
+    public void testResponseTimesAreRecorded() throws Exception {
+        String url = _server.getUrl("/info.json");
+        assertEquals(-1, _rttEstimator.getSmoothedRttMs("127.0.0.1"));
+        assertNotNull(_fetchDiscoveredAPI(url));
+        // The server delays each response.
+        assertTrue(_rttEstimator.getSmoothedRttMs("127.0.0.1") >= RESPONSE_DELAY_MS);
+        assertTrue(_rttEstimator.getReadTimeoutMs("127.0.0.1") < RttEstimator.DEFAULT_READ_TIMEOUT_CEILING_MS);
+        // Connecting is measured separately, and is not slowed down by the server.
+        assertTrue(_rttEstimator.getSmoothedConnectMs("127.0.0.1") >= 0);
+        assertTrue(_rttEstimator.getSmoothedConnectMs("127.0.0.1") < RESPONSE_DELAY_MS);
+    }
+
+    @Test
+    public void testPostResponseIsStreamedToParser() throws Exception {
+        final int lineCount = 20000;
+        final StringBuilder config = new StringBuilder();
+        for (int i = 0; i < lineCount; ++i) {
+            config.append("line ").append(i).append('\n');
+        }
+        final List<String> requestBodies = Collections.synchronizedList(new ArrayList<String>());
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                requestBodies.add(request.getMethod() + " " + new String(request.getBody()));
+                return new LoopbackServer.Response(200, config.toString());
+            }
+        });
+        final String url = _server.getUrl("/create_config");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Integer[] result = new Integer[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                _apiService.postResource(url, "profile_id=internet", false, new APIService.ResponseParser<Integer>() {
+                    @Override
+                    public Integer parse(@NonNull InputStream inputStream) throws IOException {
+                        // Read with a single small buffer, like the config parser does.
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"), 1024);
+                        int lines = 0;
+                        while (reader.readLine() != null) {
+                            lines++;
+                        }
+                        return lines;
+                    }
+                }, new APIService.Callback<Integer>() {
+                    @Override
+                    public void onSuccess(Integer lines) {
+                        result[0] = lines;
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(lineCount), result[0]);
+        assertEquals(Collections.singletonList("POST profile_id=internet"), requestBodies);
+        // Creating a configuration does not count towards the response time estimate of the GET requests.
+        assertEquals(-1, _rttEstimator.getSmoothedRttMs("127.0.0.1"));
+        assertTrue(_rttEstimator.getSmoothedConnectMs("127.0.0.1") >= 0);
+    }
+
+    @Test
+    public void testCompressedResponseIsDecoded() throws Exception {
+        final List<String> acceptEncodings = Collections.synchronizedList(new ArrayList<String>());
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                acceptEncodings.add(request.getHeader("Accept-Encoding"));
+                if (request.getHeader("If-None-Match") != null) {
+                    return new LoopbackServer.Response(304, "");
+                }
+                try {
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream);
+                    gzipStream.write(DISCOVERED_API_JSON.getBytes("UTF-8"));
+                    gzipStream.close();
+                    return new LoopbackServer.Response(200, outputStream.toByteArray()).header("Content-Encoding", "gzip")
+                            .header("ETag", "\"v1\"");
+                } catch (IOException ex) {
+                    return new LoopbackServer.Response(500, ex.toString());
+                }
+            }
+        });
+        String url = _server.getUrl("/info.json");
+        DiscoveredAPI discoveredAPI = _fetchDiscoveredAPI(url);
+        assertNotNull(discoveredAPI);
+        assertEquals("https://example.com/create_config", discoveredAPI.getCreateConfigAPI());
+        assertTrue(acceptEncodings.get(0).contains("gzip"));
+        String endpoint = "127.0.0.1/info.json";
+        assertEquals(1, _apiService.getTransferStats().getResponseCount(endpoint));
+        assertEquals(DISCOVERED_API_JSON.length(), _apiService.getTransferStats().getDecodedBytes(endpoint));
+        assertTrue(_apiService.getTransferStats().getTransferredBytes(endpoint) > 0);
+        // The decoded body is cached, so it can be parsed again after revalidation.
+        discoveredAPI = _fetchDiscoveredAPI(url);
+        assertNotNull(discoveredAPI);
+        assertEquals("https://example.com/create_config", discoveredAPI.getCreateConfigAPI());
+        assertEquals(1, _httpCache.getRevalidatedCount());
+    }
+
+    @Test
+    public void testPostWithCredentials() throws Exception {
+        final List<String> receivedAuthorizations = Collections.synchronizedList(new ArrayList<String>());
+        _server.setResponder(new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                receivedAuthorizations.add(request.getHeader("Authorization"));
+                return new LoopbackServer.Response(200, "config");
+            }
+        });
+        final String url = _server.getUrl("/create_config");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final byte[][] result = new byte[1][];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Instance instance = new Instance("https://vpn.example.com", "VPN", null, false);
+                _apiService.postResource(url, "profile_id=internet", new SavedToken(instance, "prefetch_token"),
+                        RequestScheduler.Priority.BACKGROUND, new APIService.ResponseParser<byte[]>() {
+                            @Override
+                            public byte[] parse(@NonNull InputStream inputStream) throws IOException {
+                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                                int read;
+                                while ((read = inputStream.read()) != -1) {
+                                    outputStream.write(read);
+                                }
+                                return outputStream.toByteArray();
+                            }
+                        }, new APIService.Callback<byte[]>() {
+                            @Override
+                            public void onSuccess(byte[] body) {
+                                result[0] = body;
+                                latch.countDown();
+                            }
+
+                            @Override
+                            public void onError(String errorMessage) {
+                                latch.countDown();
+                            }
+                        });
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotNull(result[0]);
+        assertEquals("config", new String(result[0], "UTF-8"));
+        assertEquals(Collections.singletonList("Bearer prefetch_token"), receivedAuthorizations);
+    }
+}
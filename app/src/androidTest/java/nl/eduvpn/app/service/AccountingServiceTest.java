@@ -0,0 +1,246 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+import nl.eduvpn.app.entity.DailyUsage;
+import nl.eduvpn.app.entity.SessionRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the session accounting store.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AccountingServiceTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private File _directory;
+
+    @Before
+    public void setUp() {
+        _directory = new File(InstrumentationRegistry.getContext().getCacheDir(), "accounting_test");
+        _deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        _deleteDirectory();
+    }
+
+    private void _deleteDirectory() {
+        File[] files = _directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        _directory.delete();
+    }
+
+    /**
+     * Returns the start of the local day of the current time.
+     */
+    private static long _getStartOfToday() {
+        long now = System.currentTimeMillis();
+        long localTime = now + TimeZone.getDefault().getOffset(now);
+        return now - localTime % DAY_MS;
+    }
+
+    @Test
+    public void testRecordAndQuery() {
+        AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        long startOfToday = _getStartOfToday();
+        accountingService.record(new SessionRecord("a", startOfToday, HOUR_MS, 100, 10));
+        accountingService.record(new SessionRecord("a", startOfToday + 2 * HOUR_MS, HOUR_MS, 200, 20));
+        accountingService.record(new SessionRecord("b", startOfToday, HOUR_MS, 1000, 100));
+        List<DailyUsage> usage = accountingService.getDailyUsage("a", 1);
+        assertEquals(1, usage.size());
+        assertEquals(2, usage.get(0).getSessionCount());
+        assertEquals(2 * 3600, usage.get(0).getSecondsConnected());
+        assertEquals(300, usage.get(0).getBytesIn());
+        assertEquals(30, usage.get(0).getBytesOut());
+        assertEquals(AccountingService.getDayIndex(startOfToday), usage.get(0).getDay());
+        List<DailyUsage> allUsage = accountingService.getDailyUsage(1);
+        assertEquals(2, allUsage.size());
+        assertEquals("a", allUsage.get(0).getProfileUUID());
+        assertEquals("b", allUsage.get(1).getProfileUUID());
+        assertEquals(1000, allUsage.get(1).getBytesIn());
+    }
+
+    @Test
+    public void testSessionOverMidnightIsSplit() {
+        AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        long startOfToday = _getStartOfToday();
+        accountingService.record(new SessionRecord("a", startOfToday - HOUR_MS, 2 * HOUR_MS, 2000, 200));
+        List<DailyUsage> usage = accountingService.getDailyUsage("a", 2);
+        assertEquals(2, usage.size());
+        // The most recent day comes first.
+        assertEquals(AccountingService.getDayIndex(startOfToday), usage.get(0).getDay());
+        assertEquals(AccountingService.getDayIndex(startOfToday) - 1, usage.get(1).getDay());
+        for (DailyUsage dailyUsage : usage) {
+            assertEquals(1, dailyUsage.getSessionCount());
+            assertEquals(3600, dailyUsage.getSecondsConnected());
+            assertEquals(1000, dailyUsage.getBytesIn());
+            assertEquals(100, dailyUsage.getBytesOut());
+        }
+        // Only today.
+        assertEquals(1, accountingService.getDailyUsage("a", 1).size());
+    }
+
+    @Test
+    public void testOldDaysAreSkipped() {
+        AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        accountingService.record(new SessionRecord("a", _getStartOfToday() - 10 * DAY_MS, HOUR_MS, 100, 10));
+        assertTrue(accountingService.getDailyUsage(7).isEmpty());
+        assertEquals(1, accountingService.getDailyUsage(30).size());
+    }
+
+    @Test
+    public void testCompactionKeepsTotals() {
+        AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        long startOfToday = _getStartOfToday();
+        int sessionCount = AccountingService.COMPACTION_THRESHOLD + 3;
+        for (int i = 0; i < sessionCount; ++i) {
+            // Spread over the last 30 days, so there are multiple days in the aggregates.
+            long startTime = startOfToday - (i % 30) * DAY_MS + HOUR_MS;
+            accountingService.record(new SessionRecord(i % 2 == 0 ? "a" : "b", startTime, 60 * 1000, 100, 10));
+        }
+        _assertTotals(accountingService.getDailyUsage(30), sessionCount);
+        // The journal only holds the sessions after the compaction.
+        assertTrue(new File(_directory, "sessions.journal").length() < 10 * 100);
+        // A new instance reads the same data.
+        AccountingService reopenedService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        _assertTotals(reopenedService.getDailyUsage(30), sessionCount);
+        assertEquals(30, reopenedService.getDailyUsage("a", 30).size() + reopenedService.getDailyUsage("b", 30).size());
+        assertEquals(7, reopenedService.getDailyUsage("a", 7).size() + reopenedService.getDailyUsage("b", 7).size());
+    }
+
+    @Test
+    public void testIncompleteJournalRecordIsDropped() throws IOException {
+        AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        long startOfToday = _getStartOfToday();
+        accountingService.record(new SessionRecord("a", startOfToday, HOUR_MS, 100, 10));
+        accountingService.record(new SessionRecord("a", startOfToday, HOUR_MS, 100, 10));
+        // Simulate a crash in the middle of writing a record.
+        FileOutputStream outputStream = new FileOutputStream(new File(_directory, "sessions.journal"), true);
+        outputStream.write(new byte[]{ 0, 1, 'a' });
+        outputStream.close();
+        AccountingService reopenedService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        _assertTotals(reopenedService.getDailyUsage(1), 2);
+        // New records are appended after the last complete one.
+        reopenedService.record(new SessionRecord("a", startOfToday, HOUR_MS, 100, 10));
+        _assertTotals(new AccountingService(_directory, DIRECT_EXECUTOR).getDailyUsage(1), 3);
+    }
+
+    @Test
+    public void testSessionOverDaylightSavingTimeChange() {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Amsterdam"));
+        try {
+            AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+            // 2016-10-30 01:00 CEST. The day has 25 hours, the clocks are turned back at 03:00.
+            long startTime = 1477782000000L;
+            accountingService.record(new SessionRecord("a", startTime, 24 * HOUR_MS, 2400, 240));
+            int days = AccountingService.getDayIndex(System.currentTimeMillis()) - AccountingService.getDayIndex(startTime) + 2;
+            List<DailyUsage> usage = accountingService.getDailyUsage("a", days);
+            // The session ends exactly at midnight, so it all belongs to the same day.
+            assertEquals(1, usage.size());
+            assertEquals(AccountingService.getDayIndex(startTime), usage.get(0).getDay());
+            assertEquals(1, usage.get(0).getSessionCount());
+            assertEquals(24 * 3600, usage.get(0).getSecondsConnected());
+            assertEquals(2400, usage.get(0).getBytesIn());
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test
+    public void testUnknownAggregatesFormatIsKept() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        _directory.mkdirs();
+        byte[] unknownData = new byte[]{ 0, 0, 0, 99, 1, 2, 3 };
+        FileOutputStream outputStream = new FileOutputStream(new File(_directory, "daily.aggregates"));
+        outputStream.write(unknownData);
+        outputStream.close();
+        AccountingService accountingService = new AccountingService(_directory, DIRECT_EXECUTOR);
+        long startOfToday = _getStartOfToday();
+        int sessionCount = AccountingService.COMPACTION_THRESHOLD + 1;
+        for (int i = 0; i < sessionCount; ++i) {
+            accountingService.record(new SessionRecord("a", startOfToday, 60 * 1000, 100, 10));
+        }
+        _assertTotals(accountingService.getDailyUsage(1), sessionCount);
+        // The unknown file is moved aside instead of being overwritten by the compaction.
+        File[] unknownFiles = _directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) {
+                return name.startsWith("daily.aggregates.unknown");
+            }
+        });
+        assertNotNull(unknownFiles);
+        assertEquals(1, unknownFiles.length);
+        assertEquals(unknownData.length, unknownFiles[0].length());
+        _assertTotals(new AccountingService(_directory, DIRECT_EXECUTOR).getDailyUsage(1), sessionCount);
+    }
+
+    private static void _assertTotals(List<DailyUsage> usage, int sessionCount) {
+        assertFalse(usage.isEmpty());
+        int totalSessions = 0;
+        long totalBytesIn = 0;
+        long totalBytesOut = 0;
+        for (DailyUsage dailyUsage : usage) {
+            totalSessions += dailyUsage.getSessionCount();
+            totalBytesIn += dailyUsage.getBytesIn();
+            totalBytesOut += dailyUsage.getBytesOut();
+        }
+        assertEquals(sessionCount, totalSessions);
+        assertEquals(sessionCount * 100L, totalBytesIn);
+        assertEquals(sessionCount * 10L, totalBytesOut);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the collection store.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CollectionStoreTest {
+
+    private File _directory;
+    private CollectionStore _collectionStore;
+
+    @Before
+    public void before() {
+        _directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "collection_store_test");
+        _collectionStore = CollectionStore.forDirectory(_directory);
+        _collectionStore.clear();
+    }
+
+    @After
+    public void after() {
+        _collectionStore.clear();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        assertSame(_collectionStore, CollectionStore.forDirectory(_directory));
+        assertNull(_collectionStore.read("collection"));
+        _collectionStore.write("collection", new byte[]{ 1, 2, 3 });
+        _collectionStore.write("collection", new byte[]{ 4, 5 });
+        // The queued content is returned before it is written.
+        assertArrayEquals(new byte[]{ 4, 5 }, _collectionStore.read("collection"));
+        _collectionStore.sync();
+        assertTrue(new File(_directory, "collection.bin").exists());
+        assertArrayEquals(new byte[]{ 4, 5 }, _collectionStore.read("collection"));
+        // Header of 6 bytes, and the payload.
+        assertEquals(8, _collectionStore.getFileSize("collection"));
+        _collectionStore.write("empty", new byte[0]);
+        _collectionStore.sync();
+        assertArrayEquals(new byte[0], _collectionStore.read("empty"));
+    }
+
+    @Test
+    public void testClear() {
+        _collectionStore.write("collection", new byte[]{ 1, 2, 3 });
+        _collectionStore.clear();
+        assertNull(_collectionStore.read("collection"));
+        _collectionStore.sync();
+        assertNull(_collectionStore.read("collection"));
+        assertEquals(0, _collectionStore.getFileSize("collection"));
+    }
+
+    @Test
+    public void testUnknownContentIsIgnored() throws IOException {
+        assertTrue(_directory.exists() || _directory.mkdirs());
+        // Written by a newer version of the app.
+        DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(new File(_directory, "newer.bin")));
+        outputStream.writeInt(0x65564331);
+        outputStream.writeShort(CollectionStore.SCHEMA_VERSION + 1);
+        outputStream.write(new byte[]{ 1, 2, 3 });
+        outputStream.close();
+        assertNull(_collectionStore.read("newer"));
+        // Not a collection file.
+        outputStream = new DataOutputStream(new FileOutputStream(new File(_directory, "damaged.bin")));
+        outputStream.writeShort(1);
+        outputStream.close();
+        assertNull(_collectionStore.read("damaged"));
+        // The files are moved aside, so the next writes do not overwrite them.
+        assertFalse(new File(_directory, "newer.bin").exists());
+        assertFalse(new File(_directory, "damaged.bin").exists());
+        _collectionStore.write("newer", new byte[]{ 4, 5 });
+        _collectionStore.sync();
+        assertArrayEquals(new byte[]{ 4, 5 }, _collectionStore.read("newer"));
+        assertEquals(1, _countFilesStartingWith("newer.bin.unknown-"));
+        assertEquals(1, _countFilesStartingWith("damaged.bin.unknown-"));
+    }
+
+    @Test
+    public void testMoveAside() {
+        _collectionStore.write("collection", new byte[]{ 1, 2, 3 });
+        // Not moved while the content is only queued, it was not read from the file.
+        _collectionStore.moveAside("collection");
+        _collectionStore.sync();
+        assertArrayEquals(new byte[]{ 1, 2, 3 }, _collectionStore.read("collection"));
+        _collectionStore.moveAside("collection");
+        assertNull(_collectionStore.read("collection"));
+        assertEquals(1, _countFilesStartingWith("collection.bin.unknown-"));
+    }
+
+    private int _countFilesStartingWith(String prefix) {
+        int count = 0;
+        File[] files = _directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testSyncReportsFailedWrites() throws IOException {
+        // A directory in the place of the file makes the write fail.
+        File blockingDirectory = new File(_directory, "collection.bin");
+        File blockingFile = new File(blockingDirectory, "file");
+        assertTrue(blockingDirectory.mkdirs());
+        assertTrue(blockingFile.createNewFile());
+        _collectionStore.write("collection", new byte[]{ 1, 2, 3 });
+        _collectionStore.write("other", new byte[]{ 4, 5 });
+        assertEquals(Collections.singleton("collection"), _collectionStore.sync());
+        assertArrayEquals(new byte[]{ 4, 5 }, _collectionStore.read("other"));
+        assertTrue(blockingFile.delete());
+        assertTrue(blockingDirectory.delete());
+        _collectionStore.write("collection", new byte[]{ 1, 2, 3 });
+        assertTrue(_collectionStore.sync().isEmpty());
+        assertArrayEquals(new byte[]{ 1, 2, 3 }, _collectionStore.read("collection"));
+    }
+}
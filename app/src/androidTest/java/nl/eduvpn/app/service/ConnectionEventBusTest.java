@@ -0,0 +1,172 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import nl.eduvpn.app.entity.ConnectionMetadata;
+import nl.eduvpn.app.entity.ConnectionStatistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the connection event bus.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ConnectionEventBusTest {
+
+    private ConnectionEventBus _eventBus;
+
+    @Before
+    public void setUp() {
+        _eventBus = new ConnectionEventBus(new Handler(Looper.getMainLooper()));
+    }
+
+    @Test
+    public void testLastValueIsDeliveredOnSubscribe() {
+        final List<VPNService.VPNStatus> received = new ArrayList<>();
+        assertNull(_eventBus.getLastValue(ConnectionEventBus.STATUS));
+        _eventBus.publish(ConnectionEventBus.STATUS, VPNService.VPNStatus.CONNECTING);
+        _eventBus.publish(ConnectionEventBus.STATUS, VPNService.VPNStatus.CONNECTED);
+        _eventBus.subscribe(ConnectionEventBus.STATUS, ConnectionEventBus.DIRECT_EXECUTOR, new ConnectionEventBus.Subscriber<VPNService.VPNStatus>() {
+            @Override
+            public void onEvent(@NonNull VPNService.VPNStatus event) {
+                received.add(event);
+            }
+        });
+        assertEquals(1, received.size());
+        assertEquals(VPNService.VPNStatus.CONNECTED, received.get(0));
+        assertEquals(VPNService.VPNStatus.CONNECTED, _eventBus.getLastValue(ConnectionEventBus.STATUS));
+    }
+
+    @Test
+    public void testMultipleSubscribersAndUnsubscribe() {
+        final List<VPNService.VPNStatus> first = new ArrayList<>();
+        final List<VPNService.VPNStatus> second = new ArrayList<>();
+        ConnectionEventBus.Subscription firstSubscription = _eventBus.subscribe(ConnectionEventBus.STATUS,
+                ConnectionEventBus.DIRECT_EXECUTOR, new ConnectionEventBus.Subscriber<VPNService.VPNStatus>() {
+                    @Override
+                    public void onEvent(@NonNull VPNService.VPNStatus event) {
+                        first.add(event);
+                    }
+                });
+        _eventBus.subscribe(ConnectionEventBus.STATUS, ConnectionEventBus.DIRECT_EXECUTOR, new ConnectionEventBus.Subscriber<VPNService.VPNStatus>() {
+            @Override
+            public void onEvent(@NonNull VPNService.VPNStatus event) {
+                second.add(event);
+            }
+        });
+        assertTrue(_eventBus.hasSubscribers(ConnectionEventBus.STATUS));
+        assertFalse(_eventBus.hasSubscribers(ConnectionEventBus.STATISTICS));
+        _eventBus.publish(ConnectionEventBus.STATUS, VPNService.VPNStatus.CONNECTING);
+        firstSubscription.unsubscribe();
+        _eventBus.publish(ConnectionEventBus.STATUS, VPNService.VPNStatus.CONNECTED);
+        assertEquals(1, first.size());
+        assertEquals(2, second.size());
+        assertEquals(VPNService.VPNStatus.CONNECTED, second.get(1));
+    }
+
+    @Test
+    public void testSubscribeListener() {
+        final int[] callCount = { 0 };
+        _eventBus.setSubscribeListener(ConnectionEventBus.STATISTICS, new Runnable() {
+            @Override
+            public void run() {
+                callCount[0]++;
+            }
+        });
+        _eventBus.subscribe(ConnectionEventBus.STATISTICS, ConnectionEventBus.DIRECT_EXECUTOR, new ConnectionEventBus.Subscriber<ConnectionStatistics>() {
+            @Override
+            public void onEvent(@NonNull ConnectionStatistics event) {
+                // Unused.
+            }
+        });
+        assertEquals(1, callCount[0]);
+    }
+
+    @Test
+    public void testConcurrentPublishersNeverDeliverOlderValues() throws Exception {
+        final int threadCount = 4;
+        final int publishCount = 2000;
+        final List<ConnectionStatistics> received = Collections.synchronizedList(new ArrayList<ConnectionStatistics>());
+        // The subscriber runs on a pool, so the deliveries can overtake each other.
+        ExecutorService deliveryExecutor = Executors.newFixedThreadPool(threadCount);
+        _eventBus.subscribe(ConnectionEventBus.STATISTICS, deliveryExecutor, new ConnectionEventBus.Subscriber<ConnectionStatistics>() {
+            @Override
+            public void onEvent(@NonNull ConnectionStatistics event) {
+                received.add(event);
+            }
+        });
+        ExecutorService publishExecutor = Executors.newFixedThreadPool(threadCount);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int thread = 0; thread < threadCount; ++thread) {
+            final int threadIndex = thread;
+            publishExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < publishCount; ++i) {
+                        _eventBus.publish(ConnectionEventBus.STATISTICS, new ConnectionStatistics(threadIndex, i, i));
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        publishExecutor.shutdown();
+        deliveryExecutor.shutdown();
+        assertTrue(deliveryExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        // Older events may be skipped, but the newest one should always arrive, and stay the last value.
+        ConnectionStatistics lastValue = _eventBus.getLastValue(ConnectionEventBus.STATISTICS);
+        assertTrue(received.contains(lastValue));
+        assertEquals(publishCount - 1, lastValue.getBytesIn());
+    }
+
+    @Test
+    public void testMainThreadExecutor() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Executor executor = _eventBus.getMainThreadExecutor();
+        _eventBus.subscribe(ConnectionEventBus.METADATA, executor, new ConnectionEventBus.Subscriber<ConnectionMetadata>() {
+            @Override
+            public void onEvent(@NonNull ConnectionMetadata event) {
+                latch.countDown();
+            }
+        });
+        _eventBus.publish(ConnectionEventBus.METADATA, new ConnectionMetadata("10.0.0.2", null));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
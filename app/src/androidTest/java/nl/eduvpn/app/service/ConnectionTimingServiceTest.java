@@ -0,0 +1,106 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the connection timing measurements.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ConnectionTimingServiceTest {
+
+    private static void _connect(ConnectionTimingService service, String profileUUID, ConnectionTimingService.Transport transport, long startTime) {
+        service.onConnectRequested(profileUUID, transport, startTime);
+        service.onPhaseReached(ConnectionTimingService.Phase.STARTED, startTime + 100);
+        service.onPhaseReached(ConnectionTimingService.Phase.WAITING_FOR_SERVER, startTime + 300);
+        service.onPhaseReached(ConnectionTimingService.Phase.SERVER_REPLIED, startTime + 700);
+        service.onPhaseReached(ConnectionTimingService.Phase.CONNECTED, startTime + 1500);
+    }
+
+    @Test
+    public void testPhaseDurations() {
+        ConnectionTimingService service = new ConnectionTimingService();
+        _connect(service, "a", ConnectionTimingService.Transport.UDP, 10000);
+        ConnectionTimingService.Timings timings = service.getProfileTimings("a");
+        assertNotNull(timings);
+        assertEquals(1, timings.getTimeToConnect().getCount());
+        assertEquals(1500, timings.getTimeToConnect().getMax());
+        assertEquals(100, timings.getPhaseDuration(ConnectionTimingService.Phase.REQUESTED).getMax());
+        assertEquals(200, timings.getPhaseDuration(ConnectionTimingService.Phase.STARTED).getMax());
+        assertEquals(400, timings.getPhaseDuration(ConnectionTimingService.Phase.WAITING_FOR_SERVER).getMax());
+        assertEquals(800, timings.getPhaseDuration(ConnectionTimingService.Phase.SERVER_REPLIED).getMax());
+        assertEquals(1, service.getTransportTimings(ConnectionTimingService.Transport.UDP).getTimeToConnect().getCount());
+        assertEquals(0, service.getTransportTimings(ConnectionTimingService.Transport.TCP).getTimeToConnect().getCount());
+        assertNull(service.getProfileTimings("b"));
+    }
+
+    @Test
+    public void testAbortedAndRetriedAttempts() {
+        ConnectionTimingService service = new ConnectionTimingService();
+        service.onConnectRequested("a", ConnectionTimingService.Transport.TCP, 0);
+        service.onPhaseReached(ConnectionTimingService.Phase.WAITING_FOR_SERVER, 100);
+        service.onAborted();
+        ConnectionTimingService.Timings timings = service.getTransportTimings(ConnectionTimingService.Transport.TCP);
+        assertEquals(1, timings.getFailedCount());
+        assertEquals(0, timings.getTimeToConnect().getCount());
+        // An automatic reconnect is counted for the same profile, and retrying a phase only counts for the total.
+        service.onPhaseReached(ConnectionTimingService.Phase.STARTED, 1000);
+        service.onPhaseReached(ConnectionTimingService.Phase.WAITING_FOR_SERVER, 1100);
+        service.onPhaseReached(ConnectionTimingService.Phase.STARTED, 2000);
+        service.onPhaseReached(ConnectionTimingService.Phase.CONNECTED, 2300);
+        assertEquals(1, timings.getTimeToConnect().getCount());
+        assertEquals(1300, timings.getTimeToConnect().getMax());
+        assertEquals(2, timings.getPhaseDuration(ConnectionTimingService.Phase.STARTED).getCount());
+        assertEquals(300, timings.getPhaseDuration(ConnectionTimingService.Phase.STARTED).getMax());
+        // Being connected again does not start a new attempt.
+        service.onPhaseReached(ConnectionTimingService.Phase.CONNECTED, 3000);
+        assertEquals(1, timings.getTimeToConnect().getCount());
+    }
+
+    @Test
+    public void testProfileCountIsLimited() {
+        ConnectionTimingService service = new ConnectionTimingService();
+        for (int i = 0; i <= ConnectionTimingService.MAX_PROFILES; ++i) {
+            _connect(service, "profile" + i, ConnectionTimingService.Transport.UDP, i * 10000);
+        }
+        assertNull(service.getProfileTimings("profile0"));
+        assertNotNull(service.getProfileTimings("profile" + ConnectionTimingService.MAX_PROFILES));
+        assertEquals(ConnectionTimingService.MAX_PROFILES + 1,
+                service.getTransportTimings(ConnectionTimingService.Transport.UDP).getTimeToConnect().getCount());
+    }
+
+    @Test
+    public void testDump() {
+        ConnectionTimingService service = new ConnectionTimingService();
+        _connect(service, "a", ConnectionTimingService.Transport.UDP, 0);
+        String dump = service.dump();
+        assertTrue(dump.contains("[Transport UDP]"));
+        assertTrue(dump.contains("[Profile a]"));
+        assertTrue(dump.contains("max=1500"));
+    }
+}
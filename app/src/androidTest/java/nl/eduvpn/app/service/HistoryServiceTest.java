@@ -17,16 +17,24 @@
 
 package nl.eduvpn.app.service;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.Pair;
 
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.Instance;
 import nl.eduvpn.app.entity.Profile;
 import nl.eduvpn.app.entity.SavedProfile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.utils.TTLCache;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -34,6 +42,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 /**
@@ -43,6 +60,7 @@ import static org.junit.Assert.*;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class HistoryServiceTest {
+    private static final String TAG = HistoryServiceTest.class.getName();
 
     private HistoryService _historyService;
 
@@ -57,16 +75,19 @@ public class HistoryServiceTest {
      *
      * @param clearHistory If the history should be cleared beforehand,
      */
-    @SuppressLint("CommitPrefEdits")
     private void _reloadHistoryService(boolean clearHistory) {
+        if (_historyService != null) {
+            // Save the pending changes, like the app does when it goes to the background.
+            _historyService.flush();
+        }
         SerializerService serializerService = new SerializerService();
         Context context = InstrumentationRegistry.getTargetContext();
         PreferencesService preferencesService = new PreferencesService(context, serializerService);
         // Clean the shared preferences if needed
         if (clearHistory) {
-            preferencesService._getSharedPreferences().edit().clear().commit();
+            preferencesService._clear();
         }
-        _historyService = new HistoryService(preferencesService);
+        _historyService = new HistoryService(preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
     }
 
     @Test(timeout = 300)
@@ -141,4 +162,266 @@ public class HistoryServiceTest {
         removedProfile = _historyService.getCachedSavedProfile(instance.getSanitizedBaseURI(), profileId);
         assertNull(removedProfile);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCacheAndRemoveProfileList() {
+        String baseURI = "http://example.com/baseURI";
+        List<Profile> profileList = Arrays.asList(new Profile("Internet", "internet", false),
+                new Profile("Office", "office", true));
+        assertNull(_historyService.getCachedProfileList(baseURI));
+        _historyService.cacheProfileList(baseURI, profileList);
+        _reloadHistoryService(false);
+        List<Profile> restoredProfileList = _historyService.getCachedProfileList(baseURI);
+        assertNotNull(restoredProfileList);
+        assertEquals(profileList, restoredProfileList);
+        _historyService.removeCachedProfileList(baseURI);
+        _reloadHistoryService(false);
+        assertNull(_historyService.getCachedProfileList(baseURI));
+    }
+
+    @Test
+    public void testChangesAreWrittenBehind() {
+        final int[] storeCounts = new int[4];
+        PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getTargetContext(), new SerializerService()) {
+            @Override
+            public void storeDiscoveredAPICache(@NonNull TTLCache<DiscoveredAPI> ttlCache) {
+                storeCounts[0]++;
+                super.storeDiscoveredAPICache(ttlCache);
+            }
+
+            @Override
+            public void storeSavedProfileList(@NonNull List<SavedProfile> savedProfileList) {
+                storeCounts[1]++;
+                super.storeSavedProfileList(savedProfileList);
+            }
+
+            @Override
+            public void storeSavedTokenList(@NonNull List<SavedToken> savedTokenList) {
+                storeCounts[2]++;
+                super.storeSavedTokenList(savedTokenList);
+            }
+
+            @Override
+            public void storeProfileListCache(@NonNull Map<String, List<Profile>> profileListCache) {
+                storeCounts[3]++;
+                super.storeProfileListCache(profileListCache);
+            }
+        };
+        HistoryService historyService = new HistoryService(preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        historyService.flush();
+        Arrays.fill(storeCounts, 0);
+        String baseURI = "http://example.com/baseURI";
+        Instance instance = new Instance(baseURI, "displayName", null, true);
+        historyService.cacheAccessToken(instance, "token");
+        historyService.cacheSavedProfile(new SavedProfile(instance, new Profile("displayName", "vpn_profile", false), "UUID"));
+        historyService.cacheAccessToken(instance, "newToken");
+        // Nothing is written right away.
+        assertArrayEquals(new int[]{ 0, 0, 0, 0 }, storeCounts);
+        SystemClock.sleep(HistoryService.WRITE_BEHIND_DELAY_MS + 500);
+        // Only the changed collections are written, each of them once.
+        assertArrayEquals(new int[]{ 0, 1, 1, 0 }, storeCounts);
+        // Flushing without changes does not write anything.
+        historyService.flush();
+        assertArrayEquals(new int[]{ 0, 1, 1, 0 }, storeCounts);
+    }
+
+    @Test
+    public void testIndexedLookupBenchmark() {
+        // Compares the indexed lookups with the previous linear scans, using 1000 providers with 2 profiles each.
+        int providerCount = 1000;
+        String baseURI = "https://vpn.example.com/provider";
+        for (int i = 0; i < providerCount; ++i) {
+            Instance instance = new Instance(baseURI + i, "displayName", null, true);
+            _historyService.cacheAccessToken(instance, "token" + i);
+            _historyService.cacheSavedProfile(new SavedProfile(instance, new Profile("Internet", "internet", false), "UUID-A" + i));
+            _historyService.cacheSavedProfile(new SavedProfile(instance, new Profile("Office", "office", false), "UUID-B" + i));
+        }
+        _reloadHistoryService(false);
+        assertEquals(providerCount, _historyService.getSavedTokenList().size());
+        assertEquals(2 * providerCount, _historyService.getSavedProfileList().size());
+
+        long scanStart = System.nanoTime();
+        int scanFound = 0;
+        for (int i = 0; i < providerCount; ++i) {
+            String sanitizedBaseURI = baseURI + i;
+            for (SavedToken savedToken : _historyService.getSavedTokenList()) {
+                if (savedToken.getInstance().getSanitizedBaseURI().equals(sanitizedBaseURI)) {
+                    scanFound++;
+                    break;
+                }
+            }
+            for (SavedProfile savedProfile : _historyService.getSavedProfileList()) {
+                if (savedProfile.getInstance().getSanitizedBaseURI().equals(sanitizedBaseURI) &&
+                        savedProfile.getProfile().getProfileId().equals("office")) {
+                    scanFound++;
+                    break;
+                }
+            }
+        }
+        long scanMs = (System.nanoTime() - scanStart) / 1000000L;
+
+        long indexStart = System.nanoTime();
+        int indexFound = 0;
+        for (int i = 0; i < providerCount; ++i) {
+            String sanitizedBaseURI = baseURI + i;
+            if (_historyService.getSavedToken(sanitizedBaseURI) != null) {
+                indexFound++;
+            }
+            if (_historyService.getCachedSavedProfile(sanitizedBaseURI, "office") != null) {
+                indexFound++;
+            }
+        }
+        long indexMs = (System.nanoTime() - indexStart) / 1000000L;
+        assertEquals(scanFound, indexFound);
+        assertEquals(2 * providerCount, indexFound);
+        assertEquals("token42", _historyService.getCachedAccessToken(baseURI + 42));
+        assertEquals("UUID-B42", _historyService.getCachedSavedProfile(baseURI + 42, "office").getProfileUUID());
+
+        long removeStart = System.nanoTime();
+        for (int i = 0; i < providerCount; i += 2) {
+            _historyService.removeSavedProfilesForInstance(baseURI + i);
+            _historyService.removeAccessTokens(baseURI + i);
+        }
+        long removeMs = (System.nanoTime() - removeStart) / 1000000L;
+        assertEquals(providerCount / 2, _historyService.getSavedTokenList().size());
+        assertEquals(providerCount, _historyService.getSavedProfileList().size());
+        assertNull(_historyService.getCachedSavedProfile(baseURI + 42, "office"));
+        assertNotNull(_historyService.getCachedSavedProfile(baseURI + 43, "office"));
+        // Insertion order is kept for the UI.
+        assertEquals("UUID-A1", _historyService.getSavedProfileList().get(0).getProfileUUID());
+        assertEquals("UUID-B1", _historyService.getSavedProfileList().get(1).getProfileUUID());
+        Log.i(TAG, providerCount + " providers. Linear scan lookups: " + scanMs + " ms. " +
+                "Indexed lookups: " + indexMs + " ms. Removing half of the providers: " + removeMs + " ms.");
+    }
+
+    @Test
+    public void testLoadIsAsynchronous() {
+        // Simulates a slow storage, to compare the time the constructor blocks with the time the loading takes.
+        final long loadDelayMs = 300;
+        final int[] storeCounts = new int[1];
+        PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getTargetContext(), new SerializerService()) {
+            @Nullable
+            @Override
+            public List<SavedProfile> getSavedProfileList(@NonNull Map<String, Instance> instanceTable) {
+                SystemClock.sleep(loadDelayMs);
+                return super.getSavedProfileList(instanceTable);
+            }
+
+            @Override
+            public void storeDiscoveredAPICache(@NonNull TTLCache<DiscoveredAPI> ttlCache) {
+                storeCounts[0]++;
+                super.storeDiscoveredAPICache(ttlCache);
+            }
+        };
+        long constructorStart = SystemClock.elapsedRealtime();
+        HistoryService historyService = new HistoryService(preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        long constructorMs = SystemClock.elapsedRealtime() - constructorStart;
+        assertFalse(historyService.isLoaded());
+        assertTrue(constructorMs < loadDelayMs);
+        // The first call waits for the loading to finish.
+        assertTrue(historyService.getSavedProfileList().isEmpty());
+        long loadMs = SystemClock.elapsedRealtime() - constructorStart;
+        assertTrue(historyService.isLoaded());
+        assertTrue(loadMs >= loadDelayMs);
+        Log.i(TAG, "Constructor blocked for " + constructorMs + " ms, loading took " + loadMs + " ms.");
+        // Nothing was purged, so nothing is written back.
+        SystemClock.sleep(HistoryService.WRITE_BEHIND_DELAY_MS + 500);
+        assertEquals(0, storeCounts[0]);
+
+        // Now store an expired entry, which should be purged and written back.
+        DiscoveredAPI discoveredAPI = new DiscoveredAPI(1, "http://example.com/", "http://example.com/create_config",
+                "http://example.com/profile_list", "http://example.com/system_messages", "http://example.com/user_messages");
+        Map<String, Pair<Date, DiscoveredAPI>> expiredEntries = Collections.singletonMap("http://example.com",
+                new Pair<>(new Date(0), discoveredAPI));
+        preferencesService.storeDiscoveredAPICache(new TTLCache<>(expiredEntries, 3600));
+        storeCounts[0] = 0;
+        historyService = new HistoryService(preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        assertNull(historyService.getCachedDiscoveredAPI("http://example.com"));
+        SystemClock.sleep(HistoryService.WRITE_BEHIND_DELAY_MS + 500);
+        assertEquals(1, storeCounts[0]);
+    }
+
+    @Test
+    public void testRunWhenLoadedDoesNotBlock() throws Exception {
+        final long loadDelayMs = 300;
+        PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getTargetContext(), new SerializerService()) {
+            @Nullable
+            @Override
+            public List<SavedProfile> getSavedProfileList(@NonNull Map<String, Instance> instanceTable) {
+                SystemClock.sleep(loadDelayMs);
+                return super.getSavedProfileList(instanceTable);
+            }
+        };
+        final HistoryService historyService = new HistoryService(preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        final CountDownLatch loadedLatch = new CountDownLatch(1);
+        final boolean[] wasLoaded = new boolean[1];
+        final long[] blockedMs = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = SystemClock.elapsedRealtime();
+                historyService.runWhenLoaded(new Runnable() {
+                    @Override
+                    public void run() {
+                        wasLoaded[0] = historyService.isLoaded();
+                        loadedLatch.countDown();
+                    }
+                });
+                // Going to the background before the load has finished does not wait for it either.
+                historyService.flush();
+                blockedMs[0] = SystemClock.elapsedRealtime() - startTime;
+            }
+        });
+        assertTrue(blockedMs[0] < loadDelayMs);
+        assertTrue(loadedLatch.await(loadDelayMs * 10, TimeUnit.MILLISECONDS));
+        assertTrue(wasLoaded[0]);
+        // Once loaded, the runnable runs right away.
+        final boolean[] ranRightAway = new boolean[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                historyService.runWhenLoaded(new Runnable() {
+                    @Override
+                    public void run() {
+                        ranRightAway[0] = true;
+                    }
+                });
+            }
+        });
+        assertTrue(ranRightAway[0]);
+    }
+
+    @Test
+    public void testPreviousFormatIsMigrated() throws Exception {
+        // Wait until the service of the setup has loaded, otherwise it could read and save the state written below.
+        assertTrue(_historyService.getSavedTokenList().isEmpty());
+        // Store the state in the previous format, which embeds the instance in each entry.
+        SerializerService serializerService = new SerializerService();
+        Instance instance = new Instance("http://example.com/baseURI", "displayName", null, true);
+        List<SavedToken> savedTokenList = Collections.singletonList(new SavedToken(instance, "token"));
+        List<SavedProfile> savedProfileList = Arrays.asList(
+                new SavedProfile(instance, new Profile("Internet", "internet", false), "UUID-A"),
+                new SavedProfile(instance, new Profile("Office", "office", false), "UUID-B"));
+        PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getTargetContext(), serializerService);
+        preferencesService._getSharedPreferences().edit()
+                .putString("saved_tokens", serializerService.serializeSavedTokenList(savedTokenList).toString())
+                .putString("saved_profiles", serializerService.serializeSavedProfileList(savedProfileList).toString())
+                .commit();
+        _reloadHistoryService(false);
+        SavedToken savedToken = _historyService.getSavedToken(instance.getSanitizedBaseURI());
+        assertNotNull(savedToken);
+        // Shared instances are interned.
+        assertSame(savedToken.getInstance(), _historyService.getCachedSavedProfile(instance.getSanitizedBaseURI(), "internet").getInstance());
+        assertSame(savedToken.getInstance(), _historyService.getCachedSavedProfile(instance.getSanitizedBaseURI(), "office").getInstance());
+        // After the write-behind, the state is saved in the normalized format.
+        SystemClock.sleep(HistoryService.WRITE_BEHIND_DELAY_MS + 500);
+        Map<String, Instance> instanceTable = preferencesService.getInstanceTable();
+        assertNotNull(instanceTable);
+        assertEquals(1, instanceTable.size());
+        assertFalse(preferencesService._getSharedPreferences().getString("saved_profiles", "").contains("displayName"));
+        _reloadHistoryService(false);
+        assertEquals(2, _historyService.getSavedProfileList().size());
+        assertEquals("token", _historyService.getCachedAccessToken(instance.getSanitizedBaseURI()));
+        assertEquals("displayName", _historyService.getSavedProfileList().get(1).getInstance().getDisplayName());
+    }
+}
@@ -18,17 +18,35 @@
 package nl.eduvpn.app.service;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
 
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedProfile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.utils.TTLCache;
 
+import org.json.JSONObject;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 /**
@@ -38,14 +56,22 @@ import static org.junit.Assert.*;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class PreferencesServiceTest {
+    private static final String TAG = PreferencesServiceTest.class.getName();
 
     private PreferencesService _preferencesService;
+    private SerializerService _serializerService;
 
     @Before
     public void before() {
-        SerializerService serializerService = new SerializerService();
+        _serializerService = new SerializerService();
         Context context = InstrumentationRegistry.getContext();
-        _preferencesService = new PreferencesService(context, serializerService);
+        _preferencesService = new PreferencesService(context, _serializerService);
+        _preferencesService._clear();
+    }
+
+    @After
+    public void after() {
+        _preferencesService._clear();
     }
 
     @Test
@@ -81,4 +107,171 @@ public class PreferencesServiceTest {
         assertEquals(discoveredAPI.getUserMessagesAPI(), retrievedDiscoveredAPI.getUserMessagesAPI());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testJsonCollectionsAreMigrated() throws Exception {
+        Instance instance = new Instance("http://example.com", "Example", null, true);
+        List<SavedToken> savedTokenList = Collections.singletonList(new SavedToken(instance, "token"));
+        List<SavedProfile> savedProfileList = Collections.singletonList(new SavedProfile(instance, new Profile("Internet", "internet", false), "UUID"));
+        TTLCache<DiscoveredAPI> discoveredAPICache = new TTLCache<>(3600);
+        discoveredAPICache.put("http://example.com", new DiscoveredAPI(1, "http://example.com/", "http://example.com/create_config",
+                "http://example.com/profile_list", null, null));
+        Map<String, List<Profile>> profileListCache = Collections.singletonMap("http://example.com",
+                Collections.singletonList(new Profile("Internet", "internet", true)));
+        // Saved by an earlier version of the app, which embedded the instance in each entry.
+        _preferencesService._getSharedPreferences().edit()
+                .putString("saved_tokens", _serializerService.serializeSavedTokenList(savedTokenList).toString())
+                .putString("saved_profiles", _serializerService.serializeSavedProfileList(savedProfileList).toString())
+                .putString("discovered_api_cache", _serializerService.serializeDiscoveredAPITTLCache(discoveredAPICache).toString())
+                .putString("profile_list_cache", _serializerService.serializeProfileListCache(profileListCache).toString())
+                .putString("state", "connected")
+                .commit();
+        PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getContext(), _serializerService);
+        Map<String, Instance> instanceTable = preferencesService.getInstanceTable();
+        assertNotNull(instanceTable);
+        assertEquals("Example", instanceTable.get("http://example.com").getDisplayName());
+        List<SavedToken> migratedTokenList = preferencesService.getSavedTokenList(instanceTable);
+        List<SavedProfile> migratedProfileList = preferencesService.getSavedProfileList(instanceTable);
+        assertEquals(1, migratedTokenList.size());
+        assertEquals("token", migratedTokenList.get(0).getAccessToken());
+        assertEquals(1, migratedProfileList.size());
+        assertEquals("UUID", migratedProfileList.get(0).getProfileUUID());
+        assertSame(migratedTokenList.get(0).getInstance(), migratedProfileList.get(0).getInstance());
+        assertEquals("http://example.com/profile_list", preferencesService.getDiscoveredAPICache().get("http://example.com").getProfileListAPI());
+        assertEquals(profileListCache, preferencesService.getProfileListCache());
+        // The JSON values are removed, the other values are kept.
+        SharedPreferences sharedPreferences = preferencesService._getSharedPreferences();
+        assertFalse(sharedPreferences.contains("saved_tokens"));
+        assertFalse(sharedPreferences.contains("saved_profiles"));
+        assertFalse(sharedPreferences.contains("discovered_api_cache"));
+        assertFalse(sharedPreferences.contains("profile_list_cache"));
+        assertEquals("connected", preferencesService.getCurrentConnectionState());
+        File collectionsDirectory = new File(InstrumentationRegistry.getContext().getFilesDir(), "collections");
+        assertTrue(new File(collectionsDirectory, "saved_tokens.bin").exists());
+        assertTrue(new File(collectionsDirectory, "instance_table.bin").exists());
+    }
+
+    @Test
+    public void testFailedMigrationKeepsJson() throws Exception {
+        Instance instance = new Instance("http://example.com", "Example", null, true);
+        List<SavedToken> savedTokenList = Collections.singletonList(new SavedToken(instance, "token"));
+        TTLCache<DiscoveredAPI> discoveredAPICache = new TTLCache<>(3600);
+        discoveredAPICache.put("http://example.com", new DiscoveredAPI(1, "http://example.com/", "http://example.com/create_config",
+                "http://example.com/profile_list", null, null));
+        _preferencesService._getSharedPreferences().edit()
+                .putString("saved_tokens", _serializerService.serializeSavedTokenList(savedTokenList).toString())
+                .putString("discovered_api_cache", _serializerService.serializeDiscoveredAPITTLCache(discoveredAPICache).toString())
+                .putString("profile_list_cache", "{ damaged")
+                .commit();
+        // A directory in the place of the file makes writing the saved tokens fail.
+        File collectionsDirectory = new File(InstrumentationRegistry.getContext().getFilesDir(), "collections");
+        File blockingDirectory = new File(collectionsDirectory, "saved_tokens.bin");
+        File blockingFile = new File(blockingDirectory, "file");
+        try {
+            assertTrue(blockingDirectory.mkdirs());
+            assertTrue(blockingFile.createNewFile());
+            PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getContext(), _serializerService);
+            assertNotNull(preferencesService.getInstanceTable());
+            SharedPreferences sharedPreferences = preferencesService._getSharedPreferences();
+            assertTrue(sharedPreferences.contains("saved_tokens"));
+            assertTrue(sharedPreferences.contains("profile_list_cache"));
+            assertFalse(sharedPreferences.contains("discovered_api_cache"));
+        } finally {
+            assertTrue(!blockingFile.exists() || blockingFile.delete());
+            assertTrue(!blockingDirectory.exists() || blockingDirectory.delete());
+        }
+        // The next start retries the collections which were not migrated.
+        PreferencesService preferencesService = new PreferencesService(InstrumentationRegistry.getContext(), _serializerService);
+        Map<String, Instance> instanceTable = preferencesService.getInstanceTable();
+        List<SavedToken> migratedTokenList = preferencesService.getSavedTokenList(instanceTable);
+        assertEquals(1, migratedTokenList.size());
+        assertEquals("token", migratedTokenList.get(0).getAccessToken());
+        assertFalse(preferencesService._getSharedPreferences().contains("saved_tokens"));
+        assertEquals("http://example.com/profile_list", preferencesService.getDiscoveredAPICache().get("http://example.com").getProfileListAPI());
+    }
+
+    @Test
+    public void testStorageBenchmark() throws Exception {
+        // Compares the previous JSON in shared preferences storage with the binary collection files,
+        // using 1000 providers with 2 saved profiles each.
+        int providerCount = 1000;
+        List<Instance> instances = new ArrayList<>();
+        List<SavedToken> savedTokenList = new ArrayList<>();
+        List<SavedProfile> savedProfileList = new ArrayList<>();
+        Map<String, List<Profile>> profileListCache = new LinkedHashMap<>();
+        TTLCache<DiscoveredAPI> discoveredAPICache = new TTLCache<>(3600);
+        for (int i = 0; i < providerCount; ++i) {
+            String baseURI = "https://vpn" + i + ".example.com";
+            Instance instance = new Instance(baseURI, "Provider " + i, baseURI + "/logo.png", false);
+            List<Profile> profiles = Arrays.asList(new Profile("Internet", "internet", false), new Profile("Office", "office", true));
+            instances.add(instance);
+            savedTokenList.add(new SavedToken(instance, "averylongaccesstoken1234567890somemoretext" + i));
+            savedProfileList.add(new SavedProfile(instance, profiles.get(0), "UUID-A" + i));
+            savedProfileList.add(new SavedProfile(instance, profiles.get(1), "UUID-B" + i));
+            profileListCache.put(baseURI, profiles);
+            discoveredAPICache.put(baseURI, new DiscoveredAPI(1, baseURI + "/authorize", baseURI + "/create_config",
+                    baseURI + "/profile_list", baseURI + "/system_messages", baseURI + "/user_messages"));
+        }
+
+        // The previous storage: JSON strings in the shared preferences file, written at once.
+        SharedPreferences sharedPreferences = InstrumentationRegistry.getContext().getSharedPreferences("storage_benchmark", Context.MODE_PRIVATE);
+        long jsonStoreStart = System.nanoTime();
+        String[] jsonValues = {
+                _serializerService.serializeSavedTokenList(savedTokenList).toString(),
+                _serializerService.serializeSavedProfileList(savedProfileList).toString(),
+                _serializerService.serializeDiscoveredAPITTLCache(discoveredAPICache).toString(),
+                _serializerService.serializeProfileListCache(profileListCache).toString()
+        };
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (int i = 0; i < jsonValues.length; ++i) {
+            editor.putString("collection" + i, jsonValues[i]);
+        }
+        editor.commit();
+        long jsonStoreMs = (System.nanoTime() - jsonStoreStart) / 1000000L;
+        long jsonLoadStart = System.nanoTime();
+        List<SavedToken> jsonTokenList = _serializerService.deserializeSavedTokenList(new JSONObject(sharedPreferences.getString("collection0", null)));
+        _serializerService.deserializeSavedProfileList(new JSONObject(sharedPreferences.getString("collection1", null)));
+        _serializerService.deserializeDiscoveredAPITTLCache(new JSONObject(sharedPreferences.getString("collection2", null)));
+        _serializerService.deserializeProfileListCache(new JSONObject(sharedPreferences.getString("collection3", null)));
+        long jsonLoadMs = (System.nanoTime() - jsonLoadStart) / 1000000L;
+        long jsonBytes = 0;
+        for (String jsonValue : jsonValues) {
+            jsonBytes += jsonValue.getBytes("UTF-8").length;
+        }
+        sharedPreferences.edit().clear().commit();
+
+        // The binary collection files.
+        long binaryStoreStart = System.nanoTime();
+        _preferencesService.storeInstanceTable(instances);
+        _preferencesService.storeSavedTokenList(savedTokenList);
+        _preferencesService.storeSavedProfileList(savedProfileList);
+        _preferencesService.storeDiscoveredAPICache(discoveredAPICache);
+        _preferencesService.storeProfileListCache(profileListCache);
+        long binaryQueueMs = (System.nanoTime() - binaryStoreStart) / 1000000L;
+        CollectionStore collectionStore = CollectionStore.forDirectory(new File(InstrumentationRegistry.getContext().getFilesDir(), "collections"));
+        collectionStore.sync();
+        long binaryStoreMs = (System.nanoTime() - binaryStoreStart) / 1000000L;
+        long binaryLoadStart = System.nanoTime();
+        Map<String, Instance> instanceTable = _preferencesService.getInstanceTable();
+        List<SavedToken> binaryTokenList = _preferencesService.getSavedTokenList(instanceTable);
+        List<SavedProfile> binaryProfileList = _preferencesService.getSavedProfileList(instanceTable);
+        TTLCache<DiscoveredAPI> binaryDiscoveredAPICache = _preferencesService.getDiscoveredAPICache();
+        Map<String, List<Profile>> binaryProfileListCache = _preferencesService.getProfileListCache();
+        long binaryLoadMs = (System.nanoTime() - binaryLoadStart) / 1000000L;
+        long binaryBytes = 0;
+        for (String name : new String[]{ "instance_table", "saved_tokens", "saved_profiles", "discovered_api_cache", "profile_list_cache" }) {
+            binaryBytes += collectionStore.getFileSize(name);
+        }
+
+        assertEquals(jsonTokenList.size(), binaryTokenList.size());
+        assertEquals(savedProfileList.size(), binaryProfileList.size());
+        assertEquals(providerCount, binaryDiscoveredAPICache.getEntries().size());
+        assertEquals(profileListCache, binaryProfileListCache);
+        assertEquals("UUID-B42", binaryProfileList.get(85).getProfileUUID());
+        assertEquals("Provider 42", binaryProfileList.get(85).getInstance().getDisplayName());
+        assertTrue(binaryBytes < jsonBytes);
+        Log.i(TAG, providerCount + " providers. " +
+                "JSON: store " + jsonStoreMs + " ms, load " + jsonLoadMs + " ms, " + jsonBytes + " bytes. " +
+                "Binary: store " + binaryStoreMs + " ms (" + binaryQueueMs + " ms on the calling thread), load " +
+                binaryLoadMs + " ms, " + binaryBytes + " bytes.");
+    }
+}
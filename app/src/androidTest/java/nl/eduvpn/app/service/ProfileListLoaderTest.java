@@ -0,0 +1,251 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import nl.eduvpn.app.entity.DiscoveredAPI;
+import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.CircuitBreaker;
+import nl.eduvpn.app.network.HttpCache;
+import nl.eduvpn.app.network.LoopbackServer;
+import nl.eduvpn.app.network.PooledHttpTransport;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.network.RetryPolicy;
+import nl.eduvpn.app.network.RttEstimator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the profile list loader, running against a small HTTP server on the loopback interface.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProfileListLoaderTest {
+
+    private static final String PROFILE_LIST_JSON = "{\"profile_list\": {\"data\": [" +
+            "{\"display_name\": \"Internet\", \"profile_id\": \"internet\", \"two_factor\": false}]}}";
+    private static final long SLOW_RESPONSE_DELAY_MS = 3000;
+    private static final long PACED_RESPONSE_DELAY_MS = 1000;
+    private static final long SHORT_TIMEOUT_MS = 500;
+    private static final long LONG_TIMEOUT_MS = 10000;
+
+    private LoopbackServer _server;
+    private APIService _apiService;
+    private HistoryService _historyService;
+    private PreferencesService _preferencesService;
+    private File _cacheDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new LoopbackServer(null, new LoopbackServer.Responder() {
+            @NonNull
+            @Override
+            public LoopbackServer.Response respond(@NonNull LoopbackServer.Request request) {
+                String path = request.getPath();
+                if (path.endsWith("/info.json")) {
+                    String baseUrl = _server.getUrl(path.substring(0, path.length() - "/info.json".length()));
+                    return new LoopbackServer.Response(200, "{\"version\": 1, " +
+                            "\"authorization_endpoint\": \"https://example.com/authorize\", " +
+                            "\"api\": {\"create_config\": \"https://example.com/create_config\", " +
+                            "\"profile_list\": \"" + baseUrl + "/profile_list\"}}")
+                            .delay(path.startsWith("/paced/") ? PACED_RESPONSE_DELAY_MS : 0);
+                } else if (path.startsWith("/slow/")) {
+                    return new LoopbackServer.Response(200, PROFILE_LIST_JSON).delay(SLOW_RESPONSE_DELAY_MS);
+                } else if (path.startsWith("/paced/")) {
+                    return new LoopbackServer.Response(200, PROFILE_LIST_JSON).delay(PACED_RESPONSE_DELAY_MS);
+                } else if (path.startsWith("/missing/")) {
+                    return new LoopbackServer.Response(404, "Not found");
+                }
+                return new LoopbackServer.Response(200, PROFILE_LIST_JSON);
+            }
+        });
+        _server.start();
+        SerializerService serializerService = new SerializerService();
+        Context context = InstrumentationRegistry.getTargetContext();
+        _preferencesService = new PreferencesService(context, serializerService);
+        _preferencesService._clear();
+        _historyService = new HistoryService(_preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        ConnectionService connectionService = new ConnectionService(context, _preferencesService, _historyService);
+        _cacheDirectory = new File(context.getCacheDir(), "profile_list_loader_test");
+        _deleteCacheDirectory();
+        _apiService = new APIService(connectionService, serializerService, new PooledHttpTransport(),
+                new HttpCache(_cacheDirectory, HttpCache.DEFAULT_MAX_SIZE_BYTES), new RequestScheduler(),
+                new RetryPolicy(1, 0, 0, new Random()), new CircuitBreaker(), new RttEstimator());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _server.stop();
+        _preferencesService._clear();
+        _deleteCacheDirectory();
+    }
+
+    private void _deleteCacheDirectory() {
+        File[] files = _cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private SavedToken _createSavedToken(String path, boolean cacheDiscoveredAPI) {
+        Instance instance = new Instance(_server.getUrl(path), path, null, false);
+        if (cacheDiscoveredAPI) {
+            _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), new DiscoveredAPI(1, "https://example.com/authorize",
+                    "https://example.com/create_config", instance.getSanitizedBaseURI() + "/profile_list", null, null));
+        }
+        return new SavedToken(instance, "token");
+    }
+
+    private ProfileListLoader _createLoader(long requestTimeoutMs, long deadlineMs) {
+        return new ProfileListLoader(_apiService, _historyService, new Handler(Looper.getMainLooper()), requestTimeoutMs, deadlineMs);
+    }
+
+    /**
+     * Collects the results of a load.
+     */
+    private static class RecordingListener implements ProfileListLoader.Listener {
+        final List<String> loadedInstances = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failedInstances = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> errorMessages = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch finishedLatch = new CountDownLatch(1);
+        volatile List<Instance> finishedFailedInstances;
+
+        @Override
+        public void onInstanceLoaded(@NonNull Instance instance, @NonNull List<Profile> profiles, long latencyMs) {
+            assertEquals(1, profiles.size());
+            assertTrue(latencyMs >= 0);
+            loadedInstances.add(instance.getDisplayName());
+        }
+
+        @Override
+        public void onInstanceFailed(@NonNull Instance instance, @NonNull String errorMessage, long latencyMs) {
+            failedInstances.add(instance.getDisplayName());
+            errorMessages.add(errorMessage);
+        }
+
+        @Override
+        public void onFinished(@NonNull List<Instance> failedInstances) {
+            finishedFailedInstances = failedInstances;
+            finishedLatch.countDown();
+        }
+    }
+
+    @Test
+    public void testResultsAreReportedPerInstance() throws Exception {
+        List<SavedToken> savedTokens = Arrays.asList(
+                _createSavedToken("/slow/", true),
+                _createSavedToken("/fast/", false),
+                _createSavedToken("/missing/", true),
+                _createSavedToken("/cached/", true));
+        RecordingListener listener = new RecordingListener();
+        long startTime = System.currentTimeMillis();
+        _createLoader(SHORT_TIMEOUT_MS * 2, LONG_TIMEOUT_MS).load(savedTokens, listener);
+        assertTrue(listener.finishedLatch.await(LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The slow provider times out, it does not hold up the others.
+        assertTrue(System.currentTimeMillis() - startTime < SLOW_RESPONSE_DELAY_MS);
+        assertEquals(2, listener.loadedInstances.size());
+        assertTrue(listener.loadedInstances.containsAll(Arrays.asList("/fast/", "/cached/")));
+        assertEquals(2, listener.failedInstances.size());
+        assertTrue(listener.errorMessages.contains(ProfileListLoader.TIMEOUT_ERROR));
+        // The failed providers are reported in the original order.
+        assertEquals(2, listener.finishedFailedInstances.size());
+        assertEquals("/slow/", listener.finishedFailedInstances.get(0).getDisplayName());
+        assertEquals("/missing/", listener.finishedFailedInstances.get(1).getDisplayName());
+        // The discovery and the profile lists are cached.
+        String fastBaseURI = savedTokens.get(1).getInstance().getSanitizedBaseURI();
+        assertNotNull(_historyService.getCachedDiscoveredAPI(fastBaseURI));
+        assertNotNull(_historyService.getCachedProfileList(fastBaseURI));
+    }
+
+    @Test
+    public void testDeadlineFinishesLoad() throws Exception {
+        List<SavedToken> savedTokens = Arrays.asList(_createSavedToken("/fast/", true), _createSavedToken("/slow/", true));
+        RecordingListener listener = new RecordingListener();
+        long startTime = System.currentTimeMillis();
+        _createLoader(LONG_TIMEOUT_MS, SHORT_TIMEOUT_MS).load(savedTokens, listener);
+        assertTrue(listener.finishedLatch.await(LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - startTime < SLOW_RESPONSE_DELAY_MS);
+        assertEquals(Collections.singletonList("/fast/"), listener.loadedInstances);
+        assertEquals(Collections.singletonList("/slow/"), listener.failedInstances);
+        assertEquals(Collections.singletonList(ProfileListLoader.TIMEOUT_ERROR), listener.errorMessages);
+    }
+
+    @Test
+    public void testEachRequestHasItsOwnTimeout() throws Exception {
+        List<SavedToken> savedTokens = Collections.singletonList(_createSavedToken("/paced/", false));
+        RecordingListener listener = new RecordingListener();
+        // Both requests fit in the timeout, but together they do not.
+        _createLoader(PACED_RESPONSE_DELAY_MS * 3 / 2, LONG_TIMEOUT_MS).load(savedTokens, listener);
+        assertTrue(listener.finishedLatch.await(LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList("/paced/"), listener.loadedInstances);
+        assertTrue(listener.failedInstances.isEmpty());
+    }
+
+    @Test
+    public void testDefaultTimeoutsCoverSlowRequests() {
+        // A single request may use the longest read timeout and still be retried.
+        assertTrue(ProfileListLoader.DEFAULT_REQUEST_TIMEOUT_MS > RttEstimator.DEFAULT_READ_TIMEOUT_CEILING_MS + RetryPolicy.DEFAULT_MAX_DELAY_MS);
+        // The deadline can be reached before the timeouts of both requests of a provider.
+        assertTrue(ProfileListLoader.DEFAULT_DEADLINE_MS > ProfileListLoader.DEFAULT_REQUEST_TIMEOUT_MS);
+        assertTrue(ProfileListLoader.DEFAULT_DEADLINE_MS < 2 * ProfileListLoader.DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    @Test
+    public void testCancelledLoadIsNotReported() throws Exception {
+        List<SavedToken> savedTokens = Collections.singletonList(_createSavedToken("/slow/", true));
+        RecordingListener listener = new RecordingListener();
+        Cancellable load = _createLoader(SHORT_TIMEOUT_MS, SHORT_TIMEOUT_MS).load(savedTokens, listener);
+        assertFalse(load.isFinished());
+        load.cancel();
+        assertTrue(load.isFinished());
+        // Neither the timeouts nor the response arrive after cancelling.
+        assertFalse(listener.finishedLatch.await(SHORT_TIMEOUT_MS * 3, TimeUnit.MILLISECONDS));
+        assertTrue(listener.loadedInstances.isEmpty());
+        assertTrue(listener.failedInstances.isEmpty());
+    }
+}
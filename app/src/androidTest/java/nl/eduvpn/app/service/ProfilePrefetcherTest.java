@@ -0,0 +1,402 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import nl.eduvpn.app.entity.DiscoveredAPI;
+import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedProfile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.CircuitBreaker;
+import nl.eduvpn.app.network.HttpCache;
+import nl.eduvpn.app.network.PooledHttpTransport;
+import nl.eduvpn.app.network.RemoteProber;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.network.RetryPolicy;
+import nl.eduvpn.app.network.RttEstimator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the profile prefetcher. The downloads and the imports are faked, so only the scheduling and the budget are
+ * tested.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class ProfilePrefetcherTest {
+
+    private static final String BASE_URI = "https://prefetch.example.com";
+    private static final long MIN_INTERVAL_MS = 200;
+
+    private Instrumentation _instrumentation;
+    private PreferencesService _preferencesService;
+    private HistoryService _historyService;
+    private FakeAPIService _apiService;
+    private FakeVPNService _vpnService;
+    private Instance _instance;
+    private File _cacheDirectory;
+
+    /**
+     * A config download started by the prefetcher.
+     */
+    private static class Download implements Cancellable {
+        final String profileId;
+        final APIService.Callback<VpnProfile> callback;
+        boolean isCancelled;
+
+        Download(String profileId, APIService.Callback<VpnProfile> callback) {
+            this.profileId = profileId;
+            this.callback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return isCancelled;
+        }
+    }
+
+    /**
+     * Records the config downloads instead of executing them.
+     */
+    private static class FakeAPIService extends APIService {
+        final List<Download> downloads = Collections.synchronizedList(new ArrayList<Download>());
+
+        FakeAPIService(ConnectionService connectionService, SerializerService serializerService, File cacheDirectory) {
+            super(connectionService, serializerService, new PooledHttpTransport(),
+                    new HttpCache(cacheDirectory, HttpCache.DEFAULT_MAX_SIZE_BYTES), new RequestScheduler(),
+                    new RetryPolicy(1, 0, 0, new Random()), new CircuitBreaker(), new RttEstimator());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Cancellable postResource(@NonNull String url, @Nullable String data, @Nullable SavedToken credentials,
+                                            @NonNull RequestScheduler.Priority priority, @NonNull ResponseParser<T> parser,
+                                            @NonNull Callback<T> callback) {
+            assertEquals(RequestScheduler.Priority.BACKGROUND, priority);
+            assertNotNull(data);
+            String profileId = data.substring(data.indexOf("profile_id=") + "profile_id=".length());
+            Download download = new Download(profileId, (Callback<VpnProfile>)callback);
+            downloads.add(download);
+            return download;
+        }
+    }
+
+    /**
+     * Records the imported and removed configs instead of passing them to the VPN library.
+     */
+    private static class FakeVPNService extends VPNService {
+        final List<String> removedProfileUUIDs = new ArrayList<>();
+
+        FakeVPNService(Context context, PreferencesService preferencesService) {
+            super(context, preferencesService, new ConnectionEventBus(new Handler(Looper.getMainLooper())),
+                    new AccountingService(new File(context.getCacheDir(), "prefetcher_test_accounting"), Executors.newSingleThreadExecutor()),
+                    new ConnectionTimingService(), new RemoteProber(Executors.newSingleThreadExecutor(),
+                            new Handler(Looper.getMainLooper()), RemoteProber.DEFAULT_DEADLINE_MS, 0));
+        }
+
+        @Override
+        public VPNStatus getStatus() {
+            return VPNStatus.DISCONNECTED;
+        }
+
+        @Override
+        public APIService.ResponseParser<VpnProfile> createConfigParser(@Nullable String preferredName) {
+            return null;
+        }
+
+        @Override
+        public void saveProfile(@NonNull VpnProfile profile) {
+            // Not imported.
+        }
+
+        @Override
+        public void removeProfile(@NonNull String profileUUID) {
+            removedProfileUUIDs.add(profileUUID);
+        }
+    }
+
+    /**
+     * Prefetcher with switchable network and idle conditions.
+     */
+    private class TestPrefetcher extends ProfilePrefetcher {
+        volatile boolean isNetworkUnmetered = true;
+        volatile boolean isIdle = true;
+
+        TestPrefetcher(int maxSavedProfiles) {
+            super(InstrumentationRegistry.getTargetContext(), _apiService, _vpnService, _historyService, _preferencesService,
+                    new RequestScheduler(), new Handler(Looper.getMainLooper()), maxSavedProfiles, MIN_INTERVAL_MS);
+        }
+
+        @Override
+        boolean _isNetworkUnmetered() {
+            return isNetworkUnmetered;
+        }
+
+        @Override
+        boolean _isIdle() {
+            return isIdle;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        _instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = InstrumentationRegistry.getTargetContext();
+        SerializerService serializerService = new SerializerService();
+        _preferencesService = new PreferencesService(context, serializerService);
+        _preferencesService._clear();
+        _historyService = new HistoryService(_preferencesService, new Handler(Looper.getMainLooper()), Executors.newSingleThreadExecutor());
+        _cacheDirectory = new File(context.getCacheDir(), "profile_prefetcher_test");
+        _apiService = new FakeAPIService(new ConnectionService(context, _preferencesService, _historyService),
+                serializerService, _cacheDirectory);
+        _vpnService = new FakeVPNService(context, _preferencesService);
+        _instance = new Instance(BASE_URI, "displayName", null, false);
+        _historyService.cacheDiscoveredAPI(_instance.getSanitizedBaseURI(), new DiscoveredAPI(1, BASE_URI + "/authorize",
+                BASE_URI + "/create_config", BASE_URI + "/profile_list", null, null));
+        _historyService.cacheAccessToken(_instance, "token");
+    }
+
+    @After
+    public void tearDown() {
+        _preferencesService._clear();
+        File[] files = _cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static List<Profile> _createProfiles(String... profileIds) {
+        List<Profile> result = new ArrayList<>();
+        for (String profileId : profileIds) {
+            result.add(new Profile(profileId, profileId, false));
+        }
+        return result;
+    }
+
+    private TestPrefetcher _createPrefetcher(final int maxSavedProfiles) {
+        final TestPrefetcher[] result = new TestPrefetcher[1];
+        _instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = new TestPrefetcher(maxSavedProfiles);
+            }
+        });
+        return result[0];
+    }
+
+    private void _prefetch(final ProfilePrefetcher prefetcher, final List<Profile> profiles) {
+        _instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                prefetcher.prefetch(_instance, profiles);
+            }
+        });
+    }
+
+    /**
+     * Saves a profile the way the user download does.
+     */
+    private SavedProfile _downloadByUser(final ProfilePrefetcher prefetcher, String profileId) {
+        final SavedProfile savedProfile = new SavedProfile(_instance, new Profile(profileId, profileId, false), "user-" + profileId);
+        _instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                _historyService.cacheSavedProfile(savedProfile);
+                prefetcher.markUsed(savedProfile);
+            }
+        });
+        return savedProfile;
+    }
+
+    private void _markUsed(final ProfilePrefetcher prefetcher, final SavedProfile savedProfile) {
+        _instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                prefetcher.markUsed(savedProfile);
+            }
+        });
+    }
+
+    /**
+     * Finishes the download which is currently running, and waits until the next one could have started.
+     */
+    private void _finishDownload(final Download download) throws InterruptedException {
+        final VpnProfile vpnProfile = new VpnProfile(download.profileId);
+        _instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                download.callback.onSuccess(vpnProfile);
+            }
+        });
+        _waitForInterval();
+    }
+
+    private void _waitForInterval() throws InterruptedException {
+        Thread.sleep(MIN_INTERVAL_MS * 2);
+        _instrumentation.waitForIdleSync();
+    }
+
+    private List<String> _getSavedProfileIds() {
+        List<String> result = new ArrayList<>();
+        for (SavedProfile savedProfile : _historyService.getSavedProfileList()) {
+            result.add(savedProfile.getProfile().getProfileId());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testPrefetchStaysWithinBudget() throws Exception {
+        TestPrefetcher prefetcher = _createPrefetcher(3);
+        _downloadByUser(prefetcher, "a");
+        _prefetch(prefetcher, _createProfiles("a", "b", "c", "d", "e"));
+        _waitForInterval();
+        // One download at a time, and the saved profile is skipped.
+        assertEquals(1, _apiService.downloads.size());
+        assertEquals("b", _apiService.downloads.get(0).profileId);
+        _finishDownload(_apiService.downloads.get(0));
+        assertEquals(2, _apiService.downloads.size());
+        assertEquals("c", _apiService.downloads.get(1).profileId);
+        _finishDownload(_apiService.downloads.get(1));
+        // The budget of 3 is used up.
+        assertEquals(2, _apiService.downloads.size());
+        assertEquals(Arrays.asList("a", "b", "c"), _getSavedProfileIds());
+        assertTrue(_vpnService.removedProfileUUIDs.isEmpty());
+    }
+
+    @Test
+    public void testOnlyPrefetchedProfilesAreEvicted() throws Exception {
+        TestPrefetcher prefetcher = _createPrefetcher(3);
+        SavedProfile userProfile = _downloadByUser(prefetcher, "a");
+        _prefetch(prefetcher, _createProfiles("b", "c"));
+        _waitForInterval();
+        _finishDownload(_apiService.downloads.get(0));
+        _finishDownload(_apiService.downloads.get(1));
+        assertEquals(Arrays.asList("a", "b", "c"), _getSavedProfileIds());
+        SavedProfile prefetchedProfileB = _historyService.getCachedSavedProfile(_instance.getSanitizedBaseURI(), "b");
+        SavedProfile prefetchedProfileC = _historyService.getCachedSavedProfile(_instance.getSanitizedBaseURI(), "c");
+        // The user profile is the least recently used one, but it is not removed.
+        _markUsed(prefetcher, prefetchedProfileB);
+        _downloadByUser(prefetcher, "d");
+        assertEquals(Arrays.asList("a", "b", "d"), _getSavedProfileIds());
+        assertEquals(Collections.singletonList(prefetchedProfileC.getProfileUUID()), _vpnService.removedProfileUUIDs);
+        // The prefetched profiles are remembered by a new instance as well.
+        TestPrefetcher newPrefetcher = _createPrefetcher(3);
+        _markUsed(newPrefetcher, userProfile);
+        _downloadByUser(newPrefetcher, "e");
+        assertEquals(Arrays.asList("a", "d", "e"), _getSavedProfileIds());
+        assertEquals(Arrays.asList(prefetchedProfileC.getProfileUUID(), prefetchedProfileB.getProfileUUID()),
+                _vpnService.removedProfileUUIDs);
+        // Nothing is left to remove, the budget may be exceeded by the user.
+        _downloadByUser(newPrefetcher, "f");
+        assertEquals(Arrays.asList("a", "d", "e", "f"), _getSavedProfileIds());
+        assertEquals(2, _vpnService.removedProfileUUIDs.size());
+    }
+
+    @Test
+    public void testMeteredNetworkDropsQueue() throws Exception {
+        TestPrefetcher prefetcher = _createPrefetcher(3);
+        prefetcher.isNetworkUnmetered = false;
+        _prefetch(prefetcher, _createProfiles("a", "b"));
+        _waitForInterval();
+        assertTrue(_apiService.downloads.isEmpty());
+        prefetcher.isNetworkUnmetered = true;
+        _waitForInterval();
+        assertTrue(_apiService.downloads.isEmpty());
+        // Queued again when the profile lists are loaded the next time.
+        _prefetch(prefetcher, _createProfiles("a", "b"));
+        _waitForInterval();
+        assertEquals(1, _apiService.downloads.size());
+    }
+
+    @Test
+    public void testBusyAppKeepsQueue() throws Exception {
+        TestPrefetcher prefetcher = _createPrefetcher(3);
+        prefetcher.isIdle = false;
+        _prefetch(prefetcher, _createProfiles("a", "b"));
+        _waitForInterval();
+        assertTrue(_apiService.downloads.isEmpty());
+        prefetcher.isIdle = true;
+        _waitForInterval();
+        assertEquals(1, _apiService.downloads.size());
+        assertEquals("a", _apiService.downloads.get(0).profileId);
+        _finishDownload(_apiService.downloads.get(0));
+        assertEquals(2, _apiService.downloads.size());
+        assertEquals("b", _apiService.downloads.get(1).profileId);
+    }
+
+    @Test
+    public void testCancelPrefetch() throws Exception {
+        final TestPrefetcher prefetcher = _createPrefetcher(3);
+        _prefetch(prefetcher, _createProfiles("a", "b"));
+        _waitForInterval();
+        assertEquals(1, _apiService.downloads.size());
+        final Download download = _apiService.downloads.get(0);
+        // The user downloads the profile being prefetched.
+        _instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                prefetcher.cancelPrefetch(_instance, new Profile(download.profileId, download.profileId, false));
+            }
+        });
+        assertTrue(download.isCancelled);
+        _waitForInterval();
+        assertEquals(2, _apiService.downloads.size());
+        assertEquals("b", _apiService.downloads.get(1).profileId);
+        assertFalse(_apiService.downloads.get(1).isCancelled);
+        assertNull(_historyService.getCachedSavedProfile(_instance.getSanitizedBaseURI(), "a"));
+    }
+}
@@ -17,8 +17,12 @@
 
 package nl.eduvpn.app.service;
 
+import android.os.Build;
+import android.os.Debug;
 import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+import android.util.Log;
 import android.util.Pair;
 
 import nl.eduvpn.app.entity.DiscoveredAPI;
@@ -33,20 +37,32 @@ import nl.eduvpn.app.entity.message.Message;
 import nl.eduvpn.app.entity.message.Notification;
 import nl.eduvpn.app.utils.TTLCache;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 /**
  * Unit tests for the serializer service.
@@ -56,6 +72,8 @@ import static org.junit.Assert.assertEquals;
 @LargeTest
 public class SerializerServiceTest {
 
+    private static final String TAG = SerializerServiceTest.class.getName();
+
     private SerializerService _serializerService;
 
     @Before
@@ -209,6 +227,188 @@ public class SerializerServiceTest {
         }
     }
 
+    @Test
+    public void testNormalizedSerialization() throws SerializerService.UnknownFormatException {
+        Instance instance1 = new Instance("https://baseUri1/", "displayName1", "logoUri1", true);
+        Instance instance2 = new Instance("https://baseUri2", "displayName2", null, false);
+        List<SavedToken> tokenList = Arrays.asList(new SavedToken(instance1, "accessToken1"), new SavedToken(instance2, "accessToken2"));
+        List<SavedProfile> profileList = Arrays.asList(new SavedProfile(instance1, new Profile("displayName1", "profileId1", false), "profileUUID1"),
+                new SavedProfile(instance1, new Profile("displayName2", "profileId2", true), "profileUUID2"));
+        JSONObject serializedInstanceTable = _serializerService.serializeInstanceTable(Arrays.asList(instance1, instance2));
+        JSONObject serializedTokenList = _serializerService.serializeSavedTokenReferenceList(tokenList);
+        JSONObject serializedProfileList = _serializerService.serializeSavedProfileReferenceList(profileList);
+        // The instances are only serialized once.
+        assertFalse(serializedProfileList.toString().contains("logoUri1"));
+        Map<String, Instance> instanceTable = _serializerService.deserializeInstanceTable(serializedInstanceTable);
+        assertEquals(Arrays.asList("https://baseUri1", "https://baseUri2"), new ArrayList<>(instanceTable.keySet()));
+        List<SavedToken> deserializedTokenList = _serializerService.deserializeSavedTokenList(serializedTokenList, instanceTable);
+        List<SavedProfile> deserializedProfileList = _serializerService.deserializeSavedProfileList(serializedProfileList, instanceTable);
+        assertEquals(2, deserializedTokenList.size());
+        assertEquals(2, deserializedProfileList.size());
+        assertEquals("accessToken2", deserializedTokenList.get(1).getAccessToken());
+        assertEquals("profileUUID2", deserializedProfileList.get(1).getProfileUUID());
+        assertEquals("logoUri1", deserializedTokenList.get(0).getInstance().getLogoUri());
+        // The entries share the same instance objects.
+        assertSame(deserializedTokenList.get(0).getInstance(), deserializedProfileList.get(0).getInstance());
+        assertSame(deserializedProfileList.get(0).getInstance(), deserializedProfileList.get(1).getInstance());
+        // Entries referencing an unknown instance are left out.
+        instanceTable.remove("https://baseUri2");
+        assertEquals(1, _serializerService.deserializeSavedTokenList(serializedTokenList, instanceTable).size());
+    }
+
+    @Test
+    public void testPreviousFormatIsInterned() throws SerializerService.UnknownFormatException {
+        Instance instance = new Instance("https://baseUri1", "displayName1", "logoUri1", true);
+        List<SavedToken> tokenList = Collections.singletonList(new SavedToken(instance, "accessToken1"));
+        List<SavedProfile> profileList = Arrays.asList(new SavedProfile(instance, new Profile("displayName1", "profileId1", false), "profileUUID1"),
+                new SavedProfile(instance, new Profile("displayName2", "profileId2", true), "profileUUID2"));
+        Map<String, Instance> instanceTable = new HashMap<>();
+        List<SavedToken> deserializedTokenList = _serializerService.deserializeSavedTokenList(
+                _serializerService.serializeSavedTokenList(tokenList), instanceTable);
+        List<SavedProfile> deserializedProfileList = _serializerService.deserializeSavedProfileList(
+                _serializerService.serializeSavedProfileList(profileList), instanceTable);
+        assertEquals(1, instanceTable.size());
+        assertSame(instanceTable.get("https://baseUri1"), deserializedTokenList.get(0).getInstance());
+        assertSame(deserializedTokenList.get(0).getInstance(), deserializedProfileList.get(0).getInstance());
+        assertSame(deserializedTokenList.get(0).getInstance(), deserializedProfileList.get(1).getInstance());
+    }
+
+    @Test
+    public void testProfileListCacheSerialization() throws SerializerService.UnknownFormatException {
+        Map<String, List<Profile>> profileListCache = new LinkedHashMap<>();
+        profileListCache.put("baseUri1", Arrays.asList(new Profile("displayName1", "profileId1", false),
+                new Profile("displayName2", "profileId2", true)));
+        profileListCache.put("baseUri2", Collections.<Profile>emptyList());
+        JSONObject serializedCache = _serializerService.serializeProfileListCache(profileListCache);
+        Map<String, List<Profile>> deserializedCache = _serializerService.deserializeProfileListCache(serializedCache);
+        assertEquals(profileListCache, deserializedCache);
+    }
+
+    @Test
+    public void testBinaryFormatRejectsDamagedCounts() throws SerializerService.UnknownFormatException {
+        Map<String, List<Profile>> profileListCache = Collections.singletonMap("a",
+                Collections.singletonList(new Profile("displayName1", "profileId1", null)));
+        byte[] data = _serializerService.encodeProfileListCache(profileListCache);
+        assertEquals(profileListCache, _serializerService.decodeProfileListCache(data));
+        // A count of Integer.MAX_VALUE, followed by only a few bytes.
+        byte[] maxCount = { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07 };
+        try {
+            _serializerService.decodeSavedTokenList(maxCount, Collections.<String, Instance>emptyMap());
+            fail("Decoding should fail.");
+        } catch (SerializerService.UnknownFormatException ex) {
+            // Expected.
+        }
+        // The same count for the profiles of the first provider.
+        byte[] maxProfileCount = { 1, 0, 1, 'a', (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07, 0 };
+        try {
+            _serializerService.decodeProfileListCache(maxProfileCount);
+            fail("Decoding should fail.");
+        } catch (SerializerService.UnknownFormatException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testStreamingMatchesTreeDeserialization() throws Exception {
+        String instanceListJson = _createInstanceListJson(10);
+        InstanceList treeResult = _serializerService.deserializeInstanceList(new JSONObject(instanceListJson));
+        InstanceList streamResult = _serializerService.deserializeInstanceList(new JsonReader(new StringReader(instanceListJson)));
+        assertEquals(treeResult.getVersion(), streamResult.getVersion());
+        assertEquals(treeResult.getInstanceList().size(), streamResult.getInstanceList().size());
+        for (int i = 0; i < treeResult.getInstanceList().size(); ++i) {
+            Instance treeInstance = treeResult.getInstanceList().get(i);
+            Instance streamInstance = streamResult.getInstanceList().get(i);
+            assertEquals(treeInstance.getBaseURI(), streamInstance.getBaseURI());
+            assertEquals(treeInstance.getDisplayName(), streamInstance.getDisplayName());
+            assertEquals(treeInstance.getLogoUri(), streamInstance.getLogoUri());
+            assertEquals(treeInstance.isCustom(), streamInstance.isCustom());
+        }
+        DiscoveredAPI discoveredAPI = new DiscoveredAPI(1, "authEndpoint", "createConfig", "profileList",
+                "systemMessages", "userMessages");
+        String discoveredAPIJson = _serializerService.serializeDiscoveredAPI(discoveredAPI).toString();
+        DiscoveredAPI streamedDiscoveredAPI = _serializerService.deserializeDiscoveredAPI(new JsonReader(new StringReader(discoveredAPIJson)));
+        assertEquals(discoveredAPI.getCreateConfigAPI(), streamedDiscoveredAPI.getCreateConfigAPI());
+        assertEquals(discoveredAPI.getProfileListAPI(), streamedDiscoveredAPI.getProfileListAPI());
+        assertEquals(discoveredAPI.getSystemMessagesAPI(), streamedDiscoveredAPI.getSystemMessagesAPI());
+        assertEquals(discoveredAPI.getUserMessagesAPI(), streamedDiscoveredAPI.getUserMessagesAPI());
+        Calendar utcCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        List<Message> messageList = Arrays.asList(new Maintenance(utcCalendar.getTime(), utcCalendar.getTime(), utcCalendar.getTime()),
+                new Notification(utcCalendar.getTime(), "Example notification"));
+        String messageListJson = _serializerService.serializeMessageList(messageList, "user_messages").toString();
+        List<Message> streamedMessageList = _serializerService.deserializeMessageList(new JsonReader(new StringReader(messageListJson)), "user_messages");
+        assertEquals(messageList.size(), streamedMessageList.size());
+        assertEquals(((Notification)messageList.get(1)).getContent(), ((Notification)streamedMessageList.get(1)).getContent());
+        String profileListJson = "{\"profile_list\": {\"data\": [{\"display_name\": \"Internet\", \"profile_id\": \"internet\", \"two_factor\": false}]}}";
+        List<Profile> streamedProfileList = _serializerService.deserializeProfileList(new JsonReader(new StringReader(profileListJson)));
+        assertEquals(1, streamedProfileList.size());
+        assertEquals("internet", streamedProfileList.get(0).getProfileId());
+    }
+
+    @Test
+    public void testInstanceListDecodingBenchmark() throws Exception {
+        // Compares the previous (string + DOM) decoding path with the streaming one on a large instance list.
+        byte[] body = _createInstanceListJson(5000).getBytes("UTF-8");
+        long treeAllocatedBefore = _allocatedBytes();
+        long treeStart = System.nanoTime();
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        StringBuilder stringBuilder = new StringBuilder();
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            stringBuilder.append(line).append("\n");
+        }
+        InstanceList treeResult = _serializerService.deserializeInstanceList(new JSONObject(stringBuilder.toString()));
+        long treeMs = (System.nanoTime() - treeStart) / 1000000L;
+        long treeAllocated = _allocatedBytes() - treeAllocatedBefore;
+
+        long streamAllocatedBefore = _allocatedBytes();
+        long streamStart = System.nanoTime();
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        InstanceList streamResult = _serializerService.deserializeInstanceList(reader);
+        long streamMs = (System.nanoTime() - streamStart) / 1000000L;
+        long streamAllocated = _allocatedBytes() - streamAllocatedBefore;
+
+        assertEquals(treeResult.getInstanceList().size(), streamResult.getInstanceList().size());
+        Log.i(TAG, "Instance list of " + body.length + " bytes. " +
+                "Tree: " + treeMs + " ms, " + treeAllocated + " bytes allocated. " +
+                "Stream: " + streamMs + " ms, " + streamAllocated + " bytes allocated.");
+    }
+
+    /**
+     * Returns the amount of bytes allocated by the runtime so far.
+     *
+     * @return The amount of allocated bytes, or 0 if the platform does not report it.
+     */
+    private static long _allocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            if (allocated != null) {
+                return Long.parseLong(allocated);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Creates an instance list JSON with the given amount of instances.
+     *
+     * @param count The amount of instances in the list.
+     * @return The instance list as a JSON string.
+     */
+    private static String _createInstanceListJson(int count) throws Exception {
+        JSONArray instances = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            JSONObject instance = new JSONObject();
+            instance.put("display_name", "Provider " + i);
+            instance.put("base_uri", "https://vpn" + i + ".example.com/");
+            instance.put("logo_uri", "https://vpn" + i + ".example.com/img/logo.png");
+            instances.put(instance);
+        }
+        JSONObject result = new JSONObject();
+        result.put("instances", instances);
+        result.put("version", 1);
+        return result.toString(4);
+    }
+
     /**
      * Removes the milliseconds from a date. Required because the parser does not care about milliseconds.
      *
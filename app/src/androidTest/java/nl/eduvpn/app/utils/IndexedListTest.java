@@ -0,0 +1,104 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.utils;
+
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the indexed list.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IndexedListTest {
+
+    // Elements are "group/key" strings.
+    private static final IndexedList.KeyFunction<String> GROUP = new IndexedList.KeyFunction<String>() {
+        @NonNull
+        @Override
+        public String getKey(@NonNull String element) {
+            return element.substring(0, element.indexOf('/'));
+        }
+    };
+
+    private static final IndexedList.KeyFunction<String> KEY = new IndexedList.KeyFunction<String>() {
+        @NonNull
+        @Override
+        public String getKey(@NonNull String element) {
+            return element.substring(element.indexOf('/') + 1);
+        }
+    };
+
+    @Test
+    public void testLookups() {
+        IndexedList<String> list = new IndexedList<>(Arrays.asList("a/1", "b/1", "a/2"), GROUP, KEY);
+        assertEquals(Arrays.asList("a/1", "b/1", "a/2"), list.asList());
+        assertEquals("a/1", list.getFirst("a"));
+        assertEquals(Arrays.asList("a/1", "a/2"), list.getGroup("a"));
+        assertEquals("a/2", list.get("a", "2"));
+        assertNull(list.get("b", "2"));
+        assertNull(list.getFirst("c"));
+        assertTrue(list.getGroup("c").isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        String first = new String("a/1");
+        String second = new String("a/1");
+        IndexedList<String> list = new IndexedList<>(GROUP, KEY);
+        list.add(first);
+        list.add("b/1");
+        list.add(second);
+        // The first added element wins the lookup, the next one takes its place when it is removed.
+        assertSame(first, list.get("a", "1"));
+        assertTrue(list.remove(first));
+        assertSame(second, list.get("a", "1"));
+        assertTrue(list.remove("a/1"));
+        assertNull(list.get("a", "1"));
+        assertNull(list.getFirst("a"));
+        assertFalse(list.remove("a/1"));
+        assertEquals(Arrays.asList("b/1"), list.asList());
+    }
+
+    @Test
+    public void testRemoveGroup() {
+        IndexedList<String> list = new IndexedList<>(Arrays.asList("a/1", "b/1", "a/2", "c/1"), GROUP, null);
+        assertTrue(list.removeGroup("a"));
+        assertFalse(list.removeGroup("a"));
+        assertEquals(Arrays.asList("b/1", "c/1"), list.asList());
+        assertEquals(2, list.size());
+        assertNull(list.getFirst("a"));
+        list.add("a/3");
+        assertEquals("a/3", list.getFirst("a"));
+        assertEquals(Arrays.asList("b/1", "c/1", "a/3"), list.asList());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testInvalidModify() {
+        IndexedList<String> list = new IndexedList<>(Arrays.asList("a/1"), GROUP, KEY);
+        list.asList().remove(0);
+    }
+}
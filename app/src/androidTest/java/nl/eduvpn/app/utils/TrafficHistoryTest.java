@@ -0,0 +1,95 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the per-second traffic history.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TrafficHistoryTest {
+
+    private static final long START_MS = 1000000;
+
+    @Test
+    public void testRatesAreCalculatedFromCompletedSeconds() {
+        TrafficHistory history = new TrafficHistory(60);
+        history.record(START_MS, 1000, 100);
+        history.record(START_MS + 1000, 3000, 300);
+        // The second which is still running is not counted.
+        assertEquals(1000, history.getCurrentRate(TrafficHistory.DIRECTION_IN, START_MS + 1500));
+        assertEquals(3000, history.getCurrentRate(TrafficHistory.DIRECTION_IN, START_MS + 2000));
+        assertEquals(300, history.getCurrentRate(TrafficHistory.DIRECTION_OUT, START_MS + 2000));
+        assertEquals(2000, history.getAverageRate(TrafficHistory.DIRECTION_IN, TrafficHistory.WINDOW_1_MINUTE, START_MS + 2000));
+        assertEquals(3000, history.getPeakRate(TrafficHistory.DIRECTION_IN));
+        assertEquals(4000, history.getTotalBytes(TrafficHistory.DIRECTION_IN));
+        // Nothing was received in the last two seconds.
+        assertEquals(1000, history.getAverageRate(TrafficHistory.DIRECTION_IN, 4, START_MS + 4000));
+        assertEquals(1000, history.getSessionAverageRate(TrafficHistory.DIRECTION_IN, START_MS + 3000));
+    }
+
+    @Test
+    public void testTrafficIsSpreadOverReportingInterval() {
+        TrafficHistory history = new TrafficHistory(60);
+        history.record(START_MS, 0, 0);
+        history.record(START_MS + 2000, 4001, 0);
+        long[] rates = new long[3];
+        history.copyRates(TrafficHistory.DIRECTION_IN, START_MS + 3000, rates);
+        assertArrayEquals(new long[]{ 0, 2000, 2001 }, rates);
+        assertEquals(4001, history.getTotalBytes(TrafficHistory.DIRECTION_IN));
+    }
+
+    @Test
+    public void testOldValuesAreOverwritten() {
+        TrafficHistory history = new TrafficHistory(10);
+        for (int i = 0; i < 25; ++i) {
+            history.record(START_MS + i * 1000, i, 0);
+        }
+        long nowMs = START_MS + 25 * 1000;
+        long[] rates = new long[12];
+        long maximum = history.copyRates(TrafficHistory.DIRECTION_IN, nowMs, rates);
+        // Only the last ten seconds are kept.
+        assertArrayEquals(new long[]{ 0, 0, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 }, rates);
+        assertEquals(24, maximum);
+        assertEquals((15 + 24) / 2, history.getAverageRate(TrafficHistory.DIRECTION_IN, TrafficHistory.WINDOW_1_HOUR, nowMs));
+        // A long pause clears the whole buffer.
+        history.record(nowMs + 60000, 5, 0);
+        history.copyRates(TrafficHistory.DIRECTION_IN, nowMs + 61000, rates);
+        assertArrayEquals(new long[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 5 }, rates);
+        assertEquals(24, history.getPeakRate(TrafficHistory.DIRECTION_IN));
+    }
+
+    @Test
+    public void testClear() {
+        TrafficHistory history = new TrafficHistory(10);
+        history.record(START_MS, 100, 100);
+        history.clear();
+        assertEquals(0, history.getTotalBytes(TrafficHistory.DIRECTION_OUT));
+        assertEquals(0, history.getPeakRate(TrafficHistory.DIRECTION_OUT));
+        assertEquals(0, history.getCurrentRate(TrafficHistory.DIRECTION_OUT, START_MS + 1000));
+        assertEquals(0, history.getSessionAverageRate(TrafficHistory.DIRECTION_OUT, START_MS + 1000));
+    }
+}
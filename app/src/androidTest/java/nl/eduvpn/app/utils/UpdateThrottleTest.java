@@ -0,0 +1,100 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the update throttle.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateThrottleTest {
+
+    private static final long INTERVAL_MS = 300;
+
+    private List<Long> _updateTimes;
+
+    @Before
+    public void setUp() {
+        _updateTimes = Collections.synchronizedList(new ArrayList<Long>());
+    }
+
+    private UpdateThrottle _createThrottle() {
+        return new UpdateThrottle(new Handler(Looper.getMainLooper()), INTERVAL_MS, new Runnable() {
+            @Override
+            public void run() {
+                _updateTimes.add(SystemClock.elapsedRealtime());
+            }
+        });
+    }
+
+    @Test
+    public void testRequestsAreCoalesced() throws Exception {
+        UpdateThrottle throttle = _createThrottle();
+        long startTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 10; ++i) {
+            throttle.request();
+            SystemClock.sleep(INTERVAL_MS / 10);
+        }
+        SystemClock.sleep(INTERVAL_MS * 2);
+        // The first request is executed right away, the others are merged into a single delayed update.
+        assertEquals(2, _updateTimes.size());
+        assertTrue(_updateTimes.get(0) - startTime < INTERVAL_MS / 2);
+        assertTrue(_updateTimes.get(1) - _updateTimes.get(0) >= INTERVAL_MS);
+    }
+
+    @Test
+    public void testDelayedRequest() throws Exception {
+        UpdateThrottle throttle = _createThrottle();
+        long startTime = SystemClock.elapsedRealtime();
+        throttle.requestDelayed(INTERVAL_MS / 2);
+        // Already scheduled, so this one is merged.
+        throttle.request();
+        SystemClock.sleep(INTERVAL_MS * 2);
+        assertEquals(1, _updateTimes.size());
+        assertTrue(_updateTimes.get(0) - startTime >= INTERVAL_MS / 2);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        UpdateThrottle throttle = _createThrottle();
+        throttle.requestDelayed(INTERVAL_MS);
+        throttle.cancel();
+        SystemClock.sleep(INTERVAL_MS * 2);
+        assertTrue(_updateTimes.isEmpty());
+        // The throttle can be used again after cancelling.
+        throttle.request();
+        SystemClock.sleep(INTERVAL_MS);
+        assertEquals(1, _updateTimes.size());
+    }
+}
@@ -17,8 +17,10 @@
 
 package nl.eduvpn.app;
 
+import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
+import android.os.Bundle;
 
 import nl.eduvpn.app.inject.EduVPNComponent;
 
@@ -41,6 +43,50 @@ public class EduVPNApplication extends Application {
         VpnStatus.initLogCache(getApplicationContext().getCacheDir());
         // Set up the injector
         _component = EduVPNComponent.Initializer.init(this);
+        // Start loading the history in the background, while the first activity is being created.
+        _component.historyService();
+        registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+            private int _startedActivityCount = 0;
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+                _startedActivityCount++;
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+                _startedActivityCount--;
+                if (_startedActivityCount == 0) {
+                    // The app went to the background, the process can be killed from now on.
+                    _component.historyService().flush();
+                }
+            }
+
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                // Unused.
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+                // Unused.
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+                // Unused.
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                // Unused.
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                // Unused.
+            }
+        });
     }
 
     public EduVPNComponent component() {
@@ -20,6 +20,7 @@ package nl.eduvpn.app.adapter;
 import android.content.Context;
 import android.graphics.Color;
 import android.os.Handler;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.RecyclerView;
@@ -55,6 +56,7 @@ public class ProfileAdapter extends RecyclerView.Adapter<ProfileViewHolder> {
     private List<Pair<Instance, Profile>> _profileList;
     private List<Pair<Instance, Profile>> _itemsPendingRemoval;
     private Map<Pair<Instance, Profile>, Runnable> _pendingRunnables = new HashMap<>();
+    private Map<String, Integer> _instanceOrder = new HashMap<>();
 
     private Handler _handler = new Handler();
 
@@ -82,8 +84,102 @@ public class ProfileAdapter extends RecyclerView.Adapter<ProfileViewHolder> {
      * @param profiles The list of profiles to add to the list of current items.
      */
     public synchronized void addItems(List<Pair<Instance, Profile>> profiles) {
+        int positionStart = _profileList.size();
         _profileList.addAll(profiles);
-        notifyDataSetChanged();
+        notifyItemRangeInserted(positionStart, profiles.size());
+    }
+
+    /**
+     * Sets the order of the providers in the list. The profiles of a provider which is not displayed yet are inserted
+     * according to this order, so the list looks the same regardless of which provider responds first.
+     * Providers which are not in this list are displayed at the end.
+     *
+     * @param instances The providers in the order they should be displayed.
+     */
+    public synchronized void setInstanceOrder(@NonNull List<Instance> instances) {
+        _instanceOrder.clear();
+        for (int i = 0; i < instances.size(); ++i) {
+            _instanceOrder.put(instances.get(i).getSanitizedBaseURI(), i);
+        }
+    }
+
+    /**
+     * Replaces the profiles of a single provider, while keeping the rest of the list untouched.
+     * Only the differences are applied, so the rows which did not change are not redrawn.
+     * New profiles are added after the existing profiles of the provider. If the provider had no profiles yet, they
+     * are inserted at the position of the provider as set in {@link #setInstanceOrder(List)}.
+     *
+     * @param instance The provider.
+     * @param profiles The current list of profiles of the provider.
+     */
+    public synchronized void setItemsForInstance(@NonNull Instance instance, @NonNull List<Profile> profiles) {
+        String sanitizedBaseURI = instance.getSanitizedBaseURI();
+        Map<String, Profile> newProfiles = new HashMap<>();
+        for (Profile profile : profiles) {
+            newProfiles.put(profile.getProfileId(), profile);
+        }
+        int insertPosition = -1;
+        for (int i = _profileList.size() - 1; i >= 0; --i) {
+            Pair<Instance, Profile> item = _profileList.get(i);
+            if (!sanitizedBaseURI.equals(item.first.getSanitizedBaseURI())) {
+                continue;
+            }
+            Profile newProfile = newProfiles.remove(item.second.getProfileId());
+            if (newProfile == null) {
+                // The profile is not available anymore.
+                Runnable pendingRemovalRunnable = _pendingRunnables.remove(item);
+                if (pendingRemovalRunnable != null) {
+                    _handler.removeCallbacks(pendingRemovalRunnable);
+                }
+                _itemsPendingRemoval.remove(item);
+                _profileList.remove(i);
+                notifyItemRemoved(i);
+                if (insertPosition > i) {
+                    --insertPosition;
+                }
+                continue;
+            }
+            if (insertPosition < 0) {
+                insertPosition = i + 1;
+            }
+            if (!newProfile.equals(item.second) && !_itemsPendingRemoval.contains(item)) {
+                _profileList.set(i, new Pair<>(item.first, newProfile));
+                notifyItemChanged(i);
+            }
+        }
+        if (insertPosition < 0) {
+            insertPosition = _getInsertPosition(sanitizedBaseURI);
+        }
+        int positionStart = insertPosition;
+        for (Profile profile : profiles) {
+            if (newProfiles.containsKey(profile.getProfileId())) {
+                _profileList.add(insertPosition, new Pair<>(instance, profile));
+                ++insertPosition;
+            }
+        }
+        if (insertPosition > positionStart) {
+            notifyItemRangeInserted(positionStart, insertPosition - positionStart);
+        }
+    }
+
+    /**
+     * Returns the position where the first profile of a provider should be inserted.
+     *
+     * @param sanitizedBaseURI The base URI of the provider.
+     * @return The position before the first profile of a provider which comes later in the order.
+     */
+    private int _getInsertPosition(@NonNull String sanitizedBaseURI) {
+        Integer order = _instanceOrder.get(sanitizedBaseURI);
+        if (order == null) {
+            return _profileList.size();
+        }
+        for (int i = 0; i < _profileList.size(); ++i) {
+            Integer itemOrder = _instanceOrder.get(_profileList.get(i).first.getSanitizedBaseURI());
+            if (itemOrder == null || itemOrder > order) {
+                return i;
+            }
+        }
+        return _profileList.size();
     }
 
     /**
@@ -211,6 +307,7 @@ public class ProfileAdapter extends RecyclerView.Adapter<ProfileViewHolder> {
             _historyService.removeDiscoveredAPI(item.first.getSanitizedBaseURI());
             _historyService.removeSavedProfilesForInstance(item.first.getSanitizedBaseURI());
             _historyService.removeAccessTokens(item.first.getSanitizedBaseURI());
+            _historyService.removeCachedProfileList(item.first.getSanitizedBaseURI());
             notifyItemRemoved(position);
         }
     }
@@ -0,0 +1,43 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity;
+
+import android.support.annotation.Nullable;
+
+/**
+ * The addresses assigned to the device by the VPN connection.
+ */
+public class ConnectionMetadata {
+
+    private final String _ipV4;
+    private final String _ipV6;
+
+    public ConnectionMetadata(@Nullable String ipV4, @Nullable String ipV6) {
+        _ipV4 = ipV4;
+        _ipV6 = ipV6;
+    }
+
+    @Nullable
+    public String getIpV4() {
+        return _ipV4;
+    }
+
+    @Nullable
+    public String getIpV6() {
+        return _ipV6;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity;
+
+/**
+ * A snapshot of the statistics of the VPN connection.
+ * Values which are not known are {@link #NOT_AVAILABLE}.
+ */
+public class ConnectionStatistics {
+
+    public static final long NOT_AVAILABLE = -1;
+
+    private final long _secondsConnected;
+    private final long _bytesIn;
+    private final long _bytesOut;
+
+    public ConnectionStatistics(long secondsConnected, long bytesIn, long bytesOut) {
+        _secondsConnected = secondsConnected;
+        _bytesIn = bytesIn;
+        _bytesOut = bytesOut;
+    }
+
+    /**
+     * Returns the duration of the connection.
+     *
+     * @return The number of seconds since the connection was established, or {@link #NOT_AVAILABLE} if not connected.
+     */
+    public long getSecondsConnected() {
+        return _secondsConnected;
+    }
+
+    /**
+     * Returns the number of bytes received.
+     *
+     * @return The number of bytes, or {@link #NOT_AVAILABLE} if not known.
+     */
+    public long getBytesIn() {
+        return _bytesIn;
+    }
+
+    /**
+     * Returns the number of bytes sent.
+     *
+     * @return The number of bytes, or {@link #NOT_AVAILABLE} if not known.
+     */
+    public long getBytesOut() {
+        return _bytesOut;
+    }
+}
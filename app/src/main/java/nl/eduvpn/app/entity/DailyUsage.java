@@ -0,0 +1,74 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.entity;
+
+/**
+ * The traffic and the connected time of a profile on a single day.
+ */
+public class DailyUsage {
+
+    private final String _profileUUID;
+    private final int _day;
+    private final int _sessionCount;
+    private final long _secondsConnected;
+    private final long _bytesIn;
+    private final long _bytesOut;
+
+    public DailyUsage(String profileUUID, int day, int sessionCount, long secondsConnected, long bytesIn, long bytesOut) {
+        _profileUUID = profileUUID;
+        _day = day;
+        _sessionCount = sessionCount;
+        _secondsConnected = secondsConnected;
+        _bytesIn = bytesIn;
+        _bytesOut = bytesOut;
+    }
+
+    public String getProfileUUID() {
+        return _profileUUID;
+    }
+
+    /**
+     * Returns the day of the usage.
+     *
+     * @return The number of days since the epoch, in the local time zone.
+     */
+    public int getDay() {
+        return _day;
+    }
+
+    /**
+     * Returns the number of sessions on this day. A session which spans midnight is counted on both days.
+     *
+     * @return The number of sessions.
+     */
+    public int getSessionCount() {
+        return _sessionCount;
+    }
+
+    public long getSecondsConnected() {
+        return _secondsConnected;
+    }
+
+    public long getBytesIn() {
+        return _bytesIn;
+    }
+
+    public long getBytesOut() {
+        return _bytesOut;
+    }
+}
@@ -57,4 +57,30 @@ public class Profile {
     public String getProfileId() {
         return _profileId;
     }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        Profile profile = (Profile)other;
+        return _equals(_displayName, profile._displayName) &&
+                _equals(_profileId, profile._profileId) &&
+                _equals(_twoFactor, profile._twoFactor);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = _displayName != null ? _displayName.hashCode() : 0;
+        result = 31 * result + (_profileId != null ? _profileId.hashCode() : 0);
+        result = 31 * result + (_twoFactor != null ? _twoFactor.hashCode() : 0);
+        return result;
+    }
+
+    private static boolean _equals(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
 }
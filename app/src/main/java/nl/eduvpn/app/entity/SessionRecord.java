@@ -0,0 +1,68 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.entity;
+
+/**
+ * A finished VPN session of a saved profile.
+ */
+public class SessionRecord {
+
+    private final String _profileUUID;
+    private final long _startTime;
+    private final long _durationMs;
+    private final long _bytesIn;
+    private final long _bytesOut;
+
+    public SessionRecord(String profileUUID, long startTime, long durationMs, long bytesIn, long bytesOut) {
+        _profileUUID = profileUUID;
+        _startTime = startTime;
+        _durationMs = durationMs;
+        _bytesIn = bytesIn;
+        _bytesOut = bytesOut;
+    }
+
+    /**
+     * Returns the UUID of the profile, same as {@link SavedProfile#getProfileUUID()}.
+     *
+     * @return The UUID of the profile.
+     */
+    public String getProfileUUID() {
+        return _profileUUID;
+    }
+
+    /**
+     * Returns when the session was established.
+     *
+     * @return The start of the session in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return _startTime;
+    }
+
+    public long getDurationMs() {
+        return _durationMs;
+    }
+
+    public long getBytesIn() {
+        return _bytesIn;
+    }
+
+    public long getBytesOut() {
+        return _bytesOut;
+    }
+}
@@ -19,6 +19,7 @@ package nl.eduvpn.app.fragment;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.LinearLayoutManager;
@@ -34,11 +35,8 @@ import android.widget.ViewSwitcher;
 
 import com.squareup.picasso.Picasso;
 
-import org.json.JSONObject;
-
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
@@ -51,22 +49,28 @@ import nl.eduvpn.app.EduVPNApplication;
 import nl.eduvpn.app.MainActivity;
 import nl.eduvpn.app.R;
 import nl.eduvpn.app.adapter.MessagesAdapter;
+import nl.eduvpn.app.entity.ConnectionMetadata;
+import nl.eduvpn.app.entity.ConnectionStatistics;
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.Instance;
 import nl.eduvpn.app.entity.Profile;
 import nl.eduvpn.app.entity.message.Message;
+import nl.eduvpn.app.network.RequestGroup;
 import nl.eduvpn.app.service.APIService;
+import nl.eduvpn.app.service.ConnectionEventBus;
+import nl.eduvpn.app.service.ConnectionTimingService;
 import nl.eduvpn.app.service.PreferencesService;
-import nl.eduvpn.app.service.SerializerService;
 import nl.eduvpn.app.service.VPNService;
+import nl.eduvpn.app.utils.DiagnosticsDialog;
 import nl.eduvpn.app.utils.ErrorDialog;
 import nl.eduvpn.app.utils.FormattingUtils;
+import nl.eduvpn.app.utils.ThroughputGraphView;
 
 /**
  * The fragment which displays the status of the current connection.
  * Created by Daniel Zolnai on 2016-10-07.
  */
-public class ConnectionStatusFragment extends Fragment implements VPNService.ConnectionInfoCallback {
+public class ConnectionStatusFragment extends Fragment {
 
     @Inject
     protected VPNService _vpnService;
@@ -78,7 +82,7 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
     protected APIService _apiService;
 
     @Inject
-    protected SerializerService _serializerService;
+    protected ConnectionTimingService _connectionTimingService;
 
     @BindView(R.id.messagesList)
     protected RecyclerView _messagesList;
@@ -116,12 +120,21 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
     @BindView(R.id.bytesOutValue)
     protected TextView _bytesOutText;
 
+    @BindView(R.id.throughputGraph)
+    protected ThroughputGraphView _throughputGraph;
+
     @BindView(R.id.disconnectButton)
     protected Button _disconnectButton;
 
-    private Observer _vpnStatusObserver;
+    // Subscribed to the events of the connection while the fragment is resumed.
+    private ConnectionEventBus.Subscription _statusSubscription;
+    private ConnectionEventBus.Subscription _statisticsSubscription;
+    private ConnectionEventBus.Subscription _metadataSubscription;
     private Unbinder _unbinder;
 
+    // Requests which update this screen, cancelled when the view is destroyed.
+    private final RequestGroup _requestGroup = new RequestGroup();
+
     private boolean _userInitiatedDisconnect = false;
     private boolean _userNavigation = false;
 
@@ -131,6 +144,7 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
         View view = inflater.inflate(R.layout.fragment_connection_status, container, false);
         _unbinder = ButterKnife.bind(this, view);
         EduVPNApplication.get(view.getContext()).component().inject(this);
+        _throughputGraph.setTrafficHistory(_vpnService.getTrafficHistory());
         Profile savedProfile = _preferencesService.getCurrentProfile();
         _profileName.setText(savedProfile.getDisplayName());
         _messagesList.setLayoutManager(new LinearLayoutManager(view.getContext(), LinearLayoutManager.VERTICAL, false));
@@ -151,15 +165,10 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
         // Load the user and system messages asynchronously.
         DiscoveredAPI discoveredAPI = _preferencesService.getCurrentDiscoveredAPI();
         final MessagesAdapter messagesAdapter = (MessagesAdapter)_messagesList.getAdapter();
-        _apiService.getJSON(discoveredAPI.getSystemMessagesAPI(), true, new APIService.Callback<JSONObject>() {
+        _requestGroup.add(_apiService.getMessageList(discoveredAPI.getSystemMessagesAPI(), "system_messages", new APIService.Callback<List<Message>>() {
             @Override
-            public void onSuccess(JSONObject result) {
-                try {
-                    List<Message> systemMessagesList = _serializerService.deserializeMessageList(result, "system_messages");
-                    messagesAdapter.setSystemMessages(systemMessagesList);
-                } catch (SerializerService.UnknownFormatException ex) {
-                    ErrorDialog.show(getContext(), R.string.error_dialog_title, ex.toString());
-                }
+            public void onSuccess(List<Message> systemMessagesList) {
+                messagesAdapter.setSystemMessages(systemMessagesList);
             }
 
             @Override
@@ -168,16 +177,11 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
                         getString(R.string.error_loading_system_messages, errorMessage),
                         Toast.LENGTH_SHORT).show();
             }
-        });
-        _apiService.getJSON(discoveredAPI.getUserMessagesAPI(), true, new APIService.Callback<JSONObject>() {
+        }));
+        _requestGroup.add(_apiService.getMessageList(discoveredAPI.getUserMessagesAPI(), "user_messages", new APIService.Callback<List<Message>>() {
             @Override
-            public void onSuccess(JSONObject result) {
-                try {
-                    List<Message> userMessagesList = _serializerService.deserializeMessageList(result, "user_messages");
-                    messagesAdapter.setUserMessages(userMessagesList);
-                } catch (SerializerService.UnknownFormatException ex) {
-                    ErrorDialog.show(getContext(), R.string.error_dialog_title, ex.toString());
-                }
+            public void onSuccess(List<Message> userMessagesList) {
+                messagesAdapter.setUserMessages(userMessagesList);
             }
 
             @Override
@@ -186,72 +190,60 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
                         getString(R.string.error_loading_user_messages, errorMessage),
                         Toast.LENGTH_SHORT).show();
             }
-        });
+        }));
         _viewSwitcher.setDisplayedChild(0);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        _vpnStatusObserver = new Observer() {
-            @Override
-            public void update(Observable o, Object arg) {
-                VPNService.VPNStatus status = (VPNService.VPNStatus)arg;
-                if (_currentStatusIcon != null) {
-                    switch (status) {
-                        case CONNECTED:
-                            _disconnectButton.setEnabled(true);
-                            _currentStatusIcon.setImageResource(R.drawable.connection_status_connected);
-                            break;
-                        case CONNECTING:
-                            _currentStatusIcon.setImageResource(R.drawable.connection_status_connecting);
-                            _disconnectButton.setEnabled(true);
-                            break;
-                        case PAUSED:
-                            _disconnectButton.setEnabled(true);
-                            _currentStatusIcon.setImageResource(R.drawable.connection_status_paused);
-                            break;
-                        case DISCONNECTED:
-                            if (_userInitiatedDisconnect) {
-                                // Go back to the home screen.
-                                _disconnectButton.setEnabled(false);
-                                ((MainActivity)getActivity()).openFragment(new HomeFragment(), false);
-                            } else {
-                                _currentStatusIcon.setImageResource(R.drawable.connection_status_disconnected);
-                                _disconnectButton.setEnabled(true);
-                                _disconnectButton.setText(R.string.go_back);
-                                _userNavigation = true;
-                            }
-                            break;
-                        case FAILED:
-                            String message = getString(R.string.error_while_connecting, _vpnService.getErrorString());
-                            ErrorDialog.show(getContext(), R.string.error_dialog_title_unable_to_connect, message);
-                            _currentStatusIcon.setImageResource(R.drawable.connection_status_disconnected);
-                            break;
-                        default:
-                            throw new RuntimeException("Unhandled VPN status!");
+        ConnectionEventBus eventBus = _vpnService.getEventBus();
+        Executor mainThreadExecutor = eventBus.getMainThreadExecutor();
+        // The last values are delivered right away, so the screen is updated immediately.
+        _statusSubscription = eventBus.subscribe(ConnectionEventBus.STATUS, mainThreadExecutor,
+                new ConnectionEventBus.Subscriber<VPNService.VPNStatus>() {
+                    @Override
+                    public void onEvent(@NonNull VPNService.VPNStatus status) {
+                        _onStatusChanged(status);
                     }
-                }
-            }
-        };
-        // Update the icon immediately
-        _vpnStatusObserver.update(_vpnService, _vpnService.getStatus());
-        _vpnService.addObserver(_vpnStatusObserver);
-        _vpnService.attachConnectionInfoListener(this);
+                });
+        _statisticsSubscription = eventBus.subscribe(ConnectionEventBus.STATISTICS, mainThreadExecutor,
+                new ConnectionEventBus.Subscriber<ConnectionStatistics>() {
+                    @Override
+                    public void onEvent(@NonNull ConnectionStatistics statistics) {
+                        _onStatisticsChanged(statistics);
+                    }
+                });
+        _metadataSubscription = eventBus.subscribe(ConnectionEventBus.METADATA, mainThreadExecutor,
+                new ConnectionEventBus.Subscriber<ConnectionMetadata>() {
+                    @Override
+                    public void onEvent(@NonNull ConnectionMetadata metadata) {
+                        _onMetadataChanged(metadata);
+                    }
+                });
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        if (_vpnStatusObserver != null) {
-            _vpnService.deleteObserver(_vpnStatusObserver);
+        if (_statusSubscription != null) {
+            _statusSubscription.unsubscribe();
+            _statusSubscription = null;
+        }
+        if (_statisticsSubscription != null) {
+            _statisticsSubscription.unsubscribe();
+            _statisticsSubscription = null;
+        }
+        if (_metadataSubscription != null) {
+            _metadataSubscription.unsubscribe();
+            _metadataSubscription = null;
         }
-        _vpnService.detachConnectionInfoListener();
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        _requestGroup.cancelAll();
         _unbinder.unbind();
     }
 
@@ -288,18 +280,72 @@ public class ConnectionStatusFragment extends Fragment implements VPNService.Con
         startActivity(intent);
     }
 
-    @Override
-    public void updateStatus(Long secondsConnected, Long bytesIn, Long bytesOut) {
-        _durationText.setText(FormattingUtils.formatDurationSeconds(getContext(), secondsConnected));
-        _bytesInText.setText(FormattingUtils.formatBytesTraffic(getContext(), bytesIn));
-        _bytesOutText.setText(FormattingUtils.formatBytesTraffic(getContext(), bytesOut));
+    @OnClick(R.id.diagnosticsButton)
+    protected void onDiagnosticsClicked() {
+        DiagnosticsDialog.show(getContext(), _connectionTimingService.dump());
     }
 
-    @Override
-    public void metadataAvailable(String localIpV4, String localIpV6) {
-        String ipV4DisplayText = localIpV4 == null ? getString(R.string.not_available) : localIpV4;
+    private void _onStatusChanged(VPNService.VPNStatus status) {
+        if (_currentStatusIcon == null) {
+            return;
+        }
+        switch (status) {
+            case CONNECTED:
+                _disconnectButton.setEnabled(true);
+                _currentStatusIcon.setImageResource(R.drawable.connection_status_connected);
+                break;
+            case CONNECTING:
+                _currentStatusIcon.setImageResource(R.drawable.connection_status_connecting);
+                _disconnectButton.setEnabled(true);
+                break;
+            case PAUSED:
+                _disconnectButton.setEnabled(true);
+                _currentStatusIcon.setImageResource(R.drawable.connection_status_paused);
+                break;
+            case DISCONNECTED:
+                if (_userInitiatedDisconnect) {
+                    // Go back to the home screen.
+                    _disconnectButton.setEnabled(false);
+                    ((MainActivity)getActivity()).openFragment(new HomeFragment(), false);
+                } else {
+                    _currentStatusIcon.setImageResource(R.drawable.connection_status_disconnected);
+                    _disconnectButton.setEnabled(true);
+                    _disconnectButton.setText(R.string.go_back);
+                    _userNavigation = true;
+                }
+                break;
+            case FAILED:
+                String message = getString(R.string.error_while_connecting, _vpnService.getErrorString());
+                ErrorDialog.show(getContext(), R.string.error_dialog_title_unable_to_connect, message);
+                _currentStatusIcon.setImageResource(R.drawable.connection_status_disconnected);
+                break;
+            default:
+                throw new RuntimeException("Unhandled VPN status!");
+        }
+    }
+
+    private void _onStatisticsChanged(ConnectionStatistics statistics) {
+        if (_durationText == null) {
+            return;
+        }
+        _durationText.setText(FormattingUtils.formatDurationSeconds(getContext(), _toNullable(statistics.getSecondsConnected())));
+        _bytesInText.setText(FormattingUtils.formatBytesTraffic(getContext(), _toNullable(statistics.getBytesIn())));
+        _bytesOutText.setText(FormattingUtils.formatBytesTraffic(getContext(), _toNullable(statistics.getBytesOut())));
+        _throughputGraph.invalidate();
+    }
+
+    @Nullable
+    private static Long _toNullable(long value) {
+        return value == ConnectionStatistics.NOT_AVAILABLE ? null : value;
+    }
+
+    private void _onMetadataChanged(ConnectionMetadata metadata) {
+        if (_ipV4Text == null) {
+            return;
+        }
+        String ipV4DisplayText = metadata.getIpV4() == null ? getString(R.string.not_available) : metadata.getIpV4();
         _ipV4Text.setText(ipV4DisplayText);
-        String ipV6DisplayText = localIpV6 == null ? getString(R.string.not_available) : localIpV6;
+        String ipV6DisplayText = metadata.getIpV6() == null ? getString(R.string.not_available) : metadata.getIpV6();
         _ipV6Text.setText(ipV6DisplayText);
     }
 
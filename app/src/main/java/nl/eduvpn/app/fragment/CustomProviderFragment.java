@@ -32,14 +32,12 @@ import nl.eduvpn.app.EduVPNApplication;
 import nl.eduvpn.app.R;
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.network.RequestScheduler;
 import nl.eduvpn.app.service.APIService;
 import nl.eduvpn.app.service.ConnectionService;
-import nl.eduvpn.app.service.SerializerService;
 import nl.eduvpn.app.utils.ErrorDialog;
 import nl.eduvpn.app.utils.Log;
 
-import org.json.JSONObject;
-
 import javax.inject.Inject;
 
 import butterknife.BindView;
@@ -68,9 +66,6 @@ public class CustomProviderFragment extends Fragment {
     @Inject
     protected APIService _apiService;
 
-    @Inject
-    protected SerializerService _serializerService;
-
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
@@ -98,18 +93,12 @@ public class CustomProviderFragment extends Fragment {
             final Instance customProviderInstance = _createCustomProviderInstance(url);
             final ProgressDialog dialog = ProgressDialog.show(getContext(), getString(R.string.progress_dialog_title), getString(R.string.api_discovery_message), true);
             // Discover the API
-            _apiService.getJSON(customProviderInstance.getSanitizedBaseURI() + API_DISCOVERY_POSTFIX, false, new APIService.Callback<JSONObject>() {
+            _apiService.getDiscoveredAPI(customProviderInstance.getSanitizedBaseURI() + API_DISCOVERY_POSTFIX, RequestScheduler.Priority.USER_INITIATED,
+                    new APIService.Callback<DiscoveredAPI>() {
                 @Override
-                public void onSuccess(JSONObject result) {
-                    try {
-                        DiscoveredAPI discoveredAPI = _serializerService.deserializeDiscoveredAPI(result);
-                        dialog.dismiss();
-                        _connectionService.initiateConnection(getActivity(), customProviderInstance, discoveredAPI);
-                    } catch (SerializerService.UnknownFormatException ex) {
-                        ErrorDialog.show(getContext(), R.string.error_dialog_title, getString(R.string.custom_api_discovery_error, ex.toString()));
-                        Log.e(TAG, "Error while parsing discovered API", ex);
-                        dialog.dismiss();
-                    }
+                public void onSuccess(DiscoveredAPI discoveredAPI) {
+                    dialog.dismiss();
+                    _connectionService.initiateConnection(getActivity(), customProviderInstance, discoveredAPI);
                 }
 
                 @Override
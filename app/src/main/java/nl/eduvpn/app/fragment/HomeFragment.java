@@ -44,20 +44,21 @@ import nl.eduvpn.app.entity.Instance;
 import nl.eduvpn.app.entity.Profile;
 import nl.eduvpn.app.entity.SavedProfile;
 import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.network.RequestGroup;
+import nl.eduvpn.app.network.RequestScheduler;
 import nl.eduvpn.app.service.APIService;
 import nl.eduvpn.app.service.ConfigurationService;
 import nl.eduvpn.app.service.ConnectionService;
 import nl.eduvpn.app.service.HistoryService;
 import nl.eduvpn.app.service.PreferencesService;
-import nl.eduvpn.app.service.SerializerService;
+import nl.eduvpn.app.service.ProfileListLoader;
+import nl.eduvpn.app.service.ProfilePrefetcher;
 import nl.eduvpn.app.service.VPNService;
 import nl.eduvpn.app.utils.ErrorDialog;
 import nl.eduvpn.app.utils.FormattingUtils;
 import nl.eduvpn.app.utils.ItemClickSupport;
 import nl.eduvpn.app.utils.Log;
 
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -92,15 +93,18 @@ public class HomeFragment extends Fragment {
     @Inject
     protected APIService _apiService;
 
-    @Inject
-    protected SerializerService _serializerService;
-
     @Inject
     protected ConnectionService _connectionService;
 
     @Inject
     protected ConfigurationService _configurationService;
 
+    @Inject
+    protected ProfileListLoader _profileListLoader;
+
+    @Inject
+    protected ProfilePrefetcher _profilePrefetcher;
+
     @BindView(R.id.profileList)
     protected RecyclerView _profileList;
 
@@ -121,7 +125,13 @@ public class HomeFragment extends Fragment {
 
     private Unbinder _unbinder;
 
-    private int _pendingInstanceCount;
+    // Requests which update this screen, cancelled when the view is destroyed.
+    private final RequestGroup _requestGroup = new RequestGroup();
+
+    // Shown while a profile is downloaded. The download is not part of the request group, see _downloadProfileAndConnect().
+    private ProgressDialog _profileDownloadDialog;
+
+    private int _runningLoadCount;
     private List<Instance> _problemeticInstances;
 
     @Nullable
@@ -132,22 +142,21 @@ public class HomeFragment extends Fragment {
         EduVPNApplication.get(view.getContext()).component().inject(this);
         _profileList.setHasFixedSize(true);
         _profileList.setLayoutManager(new LinearLayoutManager(view.getContext(), LinearLayoutManager.VERTICAL, false));
-        final List<SavedToken> savedTokenList = _historyService.getSavedTokenList();
-        if (savedTokenList.size() == 0) {
-            _loadingBar.setVisibility(View.GONE);
-            _noProvidersYet.setVisibility(View.VISIBLE);
-            _profileList.setVisibility(View.GONE);
-        } else {
-            _loadingBar.setVisibility(View.VISIBLE);
-            _noProvidersYet.setVisibility(View.GONE);
-            _profileList.setVisibility(View.VISIBLE);
-            ProfileAdapter adapter = new ProfileAdapter(_historyService, null);
-            _profileList.setAdapter(adapter);
-            ItemTouchHelper swipeHelper = new ItemTouchHelper(new SwipeToDeleteHelper(getContext()));
-            swipeHelper.attachToRecyclerView(_profileList);
-            _profileList.addItemDecoration(new SwipeToDeleteAnimator(getContext()));
-            _fillList(adapter, savedTokenList);
-        }
+        // The saved providers are shown once the history has been loaded, the main thread does not wait for it.
+        _loadingBar.setVisibility(View.VISIBLE);
+        _noProvidersYet.setVisibility(View.GONE);
+        final RecyclerView profileList = _profileList;
+        _historyService.runWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                if (_profileList != profileList) {
+                    // The view was recreated in the meantime, the runnable of the new view fills that one.
+                    Log.d(TAG, "Layout has been destroyed already.");
+                    return;
+                }
+                _showSavedProviders();
+            }
+        });
 
         ItemClickSupport.addTo(_profileList).setOnItemClickListener(new ItemClickSupport.OnItemClickListener() {
             @Override
@@ -177,6 +186,7 @@ public class HomeFragment extends Fragment {
                     VpnProfile vpnProfile = _vpnService.getProfileWithUUID(profileUUID);
                     if (vpnProfile != null) {
                         // Profile found, connecting
+                        _profilePrefetcher.markUsed(savedProfile);
                         _vpnService.connect(getActivity(), vpnProfile);
                         ((MainActivity)getActivity()).openFragment(new ConnectionStatusFragment(), false);
                         return;
@@ -210,16 +220,63 @@ public class HomeFragment extends Fragment {
         return view;
     }
 
+    /**
+     * Shows the saved providers, with the profiles cached for them, and starts loading their current profile lists.
+     * Should only be called when the history has been loaded.
+     */
+    private void _showSavedProviders() {
+        List<SavedToken> savedTokenList = _historyService.getSavedTokenList();
+        if (savedTokenList.size() == 0) {
+            _loadingBar.setVisibility(View.GONE);
+            _noProvidersYet.setVisibility(View.VISIBLE);
+            _profileList.setVisibility(View.GONE);
+        } else {
+            _loadingBar.setVisibility(View.VISIBLE);
+            _noProvidersYet.setVisibility(View.GONE);
+            _profileList.setVisibility(View.VISIBLE);
+            // Show the profiles we know of right away, the list is updated when the providers have responded.
+            List<Pair<Instance, Profile>> cachedItems = new ArrayList<>();
+            for (SavedToken savedToken : savedTokenList) {
+                List<Profile> cachedProfiles = _historyService.getCachedProfileList(savedToken.getInstance().getSanitizedBaseURI());
+                if (cachedProfiles != null) {
+                    for (Profile profile : cachedProfiles) {
+                        cachedItems.add(new Pair<>(savedToken.getInstance(), profile));
+                    }
+                }
+            }
+            ProfileAdapter adapter = new ProfileAdapter(_historyService, cachedItems);
+            List<Instance> instances = new ArrayList<>();
+            for (SavedToken savedToken : savedTokenList) {
+                instances.add(savedToken.getInstance());
+            }
+            adapter.setInstanceOrder(instances);
+            _profileList.setAdapter(adapter);
+            ItemTouchHelper swipeHelper = new ItemTouchHelper(new SwipeToDeleteHelper(getContext()));
+            swipeHelper.attachToRecyclerView(_profileList);
+            _profileList.addItemDecoration(new SwipeToDeleteAnimator(getContext()));
+            // The loads of a previous view were cancelled, so their state is not valid anymore.
+            _runningLoadCount = 0;
+            _problemeticInstances = new ArrayList<>();
+            _fillList(adapter, savedTokenList);
+        }
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        _requestGroup.cancelAll();
+        if (_profileDownloadDialog != null) {
+            _profileDownloadDialog.dismiss();
+            _profileDownloadDialog = null;
+        }
         _unbinder.unbind();
     }
 
 
     /**
      * Starts fetching the list of profiles to be displayed.
-     * This will be done from multiple APIs and loaded asynchronously.
+     * This will be done from multiple APIs and loaded asynchronously. Each provider updates its own rows in the list
+     * as soon as it has responded.
      * While the list is still filling, a loading indicator is shown. When all resources were downloaded,
      * indicator will be hidden.
      *
@@ -227,79 +284,26 @@ public class HomeFragment extends Fragment {
      * @param instanceAccessTokenPairs Each instance & access token pair.
      */
     private void _fillList(final ProfileAdapter adapter, List<SavedToken> instanceAccessTokenPairs) {
-        _pendingInstanceCount = instanceAccessTokenPairs.size();
-        _problemeticInstances = new ArrayList<>();
-        for (SavedToken savedToken : instanceAccessTokenPairs) {
-            final Instance instance = savedToken.getInstance();
-            final String accessToken = savedToken.getAccessToken();
-            DiscoveredAPI discoveredAPI = _historyService.getCachedDiscoveredAPI(instance.getSanitizedBaseURI());
-            if (discoveredAPI != null) {
-                // We got everything, fetch the available profiles.
-                _fetchProfileList(adapter, instance, discoveredAPI, accessToken);
-            } else {
-                _apiService.getJSON(instance.getSanitizedBaseURI() + Constants.API_DISCOVERY_POSTFIX,
-                        false,
-                        new APIService.Callback<JSONObject>() {
-                            @Override
-                            public void onSuccess(JSONObject result) {
-                                try {
-                                    DiscoveredAPI discoveredAPI = _serializerService.deserializeDiscoveredAPI(result);
-                                    // Cache the result
-                                    _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), discoveredAPI);
-                                    _fetchProfileList(adapter, instance, discoveredAPI, accessToken);
-                                } catch (SerializerService.UnknownFormatException ex) {
-                                    Log.e(TAG, "Error parsing discovered API!", ex);
-                                    _problemeticInstances.add(instance);
-                                    _checkLoadingFinished();
-                                }
-                            }
-
-                            @Override
-                            public void onError(String errorMessage) {
-                                Log.e(TAG, "Error while fetching discovered API: " + errorMessage);
-                                _problemeticInstances.add(instance);
-                                _checkLoadingFinished();
-                            }
-                        });
+        ++_runningLoadCount;
+        _requestGroup.add(_profileListLoader.load(instanceAccessTokenPairs, new ProfileListLoader.Listener() {
+            @Override
+            public void onInstanceLoaded(@NonNull Instance instance, @NonNull List<Profile> profiles, long latencyMs) {
+                adapter.setItemsForInstance(instance, profiles);
+                // Download the configs in the background, so connecting does not have to wait for them.
+                _profilePrefetcher.prefetch(instance, profiles);
             }
-        }
-    }
 
-    /**
-     * Starts downloading the list of profiles for a single VPN provider.
-     *
-     * @param adapter       The adapter to download the data into.
-     * @param instance      The VPN provider instance.
-     * @param discoveredAPI The discovered API containing the URLs.
-     * @param accessToken   The access token for the API.
-     */
-    private void _fetchProfileList(@NonNull final ProfileAdapter adapter, @NonNull final Instance instance,
-                                   @NonNull DiscoveredAPI discoveredAPI, @NonNull String accessToken) {
-        _connectionService.setAccessToken(accessToken);
-        _apiService.getJSON(discoveredAPI.getProfileListAPI(), true, new APIService.Callback<JSONObject>() {
             @Override
-            public void onSuccess(JSONObject result) {
-                try {
-                    List<Profile> profiles = _serializerService.deserializeProfileList(result);
-                    List<Pair<Instance, Profile>> newItems = new ArrayList<>();
-                    for (Profile profile : profiles) {
-                        newItems.add(new Pair<>(instance, profile));
-                    }
-                    adapter.addItems(newItems);
-                } catch (SerializerService.UnknownFormatException ex) {
-                    _problemeticInstances.add(instance);
-                    Log.e(TAG, "Error parsing profile list.", ex);
-                }
-                _checkLoadingFinished();
+            public void onInstanceFailed(@NonNull Instance instance, @NonNull String errorMessage, long latencyMs) {
+                _problemeticInstances.add(instance);
             }
 
             @Override
-            public void onError(String errorMessage) {
-                _problemeticInstances.add(instance);
-                Log.e(TAG, "Error fetching profile list: " + errorMessage);
+            public void onFinished(@NonNull List<Instance> failedInstances) {
+                --_runningLoadCount;
                 _checkLoadingFinished();
             }
-        });
+        }));
     }
 
     /**
@@ -307,9 +311,8 @@ public class HomeFragment extends Fragment {
      * If yes, it hides the loading animation.
      * If there were any errors, it will display a warning bar as well.
      */
-    private synchronized void _checkLoadingFinished() {
-        _pendingInstanceCount--;
-        if (_pendingInstanceCount <= 0 && _problemeticInstances.size() == 0) {
+    private void _checkLoadingFinished() {
+        if (_runningLoadCount <= 0 && _problemeticInstances.size() == 0) {
             if (_loadingBar == null) {
                 Log.d(TAG, "Layout has been destroyed already.");
                 return;
@@ -331,7 +334,7 @@ public class HomeFragment extends Fragment {
                 }
             });
             animator.start();
-        } else if (_pendingInstanceCount <= 0) {
+        } else if (_runningLoadCount <= 0) {
             if (_displayText == null) {
                 Log.d(TAG, "Layout has been destroyed already.");
                 return;
@@ -371,40 +374,43 @@ public class HomeFragment extends Fragment {
 
                                 @Override
                                 public void loginInstance(final Instance instance) {
-                                    _apiService.getJSON(instance.getSanitizedBaseURI() + Constants.API_DISCOVERY_POSTFIX,
-                                            false,
-                                            new APIService.Callback<JSONObject>() {
+                                    _requestGroup.add(_apiService.getDiscoveredAPI(instance.getSanitizedBaseURI() + Constants.API_DISCOVERY_POSTFIX,
+                                            RequestScheduler.Priority.USER_INITIATED, new APIService.Callback<DiscoveredAPI>() {
                                                 @Override
-                                                public void onSuccess(JSONObject result) {
-                                                    try {
-                                                        DiscoveredAPI discoveredAPI = _serializerService.deserializeDiscoveredAPI(result);
-                                                        // Cache the result
-                                                        _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), discoveredAPI);
-                                                        _problemeticInstances.remove(instance);
-                                                        _connectionService.initiateConnection(getActivity(), instance, discoveredAPI);
-                                                    } catch (SerializerService.UnknownFormatException ex) {
-                                                        Log.e(TAG, "Error parsing discovered API!", ex);
-                                                        ErrorDialog.show(getContext(), R.string.error_dialog_title, R.string.provider_incorrect_format);
-                                                    }
+                                                public void onSuccess(DiscoveredAPI discoveredAPI) {
+                                                    // Cache the result
+                                                    _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), discoveredAPI);
+                                                    _problemeticInstances.remove(instance);
+                                                    _connectionService.initiateConnection(getActivity(), instance, discoveredAPI);
                                                 }
 
                                                 @Override
                                                 public void onError(String errorMessage) {
                                                     Log.e(TAG, "Error while fetching discovered API: " + errorMessage);
-                                                    ErrorDialog.show(getContext(), R.string.error_dialog_title, R.string.provider_not_found_retry);
+                                                    if (APIService.INCORRECT_FORMAT_ERROR.equals(errorMessage)) {
+                                                        ErrorDialog.show(getContext(), R.string.error_dialog_title, R.string.provider_incorrect_format);
+                                                    } else {
+                                                        ErrorDialog.show(getContext(), R.string.error_dialog_title, R.string.provider_not_found_retry);
+                                                    }
                                                 }
-                                            });
+                                            }));
                                 }
 
                                 @Override
-                                public void removeInstance(Instance instance) {
+                                public void removeInstance(final Instance instance) {
                                     _historyService.removeAccessTokens(instance.getSanitizedBaseURI());
                                     _historyService.removeDiscoveredAPI(instance.getSanitizedBaseURI());
                                     _historyService.removeSavedProfilesForInstance(instance.getSanitizedBaseURI());
+                                    _historyService.removeCachedProfileList(instance.getSanitizedBaseURI());
                                     _problemeticInstances.remove(instance);
                                     getActivity().runOnUiThread(new Runnable() {
                                         @Override
                                         public void run() {
+                                            if (_profileList != null) {
+                                                // Drop the profiles which were displayed from the cache.
+                                                ProfileAdapter adapter = (ProfileAdapter)_profileList.getAdapter();
+                                                adapter.setItemsForInstance(instance, Collections.<Profile>emptyList());
+                                            }
                                             _checkLoadingFinished();
                                         }
                                     });
@@ -428,34 +434,52 @@ public class HomeFragment extends Fragment {
                 getString(R.string.vpn_profile_download_message),
                 true,
                 false);
+        _profileDownloadDialog = dialog;
         String requestData = "display_name=eduVPN%20for%20Android&profile_id=" + profile.getProfileId();
         String url = discoveredAPI.getCreateConfigAPI();
-        _apiService.postResource(url, requestData, true, new APIService.Callback<byte[]>() {
+        String configName = FormattingUtils.formatProfileName(getContext(), instance, profile);
+        // Make sure the prefetcher does not download the same profile in the meantime.
+        _profilePrefetcher.cancelPrefetch(instance, profile);
+        // The config is parsed while it is being downloaded, so it is never kept in memory as a whole.
+        // Creating it is not idempotent, so the request is not cancelled with the view: the config is saved even if the
+        // screen was closed meanwhile, for example by a rotation.
+        _apiService.postResource(url, requestData, true, _vpnService.createConfigParser(configName),
+                new APIService.Callback<VpnProfile>() {
 
             @Override
-            public void onSuccess(byte[] result) {
-                String vpnConfig = new String(result);
-                String configName = FormattingUtils.formatProfileName(getContext(), instance, profile);
-                VpnProfile vpnProfile = _vpnService.importConfig(vpnConfig, configName);
-                if (vpnProfile != null && getActivity() != null) {
-                    // Cache the profile
-                    SavedProfile savedProfile = new SavedProfile(instance, profile, vpnProfile.getUUIDString());
-                    _historyService.cacheSavedProfile(savedProfile);
+            public void onSuccess(VpnProfile vpnProfile) {
+                dialog.dismiss();
+                if (vpnProfile == null) {
+                    if (isAdded()) {
+                        ErrorDialog.show(getContext(), R.string.error_dialog_title, R.string.error_importing_profile);
+                    }
+                    return;
+                }
+                _vpnService.saveProfile(vpnProfile);
+                // Replace the profile if it was saved in the meantime, so it is not listed twice.
+                SavedProfile existingProfile = _historyService.getCachedSavedProfile(instance.getSanitizedBaseURI(), profile.getProfileId());
+                if (existingProfile != null) {
+                    _historyService.removeSavedProfile(existingProfile);
+                    _vpnService.removeProfile(existingProfile.getProfileUUID());
+                }
+                // Cache the profile
+                SavedProfile savedProfile = new SavedProfile(instance, profile, vpnProfile.getUUIDString());
+                _historyService.cacheSavedProfile(savedProfile);
+                _profilePrefetcher.markUsed(savedProfile);
+                if (isAdded()) {
                     // Connect with the profile
-                    dialog.dismiss();
                     _vpnService.connect(getActivity(), vpnProfile);
                     ((MainActivity)getActivity()).openFragment(new ConnectionStatusFragment(), false);
-                } else {
-                    dialog.dismiss();
-                    ErrorDialog.show(getContext(), R.string.error_dialog_title, R.string.error_importing_profile);
                 }
             }
 
             @Override
             public void onError(String errorMessage) {
                 dialog.dismiss();
-                ErrorDialog.show(getContext(), R.string.error_dialog_title, getString(R.string.error_fetching_profile, errorMessage));
                 Log.e(TAG, "Error fetching profile: " + errorMessage);
+                if (isAdded()) {
+                    ErrorDialog.show(getContext(), R.string.error_dialog_title, getString(R.string.error_fetching_profile, errorMessage));
+                }
             }
         });
     }
@@ -35,18 +35,16 @@ import nl.eduvpn.app.R;
 import nl.eduvpn.app.adapter.ProviderAdapter;
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.network.RequestScheduler;
 import nl.eduvpn.app.service.APIService;
 import nl.eduvpn.app.service.ConfigurationService;
 import nl.eduvpn.app.service.ConnectionService;
 import nl.eduvpn.app.service.HistoryService;
 import nl.eduvpn.app.service.PreferencesService;
-import nl.eduvpn.app.service.SerializerService;
 import nl.eduvpn.app.utils.ErrorDialog;
 import nl.eduvpn.app.utils.ItemClickSupport;
 import nl.eduvpn.app.utils.Log;
 
-import org.json.JSONObject;
-
 import javax.inject.Inject;
 
 import butterknife.BindView;
@@ -70,9 +68,6 @@ public class ProviderSelectionFragment extends Fragment {
     @Inject
     protected APIService _apiService;
 
-    @Inject
-    protected SerializerService _serializerService;
-
     @Inject
     protected ConnectionService _connectionService;
 
@@ -136,20 +131,14 @@ public class ProviderSelectionFragment extends Fragment {
         Log.d(TAG, "No cached discovered API found, continuing with discovery.");
         final ProgressDialog dialog = ProgressDialog.show(getContext(), getString(R.string.progress_dialog_title), getString(R.string.api_discovery_message), true);
         // Discover the API
-        _apiService.getJSON(instance.getSanitizedBaseURI() + Constants.API_DISCOVERY_POSTFIX, false, new APIService.Callback<JSONObject>() {
+        _apiService.getDiscoveredAPI(instance.getSanitizedBaseURI() + Constants.API_DISCOVERY_POSTFIX, RequestScheduler.Priority.USER_INITIATED,
+                new APIService.Callback<DiscoveredAPI>() {
             @Override
-            public void onSuccess(JSONObject result) {
-                try {
-                    DiscoveredAPI discoveredAPI = _serializerService.deserializeDiscoveredAPI(result);
-                    dialog.dismiss();
-                    // Cache the result
-                    _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), discoveredAPI);
-                    _connectionService.initiateConnection(getActivity(), instance, discoveredAPI);
-                } catch (SerializerService.UnknownFormatException ex) {
-                    Log.e(TAG, "Error parsing discovered API!",  ex);
-                    ErrorDialog.show(getContext(), R.string.error_dialog_title, ex.toString());
-                    dialog.dismiss();
-                }
+            public void onSuccess(DiscoveredAPI discoveredAPI) {
+                dialog.dismiss();
+                // Cache the result
+                _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), discoveredAPI);
+                _connectionService.initiateConnection(getActivity(), instance, discoveredAPI);
             }
 
             @Override
@@ -18,16 +18,35 @@
 package nl.eduvpn.app.inject;
 
 import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import nl.eduvpn.app.EduVPNApplication;
+import nl.eduvpn.app.network.CircuitBreaker;
+import nl.eduvpn.app.network.HttpCache;
+import nl.eduvpn.app.network.HttpTransport;
+import nl.eduvpn.app.network.PooledHttpTransport;
+import nl.eduvpn.app.network.RemoteProber;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.network.RetryPolicy;
+import nl.eduvpn.app.network.RttEstimator;
 import nl.eduvpn.app.service.APIService;
+import nl.eduvpn.app.service.AccountingService;
 import nl.eduvpn.app.service.ConfigurationService;
+import nl.eduvpn.app.service.ConnectionEventBus;
 import nl.eduvpn.app.service.ConnectionService;
+import nl.eduvpn.app.service.ConnectionTimingService;
 import nl.eduvpn.app.service.HistoryService;
 import nl.eduvpn.app.service.PreferencesService;
+import nl.eduvpn.app.service.ProfileListLoader;
+import nl.eduvpn.app.service.ProfilePrefetcher;
 import nl.eduvpn.app.service.SerializerService;
 import nl.eduvpn.app.service.VPNService;
 
+import java.io.File;
+import java.util.concurrent.Executors;
+
 import javax.inject.Singleton;
 
 import dagger.Module;
@@ -54,8 +73,8 @@ public class ApplicationModule {
 
     @Provides
     @Singleton
-    protected ConfigurationService provideConfigurationService(Context context, SerializerService serializerService) {
-        return new ConfigurationService(context, serializerService);
+    protected ConfigurationService provideConfigurationService(Context context, SerializerService serializerService, APIService apiService) {
+        return new ConfigurationService(context, serializerService, apiService);
     }
 
     @Provides
@@ -72,8 +91,65 @@ public class ApplicationModule {
 
     @Provides
     @Singleton
-    protected APIService provideAPIService(ConnectionService connectionService) {
-        return new APIService(connectionService);
+    protected APIService provideAPIService(ConnectionService connectionService, SerializerService serializerService,
+                                           HttpTransport httpTransport, HttpCache httpCache,
+                                           RequestScheduler requestScheduler, RetryPolicy retryPolicy,
+                                           CircuitBreaker circuitBreaker, RttEstimator rttEstimator) {
+        return new APIService(connectionService, serializerService, httpTransport, httpCache, requestScheduler, retryPolicy,
+                circuitBreaker, rttEstimator);
+    }
+
+    @Provides
+    @Singleton
+    protected ProfileListLoader provideProfileListLoader(APIService apiService, HistoryService historyService) {
+        return new ProfileListLoader(apiService, historyService, new Handler(Looper.getMainLooper()),
+                ProfileListLoader.DEFAULT_REQUEST_TIMEOUT_MS, ProfileListLoader.DEFAULT_DEADLINE_MS);
+    }
+
+    @Provides
+    @Singleton
+    protected ProfilePrefetcher provideProfilePrefetcher(Context context, APIService apiService, VPNService vpnService,
+                                                         HistoryService historyService, PreferencesService preferencesService,
+                                                         RequestScheduler requestScheduler) {
+        return new ProfilePrefetcher(context, apiService, vpnService, historyService, preferencesService, requestScheduler,
+                new Handler(Looper.getMainLooper()), ProfilePrefetcher.DEFAULT_MAX_SAVED_PROFILES,
+                ProfilePrefetcher.DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    @Provides
+    @Singleton
+    protected RetryPolicy provideRetryPolicy() {
+        return new RetryPolicy();
+    }
+
+    @Provides
+    @Singleton
+    protected CircuitBreaker provideCircuitBreaker() {
+        return new CircuitBreaker();
+    }
+
+    @Provides
+    @Singleton
+    protected RttEstimator provideRttEstimator() {
+        return new RttEstimator();
+    }
+
+    @Provides
+    @Singleton
+    protected RequestScheduler provideRequestScheduler() {
+        return new RequestScheduler();
+    }
+
+    @Provides
+    @Singleton
+    protected HttpCache provideHttpCache(Context context) {
+        return new HttpCache(new File(context.getCacheDir(), "http"), HttpCache.DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    @Provides
+    @Singleton
+    protected HttpTransport provideHttpTransport() {
+        return new PooledHttpTransport();
     }
 
     @Provides
@@ -84,13 +160,41 @@ public class ApplicationModule {
 
     @Provides
     @Singleton
-    protected VPNService provideVPNService(Context context, PreferencesService preferencesService) {
-        return new VPNService(context, preferencesService);
+    protected VPNService provideVPNService(Context context, PreferencesService preferencesService,
+                                           ConnectionEventBus connectionEventBus, AccountingService accountingService,
+                                           ConnectionTimingService connectionTimingService, RemoteProber remoteProber) {
+        return new VPNService(context, preferencesService, connectionEventBus, accountingService, connectionTimingService,
+                remoteProber);
+    }
+
+    @Provides
+    @Singleton
+    protected RemoteProber provideRemoteProber() {
+        return new RemoteProber(Executors.newCachedThreadPool(), new Handler(Looper.getMainLooper()),
+                RemoteProber.DEFAULT_DEADLINE_MS, RemoteProber.DEFAULT_CACHE_TTL_SECONDS);
+    }
+
+    @Provides
+    @Singleton
+    protected ConnectionTimingService provideConnectionTimingService() {
+        return new ConnectionTimingService();
+    }
+
+    @Provides
+    @Singleton
+    protected AccountingService provideAccountingService(Context context) {
+        return new AccountingService(new File(context.getFilesDir(), "accounting"), Executors.newSingleThreadExecutor());
+    }
+
+    @Provides
+    @Singleton
+    protected ConnectionEventBus provideConnectionEventBus() {
+        return new ConnectionEventBus(new Handler(Looper.getMainLooper()));
     }
 
     @Provides
     @Singleton
     protected HistoryService provideHistoryService(PreferencesService preferencesService) {
-        return new HistoryService(preferencesService);
+        return new HistoryService(preferencesService, new Handler(Looper.getMainLooper()), AsyncTask.THREAD_POOL_EXECUTOR);
     }
 }
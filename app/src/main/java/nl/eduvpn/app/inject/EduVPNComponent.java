@@ -24,6 +24,7 @@ import nl.eduvpn.app.fragment.CustomProviderFragment;
 import nl.eduvpn.app.fragment.HomeFragment;
 import nl.eduvpn.app.fragment.ProviderSelectionFragment;
 import nl.eduvpn.app.fragment.SettingsFragment;
+import nl.eduvpn.app.service.HistoryService;
 
 import javax.inject.Singleton;
 
@@ -59,4 +60,6 @@ public interface EduVPNComponent {
     void inject(HomeFragment homeFragment);
 
     void inject(SettingsFragment settingsFragment);
+
+    HistoryService historyService();
 }
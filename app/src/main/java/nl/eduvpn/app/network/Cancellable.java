@@ -0,0 +1,37 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+/**
+ * Handle of a request which can be cancelled.
+ */
+public interface Cancellable {
+
+    /**
+     * Cancels the request. The callback of the request will not be called anymore, and the connection is closed if it
+     * was already open. Has no effect if the request has already finished.
+     */
+    void cancel();
+
+    /**
+     * Returns if the request has finished, either because the callback was called or because it was cancelled.
+     *
+     * @return True if the request is not running anymore.
+     */
+    boolean isFinished();
+}
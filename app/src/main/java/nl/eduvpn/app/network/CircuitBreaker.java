@@ -0,0 +1,176 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import nl.eduvpn.app.utils.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the health of each host. After a number of consecutive failures the circuit of the host is opened,
+ * and requests to it fail right away instead of waiting for the timeouts. After a while a single request is let
+ * through again as a probe; its success closes the circuit, its failure opens it again. The other requests keep on
+ * failing right away while the probe is running.
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = CircuitBreaker.class.getName();
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+
+    /**
+     * Thrown instead of making a request to a host which has an open circuit.
+     */
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String host) {
+            super("Server " + host + " is temporarily unavailable.");
+        }
+    }
+
+    private static class HostState {
+        int consecutiveFailures;
+        long openedAt;
+        boolean isOpen;
+        boolean isProbing;
+        long probeStartedAt;
+    }
+
+    private final int _failureThreshold;
+    private final long _openDurationMs;
+
+    // Guarded by itself.
+    private final Map<String, HostState> _hostStates = new HashMap<>();
+
+    /**
+     * Constructor with the default settings.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param failureThreshold The amount of consecutive failures which opens the circuit.
+     * @param openDurationMs   The time after which requests are let through again.
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMs) {
+        _failureThreshold = failureThreshold;
+        _openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Checks if a request can be made to a host.
+     *
+     * @param host The host of the request.
+     * @throws CircuitOpenException Thrown if the circuit of the host is open.
+     */
+    public void checkRequestAllowed(@NonNull String host) throws CircuitOpenException {
+        synchronized (_hostStates) {
+            HostState state = _hostStates.get(host);
+            if (!_isRequestAllowed(state)) {
+                throw new CircuitOpenException(host);
+            }
+            if (state != null && state.isOpen) {
+                // This request is the probe, the others have to wait for its outcome.
+                state.isProbing = true;
+                state.probeStartedAt = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /**
+     * Returns if a request can be made to a host. Unlike {@link #checkRequestAllowed(String)}, this does not start a
+     * probe if the circuit is half-open.
+     *
+     * @param host The host of the request.
+     * @return False if the circuit of the host is open, or if a probe request is already running.
+     */
+    public boolean isRequestAllowed(@NonNull String host) {
+        synchronized (_hostStates) {
+            return _isRequestAllowed(_hostStates.get(host));
+        }
+    }
+
+    private boolean _isRequestAllowed(HostState state) {
+        if (state == null || !state.isOpen) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - state.openedAt < _openDurationMs) {
+            return false;
+        }
+        // After the open duration, a single request is let through to find out if the host has recovered.
+        // If the probe never reports back, for example because it was cancelled, a new one is allowed after a while.
+        return !state.isProbing || now - state.probeStartedAt >= _openDurationMs;
+    }
+
+    /**
+     * Records that a host responded. Closes its circuit.
+     *
+     * @param host The host of the request.
+     */
+    public void recordSuccess(@NonNull String host) {
+        synchronized (_hostStates) {
+            HostState state = _hostStates.remove(host);
+            if (state != null && state.isOpen) {
+                Log.i(TAG, "Host " + host + " has recovered, closing circuit.");
+            }
+        }
+    }
+
+    /**
+     * Records that a host could not be reached or had an internal error.
+     *
+     * @param host The host of the request.
+     */
+    public void recordFailure(@NonNull String host) {
+        synchronized (_hostStates) {
+            HostState state = _hostStates.get(host);
+            if (state == null) {
+                state = new HostState();
+                _hostStates.put(host, state);
+            }
+            state.consecutiveFailures++;
+            state.isProbing = false;
+            if (state.isOpen || state.consecutiveFailures >= _failureThreshold) {
+                if (!state.isOpen) {
+                    Log.w(TAG, "Host " + host + " failed " + state.consecutiveFailures + " times, opening circuit.");
+                }
+                state.isOpen = true;
+                state.openedAt = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /**
+     * Returns if the circuit of a host is currently open.
+     *
+     * @param host The host.
+     * @return True if the requests to the host fail right away.
+     */
+    public boolean isOpen(@NonNull String host) {
+        return !isRequestAllowed(host);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes compressed response bodies while they are being read.
+ * <p/>
+ * Once the Accept-Encoding header is set explicitly, HttpURLConnection does not decompress the response anymore, so
+ * the bodies have to be decoded by us.
+ */
+public final class ContentDecoder {
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+    private static final String ENCODING_IDENTITY = "identity";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private ContentDecoder() {
+        // Utility class.
+    }
+
+    /**
+     * Wraps a response body in a stream which decompresses it.
+     *
+     * @param inputStream     The raw response body.
+     * @param contentEncoding The value of the Content-Encoding header. Can be null.
+     * @return The stream of the decoded body. Close it when done, that frees the native memory of the decompressor.
+     * @throws IOException Thrown if the encoding is not supported, or if the gzip header could not be read.
+     */
+    public static InputStream decode(@NonNull InputStream inputStream, @Nullable String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return inputStream;
+        }
+        String encoding = contentEncoding.trim().toLowerCase(Locale.US);
+        if (encoding.isEmpty() || ENCODING_IDENTITY.equals(encoding)) {
+            return inputStream;
+        } else if (ENCODING_GZIP.equals(encoding)) {
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        } else if (ENCODING_DEFLATE.equals(encoding)) {
+            return _inflate(inputStream);
+        } else {
+            throw new IOException("Unsupported content encoding: " + contentEncoding);
+        }
+    }
+
+    /**
+     * Deflate should be wrapped in a zlib header, but some servers send the raw deflate data.
+     * The first two bytes tell which one it is.
+     */
+    private static InputStream _inflate(@NonNull InputStream inputStream) throws IOException {
+        PushbackInputStream pushbackStream = new PushbackInputStream(inputStream, 2);
+        byte[] header = new byte[2];
+        int headerLength = 0;
+        while (headerLength < header.length) {
+            int bytesRead = pushbackStream.read(header, headerLength, header.length - headerLength);
+            if (bytesRead == -1) {
+                break;
+            }
+            headerLength += bytesRead;
+        }
+        if (headerLength > 0) {
+            pushbackStream.unread(header, 0, headerLength);
+        }
+        boolean isZlib = false;
+        if (headerLength == 2) {
+            int cmf = header[0] & 0xFF;
+            int flg = header[1] & 0xFF;
+            isZlib = (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        }
+        final Inflater inflater = new Inflater(!isZlib);
+        return new InflaterInputStream(pushbackStream, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                // The stream only ends the inflaters it created itself.
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,708 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import nl.eduvpn.app.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache for HTTP responses, which stores the validators of the response next to the body.
+ * <p/>
+ * Entries which are still fresh according to their Cache-Control or Expires header are served without touching the
+ * network. Stale entries are revalidated with If-None-Match and If-Modified-Since, so an unchanged resource costs a
+ * 304 without a body. The total size of the cache is capped, the least recently used entries are evicted first.
+ * <p/>
+ * Every entry consists of two files: a metadata file with the validators, and a file with the response body.
+ * The metadata file is written last, so an entry without one is incomplete and is ignored.
+ */
+public class HttpCache {
+
+    private static final String TAG = HttpCache.class.getName();
+
+    public static final long DEFAULT_MAX_SIZE_BYTES = 5 * 1024 * 1024L; // 5 MiB
+
+    private static final int META_FORMAT_VERSION = 1;
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int COPY_BLOCK_SIZE = 4 * 1024;
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_AGE = "Age";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String DIRECTIVE_NO_STORE = "no-store";
+    private static final String DIRECTIVE_NO_CACHE = "no-cache";
+    private static final String DIRECTIVE_MAX_AGE = "max-age";
+
+    /**
+     * A response stored in the cache.
+     */
+    public static class Entry {
+        private final String _key;
+        private final String _url;
+        private final String _eTag;
+        private final String _lastModified;
+        private final long _expiresAt;
+        private final long _size;
+
+        Entry(String key, String url, String eTag, String lastModified, long expiresAt, long size) {
+            _key = key;
+            _url = url;
+            _eTag = eTag;
+            _lastModified = lastModified;
+            _expiresAt = expiresAt;
+            _size = size;
+        }
+
+        public String getUrl() {
+            return _url;
+        }
+
+        @Nullable
+        public String getETag() {
+            return _eTag;
+        }
+
+        @Nullable
+        public String getLastModified() {
+            return _lastModified;
+        }
+
+        /**
+         * Returns if the entry can be used without revalidating it with the server.
+         *
+         * @return True if the entry is still fresh.
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < _expiresAt;
+        }
+
+        /**
+         * Returns the size of the entry on the disk.
+         *
+         * @return The size of the body and the metadata in bytes.
+         */
+        public long getSize() {
+            return _size;
+        }
+    }
+
+    private final File _directory;
+    private final long _maxSizeBytes;
+
+    // Ordered from the least recently used to the most recently used entry.
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _totalSize = 0;
+    private boolean _isInitialized = false;
+
+    private final AtomicInteger _hitCount = new AtomicInteger();
+    private final AtomicInteger _revalidatedCount = new AtomicInteger();
+    private final AtomicInteger _missCount = new AtomicInteger();
+    private final AtomicLong _bytesSaved = new AtomicLong();
+
+    /**
+     * Constructor. Does not touch the disk, the existing entries are read on the first use.
+     *
+     * @param directory    The directory to store the entries in. Should not be used for anything else.
+     * @param maxSizeBytes The maximum size of all entries together.
+     */
+    public HttpCache(@NonNull File directory, long maxSizeBytes) {
+        _directory = directory;
+        _maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Creates the cache key of a request.
+     * Responses of authenticated requests depend on the user, so the credentials are part of the key.
+     * The key is hashed, so the credentials are never written to the disk.
+     *
+     * @param url         The URL of the request.
+     * @param accessToken The access token of the request, or null if it was not authenticated.
+     * @return The key of the cache entry.
+     */
+    @NonNull
+    public static String createKey(@NonNull String url, @Nullable String accessToken) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(url.getBytes("UTF-8"));
+            if (accessToken != null) {
+                digest.update((byte)0);
+                digest.update(accessToken.getBytes("UTF-8"));
+            }
+            byte[] hash = digest.digest();
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(String.format(Locale.US, "%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            // Both SHA-1 and UTF-8 are always available.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns a cached response.
+     *
+     * @param key The key of the entry, see {@link #createKey(String, String)}.
+     * @return The entry, or null if it is not in the cache.
+     */
+    @Nullable
+    public synchronized Entry get(@NonNull String key) {
+        _initializeIfNeeded();
+        Entry entry = _entries.get(key);
+        if (entry != null) {
+            // Keep the order of use across restarts.
+            //noinspection ResultOfMethodCallIgnored
+            _getMetaFile(key).setLastModified(System.currentTimeMillis());
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the validators of a cached response to a request, so the server can answer with a 304 if it did not change.
+     *
+     * @param connection The connection which is not connected yet.
+     * @param entry      The cached response.
+     */
+    public static void addValidators(@NonNull HttpURLConnection connection, @NonNull Entry entry) {
+        if (entry.getETag() != null) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, entry.getETag());
+        }
+        if (entry.getLastModified() != null) {
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, entry.getLastModified());
+        }
+    }
+
+    /**
+     * Opens the body of a cached response. Also counts the bytes served from the cache instead of the network.
+     *
+     * @param entry     The cached response.
+     * @param fromFresh True if the entry was used without revalidation, false if the server answered with a 304.
+     * @return The body of the response. Should be closed after reading.
+     * @throws IOException Thrown if the entry was evicted or could not be read.
+     */
+    @NonNull
+    public InputStream openBody(@NonNull Entry entry, boolean fromFresh) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(_getBodyFile(entry._key)));
+        if (fromFresh) {
+            _hitCount.incrementAndGet();
+        } else {
+            _revalidatedCount.incrementAndGet();
+        }
+        _bytesSaved.addAndGet(_getBodyFile(entry._key).length());
+        return inputStream;
+    }
+
+    /**
+     * Updates the expiry of an entry after the server confirmed with a 304 that it did not change.
+     *
+     * @param entry      The cached response.
+     * @param connection The connection which returned the 304.
+     */
+    public synchronized void updateFreshness(@NonNull Entry entry, @NonNull HttpURLConnection connection) {
+        long expiresAt = _getExpiresAt(connection);
+        if (expiresAt <= entry._expiresAt || _entries.get(entry._key) != entry) {
+            return;
+        }
+        Entry updated = new Entry(entry._key, entry._url, entry._eTag, entry._lastModified, expiresAt, entry._size);
+        try {
+            _writeMeta(_getMetaFile(entry._key), updated);
+            _entries.put(entry._key, updated);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to update cache entry for " + entry._url, ex);
+        }
+    }
+
+    /**
+     * Starts storing a response in the cache. The returned stream should be used to read the response body,
+     * everything read from it is written to the cache as well. The entry is only stored when the writer is committed.
+     *
+     * @param key        The key of the entry.
+     * @param url        The URL of the request.
+     * @param connection The connection with a successful response.
+     * @return The writer for the entry, or null if the response should not be cached.
+     */
+    @Nullable
+    public Writer startWriting(@NonNull String key, @NonNull String url, @NonNull HttpURLConnection connection) {
+        if (_parseCacheControl(connection.getHeaderField(HEADER_CACHE_CONTROL)).containsKey(DIRECTIVE_NO_STORE)) {
+            return null;
+        }
+        String eTag = connection.getHeaderField(HEADER_ETAG);
+        String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+        long expiresAt = _getExpiresAt(connection);
+        if (eTag == null && lastModified == null && expiresAt <= System.currentTimeMillis()) {
+            // Could neither be revalidated nor used without revalidation.
+            return null;
+        }
+        synchronized (this) {
+            _initializeIfNeeded();
+        }
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            Log.w(TAG, "Unable to create cache directory: " + _directory);
+            return null;
+        }
+        return new Writer(key, url, eTag, lastModified, expiresAt);
+    }
+
+    /**
+     * Removes an entry from the cache, for example because its body could not be parsed.
+     *
+     * @param key The key of the entry.
+     */
+    public synchronized void remove(@NonNull String key) {
+        _initializeIfNeeded();
+        Entry entry = _entries.remove(key);
+        if (entry != null) {
+            _totalSize -= entry._size;
+        }
+        _deleteFiles(key);
+    }
+
+    /**
+     * Returns the amount of requests served from a fresh entry, without any network traffic.
+     */
+    public int getHitCount() {
+        return _hitCount.get();
+    }
+
+    /**
+     * Returns the amount of requests where the server confirmed the cached entry with a 304.
+     */
+    public int getRevalidatedCount() {
+        return _revalidatedCount.get();
+    }
+
+    /**
+     * Returns the amount of requests where the full response body had to be downloaded.
+     */
+    public int getMissCount() {
+        return _missCount.get();
+    }
+
+    /**
+     * Returns the amount of body bytes served from the cache instead of the network.
+     */
+    public long getBytesSaved() {
+        return _bytesSaved.get();
+    }
+
+    /**
+     * Counts a response which had to be downloaded in full.
+     */
+    public void recordMiss() {
+        _missCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the total size of the entries currently in the cache.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getSize() {
+        _initializeIfNeeded();
+        return _totalSize;
+    }
+
+    /**
+     * Writes a response to the cache while it is being read by the caller.
+     */
+    public class Writer {
+
+        private final String _key;
+        private final String _url;
+        private final String _eTag;
+        private final String _lastModified;
+        private final long _expiresAt;
+        private final File _tempBodyFile;
+        private OutputStream _bodyOutputStream;
+        private InputStream _teeInputStream;
+
+        Writer(String key, String url, String eTag, String lastModified, long expiresAt) {
+            _key = key;
+            _url = url;
+            _eTag = eTag;
+            _lastModified = lastModified;
+            _expiresAt = expiresAt;
+            _tempBodyFile = new File(_directory, key + BODY_SUFFIX + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        }
+
+        /**
+         * Wraps the response body, so everything read from it is also written to the cache.
+         *
+         * @param inputStream The response body.
+         * @return The stream which should be read instead of the response body.
+         * @throws IOException Thrown if the cache file could not be created.
+         */
+        @NonNull
+        public InputStream wrap(@NonNull InputStream inputStream) throws IOException {
+            _bodyOutputStream = new BufferedOutputStream(new FileOutputStream(_tempBodyFile));
+            _teeInputStream = new TeeInputStream(inputStream, _bodyOutputStream);
+            return _teeInputStream;
+        }
+
+        /**
+         * Reads the rest of the body, and stores the entry in the cache.
+         * Should only be called if the whole response was read and parsed successfully.
+         */
+        public void commit() {
+            try {
+                byte[] buffer = new byte[COPY_BLOCK_SIZE];
+                //noinspection StatementWithEmptyBody
+                while (_teeInputStream.read(buffer) != -1) {
+                    // The parser might not read until the end of the stream, but the cache needs the whole body.
+                }
+                _bodyOutputStream.close();
+                synchronized (HttpCache.this) {
+                    File metaFile = _getMetaFile(_key);
+                    File tempMetaFile = new File(_directory, _key + META_SUFFIX + TEMP_SUFFIX);
+                    long size = _tempBodyFile.length();
+                    Entry entry = new Entry(_key, _url, _eTag, _lastModified, _expiresAt, size);
+                    _writeMeta(tempMetaFile, entry);
+                    size += tempMetaFile.length();
+                    entry = new Entry(_key, _url, _eTag, _lastModified, _expiresAt, size);
+                    Entry previous = _entries.remove(_key);
+                    if (previous != null) {
+                        _totalSize -= previous._size;
+                    }
+                    if (!_tempBodyFile.renameTo(_getBodyFile(_key)) || !tempMetaFile.renameTo(metaFile)) {
+                        _deleteFiles(_key);
+                        //noinspection ResultOfMethodCallIgnored
+                        tempMetaFile.delete();
+                        throw new IOException("Unable to move cache entry in place.");
+                    }
+                    _entries.put(_key, entry);
+                    _totalSize += size;
+                    _trimToSize();
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to store " + _url + " in the cache.", ex);
+                abort();
+            }
+        }
+
+        /**
+         * Discards the entry, for example because the response could not be parsed.
+         */
+        public void abort() {
+            if (_bodyOutputStream != null) {
+                try {
+                    _bodyOutputStream.close();
+                } catch (IOException ex) {
+                    // Ignore, the file is deleted anyway.
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            _tempBodyFile.delete();
+        }
+    }
+
+    /**
+     * Input stream which copies every byte read to an output stream.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream _outputStream;
+
+        TeeInputStream(InputStream inputStream, OutputStream outputStream) {
+            super(inputStream);
+            _outputStream = outputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                _outputStream.write(result);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result > 0) {
+                _outputStream.write(buffer, offset, result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes have to end up in the cache as well.
+            byte[] buffer = new byte[(int)Math.min(count, COPY_BLOCK_SIZE)];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = read(buffer, 0, (int)Math.min(buffer.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Calculates until when a response can be used without revalidation.
+     *
+     * @param connection The connection with the response.
+     * @return The time in milliseconds since the epoch until the response is fresh. 0 if it should always be revalidated.
+     */
+    private static long _getExpiresAt(@NonNull HttpURLConnection connection) {
+        return _getExpiresAt(connection.getHeaderField(HEADER_CACHE_CONTROL), connection.getHeaderField(HEADER_AGE),
+                connection.getExpiration(), System.currentTimeMillis());
+    }
+
+    /**
+     * Calculates until when a response can be used without revalidation.
+     * All directives are taken into account, so no-store and no-cache win over max-age regardless of their order.
+     * The time the response already spent in other caches, according to the Age header, is subtracted from max-age.
+     *
+     * @param cacheControl The value of the Cache-Control header. Can be null.
+     * @param age          The value of the Age header. Can be null.
+     * @param expiration   The value of the Expires header in milliseconds since the epoch, 0 if there was none.
+     * @param now          The current time in milliseconds since the epoch.
+     * @return The time in milliseconds since the epoch until the response is fresh. 0 if it should always be revalidated.
+     */
+    static long _getExpiresAt(@Nullable String cacheControl, @Nullable String age, long expiration, long now) {
+        Map<String, String> directives = _parseCacheControl(cacheControl);
+        if (directives.containsKey(DIRECTIVE_NO_STORE) || directives.containsKey(DIRECTIVE_NO_CACHE)) {
+            return 0;
+        }
+        if (directives.containsKey(DIRECTIVE_MAX_AGE)) {
+            long maxAgeSeconds = _parseSeconds(directives.get(DIRECTIVE_MAX_AGE));
+            if (maxAgeSeconds < 0) {
+                // An invalid max-age means that the response is stale.
+                return 0;
+            }
+            long freshnessMs = (maxAgeSeconds - Math.max(0, _parseSeconds(age))) * 1000L;
+            return freshnessMs > 0 ? now + freshnessMs : 0;
+        }
+        return expiration;
+    }
+
+    /**
+     * Parses the directives of a Cache-Control header.
+     * The directive names are lowercase, and quotes are removed from the values. If a directive appears more than
+     * once, its first value is kept.
+     *
+     * @param cacheControl The value of the header. Can be null.
+     * @return The directives mapped to their values. The value is null if the directive has none.
+     */
+    @NonNull
+    private static Map<String, String> _parseCacheControl(@Nullable String cacheControl) {
+        Map<String, String> directives = new HashMap<>();
+        if (cacheControl == null) {
+            return directives;
+        }
+        for (String directive : cacheControl.split(",")) {
+            String name = directive;
+            String value = null;
+            int separatorIndex = directive.indexOf('=');
+            if (separatorIndex >= 0) {
+                name = directive.substring(0, separatorIndex);
+                value = directive.substring(separatorIndex + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+            }
+            name = name.trim().toLowerCase(Locale.US);
+            if (!name.isEmpty() && !directives.containsKey(name)) {
+                directives.put(name, value);
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Parses an amount of seconds in a header value.
+     *
+     * @param value The value to parse. Can be null.
+     * @return The amount of seconds, or -1 if the value is missing or not a valid amount.
+     */
+    private static long _parseSeconds(@Nullable String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : seconds;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the entries already on the disk. Incomplete entries and leftover temporary files are deleted.
+     */
+    private void _initializeIfNeeded() {
+        if (_isInitialized) {
+            return;
+        }
+        _isInitialized = true;
+        File[] files = _directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> metaFiles = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(META_SUFFIX)) {
+                metaFiles.add(file);
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        // The metadata file is touched on every use, so its modification date gives the order of use.
+        Collections.sort(metaFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File metaFile : metaFiles) {
+            String key = metaFile.getName().substring(0, metaFile.getName().length() - META_SUFFIX.length());
+            File bodyFile = _getBodyFile(key);
+            Entry entry = bodyFile.isFile() ? _readMeta(key, metaFile, bodyFile.length() + metaFile.length()) : null;
+            if (entry == null) {
+                _deleteFiles(key);
+            } else {
+                _entries.put(key, entry);
+                _totalSize += entry._size;
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(BODY_SUFFIX) && !_entries.containsKey(name.substring(0, name.length() - BODY_SUFFIX.length()))) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        _trimToSize();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits in its maximum size.
+     */
+    private void _trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = _entries.entrySet().iterator();
+        while (_totalSize > _maxSizeBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            _totalSize -= eldest._size;
+            _deleteFiles(eldest._key);
+            Log.d(TAG, "Evicted " + eldest._url + " from the cache.");
+        }
+    }
+
+    private File _getMetaFile(String key) {
+        return new File(_directory, key + META_SUFFIX);
+    }
+
+    private File _getBodyFile(String key) {
+        return new File(_directory, key + BODY_SUFFIX);
+    }
+
+    private void _deleteFiles(String key) {
+        //noinspection ResultOfMethodCallIgnored
+        _getMetaFile(key).delete();
+        //noinspection ResultOfMethodCallIgnored
+        _getBodyFile(key).delete();
+    }
+
+    private static void _writeMeta(File file, Entry entry) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            outputStream.writeInt(META_FORMAT_VERSION);
+            outputStream.writeUTF(entry._url);
+            outputStream.writeUTF(entry._eTag == null ? "" : entry._eTag);
+            outputStream.writeUTF(entry._lastModified == null ? "" : entry._lastModified);
+            outputStream.writeLong(entry._expiresAt);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Nullable
+    private static Entry _readMeta(String key, File file, long size) {
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (inputStream.readInt() != META_FORMAT_VERSION) {
+                return null;
+            }
+            String url = inputStream.readUTF();
+            String eTag = inputStream.readUTF();
+            String lastModified = inputStream.readUTF();
+            long expiresAt = inputStream.readLong();
+            return new Entry(key, url, eTag.isEmpty() ? null : eTag, lastModified.isEmpty() ? null : lastModified, expiresAt, size);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to read cache entry " + file.getName(), ex);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ex) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+}
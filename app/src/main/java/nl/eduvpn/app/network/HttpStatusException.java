@@ -0,0 +1,46 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import java.io.IOException;
+
+/**
+ * Thrown if the server responded with an unsuccessful status code.
+ */
+public class HttpStatusException extends IOException {
+
+    private final int _statusCode;
+
+    public HttpStatusException(int statusCode, String message) {
+        super(message);
+        _statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+    /**
+     * Returns if the status code means that the server had a problem, instead of the request being wrong.
+     *
+     * @return True for the 5xx status codes.
+     */
+    public boolean isServerError() {
+        return _statusCode >= 500 && _statusCode <= 599;
+    }
+}
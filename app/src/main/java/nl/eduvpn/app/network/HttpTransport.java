@@ -0,0 +1,49 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The transport layer used by the API service to open HTTP connections.
+ * Implementations decide how sockets and TLS sessions are managed.
+ */
+public interface HttpTransport {
+
+    /**
+     * Opens a new connection to the given URL. The connection is not connected yet.
+     *
+     * @param url The URL to open the connection to.
+     * @return The connection which can be configured and connected by the caller.
+     * @throws IOException Thrown if the connection could not be created.
+     */
+    @NonNull
+    HttpURLConnection openConnection(@NonNull URL url) throws IOException;
+
+    /**
+     * Releases a connection after the caller has finished with it.
+     * Implementations which keep connections alive should make sure that the socket can be reused afterwards.
+     *
+     * @param connection The connection to release.
+     */
+    void release(@NonNull HttpURLConnection connection);
+}
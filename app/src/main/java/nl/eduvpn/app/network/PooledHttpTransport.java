@@ -0,0 +1,265 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import nl.eduvpn.app.utils.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP transport which keeps connections alive and reuses them for subsequent requests to the same host.
+ * <p/>
+ * The platform HTTP stack pools connections per host, but only if every connection uses the same socket factory
+ * and hostname verifier, and if the response body is fully consumed before the stream is closed. This transport makes
+ * sure both conditions are met, and shares one TLS session cache between all connections, so even new sockets can
+ * resume a previous session instead of doing a full handshake.
+ * <p/>
+ * The pool limits are read by the platform when the first connection is made, so this transport should be created
+ * before any HTTP request is executed.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private static final String TAG = PooledHttpTransport.class.getName();
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+    public static final long DEFAULT_IDLE_EVICTION_MS = 5 * 60 * 1000L; // 5 minutes
+
+    private static final int TLS_SESSION_CACHE_SIZE = 32;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 3600; // 1 day
+    private static final int DRAIN_BLOCK_SIZE = 4 * 1024;
+
+    private final CountingSocketFactory _socketFactory;
+    private final HostnameVerifier _hostnameVerifier;
+
+    /**
+     * Constructor with the default pool settings and the default TLS configuration.
+     */
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST, DEFAULT_IDLE_EVICTION_MS, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdleConnectionsPerHost The maximum amount of idle connections kept alive for a single host.
+     * @param idleEvictionMs            The time after which an idle connection is closed.
+     * @param sslContext                The SSL context to create the TLS sockets with. Use null for the platform default.
+     */
+    public PooledHttpTransport(int maxIdleConnectionsPerHost, long idleEvictionMs, @Nullable SSLContext sslContext) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnectionsPerHost));
+        System.setProperty("http.keepAliveDuration", String.valueOf(idleEvictionMs));
+        SSLSocketFactory delegate;
+        if (sslContext == null) {
+            sslContext = _createDefaultSSLContext();
+        }
+        if (sslContext != null) {
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            }
+            delegate = sslContext.getSocketFactory();
+        } else {
+            delegate = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        _socketFactory = new CountingSocketFactory(delegate);
+        _hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+    }
+
+    /**
+     * Creates a new SSL context with the default key and trust managers.
+     *
+     * @return The SSL context, or null if it could not be created.
+     */
+    @Nullable
+    private static SSLContext _createDefaultSSLContext() {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            return sslContext;
+        } catch (GeneralSecurityException ex) {
+            Log.e(TAG, "Unable to create SSL context, falling back to the default socket factory.", ex);
+            return null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public HttpURLConnection openConnection(@NonNull URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            // The platform only reuses pooled connections which were created with the same factory and verifier.
+            HttpsURLConnection httpsConnection = (HttpsURLConnection)connection;
+            httpsConnection.setSSLSocketFactory(_socketFactory);
+            httpsConnection.setHostnameVerifier(_hostnameVerifier);
+        }
+        return connection;
+    }
+
+    @Override
+    public void release(@NonNull HttpURLConnection connection) {
+        // Do not call disconnect() here, that would close the socket instead of returning it to the pool.
+        InputStream inputStream;
+        try {
+            try {
+                inputStream = connection.getInputStream();
+            } catch (IOException ex) {
+                inputStream = connection.getErrorStream();
+            }
+        } catch (IllegalStateException ex) {
+            // Thrown by some platform versions if the connection was disconnected meanwhile.
+            Log.d(TAG, "Connection was already closed, it will not be reused: " + ex.getMessage());
+            return;
+        }
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            // A connection can only be reused if the body was read until the end.
+            byte[] buffer = new byte[DRAIN_BLOCK_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (inputStream.read(buffer) != -1) {
+                // Discard the remaining content.
+            }
+        } catch (IOException | IllegalStateException ex) {
+            Log.d(TAG, "Unable to drain response body, connection will not be reused: " + ex.getMessage());
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException ex) {
+                // Ignore, the connection is discarded anyway.
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of TLS sockets opened by this transport.
+     *
+     * @return The amount of sockets created since this transport was instantiated.
+     */
+    public int getSocketCount() {
+        return _socketFactory.getSocketCount();
+    }
+
+    /**
+     * Returns the amount of TLS handshakes completed on the sockets of this transport.
+     *
+     * @return The amount of handshakes since this transport was instantiated.
+     */
+    public int getHandshakeCount() {
+        return _socketFactory.getHandshakeCount();
+    }
+
+    /**
+     * Socket factory which counts the created sockets and the completed handshakes.
+     * The sockets themselves are returned unwrapped, so the platform can still apply its own TLS extensions on them.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory _delegate;
+        private final AtomicInteger _socketCount = new AtomicInteger();
+        private final AtomicInteger _handshakeCount = new AtomicInteger();
+
+        private final HandshakeCompletedListener _handshakeListener = new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                _handshakeCount.incrementAndGet();
+            }
+        };
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            _delegate = delegate;
+        }
+
+        int getSocketCount() {
+            return _socketCount.get();
+        }
+
+        int getHandshakeCount() {
+            return _handshakeCount.get();
+        }
+
+        private Socket _track(Socket socket) {
+            _socketCount.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket)socket).addHandshakeCompletedListener(_handshakeListener);
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return _delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return _delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return _track(_delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return _track(_delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return _track(_delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return _track(_delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return _track(_delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return _track(_delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import nl.eduvpn.app.utils.Log;
+import nl.eduvpn.app.utils.TTLCache;
+
+/**
+ * Measures the round trip time to the remotes of a VPN profile, so the fastest one can be tried first.
+ * <p/>
+ * The round trip time is the duration of a TCP handshake with the host and port of the remote. For a UDP remote, a
+ * connection refused by the host also counts as a round trip, because the host has answered, and the TCP port is
+ * usually closed. For a TCP remote a refused connection means the server is not running, so it is unreachable. Any
+ * other error, like a timeout or an unreachable network, makes the remote unreachable as well.
+ * <p/>
+ * All remotes are probed in parallel, and the results are delivered when all of them are done, or when the deadline
+ * has passed. The round trip times are cached for a while, so a reconnect does not have to wait for the probes again.
+ * Failures are not cached, a remote which was down is probed again the next time.
+ */
+public class RemoteProber {
+
+    private static final String TAG = RemoteProber.class.getName();
+
+    public static final int DEFAULT_DEADLINE_MS = 1500;
+    public static final long DEFAULT_CACHE_TTL_SECONDS = 5 * 60;
+
+    private static final String PROTOCOL_TCP = "tcp";
+    private static final String PROTOCOL_UDP = "udp";
+
+    /**
+     * Result of a probe which could not reach the host.
+     */
+    public static final long UNREACHABLE = -1;
+
+    public interface Callback {
+        /**
+         * Called on the thread of the handler when the probes are done, or the deadline has passed.
+         *
+         * @param roundTripTimes The round trip times in milliseconds by the key of the remote, as created by
+         *                       {@link #createKey(String, int, boolean)}. {@link #UNREACHABLE} if the remote could not be
+         *                       reached. Remotes which did not finish before the deadline are missing.
+         */
+        void onProbed(@NonNull Map<String, Long> roundTripTimes);
+    }
+
+    private final ExecutorService _executorService;
+    private final Handler _handler;
+    private final int _deadlineMs;
+    private final TTLCache<Long> _cache;
+
+    /**
+     * Constructor.
+     *
+     * @param executorService The executor to run the probes on. Should be able to run multiple probes in parallel.
+     * @param handler         The handler to call the callbacks on.
+     * @param deadlineMs      The maximum time to wait for the probes.
+     * @param cacheTtlSeconds The number of seconds the results are reused for.
+     */
+    public RemoteProber(@NonNull ExecutorService executorService, @NonNull Handler handler, int deadlineMs, long cacheTtlSeconds) {
+        _executorService = executorService;
+        _handler = handler;
+        _deadlineMs = deadlineMs;
+        _cache = new TTLCache<>(cacheTtlSeconds);
+    }
+
+    /**
+     * Creates the key of a remote, which identifies its result.
+     *
+     * @param host  The host name or the IP address of the remote.
+     * @param port  The port of the remote.
+     * @param isUdp True if the remote uses UDP, false if it uses TCP.
+     * @return The key of the remote.
+     */
+    @NonNull
+    public static String createKey(@NonNull String host, int port, boolean isUdp) {
+        return (isUdp ? PROTOCOL_UDP : PROTOCOL_TCP) + ":" + host.toLowerCase(Locale.US) + ":" + port;
+    }
+
+    /**
+     * Compares two round trip times. The reachable remotes come first, the fastest one in front. These are followed
+     * by the remotes without a result, then the unreachable ones.
+     *
+     * @param lhs The first round trip time, null if there is no result.
+     * @param rhs The second round trip time, null if there is no result.
+     * @return Negative if the first remote should be tried first, positive if the second, zero if it does not matter.
+     */
+    public static int compare(@Nullable Long lhs, @Nullable Long rhs) {
+        long lhsRank = _getRank(lhs);
+        long rhsRank = _getRank(rhs);
+        return lhsRank < rhsRank ? -1 : (lhsRank == rhsRank ? 0 : 1);
+    }
+
+    /**
+     * Probes the remotes. The cached results are used for the remotes which were probed recently.
+     * Should be called on the thread of the handler.
+     *
+     * @param keys     The keys of the remotes, created by {@link #createKey(String, int, boolean)}.
+     * @param callback The callback which receives the results.
+     * @return The handle which can cancel the probes.
+     */
+    @NonNull
+    public Cancellable probe(@NonNull List<String> keys, @NonNull Callback callback) {
+        Probe probe = new Probe(new LinkedHashSet<>(keys), callback);
+        probe.start();
+        return probe;
+    }
+
+    private static long _getRank(@Nullable Long roundTripTime) {
+        if (roundTripTime == null) {
+            return Long.MAX_VALUE - 1;
+        } else if (roundTripTime == UNREACHABLE) {
+            return Long.MAX_VALUE;
+        }
+        return roundTripTime;
+    }
+
+    /**
+     * Measures the round trip time to a remote, blocking the current thread.
+     *
+     * @param key The key of the remote.
+     * @return The round trip time in milliseconds, or {@link #UNREACHABLE}.
+     */
+    private long _measure(@NonNull String key) {
+        int protocolSeparatorIndex = key.indexOf(':');
+        int portSeparatorIndex = key.lastIndexOf(':');
+        boolean isUdp = PROTOCOL_UDP.equals(key.substring(0, protocolSeparatorIndex));
+        String host = key.substring(protocolSeparatorIndex + 1, portSeparatorIndex);
+        int port = Integer.parseInt(key.substring(portSeparatorIndex + 1));
+        // Resolve the name first, only the handshake itself is measured.
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            return UNREACHABLE;
+        }
+        Socket socket = new Socket();
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            socket.connect(address, _deadlineMs);
+            return SystemClock.elapsedRealtime() - startTime;
+        } catch (ConnectException ex) {
+            if (isUdp && _isConnectionRefused(ex)) {
+                // The host has answered with a reset, which takes a round trip as well.
+                return SystemClock.elapsedRealtime() - startTime;
+            }
+            return UNREACHABLE;
+        } catch (IOException ex) {
+            return UNREACHABLE;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Returns if the connection was refused by the host. The other connect errors, like an unreachable host or network,
+     * are raised by the local network stack or a router, so they do not say anything about the round trip time.
+     *
+     * @param exception The exception thrown by the connect call.
+     * @return True if the host has answered with a reset.
+     */
+    private static boolean _isConnectionRefused(@NonNull ConnectException exception) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return _getErrno(exception) == OsConstants.ECONNREFUSED;
+        }
+        // The error number is not public on the older versions, only the message contains its name.
+        String message = exception.getMessage();
+        return message != null && message.contains("ECONNREFUSED");
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int _getErrno(@NonNull Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ErrnoException) {
+                return ((ErrnoException)cause).errno;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A single round of probes. All fields are only accessed on the thread of the handler.
+     */
+    private class Probe implements Cancellable {
+
+        private final Set<String> _keys;
+        private final Callback _callback;
+        private final Map<String, Long> _results = new HashMap<>();
+        private final List<Future<?>> _futures = new ArrayList<>();
+        private final Runnable _deadlineRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "Deadline reached with " + _results.size() + " of " + _keys.size() + " remotes probed.");
+                _finish();
+            }
+        };
+        private boolean _isFinished = false;
+
+        Probe(@NonNull Set<String> keys, @NonNull Callback callback) {
+            _keys = keys;
+            _callback = callback;
+        }
+
+        void start() {
+            _cache.purge();
+            for (final String key : _keys) {
+                Long cachedResult = _cache.get(key);
+                if (cachedResult != null) {
+                    _results.put(key, cachedResult);
+                    continue;
+                }
+                _futures.add(_executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long result = _measure(key);
+                        if (result != UNREACHABLE) {
+                            _cache.put(key, result);
+                        }
+                        _handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                _onResult(key, result);
+                            }
+                        });
+                    }
+                }));
+            }
+            if (_results.size() == _keys.size()) {
+                // Everything was cached, but the callback is still called asynchronously, like in the other cases.
+                _handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        _finish();
+                    }
+                });
+            } else {
+                _handler.postDelayed(_deadlineRunnable, _deadlineMs);
+            }
+        }
+
+        private void _onResult(@NonNull String key, long result) {
+            if (_isFinished) {
+                return;
+            }
+            _results.put(key, result);
+            if (_results.size() == _keys.size()) {
+                _finish();
+            }
+        }
+
+        private void _finish() {
+            if (_isFinished) {
+                return;
+            }
+            _isFinished = true;
+            _handler.removeCallbacks(_deadlineRunnable);
+            _callback.onProbed(Collections.unmodifiableMap(_results));
+        }
+
+        @Override
+        public void cancel() {
+            if (_isFinished) {
+                return;
+            }
+            _isFinished = true;
+            _handler.removeCallbacks(_deadlineRunnable);
+            for (Future<?> future : _futures) {
+                future.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return _isFinished;
+        }
+    }
+}
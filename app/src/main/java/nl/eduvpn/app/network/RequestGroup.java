@@ -0,0 +1,76 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Collects the requests made by a screen, so all of them can be cancelled at once when the screen is destroyed.
+ * Should be used from the main thread only.
+ */
+public class RequestGroup {
+
+    private final List<Cancellable> _requests = new ArrayList<>();
+
+    /**
+     * Adds a request to the group. The requests which have already finished are removed.
+     *
+     * @param request The request to add.
+     * @return The same request.
+     */
+    @NonNull
+    public Cancellable add(@NonNull Cancellable request) {
+        Iterator<Cancellable> iterator = _requests.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+        _requests.add(request);
+        return request;
+    }
+
+    /**
+     * Cancels all requests in the group which are still running.
+     */
+    public void cancelAll() {
+        for (Cancellable request : _requests) {
+            request.cancel();
+        }
+        _requests.clear();
+    }
+
+    /**
+     * Returns the amount of requests in the group which are still running.
+     *
+     * @return The amount of running requests.
+     */
+    public int getRunningCount() {
+        int result = 0;
+        for (Cancellable request : _requests) {
+            if (!request.isFinished()) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import nl.eduvpn.app.utils.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the network requests on a limited amount of threads.
+ * <p/>
+ * Requests are queued in one of three lanes. A request is only started when no request with a higher priority is
+ * waiting, so actions the user is waiting for go ahead of background refreshes. Each lane has a bounded queue, if it is
+ * full new requests are rejected instead of piling up. The amount of requests running against a single host is limited
+ * as well, so one slow provider can not occupy all the threads.
+ */
+public class RequestScheduler {
+
+    private static final String TAG = RequestScheduler.class.getName();
+
+    /**
+     * The priority lanes, from the highest to the lowest priority.
+     */
+    public enum Priority {
+        /**
+         * The user is actively waiting for the result, for example when connecting or downloading a profile.
+         */
+        USER_INITIATED,
+        /**
+         * Results which are displayed on the screen, but are not blocking the user.
+         */
+        DEFAULT,
+        /**
+         * Refreshes and polling which can wait.
+         */
+        BACKGROUND
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 4;
+    public static final int[] DEFAULT_QUEUE_CAPACITIES = { 16, 64, 32 };
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final int _maxConcurrentRequests;
+    private final int _maxConcurrentRequestsPerHost;
+    private final int[] _queueCapacities;
+    private final ThreadPoolExecutor _threadPool;
+
+    // All fields below are guarded by this.
+    private final ArrayDeque<Ticket>[] _queues;
+    private final Map<String, Integer> _runningPerHost = new HashMap<>();
+    private int _runningCount = 0;
+
+    private final int[] _peakQueueDepths;
+    private final long[] _totalWaitMs;
+    private final int[] _dispatchedCounts;
+    private final int[] _rejectedCounts;
+
+    /**
+     * Constructor with the default limits.
+     */
+    public RequestScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST, DEFAULT_QUEUE_CAPACITIES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxConcurrentRequests        The maximum amount of requests running at the same time.
+     * @param maxConcurrentRequestsPerHost The maximum amount of requests running against the same host at the same time.
+     * @param queueCapacities              The maximum amount of waiting requests for each priority, in the order of
+     *                                     {@link Priority#values()}.
+     */
+    @SuppressWarnings("unchecked")
+    public RequestScheduler(int maxConcurrentRequests, int maxConcurrentRequestsPerHost, @NonNull int[] queueCapacities) {
+        int laneCount = Priority.values().length;
+        if (queueCapacities.length != laneCount) {
+            throw new IllegalArgumentException("A queue capacity is required for each priority!");
+        }
+        _maxConcurrentRequests = maxConcurrentRequests;
+        _maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+        _queueCapacities = queueCapacities.clone();
+        _queues = new ArrayDeque[laneCount];
+        for (int i = 0; i < laneCount; ++i) {
+            _queues[i] = new ArrayDeque<>();
+        }
+        _peakQueueDepths = new int[laneCount];
+        _totalWaitMs = new long[laneCount];
+        _dispatchedCounts = new int[laneCount];
+        _rejectedCounts = new int[laneCount];
+        // The scheduler never hands out more work than there are threads, so this queue is always empty.
+        _threadPool = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger _threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                return new Thread(runnable, "RequestScheduler #" + _threadCount.incrementAndGet());
+            }
+        });
+        _threadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates a ticket for a single request. The ticket is an executor which can run exactly one task,
+     * so it can be passed to {@link android.os.AsyncTask#executeOnExecutor(Executor, Object[])}.
+     *
+     * @param priority The priority of the request.
+     * @param host     The host the request is made to.
+     * @return The ticket for the request.
+     */
+    @NonNull
+    public Ticket newTicket(@NonNull Priority priority, @NonNull String host) {
+        return new Ticket(priority, host);
+    }
+
+    /**
+     * Returns the amount of requests currently waiting in a lane.
+     *
+     * @param priority The priority of the lane.
+     * @return The amount of waiting requests.
+     */
+    public synchronized int getQueueDepth(@NonNull Priority priority) {
+        return _queues[priority.ordinal()].size();
+    }
+
+    /**
+     * Returns the highest amount of requests which were waiting in a lane at the same time.
+     *
+     * @param priority The priority of the lane.
+     * @return The peak amount of waiting requests.
+     */
+    public synchronized int getPeakQueueDepth(@NonNull Priority priority) {
+        return _peakQueueDepths[priority.ordinal()];
+    }
+
+    /**
+     * Returns the average time requests of a lane were waiting before they were started.
+     *
+     * @param priority The priority of the lane.
+     * @return The average wait time in milliseconds, or 0 if no request was started yet.
+     */
+    public synchronized long getAverageWaitMs(@NonNull Priority priority) {
+        int dispatched = _dispatchedCounts[priority.ordinal()];
+        return dispatched == 0 ? 0 : _totalWaitMs[priority.ordinal()] / dispatched;
+    }
+
+    /**
+     * Returns the amount of requests of a lane which were rejected because the queue was full.
+     *
+     * @param priority The priority of the lane.
+     * @return The amount of rejected requests.
+     */
+    public synchronized int getRejectedCount(@NonNull Priority priority) {
+        return _rejectedCounts[priority.ordinal()];
+    }
+
+    /**
+     * Returns the amount of requests currently running.
+     *
+     * @return The amount of running requests.
+     */
+    public synchronized int getRunningCount() {
+        return _runningCount;
+    }
+
+    private synchronized void _enqueue(@NonNull Ticket ticket) {
+        int lane = ticket._priority.ordinal();
+        ArrayDeque<Ticket> queue = _queues[lane];
+        if (queue.size() >= _queueCapacities[lane]) {
+            _rejectedCounts[lane]++;
+            Log.w(TAG, "Queue of " + ticket._priority + " requests is full, rejecting request to " + ticket._host);
+            throw new RejectedExecutionException("Too many pending " + ticket._priority + " requests.");
+        }
+        ticket._enqueuedAt = SystemClock.elapsedRealtime();
+        queue.addLast(ticket);
+        _peakQueueDepths[lane] = Math.max(_peakQueueDepths[lane], queue.size());
+        _dispatch();
+    }
+
+    private synchronized void _promote(@NonNull Ticket ticket, @NonNull Priority priority) {
+        if (priority.ordinal() >= ticket._priority.ordinal()) {
+            return;
+        }
+        if (ticket._runnable != null && _queues[ticket._priority.ordinal()].remove(ticket)) {
+            // Still waiting, move it to the other lane. It may go over the capacity, but it was already accepted.
+            ticket._priority = priority;
+            _queues[priority.ordinal()].addLast(ticket);
+            _dispatch();
+        } else {
+            ticket._priority = priority;
+        }
+    }
+
+    private synchronized boolean _cancel(@NonNull Ticket ticket) {
+        if (ticket._runnable != null && _queues[ticket._priority.ordinal()].remove(ticket)) {
+            ticket._runnable = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts the waiting requests as long as there are free threads, in the order of their priority.
+     */
+    private synchronized void _dispatch() {
+        for (ArrayDeque<Ticket> queue : _queues) {
+            Iterator<Ticket> iterator = queue.iterator();
+            while (_runningCount < _maxConcurrentRequests && iterator.hasNext()) {
+                Ticket ticket = iterator.next();
+                Integer runningForHost = _runningPerHost.get(ticket._host);
+                if (runningForHost != null && runningForHost >= _maxConcurrentRequestsPerHost) {
+                    // Host is busy, requests to other hosts can go ahead.
+                    continue;
+                }
+                iterator.remove();
+                _runningPerHost.put(ticket._host, runningForHost == null ? 1 : runningForHost + 1);
+                _runningCount++;
+                int lane = ticket._priority.ordinal();
+                _totalWaitMs[lane] += SystemClock.elapsedRealtime() - ticket._enqueuedAt;
+                _dispatchedCounts[lane]++;
+                _threadPool.execute(ticket);
+            }
+        }
+    }
+
+    private synchronized void _onFinished(@NonNull Ticket ticket) {
+        _runningCount--;
+        Integer runningForHost = _runningPerHost.get(ticket._host);
+        if (runningForHost == null || runningForHost <= 1) {
+            _runningPerHost.remove(ticket._host);
+        } else {
+            _runningPerHost.put(ticket._host, runningForHost - 1);
+        }
+        _dispatch();
+    }
+
+    /**
+     * Executor for a single request, which queues it in the lane of its priority.
+     */
+    public class Ticket implements Executor, Runnable {
+
+        private final String _host;
+        private Priority _priority;
+        private Runnable _runnable;
+        private long _enqueuedAt;
+
+        Ticket(@NonNull Priority priority, @NonNull String host) {
+            _priority = priority;
+            _host = host;
+        }
+
+        /**
+         * Queues the task of the request.
+         *
+         * @param runnable The task to run.
+         * @throws RejectedExecutionException Thrown if the lane of the request is full.
+         */
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            synchronized (RequestScheduler.this) {
+                if (_runnable != null) {
+                    throw new IllegalStateException("A ticket can only be used for a single request!");
+                }
+                _runnable = runnable;
+                try {
+                    _enqueue(this);
+                } catch (RejectedExecutionException ex) {
+                    _runnable = null;
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Raises the priority of the request, for example because the user started waiting for it.
+         * Has no effect if the current priority is already higher.
+         *
+         * @param priority The new priority.
+         */
+        public void promote(@NonNull Priority priority) {
+            _promote(this, priority);
+        }
+
+        /**
+         * Removes the request from the queue if it has not been started yet.
+         *
+         * @return True if the request was waiting and will not run anymore, false if it was already started.
+         */
+        public boolean cancel() {
+            return _cancel(this);
+        }
+
+        public Priority getPriority() {
+            synchronized (RequestScheduler.this) {
+                return _priority;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                _runnable.run();
+            } finally {
+                _onFinished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides if a failed request should be tried again, and how long to wait before doing so.
+ * <p/>
+ * The delay grows exponentially with each attempt, and a random part of it is left out, so clients which failed at the
+ * same moment do not all retry at the same moment as well.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 4000;
+
+    private static final int STATUS_CODE_REQUEST_TIMEOUT = 408;
+    private static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+
+    private final int _maxAttempts;
+    private final long _baseDelayMs;
+    private final long _maxDelayMs;
+    private final Random _random;
+
+    /**
+     * Constructor with the default settings.
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts The maximum amount of attempts, including the first one.
+     * @param baseDelayMs The delay before the first retry, which is doubled for every next retry.
+     * @param maxDelayMs  The upper limit of the delay.
+     * @param random      The source of the jitter.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, @NonNull Random random) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required!");
+        }
+        _maxAttempts = maxAttempts;
+        _baseDelayMs = baseDelayMs;
+        _maxDelayMs = maxDelayMs;
+        _random = random;
+    }
+
+    /**
+     * Returns if a request should be tried again after it failed.
+     *
+     * @param exception    The reason of the failure.
+     * @param attempt      The number of the attempt which failed, starting from 1.
+     * @param isIdempotent If the request can be sent multiple times without side effects. If not, it is only retried
+     *                     if it never reached the server.
+     * @return True if the request should be made again.
+     */
+    public boolean shouldRetry(@NonNull IOException exception, int attempt, boolean isIdempotent) {
+        return attempt < _maxAttempts && isRetryable(exception, isIdempotent);
+    }
+
+    /**
+     * Returns the time to wait before the next attempt.
+     *
+     * @param attempt The number of the attempt which failed, starting from 1.
+     * @return The delay in milliseconds.
+     */
+    public long getDelayMs(int attempt) {
+        long ceiling = _baseDelayMs << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > _maxDelayMs) {
+            ceiling = _maxDelayMs;
+        }
+        // Wait at least half of the delay, the other half is random.
+        long half = ceiling / 2;
+        return half + (long)(_random.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Returns if a failure might go away when trying again.
+     *
+     * @param exception    The reason of the failure.
+     * @param isIdempotent If the request can be sent multiple times without side effects.
+     * @return True if the failure is temporary.
+     */
+    public static boolean isRetryable(@NonNull IOException exception, boolean isIdempotent) {
+        if (exception instanceof ConnectException || exception instanceof NoRouteToHostException ||
+                exception instanceof UnknownHostException) {
+            // The request was never sent, so it is safe to send it again.
+            return true;
+        }
+        if (!isIdempotent || exception instanceof CircuitBreaker.CircuitOpenException ||
+                exception instanceof FileNotFoundException || exception instanceof SSLException) {
+            return false;
+        }
+        if (exception instanceof HttpStatusException) {
+            int statusCode = ((HttpStatusException)exception).getStatusCode();
+            return statusCode == STATUS_CODE_REQUEST_TIMEOUT || statusCode == STATUS_CODE_TOO_MANY_REQUESTS ||
+                    ((HttpStatusException)exception).isServerError();
+        }
+        // Timeouts and dropped connections.
+        return true;
+    }
+
+    /**
+     * Returns if a failure means that the server is not healthy, which counts towards opening its circuit.
+     * Failures of the device's own network, like a failed DNS lookup or a missing route, are not counted: otherwise
+     * losing connectivity would open the circuit of every host, and the requests would still fail after it is back.
+     *
+     * @param exception The reason of the failure.
+     * @return True if the server could not be reached or had an internal problem.
+     */
+    public static boolean isHostFailure(@NonNull IOException exception) {
+        if (exception instanceof HttpStatusException) {
+            return ((HttpStatusException)exception).isServerError();
+        }
+        return !(exception instanceof CircuitBreaker.CircuitOpenException || exception instanceof FileNotFoundException ||
+                exception instanceof SSLException || _isLocalNetworkFailure(exception));
+    }
+
+    /**
+     * Returns if a request failed because the device itself had no working network.
+     *
+     * @param exception The reason of the failure.
+     * @return True if the host name could not be resolved, or there was no route to the network of the host.
+     */
+    private static boolean _isLocalNetworkFailure(@NonNull IOException exception) {
+        if (exception instanceof UnknownHostException || exception instanceof NoRouteToHostException) {
+            return true;
+        }
+        if (!(exception instanceof ConnectException)) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            int errno = _getErrno(exception);
+            if (errno != 0) {
+                return errno == OsConstants.ENETUNREACH;
+            }
+        }
+        // The error number is not public on the older versions, only the message contains its name.
+        String message = exception.getMessage();
+        return message != null && message.contains("ENETUNREACH");
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int _getErrno(@NonNull Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ErrnoException) {
+                return ((ErrnoException)cause).errno;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the connect time and the response time of each host the same way TCP estimates the round trip time
+ * (RFC 6298), and derives the connect and read timeouts from them.
+ * <p/>
+ * The connect time is estimated separately from the response time, as a quick server can still be behind a slow
+ * network, and the other way around. A host which usually responds in 100 ms gets a shorter read timeout, so if it
+ * hangs, this is noticed quickly. A host which is slow gets longer timeouts, so its requests stop failing. Each timeout
+ * doubles the timeouts of the host until the next successful response, so a host which became slower is not given up
+ * on right away.
+ * <p/>
+ * The response times should only be recorded for requests which are answered about equally fast. Requests which make
+ * the server do more work, like creating a configuration, should use {@link #getReadTimeoutCeilingMs()} instead.
+ */
+public class RttEstimator {
+
+    // Waking up the radio of a mobile device can take a couple of seconds before the first packet is sent.
+    public static final int DEFAULT_CONNECT_TIMEOUT_FLOOR_MS = 3000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_CEILING_MS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_FLOOR_MS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_CEILING_MS = 20000;
+
+    // Gains of the smoothed RTT and the RTT variation, as recommended by the RFC.
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    // The read timeout also covers the slower parts of a response, so it gets some extra room.
+    private static final int READ_TIMEOUT_FACTOR = 2;
+    private static final int MAX_BACKOFF = 8;
+
+    private static class Estimate {
+        double smoothedRttMs;
+        double rttVariationMs;
+
+        Estimate(long rttMs) {
+            smoothedRttMs = rttMs;
+            rttVariationMs = rttMs / 2.0;
+        }
+
+        void addSample(long rttMs) {
+            rttVariationMs = (1 - BETA) * rttVariationMs + BETA * Math.abs(smoothedRttMs - rttMs);
+            smoothedRttMs = (1 - ALPHA) * smoothedRttMs + ALPHA * rttMs;
+        }
+
+        double getTimeoutMs() {
+            return smoothedRttMs + K * rttVariationMs;
+        }
+    }
+
+    private static class HostEstimate {
+        Estimate connect;
+        Estimate response;
+        int backoff = 1;
+    }
+
+    private final int _connectTimeoutFloorMs;
+    private final int _connectTimeoutCeilingMs;
+    private final int _readTimeoutFloorMs;
+    private final int _readTimeoutCeilingMs;
+
+    // Guarded by itself.
+    private final Map<String, HostEstimate> _estimates = new HashMap<>();
+
+    /**
+     * Constructor with the default bounds.
+     */
+    public RttEstimator() {
+        this(DEFAULT_CONNECT_TIMEOUT_FLOOR_MS, DEFAULT_CONNECT_TIMEOUT_CEILING_MS, DEFAULT_READ_TIMEOUT_FLOOR_MS,
+                DEFAULT_READ_TIMEOUT_CEILING_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connectTimeoutFloorMs   The shortest connect timeout.
+     * @param connectTimeoutCeilingMs The longest connect timeout. Also used for hosts without any measurements yet.
+     * @param readTimeoutFloorMs      The shortest read timeout.
+     * @param readTimeoutCeilingMs    The longest read timeout. Also used for hosts without any measurements yet.
+     */
+    public RttEstimator(int connectTimeoutFloorMs, int connectTimeoutCeilingMs, int readTimeoutFloorMs, int readTimeoutCeilingMs) {
+        _connectTimeoutFloorMs = connectTimeoutFloorMs;
+        _connectTimeoutCeilingMs = connectTimeoutCeilingMs;
+        _readTimeoutFloorMs = readTimeoutFloorMs;
+        _readTimeoutCeilingMs = readTimeoutCeilingMs;
+    }
+
+    /**
+     * Records the time needed to connect to a host.
+     *
+     * @param host      The host of the request.
+     * @param connectMs The time between starting to connect and having the connection established.
+     */
+    public void recordConnectSample(@NonNull String host, long connectMs) {
+        synchronized (_estimates) {
+            HostEstimate estimate = _getOrCreateEstimate(host);
+            if (estimate.connect == null) {
+                estimate.connect = new Estimate(connectMs);
+            } else {
+                estimate.connect.addSample(connectMs);
+            }
+            estimate.backoff = 1;
+        }
+    }
+
+    /**
+     * Records the time a host needed to respond to a request.
+     *
+     * @param host  The host of the request.
+     * @param rttMs The time between sending the request on an established connection and receiving the response headers.
+     */
+    public void recordSample(@NonNull String host, long rttMs) {
+        synchronized (_estimates) {
+            HostEstimate estimate = _getOrCreateEstimate(host);
+            if (estimate.response == null) {
+                estimate.response = new Estimate(rttMs);
+            } else {
+                estimate.response.addSample(rttMs);
+            }
+            estimate.backoff = 1;
+        }
+    }
+
+    @NonNull
+    private HostEstimate _getOrCreateEstimate(@NonNull String host) {
+        HostEstimate estimate = _estimates.get(host);
+        if (estimate == null) {
+            estimate = new HostEstimate();
+            _estimates.put(host, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Records that a request to a host timed out. Doubles the timeouts of the host until the next response.
+     *
+     * @param host The host of the request.
+     */
+    public void recordTimeout(@NonNull String host) {
+        synchronized (_estimates) {
+            HostEstimate estimate = _estimates.get(host);
+            if (estimate != null) {
+                estimate.backoff = Math.min(estimate.backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * Returns the connect timeout to use for a host.
+     *
+     * @param host The host of the request.
+     * @return The timeout in milliseconds.
+     */
+    public int getConnectTimeoutMs(@NonNull String host) {
+        return _getTimeoutMs(host, true, 1, _connectTimeoutFloorMs, _connectTimeoutCeilingMs);
+    }
+
+    /**
+     * Returns the read timeout to use for a host.
+     *
+     * @param host The host of the request.
+     * @return The timeout in milliseconds.
+     */
+    public int getReadTimeoutMs(@NonNull String host) {
+        return _getTimeoutMs(host, false, READ_TIMEOUT_FACTOR, _readTimeoutFloorMs, _readTimeoutCeilingMs);
+    }
+
+    /**
+     * Returns the longest read timeout, for requests which can not be predicted by the response times of the host.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public int getReadTimeoutCeilingMs() {
+        return _readTimeoutCeilingMs;
+    }
+
+    /**
+     * Returns the smoothed response time of a host.
+     *
+     * @param host The host.
+     * @return The smoothed response time in milliseconds, or -1 if there are no measurements yet.
+     */
+    public long getSmoothedRttMs(@NonNull String host) {
+        synchronized (_estimates) {
+            HostEstimate estimate = _estimates.get(host);
+            return estimate == null || estimate.response == null ? -1 : Math.round(estimate.response.smoothedRttMs);
+        }
+    }
+
+    /**
+     * Returns the smoothed connect time of a host.
+     *
+     * @param host The host.
+     * @return The smoothed connect time in milliseconds, or -1 if there are no measurements yet.
+     */
+    public long getSmoothedConnectMs(@NonNull String host) {
+        synchronized (_estimates) {
+            HostEstimate estimate = _estimates.get(host);
+            return estimate == null || estimate.connect == null ? -1 : Math.round(estimate.connect.smoothedRttMs);
+        }
+    }
+
+    private int _getTimeoutMs(@NonNull String host, boolean isConnect, int factor, int floorMs, int ceilingMs) {
+        double timeoutMs;
+        synchronized (_estimates) {
+            HostEstimate hostEstimate = _estimates.get(host);
+            Estimate estimate = hostEstimate == null ? null : (isConnect ? hostEstimate.connect : hostEstimate.response);
+            if (estimate == null) {
+                return ceilingMs;
+            }
+            timeoutMs = estimate.getTimeoutMs() * factor * hostEstimate.backoff;
+        }
+        return (int)Math.max(floorMs, Math.min(ceilingMs, Math.round(timeoutMs)));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.network;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes received per endpoint, both as transferred over the network and after decompression,
+ * so the savings of the compression can be measured.
+ */
+public class TransferStats {
+
+    private static class EndpointStats {
+        final AtomicLong transferredBytes = new AtomicLong();
+        final AtomicLong decodedBytes = new AtomicLong();
+        final AtomicInteger responseCount = new AtomicInteger();
+    }
+
+    // Guarded by itself.
+    private final Map<String, EndpointStats> _endpointStats = new HashMap<>();
+
+    /**
+     * Returns the endpoint of a URL, which is the host and the path without the query.
+     *
+     * @param url The URL.
+     * @return The endpoint.
+     */
+    @NonNull
+    public static String getEndpoint(@NonNull URL url) {
+        return url.getHost() + url.getPath();
+    }
+
+    /**
+     * Wraps a response body, so it is decompressed and the bytes read from it are counted.
+     *
+     * @param endpoint        The endpoint the response came from.
+     * @param inputStream     The raw response body.
+     * @param contentEncoding The value of the Content-Encoding header. Can be null.
+     * @return The stream of the decoded body.
+     * @throws IOException Thrown if the body could not be decoded.
+     */
+    public InputStream track(@NonNull String endpoint, @NonNull InputStream inputStream, @Nullable String contentEncoding) throws IOException {
+        EndpointStats stats = _getStats(endpoint);
+        stats.responseCount.incrementAndGet();
+        InputStream transferredStream = new CountingInputStream(inputStream, stats.transferredBytes);
+        return new CountingInputStream(ContentDecoder.decode(transferredStream, contentEncoding), stats.decodedBytes);
+    }
+
+    /**
+     * Returns the endpoints which have responded so far.
+     *
+     * @return The list of endpoints.
+     */
+    public List<String> getEndpoints() {
+        synchronized (_endpointStats) {
+            return new ArrayList<>(_endpointStats.keySet());
+        }
+    }
+
+    /**
+     * Returns the amount of bytes received from an endpoint over the network.
+     *
+     * @param endpoint The endpoint.
+     * @return The amount of compressed bytes.
+     */
+    public long getTransferredBytes(@NonNull String endpoint) {
+        EndpointStats stats = _findStats(endpoint);
+        return stats == null ? 0 : stats.transferredBytes.get();
+    }
+
+    /**
+     * Returns the amount of bytes received from an endpoint after decompression.
+     *
+     * @param endpoint The endpoint.
+     * @return The amount of uncompressed bytes.
+     */
+    public long getDecodedBytes(@NonNull String endpoint) {
+        EndpointStats stats = _findStats(endpoint);
+        return stats == null ? 0 : stats.decodedBytes.get();
+    }
+
+    /**
+     * Returns the amount of response bodies received from an endpoint.
+     *
+     * @param endpoint The endpoint.
+     * @return The amount of responses.
+     */
+    public int getResponseCount(@NonNull String endpoint) {
+        EndpointStats stats = _findStats(endpoint);
+        return stats == null ? 0 : stats.responseCount.get();
+    }
+
+    @Nullable
+    private EndpointStats _findStats(@NonNull String endpoint) {
+        synchronized (_endpointStats) {
+            return _endpointStats.get(endpoint);
+        }
+    }
+
+    private EndpointStats _getStats(@NonNull String endpoint) {
+        synchronized (_endpointStats) {
+            EndpointStats stats = _endpointStats.get(endpoint);
+            if (stats == null) {
+                stats = new EndpointStats();
+                _endpointStats.put(endpoint, stats);
+            }
+            return stats;
+        }
+    }
+}
@@ -18,26 +18,48 @@
 package nl.eduvpn.app.service;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.JsonReader;
 
+import nl.eduvpn.app.entity.DiscoveredAPI;
+import nl.eduvpn.app.entity.InstanceList;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.entity.message.Message;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.CircuitBreaker;
+import nl.eduvpn.app.network.ContentDecoder;
+import nl.eduvpn.app.network.HttpCache;
+import nl.eduvpn.app.network.HttpStatusException;
+import nl.eduvpn.app.network.HttpTransport;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.network.RetryPolicy;
+import nl.eduvpn.app.network.RttEstimator;
+import nl.eduvpn.app.network.TransferStats;
 import nl.eduvpn.app.utils.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This service is responsible for fetching data from API endpoints.
@@ -51,19 +73,17 @@ public class APIService {
     private static final String TAG = APIService.class.getName();
 
     public static final String USER_NOT_AUTHORIZED_ERROR = "User not authorized.";
+    public static final String INCORRECT_FORMAT_ERROR = "Data returned by the server has an incorrect format.";
+    public static final String TOO_MANY_REQUESTS_ERROR = "Too many pending requests, please try again later.";
 
-    private static final int CONNECT_TIMEOUT_MS = 10000;
-    private static final int READ_TIMEOUT_MS = 20000;
     private static final int READ_BLOCK_SIZE = 16 * 1024;
 
     private static final String HEADER_AUTHORIZATION = "Authorization";
+    private static final String CHARSET = "UTF-8";
 
+    private static final int STATUS_CODE_NOT_MODIFIED = 304;
     private static final int STATUS_CODE_UNAUTHORIZED = 401;
 
-    private static final int CONFIG_MAX_THREAD_POOL_SIZE = 16;
-    private static final ThreadPoolExecutor EXECUTOR =
-            new ThreadPoolExecutor(8, CONFIG_MAX_THREAD_POOL_SIZE, 30000, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-
     /**
      * Callback interface for returning results asynchronously.
      */
@@ -83,10 +103,81 @@ public class APIService {
         void onError(String errorMessage);
     }
 
+    /**
+     * Parser which converts a response body to the result of a call.
+     */
+    public interface ResponseParser<T> {
+        /**
+         * Parses the response body. Called on a background thread while the body is still being downloaded.
+         *
+         * @param inputStream The stream of the response body. Closing it is not required.
+         * @return The result of the call.
+         * @throws IOException                              Thrown if there was a problem while reading the stream.
+         * @throws SerializerService.UnknownFormatException Thrown if the body had an unexpected format.
+         */
+        T parse(@NonNull InputStream inputStream) throws IOException, SerializerService.UnknownFormatException;
+    }
+
+    /**
+     * Parser which reads the response body token by token as JSON, without building a string or a DOM first.
+     */
+    public static abstract class JsonResponseParser<T> implements ResponseParser<T> {
+
+        @Override
+        public final T parse(@NonNull InputStream inputStream) throws IOException, SerializerService.UnknownFormatException {
+            JsonReader reader = new JsonReader(new InputStreamReader(inputStream, CHARSET));
+            return parseJson(reader);
+        }
+
+        /**
+         * Parses the JSON from the reader.
+         *
+         * @param reader The reader positioned at the start of the JSON document.
+         * @return The result of the call.
+         * @throws IOException                              Thrown if there was a problem while reading the stream.
+         * @throws SerializerService.UnknownFormatException Thrown if the JSON had an unexpected format.
+         */
+        protected abstract T parseJson(@NonNull JsonReader reader) throws IOException, SerializerService.UnknownFormatException;
+    }
+
     private ConnectionService _connectionService;
+    private SerializerService _serializerService;
+    private HttpTransport _transport;
+    private HttpCache _httpCache;
+    private RequestScheduler _requestScheduler;
+    private RetryPolicy _retryPolicy;
+    private CircuitBreaker _circuitBreaker;
+    private RttEstimator _rttEstimator;
+    private final Handler _mainHandler = new Handler(Looper.getMainLooper());
 
-    public APIService(ConnectionService connectionService) {
+    // GET requests currently queued or on the network, keyed by URL, kind of result and access token.
+    private final Map<String, InFlightRequest> _inFlightRequests = new HashMap<>();
+    private final AtomicInteger _coalescedRequestCount = new AtomicInteger();
+    private final TransferStats _transferStats = new TransferStats();
+
+    /**
+     * Constructor.
+     *
+     * @param connectionService The connection service which provides the access token.
+     * @param serializerService The serializer service used to parse the responses.
+     * @param transport         The transport used to open the HTTP connections.
+     * @param httpCache         The cache which stores the responses of the GET requests.
+     * @param requestScheduler  The scheduler which decides when the requests are executed.
+     * @param retryPolicy       The policy which decides if failed requests are tried again.
+     * @param circuitBreaker    Keeps track of the failing hosts, so requests to them fail right away.
+     * @param rttEstimator      Keeps track of the response times of the hosts, which determine the timeouts.
+     */
+    public APIService(ConnectionService connectionService, SerializerService serializerService, HttpTransport transport,
+                      HttpCache httpCache, RequestScheduler requestScheduler, RetryPolicy retryPolicy,
+                      CircuitBreaker circuitBreaker, RttEstimator rttEstimator) {
         _connectionService = connectionService;
+        _serializerService = serializerService;
+        _transport = transport;
+        _httpCache = httpCache;
+        _requestScheduler = requestScheduler;
+        _retryPolicy = retryPolicy;
+        _circuitBreaker = circuitBreaker;
+        _rttEstimator = rttEstimator;
     }
 
     private String _getAccessToken() {
@@ -94,144 +185,530 @@ public class APIService {
     }
 
     /**
-     * Retrieves a JSON object from a URL, and returns it in the callback
+     * Retrieves the discovered API from the discovery URL of a VPN provider.
+     *
+     * @param url      The URL of the discovery document.
+     * @param priority {@link RequestScheduler.Priority#USER_INITIATED} if the user is connecting to the provider,
+     *                 {@link RequestScheduler.Priority#BACKGROUND} if it is only a refresh.
+     * @param callback The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    public Cancellable getDiscoveredAPI(@NonNull String url, @NonNull RequestScheduler.Priority priority, @NonNull Callback<DiscoveredAPI> callback) {
+        JsonResponseParser<DiscoveredAPI> parser = new JsonResponseParser<DiscoveredAPI>() {
+            @Override
+            protected DiscoveredAPI parseJson(@NonNull JsonReader reader) throws IOException, SerializerService.UnknownFormatException {
+                return _serializerService.deserializeDiscoveredAPI(reader);
+            }
+        };
+        return _getResource(url, null, "discovered_api", priority, parser, callback);
+    }
+
+    /**
+     * Retrieves the list of profiles available at a VPN provider.
+     *
+     * @param url      The URL of the profile list API.
+     * @param callback The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    public Cancellable getProfileList(@NonNull String url, @NonNull Callback<List<Profile>> callback) {
+        return _getResource(url, _getAccessToken(), "profile_list", RequestScheduler.Priority.DEFAULT, _createProfileListParser(), callback);
+    }
+
+    /**
+     * Retrieves the list of profiles available at a VPN provider, authenticating with the given credentials
+     * instead of the access token of the current connection.
+     * Use this one when fetching from multiple providers at the same time.
      *
-     * @param url      The URL to fetch the JSON from.
+     * @param url         The URL of the profile list API.
+     * @param credentials The access token for the VPN provider.
+     * @param callback    The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    public Cancellable getProfileList(@NonNull String url, @NonNull SavedToken credentials, @NonNull Callback<List<Profile>> callback) {
+        return _getResource(url, credentials.getAccessToken(), "profile_list", RequestScheduler.Priority.DEFAULT,
+                _createProfileListParser(), callback);
+    }
+
+    private ResponseParser<List<Profile>> _createProfileListParser() {
+        return new JsonResponseParser<List<Profile>>() {
+            @Override
+            protected List<Profile> parseJson(@NonNull JsonReader reader) throws IOException, SerializerService.UnknownFormatException {
+                return _serializerService.deserializeProfileList(reader);
+            }
+        };
+    }
+
+    /**
+     * Retrieves a list of messages.
+     *
+     * @param url           The URL of the messages API.
+     * @param messageSource The message source, either "user_messages" or "system_messages".
+     * @param callback      The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    public Cancellable getMessageList(@NonNull String url, @NonNull final String messageSource, @NonNull Callback<List<Message>> callback) {
+        return _getResource(url, _getAccessToken(), "messages:" + messageSource, RequestScheduler.Priority.BACKGROUND, new JsonResponseParser<List<Message>>() {
+            @Override
+            protected List<Message> parseJson(@NonNull JsonReader reader) throws IOException, SerializerService.UnknownFormatException {
+                return _serializerService.deserializeMessageList(reader, messageSource);
+            }
+        }, callback);
+    }
+
+    /**
+     * Retrieves the list of the known VPN provider instances.
+     *
+     * @param url      The URL of the instance list.
      * @param callback The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
      */
-    public void getJSON(final String url, final boolean useToken, final Callback<JSONObject> callback) {
-        String accessToken = _getAccessToken();
-        if (!useToken) {
-            accessToken = null;
+    public Cancellable getInstanceList(@NonNull String url, @NonNull Callback<InstanceList> callback) {
+        JsonResponseParser<InstanceList> parser = new JsonResponseParser<InstanceList>() {
+            @Override
+            protected InstanceList parseJson(@NonNull JsonReader reader) throws IOException, SerializerService.UnknownFormatException {
+                return _serializerService.deserializeInstanceList(reader);
+            }
+        };
+        return _getResource(url, null, "instance_list", RequestScheduler.Priority.BACKGROUND, parser, callback);
+    }
+
+    /**
+     * Retrieves a resource from a URL, and returns it in the callback.
+     * The response body is handed to the parser as a stream, so it is never buffered as a whole.
+     * The request is never shared with other requests in flight, as the result depends on the parser, which can hold any
+     * state. Only the requests of the typed endpoints above are shared.
+     *
+     * @param url      The URL to fetch the resource from.
+     * @param useToken If the authentication should be included.
+     * @param parser   The parser which converts the response body to the result.
+     * @param callback The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    public <T> Cancellable getResource(@NonNull final String url, final boolean useToken, @NonNull final ResponseParser<T> parser,
+                                @NonNull final Callback<T> callback) {
+        return _getResource(url, useToken ? _getAccessToken() : null, null, RequestScheduler.Priority.DEFAULT, parser, callback);
+    }
+
+    /**
+     * Retrieves a resource from a URL, authenticating with the given credentials.
+     * The credentials are bound to this request only, so requests for different VPN providers can run in parallel
+     * without touching the access token of the current connection.
+     *
+     * @param url         The URL to fetch the resource from.
+     * @param credentials The access token to authenticate with. If null, no authentication is included.
+     * @param parser      The parser which converts the response body to the result.
+     * @param callback    The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    public <T> Cancellable getResource(@NonNull final String url, @Nullable SavedToken credentials, @NonNull final ResponseParser<T> parser,
+                                @NonNull final Callback<T> callback) {
+        return _getResource(url, credentials == null ? null : credentials.getAccessToken(), null, RequestScheduler.Priority.DEFAULT,
+                parser, callback);
+    }
+
+    /**
+     * Returns the statistics of the received bytes, per endpoint.
+     *
+     * @return The transfer statistics since the service was created.
+     */
+    public TransferStats getTransferStats() {
+        return _transferStats;
+    }
+
+    /**
+     * Returns the amount of GET requests which were not sent because an identical request was already in flight.
+     *
+     * @return The amount of coalesced requests since the service was created.
+     */
+    public int getCoalescedRequestCount() {
+        return _coalescedRequestCount.get();
+    }
+
+    /**
+     * Retrieves a resource from a URL, sharing the request with identical requests already in flight.
+     *
+     * @param url         The URL to fetch the resource from.
+     * @param accessToken The access token to authenticate with. Can be null.
+     * @param resultKey   Identifies the kind of result. Requests are only shared if they have the same key, the parsers
+     *                    of the same key must produce the same result for the same response. If null, the request is
+     *                    not shared.
+     * @param priority    The priority of the request. A shared request is raised to the highest priority of its callers.
+     * @param parser      The parser which converts the response body to the result.
+     * @param callback    The callback for returning the result or notifying about an error.
+     * @return The handle which can be used to cancel the request.
+     */
+    private <T> Cancellable _getResource(@NonNull final String url, @Nullable String accessToken, @Nullable String resultKey,
+                                         @NonNull RequestScheduler.Priority priority, @NonNull final ResponseParser<T> parser,
+                                         @NonNull final Callback<T> callback) {
+        String requestKey = resultKey == null ? null : url + "\n" + resultKey + "\n" + (accessToken == null ? "" : accessToken);
+        final InFlightRequest inFlightRequest;
+        RequestHandle handle;
+        synchronized (_inFlightRequests) {
+            InFlightRequest existingRequest = requestKey == null ? null : _inFlightRequests.get(requestKey);
+            if (existingRequest != null) {
+                handle = new RequestHandle(existingRequest, callback);
+                existingRequest.handles.add(handle);
+                existingRequest.ticket.promote(priority);
+                _coalescedRequestCount.incrementAndGet();
+                Log.d(TAG, "GET " + url + " is already in flight, waiting for its result.");
+                return handle;
+            }
+            inFlightRequest = new InFlightRequest(requestKey, _requestScheduler.newTicket(priority, _getHost(url)));
+            handle = new RequestHandle(inFlightRequest, callback);
+            inFlightRequest.handles.add(handle);
+            if (requestKey != null) {
+                _inFlightRequests.put(requestKey, inFlightRequest);
+            }
         }
+        _executeAttempt(url, inFlightRequest, true, accessToken, new Attempt<T>() {
+            @Override
+            public T run(@Nullable String accessToken) throws IOException, SerializerService.UnknownFormatException, UserNotAuthorizedException {
+                return _fetchResource(url, accessToken, parser, inFlightRequest);
+            }
+        }, 1);
+        return handle;
+    }
+
+    /**
+     * Hands the task of a request to the scheduler. If the scheduler rejects it, the callbacks are notified right away.
+     *
+     * @param inFlightRequest The request.
+     * @param asyncTask       The task which executes the request.
+     * @param accessToken     The access token to authenticate with. Can be null.
+     */
+    private void _execute(@NonNull InFlightRequest inFlightRequest, @NonNull AsyncTask<String, Void, Object> asyncTask,
+                          @Nullable String accessToken) {
+        inFlightRequest.task = asyncTask;
+        try {
+            asyncTask.executeOnExecutor(inFlightRequest.ticket, accessToken);
+        } catch (RejectedExecutionException ex) {
+            _notifyWaitingCallbacks(inFlightRequest, new ErrorResult(TOO_MANY_REQUESTS_ERROR));
+        }
+    }
+
+    /**
+     * Notifies all callbacks waiting for a request about its result.
+     * If multiple callbacks share the request, each of them receives its own copy of the result, so a callback
+     * modifying its result does not affect the others.
+     *
+     * @param inFlightRequest The request.
+     * @param result          The result, or an {@link ErrorResult} if the request failed.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void _notifyWaitingCallbacks(@NonNull InFlightRequest inFlightRequest, Object result) {
+        List<RequestHandle> handles;
+        synchronized (_inFlightRequests) {
+            if (inFlightRequest.key != null && _inFlightRequests.get(inFlightRequest.key) == inFlightRequest) {
+                _inFlightRequests.remove(inFlightRequest.key);
+            }
+            handles = new ArrayList<>(inFlightRequest.handles);
+            inFlightRequest.handles.clear();
+        }
+        // The copies are made before any callback is called, as the first callback might already modify the result.
+        List<Object> results = new ArrayList<>(handles.size());
+        for (int i = 0; i < handles.size(); ++i) {
+            results.add(i == 0 || result instanceof ErrorResult ? result : _copyResult(result));
+        }
+        for (int i = 0; i < handles.size(); ++i) {
+            RequestHandle handle = handles.get(i);
+            if (result instanceof ErrorResult) {
+                handle.callback.onError(((ErrorResult)result).getMessage());
+            } else {
+                ((Callback<T>)handle.callback).onSuccess((T)results.get(i));
+            }
+        }
+    }
+
+    /**
+     * Copies the result of a request for an additional callback.
+     * The entities are immutable, only the lists holding them have to be copied.
+     *
+     * @param result The result to copy.
+     * @return A copy which can be modified independently of the original, or the original if it is immutable.
+     */
+    private static Object _copyResult(Object result) {
+        if (result instanceof List) {
+            return new ArrayList<>((List<?>)result);
+        } else if (result instanceof InstanceList) {
+            InstanceList instanceList = (InstanceList)result;
+            return new InstanceList(instanceList.getVersion(), new ArrayList<>(instanceList.getInstanceList()));
+        } else {
+            return result;
+        }
+    }
+
+    /**
+     * A single attempt of a request.
+     */
+    private interface Attempt<T> {
+        T run(@Nullable String accessToken) throws IOException, SerializerService.UnknownFormatException, UserNotAuthorizedException;
+    }
+
+    /**
+     * Executes an attempt of a request on the scheduler.
+     * If it fails and the retry policy allows it, the next attempt is scheduled after the backoff delay with a new
+     * ticket. The request does not keep a thread or a slot of its host while it is waiting for the next attempt.
+     *
+     * @param url           The URL of the request.
+     * @param request       The request. If it is cancelled, no further attempts are made.
+     * @param isIdempotent  If the request can be sent multiple times without side effects.
+     * @param accessToken   The access token to authenticate with. Can be null.
+     * @param attempt       Executes a single attempt.
+     * @param attemptNumber The number of this attempt, starting from 1.
+     */
+    private <T> void _executeAttempt(@NonNull final String url, @NonNull final InFlightRequest request, final boolean isIdempotent,
+                                     @Nullable final String accessToken, @NonNull final Attempt<T> attempt, final int attemptNumber) {
         AsyncTask<String, Void, Object> asyncTask = new AsyncTask<String, Void, Object>() {
             @Override
             protected Object doInBackground(String... params) {
-                try {
-                    String accessTokenParam = null;
-                    if (params != null && params.length == 1) {
-                        accessTokenParam = params[0];
-                    }
-                    // We do a retry once.
-                    try {
-                        return _fetchJSON(url, accessTokenParam);
-                    } catch (Exception ex) {
-                        if (ex instanceof UserNotAuthorizedException) {
-                            throw ex;
-                        }
-                        return _fetchJSON(url, accessTokenParam);
-                    }
-                } catch (FileNotFoundException ex) {
-                    return "URL not found: " + url;
-                } catch (IOException ex) {
-                    return ex.getMessage();
-                } catch (JSONException ex) {
-                    return ex.getMessage();
-                } catch (UserNotAuthorizedException ex) {
-                    return USER_NOT_AUTHORIZED_ERROR;
+                String accessTokenParam = null;
+                if (params != null && params.length == 1) {
+                    accessTokenParam = params[0];
                 }
+                return _runAttempt(url, request, isIdempotent, accessTokenParam, attempt, attemptNumber);
             }
 
             @Override
             protected void onPostExecute(Object result) {
-                if (result instanceof JSONObject) {
-                    callback.onSuccess((JSONObject)result);
-                } else if (result instanceof String) {
-                    callback.onError((String)result);
+                if (result instanceof RetryResult) {
+                    _scheduleRetry(url, request, isIdempotent, accessToken, attempt, attemptNumber + 1, ((RetryResult)result).getDelayMs());
                 } else {
-                    throw new RuntimeException("Invalid result received from background task!");
+                    _notifyWaitingCallbacks(request, result);
                 }
             }
         };
-        asyncTask.executeOnExecutor(EXECUTOR, accessToken);
+        _execute(request, asyncTask, accessToken);
+    }
+
+    /**
+     * Runs a single attempt of a request. The outcome is reported to the circuit breaker.
+     *
+     * @param url           The URL of the request.
+     * @param request       The request.
+     * @param isIdempotent  If the request can be sent multiple times without side effects.
+     * @param accessToken   The access token to authenticate with. Can be null.
+     * @param attempt       Executes the attempt.
+     * @param attemptNumber The number of the attempt, starting from 1.
+     * @return The result of the attempt, an {@link ErrorResult} if the request failed, or a {@link RetryResult} if
+     * it should be tried again.
+     */
+    private <T> Object _runAttempt(@NonNull String url, @NonNull InFlightRequest request, boolean isIdempotent,
+                                   @Nullable String accessToken, @NonNull Attempt<T> attempt, int attemptNumber) {
+        String host = _getHost(url);
+        try {
+            T result = attempt.run(accessToken);
+            _circuitBreaker.recordSuccess(host);
+            return result;
+        } catch (SerializerService.UnknownFormatException ex) {
+            // The server did respond, it will keep on responding the same way.
+            _circuitBreaker.recordSuccess(host);
+            Log.e(TAG, "Error parsing the response of " + url, ex);
+            return new ErrorResult(INCORRECT_FORMAT_ERROR);
+        } catch (UserNotAuthorizedException ex) {
+            _circuitBreaker.recordSuccess(host);
+            return new ErrorResult(USER_NOT_AUTHORIZED_ERROR);
+        } catch (IOException ex) {
+            if (!request.isCancelled) {
+                if (ex instanceof SocketTimeoutException) {
+                    _rttEstimator.recordTimeout(host);
+                }
+                if (RetryPolicy.isHostFailure(ex)) {
+                    _circuitBreaker.recordFailure(host);
+                } else if (!(ex instanceof CircuitBreaker.CircuitOpenException)) {
+                    _circuitBreaker.recordSuccess(host);
+                }
+                if (_retryPolicy.shouldRetry(ex, attemptNumber, isIdempotent)) {
+                    long delayMs = _retryPolicy.getDelayMs(attemptNumber);
+                    Log.w(TAG, "Attempt " + attemptNumber + " of " + url + " failed, retrying in " + delayMs + " ms.", ex);
+                    return new RetryResult(delayMs);
+                }
+            }
+            if (ex instanceof FileNotFoundException) {
+                return new ErrorResult("URL not found: " + url);
+            }
+            return new ErrorResult(ex.getMessage());
+        }
+    }
+
+    /**
+     * Schedules the next attempt of a request after a delay. Called on the main thread.
+     *
+     * @param url           The URL of the request.
+     * @param request       The request. If it is cancelled in the meantime, the attempt is not made.
+     * @param isIdempotent  If the request can be sent multiple times without side effects.
+     * @param accessToken   The access token to authenticate with. Can be null.
+     * @param attempt       Executes a single attempt.
+     * @param attemptNumber The number of the next attempt.
+     * @param delayMs       The time to wait before the next attempt.
+     */
+    private <T> void _scheduleRetry(@NonNull final String url, @NonNull final InFlightRequest request, final boolean isIdempotent,
+                                    @Nullable final String accessToken, @NonNull final Attempt<T> attempt, final int attemptNumber,
+                                    long delayMs) {
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (_inFlightRequests) {
+                    request.pendingRetry = null;
+                    if (request.isCancelled) {
+                        return;
+                    }
+                    // A ticket can only run a single task. The new one keeps the priority the request was promoted to.
+                    request.ticket = _requestScheduler.newTicket(request.ticket.getPriority(), _getHost(url));
+                }
+                _executeAttempt(url, request, isIdempotent, accessToken, attempt, attemptNumber);
+            }
+        };
+        synchronized (_inFlightRequests) {
+            if (request.isCancelled) {
+                return;
+            }
+            request.pendingRetry = retry;
+        }
+        _mainHandler.postDelayed(retry, delayMs);
+    }
+
+    /**
+     * Returns the host of a URL, which is used to limit the concurrent requests per server.
+     *
+     * @param url The URL as a string.
+     * @return The host of the URL, or an empty string if the URL is invalid. The request will fail later in that case.
+     */
+    private static String _getHost(@NonNull String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException ex) {
+            return "";
+        }
     }
 
     /**
      * Downloads a byte array resource.
+     * The user is waiting for the result, so it is scheduled ahead of the other requests.
      *
      * @param url      The URL as a string.
      * @param useToken If the authentication should be included.
      * @param data     The request data.
      * @param callback The callback for notifying about the result.
+     * @return The handle which can be used to cancel the request.
      */
-    public void postResource(@NonNull final String url, @Nullable final String data, final boolean useToken, final Callback<byte[]> callback) {
-        String accessToken = _getAccessToken();
-        if (!useToken) {
-            accessToken = null;
-        }
-        AsyncTask<String, Void, Object> asyncTask = new AsyncTask<String, Void, Object>() {
+    public Cancellable postResource(@NonNull final String url, @Nullable final String data, final boolean useToken, final Callback<byte[]> callback) {
+        return postResource(url, data, useToken, new ResponseParser<byte[]>() {
             @Override
-            protected Object doInBackground(String... params) {
-                try {
-                    String accessTokenParam = null;
-                    if (params != null && params.length == 1) {
-                        accessTokenParam = params[0];
-                    }
-                    // We do a retry once.
-                    try {
-                        return _fetchByteResource(url, data, accessTokenParam);
-                    } catch (Exception ex) {
-                        if (ex instanceof UserNotAuthorizedException) {
-                            throw ex;
-                        }
-                        return _fetchByteResource(url, data, accessTokenParam);
-                    }
-                } catch (IOException ex) {
-                    return ex.getMessage();
-                } catch (UserNotAuthorizedException ex) {
-                    return USER_NOT_AUTHORIZED_ERROR;
+            public byte[] parse(@NonNull InputStream inputStream) throws IOException {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                int bytesRead;
+                byte[] block = new byte[READ_BLOCK_SIZE];
+                while ((bytesRead = inputStream.read(block, 0, block.length)) != -1) {
+                    buffer.write(block, 0, bytesRead);
                 }
+                return buffer.toByteArray();
             }
+        }, callback);
+    }
 
+    /**
+     * Posts to a URL, and hands the response body to the parser while it is being downloaded.
+     * Use this one for large responses, so the body is never buffered as a whole.
+     * The user is waiting for the result, so it is scheduled ahead of the other requests.
+     *
+     * @param url      The URL as a string.
+     * @param data     The request data.
+     * @param useToken If the authentication should be included.
+     * @param parser   The parser which converts the response body to the result.
+     * @param callback The callback for notifying about the result.
+     * @return The handle which can be used to cancel the request.
+     */
+    public <T> Cancellable postResource(@NonNull final String url, @Nullable final String data, final boolean useToken,
+                                        @NonNull final ResponseParser<T> parser, @NonNull final Callback<T> callback) {
+        return _startPost(url, data, useToken ? _getAccessToken() : null, RequestScheduler.Priority.USER_INITIATED, parser, callback);
+    }
+
+    /**
+     * Posts to a URL, authenticating with the given credentials, and hands the response body to the parser while it is
+     * being downloaded.
+     *
+     * @param url         The URL as a string.
+     * @param data        The request data.
+     * @param credentials The access token to authenticate with. If null, no authentication is included.
+     * @param priority    The priority of the request.
+     * @param parser      The parser which converts the response body to the result.
+     * @param callback    The callback for notifying about the result.
+     * @return The handle which can be used to cancel the request.
+     */
+    public <T> Cancellable postResource(@NonNull final String url, @Nullable final String data, @Nullable SavedToken credentials,
+                                        @NonNull RequestScheduler.Priority priority, @NonNull final ResponseParser<T> parser,
+                                        @NonNull final Callback<T> callback) {
+        return _startPost(url, data, credentials == null ? null : credentials.getAccessToken(), priority, parser, callback);
+    }
+
+    private <T> Cancellable _startPost(@NonNull final String url, @Nullable final String data, @Nullable String accessToken,
+                                       @NonNull RequestScheduler.Priority priority, @NonNull final ResponseParser<T> parser,
+                                       @NonNull final Callback<T> callback) {
+        // POST requests are never shared, so they are not added to the in-flight requests.
+        final InFlightRequest inFlightRequest = new InFlightRequest(null, _requestScheduler.newTicket(priority, _getHost(url)));
+        RequestHandle handle = new RequestHandle(inFlightRequest, callback);
+        inFlightRequest.handles.add(handle);
+        // Creating a configuration is not idempotent, so it is only retried if it did not reach the server.
+        _executeAttempt(url, inFlightRequest, false, accessToken, new Attempt<T>() {
             @Override
-            protected void onPostExecute(Object result) {
-                if (result instanceof byte[]) {
-                    callback.onSuccess((byte[])result);
-                } else if (result instanceof String) {
-                    callback.onError((String)result);
-                } else {
-                    throw new RuntimeException("Invalid result received from background task!");
-                }
+            public T run(@Nullable String accessToken) throws IOException, SerializerService.UnknownFormatException, UserNotAuthorizedException {
+                return _postResource(url, data, accessToken, parser, inFlightRequest);
             }
-        };
-        asyncTask.executeOnExecutor(EXECUTOR, accessToken);
+        }, 1);
+        return handle;
     }
 
     /**
-     * Downloads a byte resource from a URL.
+     * Posts to a URL, and parses the response while it is being downloaded.
      *
      * @param url         The URL as a string.
      * @param requestData The request data, if any.
      * @param accessToken The access token to fetch the resource with. Can be null.
-     * @return The result as a byte array.
-     * @throws IOException Thrown if there was a problem creating the connection.
-     */
-    private byte[] _fetchByteResource(@NonNull String url, @Nullable String requestData, @Nullable String accessToken) throws IOException, UserNotAuthorizedException {
-        HttpURLConnection urlConnection = _createConnection(url, accessToken);
-        urlConnection.setRequestMethod("POST");
-        if (requestData != null) {
-            OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-            out.write(requestData.getBytes("UTF-8"));
-            out.flush();
-        }
-        urlConnection.connect();
-        int statusCode = urlConnection.getResponseCode();
-        if (statusCode == STATUS_CODE_UNAUTHORIZED) {
-            throw new UserNotAuthorizedException();
-        }
-        // Get the body of the response
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int bytesRead;
-        byte[] data = new byte[READ_BLOCK_SIZE];
-        while ((bytesRead = urlConnection.getInputStream().read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, bytesRead);
-        }
-        byte[] result = buffer.toByteArray();
-        Log.d(TAG, "POST " + url + " data: '" + requestData + "': " + new String(result));
-        if (statusCode >= 200 && statusCode <= 299) {
-            return result;
-        } else {
-            throw new IOException("Unsuccessful response: " + new String(result));
+     * @param parser      The parser which converts the response body to the result.
+     * @param request     The request the connection belongs to.
+     * @return The parsed response.
+     * @throws IOException                              Thrown if there was a problem while connecting.
+     * @throws SerializerService.UnknownFormatException Thrown if the response had an unexpected format.
+     */
+    private <T> T _postResource(@NonNull String url, @Nullable String requestData, @Nullable String accessToken,
+                                @NonNull ResponseParser<T> parser, @NonNull InFlightRequest request)
+            throws IOException, SerializerService.UnknownFormatException, UserNotAuthorizedException {
+        HttpURLConnection urlConnection = _createConnection(url, accessToken, request);
+        InputStream responseBody = null;
+        boolean isCompleted = false;
+        try {
+            urlConnection.setRequestMethod("POST");
+            // The server might need a while to create the configuration, which is not predicted by the response times
+            // of the other endpoints. As the request is not retried after it was sent, it gets the longest timeout.
+            urlConnection.setReadTimeout(_rttEstimator.getReadTimeoutCeilingMs());
+            if (requestData != null) {
+                urlConnection.setDoOutput(true);
+            }
+            _connect(urlConnection);
+            if (requestData != null) {
+                OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
+                out.write(requestData.getBytes("UTF-8"));
+                out.flush();
+            }
+            int statusCode = urlConnection.getResponseCode();
+            if (statusCode == STATUS_CODE_UNAUTHORIZED) {
+                throw new UserNotAuthorizedException();
+            }
+            // The response may contain private keys, so it is never logged.
+            Log.d(TAG, "POST " + url + ": " + statusCode);
+            if (statusCode >= 200 && statusCode <= 299) {
+                responseBody = _openResponseBody(urlConnection);
+                T result = parser.parse(responseBody);
+                isCompleted = true;
+                return result;
+            } else {
+                String errorBody = _readErrorBody(urlConnection);
+                isCompleted = true;
+                throw new HttpStatusException(statusCode, "Unsuccessful response: " + errorBody);
+            }
+        } finally {
+            _releaseConnection(urlConnection, request, isCompleted);
+            _closeQuietly(responseBody);
         }
     }
 
@@ -240,15 +717,28 @@ public class APIService {
      *
      * @param urlString   The URL as a string.
      * @param accessToken The access token to fetch the resource with. Can be null.
+     * @param request     The request the connection belongs to. Cancelling the request closes the connection.
      * @return The URL connection which can be used to connect to the URL.
-     * @throws IOException Thrown if there was a problem while creating the connection.
+     * @throws IOException Thrown if there was a problem while creating the connection, or if the request was cancelled.
      */
-    private HttpURLConnection _createConnection(@NonNull String urlString, @Nullable String accessToken) throws IOException {
+    private HttpURLConnection _createConnection(@NonNull String urlString, @Nullable String accessToken,
+                                                @NonNull InFlightRequest request) throws IOException {
         URL url = new URL(urlString);
-        HttpURLConnection urlConnection = (HttpURLConnection)url.openConnection();
-        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
-        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+        _circuitBreaker.checkRequestAllowed(url.getHost());
+        HttpURLConnection urlConnection = _transport.openConnection(url);
+        request.connection = urlConnection;
+        if (request.isCancelled) {
+            // Cancelled while the connection was being opened.
+            urlConnection.disconnect();
+            throw new IOException("Request was cancelled.");
+        }
+        urlConnection.setConnectTimeout(_rttEstimator.getConnectTimeoutMs(url.getHost()));
+        urlConnection.setReadTimeout(_rttEstimator.getReadTimeoutMs(url.getHost()));
+        // Caching is done by our own cache, which also handles the authenticated requests.
+        urlConnection.setUseCaches(false);
         urlConnection.setRequestMethod("GET");
+        // Setting this header disables the transparent decompression of the connection, see _openResponseBody().
+        urlConnection.setRequestProperty(ContentDecoder.HEADER_ACCEPT_ENCODING, ContentDecoder.ACCEPT_ENCODING);
         if (accessToken != null) {
             urlConnection.setRequestProperty(HEADER_AUTHORIZATION, "Bearer " + accessToken);
         }
@@ -256,35 +746,317 @@ public class APIService {
     }
 
     /**
-     * Fetches a JSON resource from a specific URL.
+     * Connects a connection, and records the time it took.
+     * If a kept alive connection is reused, this takes almost no time. Those samples lower the estimate, but the
+     * connect timeout never goes below its floor.
      *
-     * @param url The URL as a string.
-     * @return The JSON resource if the call was successful.
-     * @throws IOException   Thrown if there was a problem while connecting.
-     * @throws JSONException Thrown if the returned JSON was invalid or not a JSON at all.
+     * @param urlConnection The connection to connect.
+     * @throws IOException Thrown if the connection could not be established.
      */
-    private JSONObject _fetchJSON(@NonNull String url, @Nullable String accessToken) throws IOException, JSONException, UserNotAuthorizedException {
-        HttpURLConnection urlConnection = _createConnection(url, accessToken);
+    private void _connect(@NonNull HttpURLConnection urlConnection) throws IOException {
+        long connectStart = SystemClock.elapsedRealtime();
         urlConnection.connect();
-        int statusCode = urlConnection.getResponseCode();
-        if (statusCode == STATUS_CODE_UNAUTHORIZED) {
-            throw new UserNotAuthorizedException();
+        _rttEstimator.recordConnectSample(urlConnection.getURL().getHost(), SystemClock.elapsedRealtime() - connectStart);
+    }
+
+    /**
+     * Fetches a resource from a specific URL, and parses it while it is being downloaded.
+     * If the resource is in the cache, it is either used right away if it is still fresh, or revalidated with the server.
+     *
+     * @param url         The URL as a string.
+     * @param accessToken The access token to fetch the resource with. Can be null.
+     * @param parser      The parser which converts the response body to the result.
+     * @param request     The request the connection belongs to.
+     * @return The parsed resource if the call was successful.
+     * @throws IOException                              Thrown if there was a problem while connecting.
+     * @throws SerializerService.UnknownFormatException Thrown if the response had an unexpected format.
+     */
+    private <T> T _fetchResource(@NonNull String url, @Nullable String accessToken, @NonNull ResponseParser<T> parser,
+                                 @NonNull InFlightRequest request) throws IOException, SerializerService.UnknownFormatException, UserNotAuthorizedException {
+        String cacheKey = HttpCache.createKey(url, accessToken);
+        HttpCache.Entry cacheEntry = _httpCache.get(cacheKey);
+        if (cacheEntry != null && cacheEntry.isFresh()) {
+            Log.d(TAG, "GET " + url + ": served from cache");
+            try {
+                return _parseCachedResource(cacheKey, cacheEntry, true, parser);
+            } catch (IOException | SerializerService.UnknownFormatException ex) {
+                // The entry has been removed, download it again.
+                Log.w(TAG, "Unable to read cached response of " + url, ex);
+                cacheEntry = null;
+            }
         }
-        // Get the body of the response
-        BufferedReader bufferedReader;
-        bufferedReader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
-        StringBuilder stringBuilder = new StringBuilder();
-        String line;
-        while ((line = bufferedReader.readLine()) != null) {
-            stringBuilder.append(line).append("\n");
+        HttpURLConnection urlConnection = _createConnection(url, accessToken, request);
+        InputStream responseBody = null;
+        boolean isCompleted = false;
+        try {
+            if (cacheEntry != null) {
+                HttpCache.addValidators(urlConnection, cacheEntry);
+            }
+            _connect(urlConnection);
+            long requestStart = SystemClock.elapsedRealtime();
+            int statusCode = urlConnection.getResponseCode();
+            _rttEstimator.recordSample(urlConnection.getURL().getHost(), SystemClock.elapsedRealtime() - requestStart);
+            if (statusCode == STATUS_CODE_UNAUTHORIZED) {
+                throw new UserNotAuthorizedException();
+            }
+            Log.d(TAG, "GET " + url + ": " + statusCode);
+            if (statusCode == STATUS_CODE_NOT_MODIFIED && cacheEntry != null) {
+                // This response has no body.
+                isCompleted = true;
+                _httpCache.updateFreshness(cacheEntry, urlConnection);
+                try {
+                    return _parseCachedResource(cacheKey, cacheEntry, false, parser);
+                } catch (IOException | SerializerService.UnknownFormatException ex) {
+                    // The entry has been removed, so this time the server sends the full response.
+                    Log.w(TAG, "Unable to read cached response of " + url, ex);
+                    return _fetchResource(url, accessToken, parser, request);
+                }
+            } else if (statusCode >= 200 && statusCode <= 299) {
+                _httpCache.recordMiss();
+                HttpCache.Writer cacheWriter = _httpCache.startWriting(cacheKey, url, urlConnection);
+                responseBody = _openResponseBody(urlConnection);
+                if (cacheWriter == null) {
+                    T result = parser.parse(responseBody);
+                    isCompleted = true;
+                    return result;
+                }
+                try {
+                    // The decoded body is cached, so the cached entries can be parsed without knowing their encoding.
+                    T result = parser.parse(cacheWriter.wrap(responseBody));
+                    isCompleted = true;
+                    return result;
+                } finally {
+                    if (isCompleted) {
+                        cacheWriter.commit();
+                    } else {
+                        cacheWriter.abort();
+                    }
+                }
+            } else {
+                String errorBody = _readErrorBody(urlConnection);
+                isCompleted = true;
+                throw new HttpStatusException(statusCode, "Unsuccessful response: " + errorBody);
+            }
+        } finally {
+            _releaseConnection(urlConnection, request, isCompleted);
+            _closeQuietly(responseBody);
         }
-        bufferedReader.close();
-        String responseString = stringBuilder.toString();
-        Log.d(TAG, "GET " + url + ": " + responseString);
-        if (statusCode >= 200 && statusCode <= 299) {
-            return new JSONObject(responseString);
+    }
+
+    /**
+     * Hands a connection back to the transport after its request has finished.
+     * The connection is only kept alive if the response was handled completely. If the request was cancelled, or the
+     * response could not be parsed, the rest of the body is not read, the socket is closed instead.
+     *
+     * @param urlConnection The connection of the request.
+     * @param request       The request the connection belongs to.
+     * @param isCompleted   True if the response was handled completely.
+     */
+    private void _releaseConnection(@NonNull HttpURLConnection urlConnection, @NonNull InFlightRequest request, boolean isCompleted) {
+        if (isCompleted && !request.isCancelled) {
+            _transport.release(urlConnection);
         } else {
-            throw new IOException("Unsuccessful response: " + responseString);
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Parses a response from the cache. If it can not be parsed, it is removed from the cache.
+     *
+     * @param cacheKey   The key of the cache entry.
+     * @param cacheEntry The cache entry.
+     * @param isFresh    True if the entry is used without revalidation, false if the server confirmed it.
+     * @param parser     The parser which converts the response body to the result.
+     * @return The parsed resource.
+     * @throws IOException                              Thrown if the entry could not be read.
+     * @throws SerializerService.UnknownFormatException Thrown if the entry had an unexpected format.
+     */
+    private <T> T _parseCachedResource(@NonNull String cacheKey, @NonNull HttpCache.Entry cacheEntry, boolean isFresh,
+                                       @NonNull ResponseParser<T> parser) throws IOException, SerializerService.UnknownFormatException {
+        InputStream inputStream = null;
+        try {
+            inputStream = _httpCache.openBody(cacheEntry, isFresh);
+            return parser.parse(inputStream);
+        } catch (IOException | SerializerService.UnknownFormatException ex) {
+            // Drop the entry, so the retry downloads it again.
+            _httpCache.remove(cacheKey);
+            throw ex;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ex) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the body of a successful response. The body is decompressed while it is read, and the received bytes are
+     * counted for the endpoint.
+     *
+     * @param urlConnection The connection which returned a successful status code.
+     * @return The stream of the decoded body.
+     * @throws IOException Thrown if the body could not be opened.
+     */
+    private InputStream _openResponseBody(@NonNull HttpURLConnection urlConnection) throws IOException {
+        return _transferStats.track(TransferStats.getEndpoint(urlConnection.getURL()), urlConnection.getInputStream(),
+                urlConnection.getContentEncoding());
+    }
+
+    /**
+     * Closes the decoded body of a response, which frees its decompressor. Called after the connection was released, so
+     * the rest of the raw body was already drained.
+     *
+     * @param inputStream The stream to close. Can be null.
+     */
+    private static void _closeQuietly(@Nullable InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ex) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Reads the body of an unsuccessful response, so it can be displayed in the error message.
+     *
+     * @param urlConnection The connection which returned an unsuccessful status code.
+     * @return The body of the response, or an empty string if there was none.
+     */
+    private String _readErrorBody(@NonNull HttpURLConnection urlConnection) {
+        InputStream errorStream = urlConnection.getErrorStream();
+        if (errorStream == null) {
+            return "";
+        }
+        InputStream decodedStream = null;
+        try {
+            decodedStream = _transferStats.track(TransferStats.getEndpoint(urlConnection.getURL()), errorStream,
+                    urlConnection.getContentEncoding());
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(decodedStream, CHARSET));
+            StringBuilder stringBuilder = new StringBuilder();
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                stringBuilder.append(line).append("\n");
+            }
+            return stringBuilder.toString();
+        } catch (IOException ex) {
+            return "";
+        } finally {
+            // The body has been read until the end, so closing it does not prevent reusing the connection.
+            _closeQuietly(decodedStream);
+        }
+    }
+
+    /**
+     * A request which is queued or on the network, together with the handles of the callers waiting for its result.
+     * The list of handles is guarded by the lock of the in-flight requests.
+     */
+    private static class InFlightRequest {
+        final String key;
+        // Replaced for each attempt, guarded by the lock of the in-flight requests.
+        volatile RequestScheduler.Ticket ticket;
+        final List<RequestHandle> handles = new ArrayList<>();
+        AsyncTask<String, Void, Object> task;
+        volatile HttpURLConnection connection;
+        volatile boolean isCancelled;
+        // The next attempt waiting for its delay to pass, if any.
+        Runnable pendingRetry;
+
+        InFlightRequest(@Nullable String key, RequestScheduler.Ticket ticket) {
+            this.key = key;
+            this.ticket = ticket;
+        }
+
+        /**
+         * Stops the request. If it is still queued it will never start, if it is already running its socket is closed.
+         */
+        void abort() {
+            isCancelled = true;
+            ticket.cancel();
+            if (task != null) {
+                task.cancel(false);
+            }
+            HttpURLConnection urlConnection = connection;
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Handle given to a single caller. Cancelling it only aborts the request if no other caller is waiting for it.
+     */
+    private class RequestHandle implements Cancellable {
+        final InFlightRequest request;
+        final Callback<?> callback;
+
+        RequestHandle(InFlightRequest request, Callback<?> callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (_inFlightRequests) {
+                if (!request.handles.remove(this) || !request.handles.isEmpty()) {
+                    // Already finished, or another caller is still waiting.
+                    return;
+                }
+                if (request.key != null && _inFlightRequests.get(request.key) == request) {
+                    _inFlightRequests.remove(request.key);
+                }
+            }
+            Log.d(TAG, "Request cancelled, aborting.");
+            request.abort();
+            Runnable pendingRetry;
+            synchronized (_inFlightRequests) {
+                pendingRetry = request.pendingRetry;
+                request.pendingRetry = null;
+            }
+            if (pendingRetry != null) {
+                _mainHandler.removeCallbacks(pendingRetry);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            synchronized (_inFlightRequests) {
+                return !request.handles.contains(this);
+            }
+        }
+    }
+
+    /**
+     * Result of a background task if the attempt failed, but the request should be tried again.
+     */
+    private static class RetryResult {
+        private final long _delayMs;
+
+        RetryResult(long delayMs) {
+            _delayMs = delayMs;
+        }
+
+        long getDelayMs() {
+            return _delayMs;
+        }
+    }
+
+    /**
+     * Result of a background task if the call was not successful.
+     */
+    private static class ErrorResult {
+        private final String _message;
+
+        ErrorResult(String message) {
+            _message = message;
+        }
+
+        String getMessage() {
+            return _message;
         }
     }
 }
@@ -0,0 +1,580 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.eduvpn.app.entity.DailyUsage;
+import nl.eduvpn.app.entity.SessionRecord;
+import nl.eduvpn.app.network.CountingInputStream;
+import nl.eduvpn.app.utils.Log;
+
+/**
+ * Stores the traffic and the connected time of the VPN sessions, per profile and per day.
+ * <p/>
+ * Finished sessions are appended to a journal, which is cheap to write. A record cut off by a crash is dropped when
+ * the journal is read. When the journal reaches {@link #COMPACTION_THRESHOLD} sessions, it is merged into the file
+ * with the daily aggregates, and a new journal is started. Days older than {@link #RETENTION_DAYS} are dropped
+ * during the compaction.
+ * <p/>
+ * The aggregates are stored as fixed-size records sorted by day, so a query for the last days only reads the end of
+ * the file instead of the whole history. Each journal has a generation number, and the aggregates file stores the
+ * generation merged into it last, so a journal is never counted twice, even if the app dies during the compaction.
+ * An aggregates file in an unknown format is moved aside instead of being overwritten.
+ * <p/>
+ * The queries read from the disk, do not call them on the main thread.
+ */
+public class AccountingService {
+
+    private static final String TAG = AccountingService.class.getName();
+
+    public static final int COMPACTION_THRESHOLD = 64;
+    public static final int RETENTION_DAYS = 400;
+
+    private static final String JOURNAL_FILE_NAME = "sessions.journal";
+    private static final String AGGREGATES_FILE_NAME = "daily.aggregates";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String UNKNOWN_FORMAT_SUFFIX = ".unknown-";
+
+    private static final int JOURNAL_FORMAT_VERSION = 1;
+    private static final int AGGREGATES_FORMAT_VERSION = 1;
+    // Day, profile index and session count as int, then seconds connected, bytes in and bytes out as long.
+    private static final int BUCKET_SIZE_BYTES = 3 * 4 + 3 * 8;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    private final File _directory;
+    private final Executor _executor;
+
+    // The sessions in the current journal, these are not in the aggregates yet.
+    private final List<SessionRecord> _journalRecords = new ArrayList<>();
+    private long _journalGeneration;
+    // False if the journal file is missing or belongs to an earlier generation. It is overwritten by the next write then.
+    private boolean _isJournalStarted = false;
+    private boolean _isInitialized = false;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to store the files in.
+     * @param executor  The executor to write the sessions on.
+     */
+    public AccountingService(@NonNull File directory, @NonNull Executor executor) {
+        _directory = directory;
+        _executor = executor;
+    }
+
+    /**
+     * Returns the day of a point in time.
+     *
+     * @param timeMs The time in milliseconds since the epoch.
+     * @return The number of days since the epoch, in the local time zone.
+     */
+    public static int getDayIndex(long timeMs) {
+        long localTime = timeMs + TimeZone.getDefault().getOffset(timeMs);
+        // Rounds towards negative infinity, unlike the division.
+        return (int)(localTime >= 0 ? localTime / DAY_MS : (localTime - DAY_MS + 1) / DAY_MS);
+    }
+
+    /**
+     * Stores a finished session. The write happens on the executor of the service.
+     *
+     * @param record The session to store.
+     */
+    public void record(@NonNull final SessionRecord record) {
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _append(record);
+            }
+        });
+    }
+
+    /**
+     * Returns the usage of all profiles on the last days.
+     *
+     * @param days The number of days to return, including today.
+     * @return The usage per profile and per day, the most recent day first.
+     */
+    @NonNull
+    public synchronized List<DailyUsage> getDailyUsage(int days) {
+        return _query(null, days);
+    }
+
+    /**
+     * Returns the usage of a profile on the last days.
+     *
+     * @param profileUUID The UUID of the profile.
+     * @param days        The number of days to return, including today.
+     * @return The usage per day, the most recent day first. Days without any sessions are not included.
+     */
+    @NonNull
+    public synchronized List<DailyUsage> getDailyUsage(@NonNull String profileUUID, int days) {
+        return _query(profileUUID, days);
+    }
+
+    private synchronized void _append(@NonNull SessionRecord record) {
+        _initializeIfNeeded();
+        try {
+            _writeJournalRecord(record);
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to write session to the journal.", ex);
+            return;
+        }
+        _journalRecords.add(record);
+        if (_journalRecords.size() >= COMPACTION_THRESHOLD) {
+            _compact();
+        }
+    }
+
+    @NonNull
+    private List<DailyUsage> _query(@Nullable String profileUUID, int days) {
+        _initializeIfNeeded();
+        int fromDay = getDayIndex(System.currentTimeMillis()) - days + 1;
+        Map<String, Bucket> buckets = new HashMap<>();
+        try {
+            _readAggregates(buckets, profileUUID, fromDay);
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to read the daily aggregates.", ex);
+        }
+        for (SessionRecord record : _journalRecords) {
+            if (profileUUID == null || profileUUID.equals(record.getProfileUUID())) {
+                _addSession(buckets, record, fromDay);
+            }
+        }
+        List<Bucket> sortedBuckets = new ArrayList<>(buckets.values());
+        Collections.sort(sortedBuckets, new Comparator<Bucket>() {
+            @Override
+            public int compare(Bucket lhs, Bucket rhs) {
+                if (lhs.day != rhs.day) {
+                    return lhs.day > rhs.day ? -1 : 1;
+                }
+                return lhs.profileUUID.compareTo(rhs.profileUUID);
+            }
+        });
+        List<DailyUsage> result = new ArrayList<>(sortedBuckets.size());
+        for (Bucket bucket : sortedBuckets) {
+            result.add(new DailyUsage(bucket.profileUUID, bucket.day, bucket.sessionCount, bucket.secondsConnected,
+                    bucket.bytesIn, bucket.bytesOut));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the journal left by the previous run. A journal which was already merged into the aggregates is deleted,
+     * and a record cut off at the end is truncated.
+     */
+    private void _initializeIfNeeded() {
+        if (_isInitialized) {
+            return;
+        }
+        _isInitialized = true;
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            Log.w(TAG, "Unable to create directory " + _directory);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        _getTempAggregatesFile().delete();
+        long mergedGeneration = _readMergedGeneration();
+        _journalGeneration = mergedGeneration + 1;
+        File journalFile = _getJournalFile();
+        if (!journalFile.isFile()) {
+            return;
+        }
+        long validLength = 0;
+        DataInputStream inputStream = null;
+        try {
+            AtomicLong readLength = new AtomicLong();
+            inputStream = new DataInputStream(new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)), readLength));
+            long generation = -1;
+            if (inputStream.readInt() == JOURNAL_FORMAT_VERSION) {
+                generation = inputStream.readLong();
+            }
+            if (generation <= mergedGeneration) {
+                Log.i(TAG, "Deleting journal which is already merged or has an unknown format.");
+                inputStream.close();
+                inputStream = null;
+                //noinspection ResultOfMethodCallIgnored
+                journalFile.delete();
+                return;
+            }
+            _journalGeneration = generation;
+            _isJournalStarted = true;
+            validLength = readLength.get();
+            while (true) {
+                SessionRecord record = new SessionRecord(inputStream.readUTF(), inputStream.readLong(),
+                        inputStream.readLong(), inputStream.readLong(), inputStream.readLong());
+                _journalRecords.add(record);
+                validLength = readLength.get();
+            }
+        } catch (EOFException ex) {
+            // End of the journal.
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to read the journal.", ex);
+        } finally {
+            _closeQuietly(inputStream);
+        }
+        if (validLength == 0) {
+            // Not even the header is complete.
+            _isJournalStarted = false;
+            //noinspection ResultOfMethodCallIgnored
+            journalFile.delete();
+        } else if (journalFile.length() > validLength) {
+            Log.w(TAG, "Truncating incomplete record at the end of the journal.");
+            _truncate(journalFile, validLength);
+        }
+        Log.i(TAG, "Read " + _journalRecords.size() + " sessions from the journal.");
+    }
+
+    private void _writeJournalRecord(@NonNull SessionRecord record) throws IOException {
+        // A journal of an earlier generation is replaced, even if it could not be deleted.
+        boolean isNew = !_isJournalStarted;
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_getJournalFile(), !isNew)));
+        try {
+            if (isNew) {
+                outputStream.writeInt(JOURNAL_FORMAT_VERSION);
+                outputStream.writeLong(_journalGeneration);
+                _isJournalStarted = true;
+            }
+            outputStream.writeUTF(record.getProfileUUID());
+            outputStream.writeLong(record.getStartTime());
+            outputStream.writeLong(record.getDurationMs());
+            outputStream.writeLong(record.getBytesIn());
+            outputStream.writeLong(record.getBytesOut());
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Merges the journal into the aggregates file, and starts a new journal.
+     * This is the only place where the whole aggregates file is read.
+     */
+    private void _compact() {
+        long startTime = System.currentTimeMillis();
+        int fromDay = getDayIndex(startTime) - RETENTION_DAYS + 1;
+        Map<String, Bucket> buckets = new HashMap<>();
+        try {
+            _readAggregates(buckets, null, fromDay);
+        } catch (IOException ex) {
+            // Keep the journal, maybe it can be merged next time.
+            Log.e(TAG, "Unable to read the daily aggregates, skipping compaction.", ex);
+            return;
+        }
+        for (SessionRecord record : _journalRecords) {
+            _addSession(buckets, record, fromDay);
+        }
+        List<Bucket> sortedBuckets = new ArrayList<>(buckets.values());
+        Collections.sort(sortedBuckets, new Comparator<Bucket>() {
+            @Override
+            public int compare(Bucket lhs, Bucket rhs) {
+                return lhs.day < rhs.day ? -1 : (lhs.day == rhs.day ? 0 : 1);
+            }
+        });
+        File tempFile = _getTempAggregatesFile();
+        try {
+            _writeAggregates(tempFile, sortedBuckets, _journalGeneration);
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to write the daily aggregates.", ex);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(_getAggregatesFile())) {
+            Log.e(TAG, "Unable to replace the daily aggregates.");
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        // From now on the journal is ignored even if it can't be deleted, because of its generation.
+        // The next write replaces it with the journal of the new generation in that case.
+        File journalFile = _getJournalFile();
+        if (!journalFile.delete() && journalFile.exists()) {
+            Log.w(TAG, "Unable to delete the merged journal, it will be overwritten.");
+        }
+        _isJournalStarted = false;
+        _journalRecords.clear();
+        _journalGeneration++;
+        Log.i(TAG, "Compacted journal into " + sortedBuckets.size() + " daily aggregates in "
+                + (System.currentTimeMillis() - startTime) + " ms.");
+    }
+
+    private static void _writeAggregates(@NonNull File file, @NonNull List<Bucket> sortedBuckets, long mergedGeneration) throws IOException {
+        Map<String, Integer> profileIndexes = new LinkedHashMap<>();
+        for (Bucket bucket : sortedBuckets) {
+            if (!profileIndexes.containsKey(bucket.profileUUID)) {
+                profileIndexes.put(bucket.profileUUID, profileIndexes.size());
+            }
+        }
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            outputStream.writeInt(AGGREGATES_FORMAT_VERSION);
+            outputStream.writeLong(mergedGeneration);
+            outputStream.writeInt(profileIndexes.size());
+            for (String profileUUID : profileIndexes.keySet()) {
+                outputStream.writeUTF(profileUUID);
+            }
+            outputStream.writeInt(sortedBuckets.size());
+            for (Bucket bucket : sortedBuckets) {
+                outputStream.writeInt(bucket.day);
+                outputStream.writeInt(profileIndexes.get(bucket.profileUUID));
+                outputStream.writeInt(bucket.sessionCount);
+                outputStream.writeLong(bucket.secondsConnected);
+                outputStream.writeLong(bucket.bytesIn);
+                outputStream.writeLong(bucket.bytesOut);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Reads the aggregates from a day on. The first of these is looked up with a binary search, and only the records
+     * after it are read.
+     *
+     * @param buckets     The map to add the aggregates to.
+     * @param profileUUID The profile to read the aggregates of, or null for all profiles.
+     * @param fromDay     The first day to read.
+     */
+    private void _readAggregates(@NonNull Map<String, Bucket> buckets, @Nullable String profileUUID, int fromDay) throws IOException {
+        File file = _getAggregatesFile();
+        if (!file.isFile()) {
+            return;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.readInt() != AGGREGATES_FORMAT_VERSION) {
+                // Normally moved aside during the initialization. Fail, so the compaction does not overwrite it.
+                throw new IOException("Unknown format of the daily aggregates.");
+            }
+            randomAccessFile.readLong(); // Merged generation
+            String[] profileUUIDs = new String[randomAccessFile.readInt()];
+            for (int i = 0; i < profileUUIDs.length; ++i) {
+                profileUUIDs[i] = randomAccessFile.readUTF();
+            }
+            int bucketCount = randomAccessFile.readInt();
+            long bucketsOffset = randomAccessFile.getFilePointer();
+            // Find the first bucket on or after the first day.
+            int low = 0;
+            int high = bucketCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                randomAccessFile.seek(bucketsOffset + (long)middle * BUCKET_SIZE_BYTES);
+                if (randomAccessFile.readInt() < fromDay) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            byte[] data = new byte[(bucketCount - low) * BUCKET_SIZE_BYTES];
+            randomAccessFile.seek(bucketsOffset + (long)low * BUCKET_SIZE_BYTES);
+            randomAccessFile.readFully(data);
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+            for (int i = low; i < bucketCount; ++i) {
+                int day = inputStream.readInt();
+                String bucketProfileUUID = profileUUIDs[inputStream.readInt()];
+                int sessionCount = inputStream.readInt();
+                long secondsConnected = inputStream.readLong();
+                long bytesIn = inputStream.readLong();
+                long bytesOut = inputStream.readLong();
+                if (profileUUID == null || profileUUID.equals(bucketProfileUUID)) {
+                    Bucket bucket = _getBucket(buckets, bucketProfileUUID, day);
+                    bucket.sessionCount += sessionCount;
+                    bucket.secondsConnected += secondsConnected;
+                    bucket.bytesIn += bytesIn;
+                    bucket.bytesOut += bytesOut;
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the generation of the last journal merged into the aggregates. If the aggregates have an unknown format,
+     * for example because they were written by a newer version of the app, they are moved aside, so they are not lost.
+     *
+     * @return The generation, or 0 if there are no aggregates yet.
+     */
+    private long _readMergedGeneration() {
+        File file = _getAggregatesFile();
+        if (!file.isFile()) {
+            return 0;
+        }
+        boolean isUnknownFormat = false;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (inputStream.readInt() == AGGREGATES_FORMAT_VERSION) {
+                return inputStream.readLong();
+            }
+            isUnknownFormat = true;
+        } catch (EOFException ex) {
+            isUnknownFormat = true;
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to read the daily aggregates.", ex);
+        } finally {
+            _closeQuietly(inputStream);
+        }
+        if (isUnknownFormat) {
+            File unknownFile = new File(_directory, AGGREGATES_FILE_NAME + UNKNOWN_FORMAT_SUFFIX + System.currentTimeMillis());
+            if (file.renameTo(unknownFile)) {
+                Log.w(TAG, "Unknown format of the daily aggregates, moved them to " + unknownFile.getName());
+            } else {
+                Log.e(TAG, "Unknown format of the daily aggregates, and unable to move them aside.");
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a session to the buckets of the days it was active on. The traffic of a session which spans midnight is
+     * divided in proportion to the time spent on each day. The days are not always 24 hours long, because of the
+     * daylight saving time changes, so each midnight is looked up in the calendar.
+     *
+     * @param buckets The buckets to add the session to.
+     * @param record  The session.
+     * @param fromDay Days before this one are skipped.
+     */
+    private static void _addSession(@NonNull Map<String, Bucket> buckets, @NonNull SessionRecord record, int fromDay) {
+        long startTime = record.getStartTime();
+        long durationMs = Math.max(0, record.getDurationMs());
+        long endTime = startTime + durationMs;
+        if (getDayIndex(endTime) < fromDay) {
+            return;
+        }
+        long segmentStart = startTime;
+        long assignedSeconds = 0;
+        long assignedBytesIn = 0;
+        long assignedBytesOut = 0;
+        Calendar calendar = Calendar.getInstance();
+        do {
+            int day = getDayIndex(segmentStart);
+            calendar.setTimeInMillis(segmentStart);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            long nextDayStart = calendar.getTimeInMillis();
+            long segmentEnd = Math.min(endTime, nextDayStart);
+            // Divide by the cumulative share, so the rounding errors don't add up.
+            double share = durationMs == 0 ? 1 : (double)(segmentEnd - startTime) / durationMs;
+            long seconds = (segmentEnd - startTime) / 1000 - assignedSeconds;
+            long bytesIn = Math.round(record.getBytesIn() * share) - assignedBytesIn;
+            long bytesOut = Math.round(record.getBytesOut() * share) - assignedBytesOut;
+            assignedSeconds += seconds;
+            assignedBytesIn += bytesIn;
+            assignedBytesOut += bytesOut;
+            if (day >= fromDay) {
+                Bucket bucket = _getBucket(buckets, record.getProfileUUID(), day);
+                bucket.sessionCount++;
+                bucket.secondsConnected += seconds;
+                bucket.bytesIn += bytesIn;
+                bucket.bytesOut += bytesOut;
+            }
+            segmentStart = segmentEnd;
+        } while (segmentStart < endTime);
+    }
+
+    @NonNull
+    private static Bucket _getBucket(@NonNull Map<String, Bucket> buckets, @NonNull String profileUUID, int day) {
+        String key = day + "/" + profileUUID;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(profileUUID, day);
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static void _truncate(@NonNull File file, long length) {
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(length);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to truncate " + file.getName(), ex);
+        }
+    }
+
+    private static void _closeQuietly(@Nullable DataInputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ex) {
+                // Ignore.
+            }
+        }
+    }
+
+    private File _getJournalFile() {
+        return new File(_directory, JOURNAL_FILE_NAME);
+    }
+
+    private File _getAggregatesFile() {
+        return new File(_directory, AGGREGATES_FILE_NAME);
+    }
+
+    private File _getTempAggregatesFile() {
+        return new File(_directory, AGGREGATES_FILE_NAME + TEMP_SUFFIX);
+    }
+
+    /**
+     * The usage of a profile on a day, while it is being summed up.
+     */
+    private static class Bucket {
+        final String profileUUID;
+        final int day;
+        int sessionCount;
+        long secondsConnected;
+        long bytesIn;
+        long bytesOut;
+
+        Bucket(String profileUUID, int day) {
+            this.profileUUID = profileUUID;
+            this.day = day;
+        }
+    }
+}
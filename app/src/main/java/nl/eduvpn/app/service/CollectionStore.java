@@ -0,0 +1,375 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import nl.eduvpn.app.utils.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stores each collection of the app state in its own file, in the binary format of the {@link SerializerService}.
+ * <p/>
+ * Each file starts with a header containing a magic number and the schema version of the payload. Writes are queued
+ * and executed on a background thread, only the last queued content of a file is written. Reads return the queued
+ * content until it has been written, so the store can be used right after a write.
+ * A file which can not be read, because it is damaged or was written by a newer version of the app, is moved aside
+ * instead of being overwritten by the next write.
+ * There is only one store per directory, use {@link #forDirectory(File)} to get it.
+ */
+public class CollectionStore {
+    private static final String TAG = CollectionStore.class.getName();
+
+    /**
+     * The schema version of the collections written by this version of the app.
+     * Increase it when the binary format changes, and convert the older versions in {@link #read(String)}.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final int MAGIC = 0x65564331; // "eVC1"
+    private static final int HEADER_SIZE = 6;
+    private static final String FILE_EXTENSION = ".bin";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+    private static final String UNKNOWN_FORMAT_SUFFIX = ".unknown-";
+
+    private static final Map<String, CollectionStore> _stores = new HashMap<>();
+
+    private final File _directory;
+    private final ExecutorService _writeExecutor = Executors.newSingleThreadExecutor();
+
+    // Guards the file operations.
+    private final Object _fileLock = new Object();
+    // Guards the pending writes. Never wait for the file lock while holding this one.
+    private final Object _pendingLock = new Object();
+    private final Map<String, byte[]> _pendingWrites = new HashMap<>();
+    // The collections of which the last write failed.
+    private final Set<String> _failedWrites = new HashSet<>();
+
+    /**
+     * Returns the store of a directory.
+     *
+     * @param directory The directory to store the collection files in.
+     * @return The store which writes to the directory.
+     */
+    @NonNull
+    public static CollectionStore forDirectory(@NonNull File directory) {
+        synchronized (_stores) {
+            String path = directory.getAbsolutePath();
+            CollectionStore store = _stores.get(path);
+            if (store == null) {
+                store = new CollectionStore(directory);
+                _stores.put(path, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to store the collection files in.
+     */
+    private CollectionStore(@NonNull File directory) {
+        _directory = directory;
+    }
+
+    /**
+     * Returns the payload of a collection.
+     *
+     * @param name The name of the collection.
+     * @return The payload, without the header. Null if the collection does not exist, is damaged, or was written by a
+     * newer version of the app. The files of the last two are moved aside.
+     */
+    @Nullable
+    public byte[] read(@NonNull String name) {
+        byte[] content;
+        synchronized (_pendingLock) {
+            content = _pendingWrites.get(name);
+        }
+        if (content == null) {
+            synchronized (_fileLock) {
+                File file = _getFile(name);
+                if (!file.exists()) {
+                    return null;
+                }
+                try {
+                    content = _readFully(file);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Unable to read collection " + name + "!", ex);
+                    return null;
+                }
+                if (!_hasKnownHeader(name, content)) {
+                    _moveAside(name);
+                    return null;
+                }
+            }
+        } else if (!_hasKnownHeader(name, content)) {
+            return null;
+        }
+        byte[] payload = new byte[content.length - HEADER_SIZE];
+        System.arraycopy(content, HEADER_SIZE, payload, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * Checks the header of a collection.
+     *
+     * @param name    The name of the collection.
+     * @param content The content of the collection, including the header.
+     * @return True if the payload can be read by this version of the app.
+     */
+    private static boolean _hasKnownHeader(@NonNull String name, @NonNull byte[] content) {
+        try {
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(content));
+            if (header.readInt() != MAGIC) {
+                Log.w(TAG, "Collection " + name + " has an unknown format.");
+                return false;
+            }
+            int version = header.readUnsignedShort();
+            if (version > SCHEMA_VERSION) {
+                Log.w(TAG, "Collection " + name + " was written with a newer schema version: " + version + ".");
+                return false;
+            }
+            // This is the place to convert the payloads of older schema versions.
+            return true;
+        } catch (IOException ex) {
+            Log.w(TAG, "Collection " + name + " has an unknown format.");
+            return false;
+        }
+    }
+
+    /**
+     * Moves the file of a collection aside, so the next write does not overwrite it. Call this if the payload returned
+     * by {@link #read(String)} could not be decoded.
+     *
+     * @param name The name of the collection.
+     */
+    public void moveAside(@NonNull String name) {
+        synchronized (_fileLock) {
+            synchronized (_pendingLock) {
+                if (_pendingWrites.containsKey(name)) {
+                    // The payload was not read from the file, and the file is about to be replaced anyway.
+                    return;
+                }
+            }
+            if (_getFile(name).exists()) {
+                _moveAside(name);
+            }
+        }
+    }
+
+    /**
+     * Renames the file of a collection, so it is kept for a newer version of the app or for recovery. Should be called
+     * while holding the file lock.
+     *
+     * @param name The name of the collection.
+     */
+    private void _moveAside(@NonNull String name) {
+        File unknownFile = new File(_directory, name + FILE_EXTENSION + UNKNOWN_FORMAT_SUFFIX + System.currentTimeMillis());
+        if (_getFile(name).renameTo(unknownFile)) {
+            Log.w(TAG, "Moved collection " + name + " to " + unknownFile.getName() + ".");
+        } else {
+            Log.e(TAG, "Unable to move collection " + name + " aside, it will be overwritten.");
+        }
+    }
+
+    /**
+     * Queues writing a collection. Returns right away, the file is written on a background thread.
+     *
+     * @param name    The name of the collection.
+     * @param payload The payload to write, in the current schema version.
+     */
+    public void write(@NonNull final String name, @NonNull byte[] payload) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+        DataOutputStream dataOutputStream = new DataOutputStream(content);
+        try {
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeShort(SCHEMA_VERSION);
+            dataOutputStream.write(payload);
+        } catch (IOException ex) {
+            // Does not happen when writing to memory.
+            throw new IllegalStateException(ex);
+        }
+        synchronized (_pendingLock) {
+            _pendingWrites.put(name, content.toByteArray());
+        }
+        _writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _writePending(name);
+            }
+        });
+    }
+
+    /**
+     * Writes the last queued content of a collection, if it was not written yet. Called on the write thread.
+     *
+     * @param name The name of the collection.
+     */
+    private void _writePending(@NonNull String name) {
+        synchronized (_fileLock) {
+            byte[] content;
+            synchronized (_pendingLock) {
+                content = _pendingWrites.get(name);
+            }
+            if (content == null) {
+                // Already written by an earlier task, or the store was cleared.
+                return;
+            }
+            File file = _getFile(name);
+            File tempFile = new File(_directory, name + TEMP_FILE_EXTENSION);
+            boolean isWritten = false;
+            try {
+                if (!_directory.exists() && !_directory.mkdirs()) {
+                    throw new IOException("Unable to create directory " + _directory + "!");
+                }
+                FileOutputStream outputStream = new FileOutputStream(tempFile);
+                try {
+                    outputStream.write(content);
+                    outputStream.getFD().sync();
+                } finally {
+                    outputStream.close();
+                }
+                // Renaming replaces the file at once, so a crash never leaves a partially written collection behind.
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tempFile + "!");
+                }
+                isWritten = true;
+            } catch (IOException ex) {
+                Log.e(TAG, "Unable to write collection " + name + "!", ex);
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+            synchronized (_pendingLock) {
+                if (_pendingWrites.get(name) == content) {
+                    _pendingWrites.remove(name);
+                }
+                if (isWritten) {
+                    _failedWrites.remove(name);
+                } else {
+                    _failedWrites.add(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all queued writes have been written to the files.
+     *
+     * @return The names of the collections of which the last write failed. Their files still contain the content
+     * before that write.
+     */
+    @NonNull
+    public Set<String> sync() {
+        Future<?> future = _writeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Only used to wait for the tasks queued before.
+            }
+        });
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Log.e(TAG, "Unable to wait for the queued writes!", ex);
+        }
+        synchronized (_pendingLock) {
+            return new HashSet<>(_failedWrites);
+        }
+    }
+
+    /**
+     * Returns the size of a collection file.
+     *
+     * @param name The name of the collection.
+     * @return The size of the file in bytes, or 0 if it does not exist (yet).
+     */
+    public long getFileSize(@NonNull String name) {
+        synchronized (_fileLock) {
+            return _getFile(name).length();
+        }
+    }
+
+    /**
+     * Removes all collections, including the queued writes.
+     */
+    public void clear() {
+        synchronized (_fileLock) {
+            synchronized (_pendingLock) {
+                _pendingWrites.clear();
+                _failedWrites.clear();
+            }
+            File[] files = _directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "Unable to delete " + file + ".");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file of a collection.
+     *
+     * @param name The name of the collection.
+     * @return The file the collection is stored in.
+     */
+    private File _getFile(@NonNull String name) {
+        return new File(_directory, name + FILE_EXTENSION);
+    }
+
+    /**
+     * Reads the whole content of a file.
+     *
+     * @param file The file to read.
+     * @return The content of the file.
+     * @throws IOException Thrown if the file could not be read.
+     */
+    private static byte[] _readFully(@NonNull File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int)file.length()];
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            dataInputStream.readFully(content);
+            return content;
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -19,20 +19,19 @@ package nl.eduvpn.app.service;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
+import android.util.JsonReader;
 
 import nl.eduvpn.app.BuildConfig;
 import nl.eduvpn.app.entity.InstanceList;
 import nl.eduvpn.app.utils.Log;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Observable;
 
 /**
@@ -49,12 +48,14 @@ public class ConfigurationService extends Observable {
 
     private Context _context;
     private SerializerService _serializerService;
+    private APIService _apiService;
 
     private InstanceList _instanceList;
 
-    public ConfigurationService(Context context, SerializerService serializerService) {
+    public ConfigurationService(Context context, SerializerService serializerService, APIService apiService) {
         _context = context;
         _serializerService = serializerService;
+        _apiService = apiService;
         _loadSavedInstanceList();
         _fetchLatestConfiguration();
     }
@@ -78,7 +79,7 @@ public class ConfigurationService extends Observable {
         String savedInstanceList = _getPreferences().getString(INSTANCE_LIST_KEY, null);
         try {
             if (savedInstanceList != null) {
-                _instanceList = _parseInstanceList(savedInstanceList);
+                _instanceList = _parseInstanceList(new StringReader(savedInstanceList));
                 return;
             }
         } catch (Exception ex) {
@@ -86,17 +87,13 @@ public class ConfigurationService extends Observable {
         }
         // No saved instance list, or error while parsing.
         // Load hardcoded backup.
-        String hardcodedInstanceList;
         try {
             InputStream instanceListStream = _context.getAssets().open(INSTANCE_LIST_ASSET);
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(instanceListStream));
-            StringBuilder stringBuilder = new StringBuilder();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                stringBuilder.append(line).append('\n');
+            try {
+                _instanceList = _parseInstanceList(new InputStreamReader(instanceListStream, "UTF-8"));
+            } finally {
+                instanceListStream.close();
             }
-            hardcodedInstanceList = stringBuilder.toString();
-            _instanceList = _parseInstanceList(hardcodedInstanceList);
             _saveInstanceList();
         } catch (Exception ex) {
             throw new RuntimeException("Error reading default asset file!", ex);
@@ -120,58 +117,34 @@ public class ConfigurationService extends Observable {
     }
 
     /**
-     * Parses the JSON string of the instance list to a POJO object.
+     * Parses the JSON of the instance list to a POJO object.
      *
-     * @param instanceListString The string with the JSON representation.
+     * @param instanceListReader The reader which provides the JSON representation.
      * @return An InstanceList object containing the same information.
-     * @throws JSONException Thrown if the JSON was malformed or had an unknown list version.
+     * @throws IOException                              Thrown if the JSON could not be read.
+     * @throws SerializerService.UnknownFormatException Thrown if the JSON was malformed or had an unknown list version.
      */
-    private InstanceList _parseInstanceList(String instanceListString) throws Exception {
-        JSONObject instanceListJson = new JSONObject(instanceListString);
-        return _serializerService.deserializeInstanceList(instanceListJson);
+    private InstanceList _parseInstanceList(Reader instanceListReader) throws IOException, SerializerService.UnknownFormatException {
+        return _serializerService.deserializeInstanceList(new JsonReader(instanceListReader));
     }
 
     /**
      * Downloads, parses, and saves the latest configuration retrieved from the URL defined in the build configuration.
      */
     private void _fetchLatestConfiguration() {
-        AsyncTask<Void, Void, InstanceList> downloadTask = new AsyncTask<Void, Void, InstanceList>() {
+        _apiService.getInstanceList(BuildConfig.INSTANCE_LIST_URL, new APIService.Callback<InstanceList>() {
             @Override
-            protected InstanceList doInBackground(Void... params) {
-                try {
-                    URL url = new URL(BuildConfig.INSTANCE_LIST_URL);
-                    HttpURLConnection urlConnection = (HttpURLConnection)url.openConnection();
-                    urlConnection.setRequestMethod("GET");
-                    urlConnection.setConnectTimeout(10000);
-                    urlConnection.setReadTimeout(10000);
-                    urlConnection.connect();
-                    InputStream inputStream = urlConnection.getInputStream();
-                    BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-                    StringBuilder stringBuilder = new StringBuilder();
-                    String line;
-                    while ((line = bufferedReader.readLine()) != null) {
-                        stringBuilder.append(line).append('\n');
-                    }
-                    String instanceList = stringBuilder.toString();
-                    return  _parseInstanceList(instanceList);
-                } catch (Exception ex) {
-                    Log.w(TAG, "Error reading latest configuration from the URL!", ex);
-                    return null;
-                }
+            public void onSuccess(InstanceList instanceList) {
+                _instanceList = instanceList;
+                _saveInstanceList();
+                setChanged();
+                notifyObservers();
             }
 
             @Override
-            protected void onPostExecute(InstanceList instanceList) {
-                if (instanceList != null) {
-                    _instanceList = instanceList;
-                    _saveInstanceList();
-                    setChanged();
-                    notifyObservers();
-                }
+            public void onError(String errorMessage) {
+                Log.w(TAG, "Error reading latest configuration from the URL: " + errorMessage);
             }
-        };
-        downloadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
-
-
 }
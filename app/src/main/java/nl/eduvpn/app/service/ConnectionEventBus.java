@@ -0,0 +1,268 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import nl.eduvpn.app.entity.ConnectionMetadata;
+import nl.eduvpn.app.entity.ConnectionStatistics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the events of the VPN connection to any number of subscribers.
+ * Each topic remembers its last value, which is delivered to new subscribers right away, so they never have to ask
+ * for the current state separately. Subscribers choose the executor their events are delivered on.
+ * Events are values describing the current state, so a subscriber never receives an event older than the one it
+ * already received, even if the executor runs the deliveries out of order.
+ * Publishing and subscribing do not lock, they can be done from any thread.
+ */
+public class ConnectionEventBus {
+
+    /**
+     * A type of event.
+     *
+     * @param <T> The type of the values published on the topic.
+     */
+    public static final class Topic<T> {
+        private final String _name;
+
+        private Topic(@NonNull String name) {
+            _name = name;
+        }
+
+        @Override
+        public String toString() {
+            return _name;
+        }
+    }
+
+    public static final Topic<VPNService.VPNStatus> STATUS = new Topic<>("status");
+    public static final Topic<ConnectionStatistics> STATISTICS = new Topic<>("statistics");
+    public static final Topic<ConnectionMetadata> METADATA = new Topic<>("metadata");
+
+    /**
+     * Executes the deliveries on the publishing thread.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Receives the events of a topic.
+     *
+     * @param <T> The type of the events.
+     */
+    public interface Subscriber<T> {
+        void onEvent(@NonNull T event);
+    }
+
+    /**
+     * Returned when subscribing, can be used to stop receiving events.
+     */
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    private final TopicState<VPNService.VPNStatus> _statusState = new TopicState<>();
+    private final TopicState<ConnectionStatistics> _statisticsState = new TopicState<>();
+    private final TopicState<ConnectionMetadata> _metadataState = new TopicState<>();
+
+    private final Executor _mainThreadExecutor;
+
+    /**
+     * Constructor.
+     *
+     * @param mainThreadHandler The handler of the main thread, used by {@link #getMainThreadExecutor()}.
+     */
+    public ConnectionEventBus(@NonNull final Handler mainThreadHandler) {
+        _mainThreadExecutor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable runnable) {
+                mainThreadHandler.post(runnable);
+            }
+        };
+    }
+
+    /**
+     * Returns the executor which delivers the events on the main thread. Use this one for updating the UI.
+     *
+     * @return The executor.
+     */
+    @NonNull
+    public Executor getMainThreadExecutor() {
+        return _mainThreadExecutor;
+    }
+
+    /**
+     * Subscribes to a topic. If the topic already has a value, it is delivered right away.
+     *
+     * @param topic      The topic to subscribe to.
+     * @param executor   The executor to deliver the events on.
+     * @param subscriber The subscriber.
+     * @return The subscription, which should be cancelled when the events are not needed anymore.
+     */
+    @NonNull
+    public <T> Subscription subscribe(@NonNull Topic<T> topic, @NonNull Executor executor, @NonNull Subscriber<T> subscriber) {
+        final TopicState<T> state = _getState(topic);
+        final Registration<T> registration = new Registration<>(executor, subscriber);
+        state.registrations.add(registration);
+        Event<T> lastEvent = state.lastEvent.get();
+        if (lastEvent != null) {
+            registration.deliver(lastEvent);
+        }
+        Runnable subscribeListener = state.subscribeListener;
+        if (subscribeListener != null) {
+            subscribeListener.run();
+        }
+        return new Subscription() {
+            @Override
+            public void unsubscribe() {
+                registration.isActive = false;
+                state.registrations.remove(registration);
+            }
+        };
+    }
+
+    /**
+     * Publishes a new value on a topic.
+     *
+     * @param topic The topic.
+     * @param value The new value.
+     */
+    public <T> void publish(@NonNull Topic<T> topic, @NonNull T value) {
+        TopicState<T> state = _getState(topic);
+        Event<T> event = new Event<>(value, state.sequence.incrementAndGet());
+        // Concurrent publishers may get here out of order, the newest value should stay as the last one.
+        Event<T> lastEvent;
+        do {
+            lastEvent = state.lastEvent.get();
+            if (lastEvent != null && lastEvent.sequence > event.sequence) {
+                break;
+            }
+        } while (!state.lastEvent.compareAndSet(lastEvent, event));
+        for (Registration<T> registration : state.registrations) {
+            registration.deliver(event);
+        }
+    }
+
+    /**
+     * Returns the last value published on a topic.
+     *
+     * @param topic The topic.
+     * @return The last value, or null if nothing was published yet.
+     */
+    @Nullable
+    public <T> T getLastValue(@NonNull Topic<T> topic) {
+        Event<T> lastEvent = _getState(topic).lastEvent.get();
+        return lastEvent == null ? null : lastEvent.value;
+    }
+
+    /**
+     * Returns if a topic has any subscribers. Publishers can use this to skip producing values nobody is interested in.
+     *
+     * @param topic The topic.
+     * @return True if there is at least one subscriber.
+     */
+    public boolean hasSubscribers(@NonNull Topic<?> topic) {
+        return !_getState(topic).registrations.isEmpty();
+    }
+
+    /**
+     * Sets a listener which is called after a new subscriber was added to a topic.
+     * Useful for publishers which only produce values while there are subscribers.
+     *
+     * @param topic    The topic.
+     * @param listener The listener, called on the thread of the subscriber. Use null to remove it.
+     */
+    public void setSubscribeListener(@NonNull Topic<?> topic, @Nullable Runnable listener) {
+        _getState(topic).subscribeListener = listener;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> TopicState<T> _getState(@NonNull Topic<T> topic) {
+        if (topic == STATUS) {
+            return (TopicState<T>)_statusState;
+        } else if (topic == STATISTICS) {
+            return (TopicState<T>)_statisticsState;
+        } else if (topic == METADATA) {
+            return (TopicState<T>)_metadataState;
+        }
+        throw new IllegalArgumentException("Unknown topic: " + topic);
+    }
+
+    /**
+     * A published value with its position in the order of the topic.
+     */
+    private static class Event<T> {
+        final T value;
+        final long sequence;
+
+        Event(T value, long sequence) {
+            this.value = value;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class TopicState<T> {
+        final List<Registration<T>> registrations = new CopyOnWriteArrayList<>();
+        final AtomicReference<Event<T>> lastEvent = new AtomicReference<>();
+        final AtomicLong sequence = new AtomicLong();
+        volatile Runnable subscribeListener;
+    }
+
+    private static class Registration<T> {
+        final Executor executor;
+        final Subscriber<T> subscriber;
+        final AtomicLong lastDeliveredSequence = new AtomicLong();
+        volatile boolean isActive = true;
+
+        Registration(Executor executor, Subscriber<T> subscriber) {
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        void deliver(final Event<T> event) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isActive) {
+                        return;
+                    }
+                    // Skip the event if a newer one has been delivered already.
+                    long lastSequence;
+                    do {
+                        lastSequence = lastDeliveredSequence.get();
+                        if (event.sequence <= lastSequence) {
+                            return;
+                        }
+                    } while (!lastDeliveredSequence.compareAndSet(lastSequence, event.sequence));
+                    subscriber.onEvent(event.value);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import nl.eduvpn.app.utils.LatencyHistogram;
+
+/**
+ * Measures how long establishing the VPN connection takes, in total and per phase.
+ * <p/>
+ * The durations are collected in histograms per profile and per transport, so they use a fixed amount of memory.
+ * Only the {@link #MAX_PROFILES} most recently used profiles are kept. The timestamps are expected to come from a
+ * monotonic clock, such as {@link android.os.SystemClock#elapsedRealtime()}.
+ */
+public class ConnectionTimingService {
+
+    /**
+     * The phases of establishing a connection, in order. The duration of a phase is the time until the next one
+     * is reached.
+     */
+    public enum Phase {
+        REQUESTED, STARTED, WAITING_FOR_SERVER, SERVER_REPLIED, CONNECTED
+    }
+
+    public enum Transport {
+        UDP, TCP
+    }
+
+    public static final int MAX_PROFILES = 16;
+
+    private static final double[] DUMP_PERCENTILES = { 50, 90, 99 };
+
+    /**
+     * The histograms of a profile or a transport.
+     */
+    public static class Timings {
+        private final LatencyHistogram _timeToConnect = new LatencyHistogram();
+        // Indexed by the ordinal of the phase. The last phase has no duration.
+        private final LatencyHistogram[] _phaseDurations = new LatencyHistogram[Phase.values().length - 1];
+        private long _failedCount;
+
+        Timings() {
+            for (int i = 0; i < _phaseDurations.length; ++i) {
+                _phaseDurations[i] = new LatencyHistogram();
+            }
+        }
+
+        @NonNull
+        public LatencyHistogram getTimeToConnect() {
+            return _timeToConnect;
+        }
+
+        /**
+         * Returns the durations of a phase.
+         *
+         * @param phase The phase, can't be {@link Phase#CONNECTED}.
+         * @return The histogram of the durations.
+         */
+        @NonNull
+        public LatencyHistogram getPhaseDuration(@NonNull Phase phase) {
+            return _phaseDurations[phase.ordinal()];
+        }
+
+        /**
+         * Returns the number of attempts which did not reach the connected phase.
+         *
+         * @return The number of failed attempts.
+         */
+        public synchronized long getFailedCount() {
+            return _failedCount;
+        }
+
+        private synchronized void _onFailed() {
+            _failedCount++;
+        }
+    }
+
+    private final Map<Transport, Timings> _transportTimings = new EnumMap<>(Transport.class);
+    private final LinkedHashMap<String, Timings> _profileTimings = new LinkedHashMap<String, Timings>(MAX_PROFILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Timings> eldest) {
+            return size() > MAX_PROFILES;
+        }
+    };
+
+    // The current attempt. The profile and the transport are kept after it ends, for the automatic reconnects.
+    private String _profileUUID;
+    private Transport _transport;
+    private boolean _isAttemptActive = false;
+    private long _attemptStartTime;
+    private Phase _currentPhase;
+    private long _currentPhaseStartTime;
+
+    /**
+     * Constructor.
+     */
+    public ConnectionTimingService() {
+        for (Transport transport : Transport.values()) {
+            _transportTimings.put(transport, new Timings());
+        }
+    }
+
+    /**
+     * Call this when the user starts connecting to a profile. Aborts the previous attempt if there is one.
+     *
+     * @param profileUUID The UUID of the profile.
+     * @param transport   The transport the connection will use.
+     * @param timeMs      The current time in milliseconds.
+     */
+    public synchronized void onConnectRequested(@NonNull String profileUUID, @NonNull Transport transport, long timeMs) {
+        onAborted();
+        _profileUUID = profileUUID;
+        _transport = transport;
+        _startAttempt(Phase.REQUESTED, timeMs);
+    }
+
+    /**
+     * Call this when the connection reaches a new phase. The duration of the previous phase is recorded.
+     * If there is no attempt yet, this is an automatic reconnect, which is counted for the last profile.
+     *
+     * @param phase  The phase reached.
+     * @param timeMs The current time in milliseconds.
+     */
+    public synchronized void onPhaseReached(@NonNull Phase phase, long timeMs) {
+        if (!_isAttemptActive) {
+            if (_profileUUID != null && phase != Phase.CONNECTED) {
+                _startAttempt(phase, timeMs);
+            }
+            return;
+        }
+        if (phase.ordinal() <= _currentPhase.ordinal()) {
+            // OpenVPN is retrying, the time spent so far only counts for the total.
+            _currentPhase = phase;
+            _currentPhaseStartTime = timeMs;
+            return;
+        }
+        long phaseDuration = timeMs - _currentPhaseStartTime;
+        Timings profileTimings = _getProfileTimings();
+        Timings transportTimings = _transportTimings.get(_transport);
+        profileTimings.getPhaseDuration(_currentPhase).record(phaseDuration);
+        transportTimings.getPhaseDuration(_currentPhase).record(phaseDuration);
+        _currentPhase = phase;
+        _currentPhaseStartTime = timeMs;
+        if (phase == Phase.CONNECTED) {
+            long timeToConnect = timeMs - _attemptStartTime;
+            profileTimings.getTimeToConnect().record(timeToConnect);
+            transportTimings.getTimeToConnect().record(timeToConnect);
+            _isAttemptActive = false;
+        }
+    }
+
+    /**
+     * Call this when the connection failed or was cancelled. The current attempt is counted as failed.
+     */
+    public synchronized void onAborted() {
+        if (!_isAttemptActive) {
+            return;
+        }
+        _getProfileTimings()._onFailed();
+        _transportTimings.get(_transport)._onFailed();
+        _isAttemptActive = false;
+    }
+
+    /**
+     * Returns the timings of a profile.
+     *
+     * @param profileUUID The UUID of the profile.
+     * @return The timings, or null if the profile has no measurements.
+     */
+    @Nullable
+    public synchronized Timings getProfileTimings(@NonNull String profileUUID) {
+        return _profileTimings.get(profileUUID);
+    }
+
+    /**
+     * Returns the timings of all connections using a transport.
+     *
+     * @param transport The transport.
+     * @return The timings.
+     */
+    @NonNull
+    public Timings getTransportTimings(@NonNull Transport transport) {
+        return _transportTimings.get(transport);
+    }
+
+    /**
+     * Creates a human readable report of all timings, which can be shared for diagnosing connection problems.
+     *
+     * @return The report.
+     */
+    @NonNull
+    public synchronized String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Connection timings in ms\n");
+        for (Transport transport : Transport.values()) {
+            builder.append("\n[Transport ").append(transport.name()).append("]\n");
+            _dumpTimings(builder, _transportTimings.get(transport));
+        }
+        for (Map.Entry<String, Timings> entry : _profileTimings.entrySet()) {
+            builder.append("\n[Profile ").append(entry.getKey()).append("]\n");
+            _dumpTimings(builder, entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    private void _startAttempt(@NonNull Phase phase, long timeMs) {
+        _isAttemptActive = true;
+        _attemptStartTime = timeMs;
+        _currentPhase = phase;
+        _currentPhaseStartTime = timeMs;
+    }
+
+    @NonNull
+    private Timings _getProfileTimings() {
+        Timings timings = _profileTimings.get(_profileUUID);
+        if (timings == null) {
+            timings = new Timings();
+            _profileTimings.put(_profileUUID, timings);
+        }
+        return timings;
+    }
+
+    private static void _dumpTimings(@NonNull StringBuilder builder, @NonNull Timings timings) {
+        builder.append(String.format(Locale.US, "connected: %d, failed: %d\n",
+                timings.getTimeToConnect().getCount(), timings.getFailedCount()));
+        _dumpHistogram(builder, "time to connect", timings.getTimeToConnect());
+        for (int i = 0; i < Phase.values().length - 1; ++i) {
+            Phase phase = Phase.values()[i];
+            _dumpHistogram(builder, phase.name().toLowerCase(Locale.US), timings.getPhaseDuration(phase));
+        }
+    }
+
+    private static void _dumpHistogram(@NonNull StringBuilder builder, @NonNull String label, @NonNull LatencyHistogram histogram) {
+        builder.append(String.format(Locale.US, "%-20s n=%d mean=%d", label, histogram.getCount(), histogram.getMean()));
+        for (double percentile : DUMP_PERCENTILES) {
+            builder.append(String.format(Locale.US, " p%.0f=%d", percentile, histogram.getPercentile(percentile)));
+        }
+        builder.append(String.format(Locale.US, " max=%d\n", histogram.getMax()));
+    }
+}
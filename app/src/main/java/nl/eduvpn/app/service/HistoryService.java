@@ -17,24 +17,47 @@
 
 package nl.eduvpn.app.service;
 
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
 import nl.eduvpn.app.entity.SavedProfile;
 import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.utils.IndexedList;
 import nl.eduvpn.app.utils.Log;
 import nl.eduvpn.app.utils.TTLCache;
+import nl.eduvpn.app.utils.UpdateThrottle;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * Service which stores previously used access token and profile names.
  * This allows us to skip some steps, which will make the user experience more fluid.
+ * <p/>
+ * Changes are written behind: each change marks its collection as dirty, and the dirty collections are saved together
+ * after {@link #WRITE_BEHIND_DELAY_MS}. Call {@link #flush()} to save them right away, for example when the app goes
+ * to the background.
+ * <p/>
+ * The saved state is loaded on a background thread, so creating the service does not block the main thread. Methods
+ * which are called before the loading has finished wait for it. The screens which need the state right away should
+ * use {@link #runWhenLoaded(Runnable)} instead, so the main thread does not wait.
+ * <p/>
+ * Saved tokens and profiles are indexed by the sanitized base URI of their provider, and saved profiles also by their
+ * profile ID, so the lookups do not have to scan all entries.
  * Created by Daniel Zolnai on 2016-10-20.
  */
 public class HistoryService {
@@ -42,54 +65,268 @@ public class HistoryService {
 
     private static final Long DISCOVERED_API_CACHE_TTL_SECONDS = 30 * 24 * 3600L; // 30 days
 
+    public static final long WRITE_BEHIND_DELAY_MS = 2000;
+
+    // Flags of the collections which have unsaved changes.
+    private static final int COLLECTION_DISCOVERED_API_CACHE = 1;
+    private static final int COLLECTION_SAVED_PROFILES = 1 << 1;
+    private static final int COLLECTION_SAVED_TOKENS = 1 << 2;
+    private static final int COLLECTION_PROFILE_LIST_CACHE = 1 << 3;
+
+    private static final IndexedList.KeyFunction<SavedProfile> SAVED_PROFILE_BASE_URI = new IndexedList.KeyFunction<SavedProfile>() {
+        @NonNull
+        @Override
+        public String getKey(@NonNull SavedProfile savedProfile) {
+            return savedProfile.getInstance().getSanitizedBaseURI();
+        }
+    };
+
+    private static final IndexedList.KeyFunction<SavedProfile> SAVED_PROFILE_ID = new IndexedList.KeyFunction<SavedProfile>() {
+        @NonNull
+        @Override
+        public String getKey(@NonNull SavedProfile savedProfile) {
+            return savedProfile.getProfile().getProfileId();
+        }
+    };
+
+    private static final IndexedList.KeyFunction<SavedToken> SAVED_TOKEN_BASE_URI = new IndexedList.KeyFunction<SavedToken>() {
+        @NonNull
+        @Override
+        public String getKey(@NonNull SavedToken savedToken) {
+            return savedToken.getInstance().getSanitizedBaseURI();
+        }
+    };
+
     private TTLCache<DiscoveredAPI> _discoveredAPICache;
-    private List<SavedProfile> _savedProfileList;
-    private List<SavedToken> _savedTokenList;
+    private IndexedList<SavedProfile> _savedProfiles;
+    private IndexedList<SavedToken> _savedTokens;
+    private Map<String, List<Profile>> _profileListCache;
 
     private PreferencesService _preferencesService;
 
+    private final Handler _handler;
+    private final FutureTask<Void> _loadTask;
+    // Runnables waiting for the load. Only accessed on the main thread.
+    private final List<Runnable> _loadedRunnables = new ArrayList<>();
+    private final UpdateThrottle _saveThrottle;
+    private int _dirtyCollections = 0;
+
     /**
      * Constructor.
      *
      * @param preferencesService The preferences service which stores the app state.
+     * @param handler            The handler of the main thread, the delayed saves are executed on it.
+     * @param executor           The executor which loads the saved state in the background.
      */
-    public HistoryService(@NonNull PreferencesService preferencesService) {
+    public HistoryService(@NonNull PreferencesService preferencesService, @NonNull Handler handler, @NonNull Executor executor) {
         _preferencesService = preferencesService;
-        _load();
-        _discoveredAPICache.purge();
-        // Save it immediately, because we just did a purge.
-        // (It is better to purge at app start, since we do have some time now).
-        _save();
+        _handler = handler;
+        _saveThrottle = new UpdateThrottle(handler, WRITE_BEHIND_DELAY_MS, new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+        _loadTask = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                _load();
+                return null;
+            }
+        }) {
+            @Override
+            protected void done() {
+                _handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        _runLoadedRunnables();
+                    }
+                });
+            }
+        };
+        executor.execute(_loadTask);
     }
 
     /**
-     * Loads the state of the service.
+     * Loads the state of the service, and purges the expired entries. Called on a background thread.
      */
     private void _load() {
-        _savedProfileList = _preferencesService.getSavedProfileList();
-        if (_savedProfileList == null) {
-            _savedProfileList = new ArrayList<>();
+        long startTime = SystemClock.elapsedRealtime();
+        int dirtyCollections = 0;
+        // Saved profiles and tokens share the instances in this table.
+        Map<String, Instance> instanceTable = _preferencesService.getInstanceTable();
+        boolean hasInstanceTable = instanceTable != null;
+        if (!hasInstanceTable) {
+            instanceTable = new HashMap<>();
+        }
+        List<SavedProfile> savedProfileList = _preferencesService.getSavedProfileList(instanceTable);
+        if (savedProfileList == null) {
+            _savedProfiles = new IndexedList<>(SAVED_PROFILE_BASE_URI, SAVED_PROFILE_ID);
             Log.i(TAG, "No saved profiles found.");
+        } else {
+            _savedProfiles = new IndexedList<>(savedProfileList, SAVED_PROFILE_BASE_URI, SAVED_PROFILE_ID);
         }
-        _savedTokenList = _preferencesService.getSavedTokenList();
-        if (_savedTokenList == null) {
-            _savedTokenList = new ArrayList<>();
+        List<SavedToken> savedTokenList = _preferencesService.getSavedTokenList(instanceTable);
+        if (savedTokenList == null) {
+            _savedTokens = new IndexedList<>(SAVED_TOKEN_BASE_URI, null);
             Log.i(TAG, "No saved tokens found.");
+        } else {
+            _savedTokens = new IndexedList<>(savedTokenList, SAVED_TOKEN_BASE_URI, null);
+        }
+        if (!hasInstanceTable && (savedProfileList != null || savedTokenList != null)) {
+            // Saved in the previous format, which stored the instance in each entry. Convert them soon.
+            dirtyCollections |= COLLECTION_SAVED_PROFILES | COLLECTION_SAVED_TOKENS;
         }
         _discoveredAPICache = _preferencesService.getDiscoveredAPICache();
         if (_discoveredAPICache == null) {
             Log.i(TAG, "No discovered API cache found.");
             _discoveredAPICache = new TTLCache<>(DISCOVERED_API_CACHE_TTL_SECONDS);
         }
+        _profileListCache = _preferencesService.getProfileListCache();
+        if (_profileListCache == null) {
+            Log.i(TAG, "No profile list cache found.");
+            _profileListCache = new LinkedHashMap<>();
+        }
+        // It is better to purge at app start, since we do have some time now.
+        if (_discoveredAPICache.purge() > 0) {
+            // Save it soon, because we just did a purge.
+            dirtyCollections |= COLLECTION_DISCOVERED_API_CACHE;
+        }
+        if (dirtyCollections != 0) {
+            // The dirty flags are only touched on the main thread.
+            final int collections = dirtyCollections;
+            _handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    _markDirty(collections);
+                }
+            });
+        }
+        Log.i(TAG, "History loaded in " + (SystemClock.elapsedRealtime() - startTime) + " ms.");
+    }
+
+    /**
+     * Returns if the saved state has been loaded already. If not, the next call to the service will wait for it.
+     *
+     * @return True if the state is loaded.
+     */
+    public boolean isLoaded() {
+        return _loadTask.isDone();
+    }
+
+    /**
+     * Runs a runnable on the main thread once the saved state has been loaded, so the main thread does not have to wait
+     * for it. Runs it right away if the state is loaded already. Should be called on the main thread.
+     *
+     * @param runnable The runnable to run.
+     */
+    public void runWhenLoaded(@NonNull Runnable runnable) {
+        if (isLoaded()) {
+            runnable.run();
+        } else {
+            _loadedRunnables.add(runnable);
+        }
+    }
+
+    private void _runLoadedRunnables() {
+        List<Runnable> runnables = new ArrayList<>(_loadedRunnables);
+        _loadedRunnables.clear();
+        for (Runnable runnable : runnables) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Waits until the saved state has been loaded. Returns right away once it is loaded.
+     * Calling this before accessing the state also makes the changes of the loading thread visible.
+     */
+    private void _awaitLoaded() {
+        boolean wasLoaded = _loadTask.isDone();
+        long startTime = SystemClock.elapsedRealtime();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    _loadTask.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Unable to load the history!", ex.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!wasLoaded) {
+            Log.i(TAG, "Waited " + (SystemClock.elapsedRealtime() - startTime) + " ms for the history to load.");
+        }
     }
 
     /**
-     * Saves the state of the service.
+     * Marks collections as changed, and schedules saving them.
+     *
+     * @param collections The flags of the changed collections.
      */
-    private void _save() {
-        _preferencesService.storeDiscoveredAPICache(_discoveredAPICache);
-        _preferencesService.storeSavedProfileList(_savedProfileList);
-        _preferencesService.storeSavedTokenList(_savedTokenList);
+    private void _markDirty(int collections) {
+        _dirtyCollections |= collections;
+        _saveThrottle.requestDelayed(WRITE_BEHIND_DELAY_MS);
+    }
+
+    /**
+     * Saves the collections which have changed since the last save. Should be called on the main thread.
+     * Only queues the writes: the files are written on the thread of the collection store, so the main thread never
+     * waits for the disk.
+     */
+    public void flush() {
+        if (!isLoaded()) {
+            // Changes can only be made after the loading, so there is nothing to save yet. Does not wait for the load.
+            return;
+        }
+        _awaitLoaded();
+        _saveThrottle.cancel();
+        int dirtyCollections = _dirtyCollections;
+        _dirtyCollections = 0;
+        if ((dirtyCollections & COLLECTION_DISCOVERED_API_CACHE) != 0) {
+            _preferencesService.storeDiscoveredAPICache(_discoveredAPICache);
+        }
+        if ((dirtyCollections & (COLLECTION_SAVED_PROFILES | COLLECTION_SAVED_TOKENS)) != 0) {
+            // The lists only reference the instances, so the table is saved along with them.
+            _preferencesService.storeInstanceTable(_collectInstances());
+        }
+        if ((dirtyCollections & COLLECTION_SAVED_PROFILES) != 0) {
+            _preferencesService.storeSavedProfileList(_savedProfiles.asList());
+        }
+        if ((dirtyCollections & COLLECTION_SAVED_TOKENS) != 0) {
+            _preferencesService.storeSavedTokenList(_savedTokens.asList());
+        }
+        if ((dirtyCollections & COLLECTION_PROFILE_LIST_CACHE) != 0) {
+            _preferencesService.storeProfileListCache(_profileListCache);
+        }
+    }
+
+    /**
+     * Collects the instances referenced by the saved tokens and profiles, each of them once.
+     *
+     * @return The instances, in the order they are first referenced.
+     */
+    private Collection<Instance> _collectInstances() {
+        Map<String, Instance> instances = new LinkedHashMap<>();
+        for (SavedToken savedToken : _savedTokens.asList()) {
+            String key = savedToken.getInstance().getSanitizedBaseURI();
+            if (!instances.containsKey(key)) {
+                instances.put(key, savedToken.getInstance());
+            }
+        }
+        for (SavedProfile savedProfile : _savedProfiles.asList()) {
+            String key = savedProfile.getInstance().getSanitizedBaseURI();
+            if (!instances.containsKey(key)) {
+                instances.put(key, savedProfile.getInstance());
+            }
+        }
+        return instances.values();
     }
 
     /**
@@ -100,6 +337,7 @@ public class HistoryService {
      */
     @Nullable
     public DiscoveredAPI getCachedDiscoveredAPI(@NonNull String sanitizedBaseURI) {
+        _awaitLoaded();
         return _discoveredAPICache.get(sanitizedBaseURI);
     }
 
@@ -110,8 +348,9 @@ public class HistoryService {
      * @param discoveredAPI    The discovered API object to save.
      */
     public void cacheDiscoveredAPI(@NonNull String sanitizedBaseURI, @NonNull DiscoveredAPI discoveredAPI) {
+        _awaitLoaded();
         _discoveredAPICache.put(sanitizedBaseURI, discoveredAPI);
-        _save();
+        _markDirty(COLLECTION_DISCOVERED_API_CACHE);
     }
 
     /**
@@ -122,12 +361,9 @@ public class HistoryService {
      */
     @Nullable
     public String getCachedAccessToken(@NonNull String sanitizedBaseURI) {
-        for (SavedToken savedToken : _savedTokenList) {
-            if (savedToken.getInstance().getSanitizedBaseURI().equals(sanitizedBaseURI)) {
-                return savedToken.getAccessToken();
-            }
-        }
-        return null;
+        _awaitLoaded();
+        SavedToken savedToken = _savedTokens.getFirst(sanitizedBaseURI);
+        return savedToken == null ? null : savedToken.getAccessToken();
     }
 
     /**
@@ -137,10 +373,11 @@ public class HistoryService {
      * @param accessToken The access token to save.
      */
     public void cacheAccessToken(@NonNull Instance instance, @NonNull String accessToken) {
+        _awaitLoaded();
         // Remove all previous entries
-        removeAccessTokens(instance.getSanitizedBaseURI());
-        _savedTokenList.add(new SavedToken(instance, accessToken));
-        _save();
+        _savedTokens.removeGroup(instance.getSanitizedBaseURI());
+        _savedTokens.add(new SavedToken(instance, accessToken));
+        _markDirty(COLLECTION_SAVED_TOKENS);
     }
 
     /**
@@ -150,7 +387,8 @@ public class HistoryService {
      */
     @NonNull
     public List<SavedProfile> getSavedProfileList() {
-        return Collections.unmodifiableList(_savedProfileList);
+        _awaitLoaded();
+        return _savedProfiles.asList();
     }
 
     /**
@@ -159,8 +397,9 @@ public class HistoryService {
      * @param savedProfile The saved profile to store.
      */
     public void cacheSavedProfile(@NonNull SavedProfile savedProfile) {
-        _savedProfileList.add(savedProfile);
-        _save();
+        _awaitLoaded();
+        _savedProfiles.add(savedProfile);
+        _markDirty(COLLECTION_SAVED_PROFILES);
     }
 
     /**
@@ -172,13 +411,8 @@ public class HistoryService {
      */
     @Nullable
     public SavedProfile getCachedSavedProfile(@NonNull String sanitizedBaseURI, @NonNull String profileId) {
-        for (SavedProfile savedProfile : _savedProfileList) {
-            if (savedProfile.getInstance().getSanitizedBaseURI().equals(sanitizedBaseURI) &&
-                    savedProfile.getProfile().getProfileId().equals(profileId)) {
-                return savedProfile;
-            }
-        }
-        return null;
+        _awaitLoaded();
+        return _savedProfiles.get(sanitizedBaseURI, profileId);
     }
 
     /**
@@ -187,8 +421,10 @@ public class HistoryService {
      * @param savedProfile The profile to remove.
      */
     public void removeSavedProfile(@NonNull SavedProfile savedProfile) {
-        _savedProfileList.remove(savedProfile);
-        _save();
+        _awaitLoaded();
+        if (_savedProfiles.remove(savedProfile)) {
+            _markDirty(COLLECTION_SAVED_PROFILES);
+        }
     }
 
     /**
@@ -197,14 +433,10 @@ public class HistoryService {
      * @param sanitizedBaseURI The sanitized base URI of the provider.
      */
     public void removeAccessTokens(@NonNull String sanitizedBaseURI) {
-        Iterator<SavedToken> savedTokenIterator = _savedTokenList.iterator();
-        while (savedTokenIterator.hasNext()) {
-            SavedToken savedToken = savedTokenIterator.next();
-            if (savedToken.getInstance().getSanitizedBaseURI().equals(sanitizedBaseURI)) {
-                savedTokenIterator.remove();
-            }
+        _awaitLoaded();
+        if (_savedTokens.removeGroup(sanitizedBaseURI)) {
+            _markDirty(COLLECTION_SAVED_TOKENS);
         }
-        _save();
     }
 
     /**
@@ -213,8 +445,9 @@ public class HistoryService {
      * @param sanitizedBaseURI The sanitized base URI of the provider.
      */
     public void removeDiscoveredAPI(@NonNull String sanitizedBaseURI) {
+        _awaitLoaded();
         _discoveredAPICache.remove(sanitizedBaseURI);
-        _save();
+        _markDirty(COLLECTION_DISCOVERED_API_CACHE);
     }
 
     /**
@@ -223,7 +456,8 @@ public class HistoryService {
      * @return The list of all saved access tokens and instances.
      */
     public List<SavedToken> getSavedTokenList() {
-        return Collections.unmodifiableList(_savedTokenList);
+        _awaitLoaded();
+        return _savedTokens.asList();
     }
 
     /**
@@ -232,14 +466,10 @@ public class HistoryService {
      * @param sanitizedBaseURI The sanitized base URI of an instance.
      */
     public void removeSavedProfilesForInstance(@NonNull String sanitizedBaseURI) {
-        Iterator<SavedProfile> savedProfileIterator = _savedProfileList.iterator();
-        while (savedProfileIterator.hasNext()) {
-            SavedProfile savedProfile = savedProfileIterator.next();
-            if (savedProfile.getInstance().getSanitizedBaseURI().equals(sanitizedBaseURI)) {
-                savedProfileIterator.remove();
-            }
+        _awaitLoaded();
+        if (_savedProfiles.removeGroup(sanitizedBaseURI)) {
+            _markDirty(COLLECTION_SAVED_PROFILES);
         }
-        _save();
     }
 
     /**
@@ -249,11 +479,48 @@ public class HistoryService {
      */
     @Nullable
     public SavedToken getSavedToken(@NonNull String sanitizedBaseURI) {
-        for (SavedToken savedToken : _savedTokenList) {
-            if (sanitizedBaseURI.equals(savedToken.getInstance().getSanitizedBaseURI())) {
-                return savedToken;
-            }
+        _awaitLoaded();
+        return _savedTokens.getFirst(sanitizedBaseURI);
+    }
+
+    /**
+     * Returns the last successfully fetched profile list of a provider.
+     *
+     * @param sanitizedBaseURI The sanitized base URI of the provider.
+     * @return The profile list if one was cached, otherwise null.
+     */
+    @Nullable
+    public List<Profile> getCachedProfileList(@NonNull String sanitizedBaseURI) {
+        _awaitLoaded();
+        List<Profile> profileList = _profileListCache.get(sanitizedBaseURI);
+        return profileList == null ? null : Collections.unmodifiableList(profileList);
+    }
+
+    /**
+     * Caches the profile list of a provider, so it can be displayed right away next time.
+     * Nothing is saved if the list did not change.
+     *
+     * @param sanitizedBaseURI The sanitized base URI of the provider.
+     * @param profileList      The profile list fetched from the provider.
+     */
+    public void cacheProfileList(@NonNull String sanitizedBaseURI, @NonNull List<Profile> profileList) {
+        _awaitLoaded();
+        if (profileList.equals(_profileListCache.get(sanitizedBaseURI))) {
+            return;
+        }
+        _profileListCache.put(sanitizedBaseURI, new ArrayList<>(profileList));
+        _markDirty(COLLECTION_PROFILE_LIST_CACHE);
+    }
+
+    /**
+     * Removes the cached profile list of a provider.
+     *
+     * @param sanitizedBaseURI The sanitized base URI of the provider.
+     */
+    public void removeCachedProfileList(@NonNull String sanitizedBaseURI) {
+        _awaitLoaded();
+        if (_profileListCache.remove(sanitizedBaseURI) != null) {
+            _markDirty(COLLECTION_PROFILE_LIST_CACHE);
         }
-        return null;
     }
 }
@@ -17,8 +17,10 @@
 
 package nl.eduvpn.app.service;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import nl.eduvpn.app.entity.DiscoveredAPI;
@@ -30,13 +32,25 @@ import nl.eduvpn.app.entity.Settings;
 import nl.eduvpn.app.utils.Log;
 import nl.eduvpn.app.utils.TTLCache;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This service is used to save temporary data
+ * <p/>
+ * Small values are kept in the shared preferences. The larger collections (saved profiles and tokens, the instance
+ * table and the caches) are each stored in their own file by the {@link CollectionStore}, in a compact binary format.
+ * Collections which were saved as JSON in the shared preferences by earlier versions are moved there on first access.
  * Created by Daniel Zolnai on 2016-10-11.
  */
 
@@ -52,13 +66,24 @@ public class PreferencesService {
     private static final String KEY_INSTANCE = "instance";
     private static final String KEY_PROFILE = "profile";
     private static final String KEY_DISCOVERED_API = "discovered_api";
+    private static final String KEY_PREFETCHED_PROFILES = "prefetched_profiles";
 
+    // These keys are also the names of the files in the collection store.
+    private static final String KEY_INSTANCE_TABLE = "instance_table";
     private static final String KEY_SAVED_PROFILES = "saved_profiles";
     private static final String KEY_SAVED_TOKENS = "saved_tokens";
     private static final String KEY_DISCOVERED_API_CACHE = "discovered_api_cache";
+    private static final String KEY_PROFILE_LIST_CACHE = "profile_list_cache";
+
+    private static final String[] COLLECTION_KEYS = { KEY_INSTANCE_TABLE, KEY_SAVED_PROFILES, KEY_SAVED_TOKENS,
+            KEY_DISCOVERED_API_CACHE, KEY_PROFILE_LIST_CACHE };
+
+    private static final String COLLECTIONS_DIRECTORY = "collections";
 
     private Context _context;
     private SerializerService _serializerService;
+    private CollectionStore _collectionStore;
+    private boolean _collectionsMigrated = false;
 
     /**
      * Constructor.
@@ -69,6 +94,7 @@ public class PreferencesService {
     public PreferencesService(Context context, SerializerService serializerService) {
         _context = context;
         _serializerService = serializerService;
+        _collectionStore = CollectionStore.forDirectory(new File(context.getFilesDir(), COLLECTIONS_DIRECTORY));
     }
 
     /**
@@ -263,66 +289,230 @@ public class PreferencesService {
         }
     }
 
+    /**
+     * Moves the collections which are still stored as JSON in the shared preferences to the collection store.
+     * Runs once, before the first access of a collection.
+     */
+    private synchronized void _migrateCollections() {
+        if (_collectionsMigrated) {
+            return;
+        }
+        _collectionsMigrated = true;
+        SharedPreferences sharedPreferences = _getSharedPreferences();
+        boolean hasJsonCollections = false;
+        for (String key : COLLECTION_KEYS) {
+            hasJsonCollections |= sharedPreferences.contains(key);
+        }
+        if (!hasJsonCollections) {
+            return;
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        // The keys which can be removed from the shared preferences. A collection which is already in the store was
+        // written after an earlier migration, which failed to move the other collections, so its JSON is outdated.
+        Set<String> migratedKeys = new HashSet<>();
+        for (String key : COLLECTION_KEYS) {
+            if (!sharedPreferences.contains(key) || !KEY_INSTANCE_TABLE.equals(key) && _collectionStore.read(key) != null) {
+                migratedKeys.add(key);
+            }
+        }
+        // Saved tokens and profiles in the oldest format embed their instance, those are added to the table.
+        Map<String, Instance> instanceTable = new LinkedHashMap<>();
+        Map<String, Instance> storedInstanceTable = getInstanceTable();
+        if (storedInstanceTable != null) {
+            instanceTable.putAll(storedInstanceTable);
+        }
+        boolean isInstanceTableRead = true;
+        String json = sharedPreferences.getString(KEY_INSTANCE_TABLE, null);
+        try {
+            if (json != null) {
+                for (Map.Entry<String, Instance> entry : _serializerService.deserializeInstanceTable(new JSONObject(json)).entrySet()) {
+                    if (!instanceTable.containsKey(entry.getKey())) {
+                        instanceTable.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (SerializerService.UnknownFormatException | JSONException ex) {
+            Log.e(TAG, "Unable to migrate instance table.", ex);
+            isInstanceTableRead = false;
+        }
+        byte[] savedTokens = null;
+        byte[] savedProfiles = null;
+        try {
+            json = sharedPreferences.getString(KEY_SAVED_TOKENS, null);
+            if (json != null && !migratedKeys.contains(KEY_SAVED_TOKENS)) {
+                List<SavedToken> savedTokenList = _serializerService.deserializeSavedTokenList(new JSONObject(json), instanceTable);
+                savedTokens = _serializerService.encodeSavedTokenList(savedTokenList);
+            }
+        } catch (SerializerService.UnknownFormatException | JSONException ex) {
+            Log.e(TAG, "Unable to migrate saved token list.", ex);
+        }
+        try {
+            json = sharedPreferences.getString(KEY_SAVED_PROFILES, null);
+            if (json != null && !migratedKeys.contains(KEY_SAVED_PROFILES)) {
+                List<SavedProfile> savedProfileList = _serializerService.deserializeSavedProfileList(new JSONObject(json), instanceTable);
+                savedProfiles = _serializerService.encodeSavedProfileList(savedProfileList);
+            }
+        } catch (SerializerService.UnknownFormatException | JSONException ex) {
+            Log.e(TAG, "Unable to migrate saved profile list.", ex);
+        }
+        if (!migratedKeys.contains(KEY_INSTANCE_TABLE) || savedTokens != null || savedProfiles != null) {
+            boolean isInstanceTableWritten = false;
+            try {
+                _collectionStore.write(KEY_INSTANCE_TABLE, _serializerService.encodeInstanceTable(instanceTable.values()));
+                isInstanceTableWritten = !_collectionStore.sync().contains(KEY_INSTANCE_TABLE);
+            } catch (SerializerService.UnknownFormatException ex) {
+                Log.e(TAG, "Unable to migrate instance table.", ex);
+            }
+            // The lists reference the table, so they are only written once the table is on the disk.
+            if (isInstanceTableWritten) {
+                if (isInstanceTableRead) {
+                    migratedKeys.add(KEY_INSTANCE_TABLE);
+                }
+                if (savedTokens != null) {
+                    _collectionStore.write(KEY_SAVED_TOKENS, savedTokens);
+                    migratedKeys.add(KEY_SAVED_TOKENS);
+                }
+                if (savedProfiles != null) {
+                    _collectionStore.write(KEY_SAVED_PROFILES, savedProfiles);
+                    migratedKeys.add(KEY_SAVED_PROFILES);
+                }
+            }
+        }
+        try {
+            json = sharedPreferences.getString(KEY_DISCOVERED_API_CACHE, null);
+            if (json != null && !migratedKeys.contains(KEY_DISCOVERED_API_CACHE)) {
+                TTLCache<DiscoveredAPI> cache = _serializerService.deserializeDiscoveredAPITTLCache(new JSONObject(json));
+                _collectionStore.write(KEY_DISCOVERED_API_CACHE, _serializerService.encodeDiscoveredAPITTLCache(cache));
+                migratedKeys.add(KEY_DISCOVERED_API_CACHE);
+            }
+        } catch (SerializerService.UnknownFormatException | JSONException ex) {
+            Log.e(TAG, "Unable to migrate discovered API cache.", ex);
+        }
+        try {
+            json = sharedPreferences.getString(KEY_PROFILE_LIST_CACHE, null);
+            if (json != null && !migratedKeys.contains(KEY_PROFILE_LIST_CACHE)) {
+                Map<String, List<Profile>> cache = _serializerService.deserializeProfileListCache(new JSONObject(json));
+                _collectionStore.write(KEY_PROFILE_LIST_CACHE, _serializerService.encodeProfileListCache(cache));
+                migratedKeys.add(KEY_PROFILE_LIST_CACHE);
+            }
+        } catch (SerializerService.UnknownFormatException | JSONException ex) {
+            Log.e(TAG, "Unable to migrate profile list cache.", ex);
+        }
+        // Only remove the old values once the new ones are on the disk. The others are migrated again on the next start.
+        migratedKeys.removeAll(_collectionStore.sync());
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (String key : migratedKeys) {
+            editor.remove(key);
+        }
+        editor.apply();
+        if (migratedKeys.size() < COLLECTION_KEYS.length) {
+            Log.w(TAG, "Unable to migrate " + (COLLECTION_KEYS.length - migratedKeys.size()) + " collection(s), will retry on the next start.");
+        }
+        Log.i(TAG, "Migrated the collections to the collection store in " + (SystemClock.elapsedRealtime() - startTime) + " ms.");
+    }
+
+    /**
+     * Returns the previously saved instance table, which stores the instances referenced by the saved profiles and
+     * tokens.
+     *
+     * @return The instances keyed by their sanitized base URI, or null if not exists.
+     */
+    public Map<String, Instance> getInstanceTable() {
+        _migrateCollections();
+        byte[] data = _collectionStore.read(KEY_INSTANCE_TABLE);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return _serializerService.decodeInstanceTable(data);
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Unable to decode instance table", ex);
+            _collectionStore.moveAside(KEY_INSTANCE_TABLE);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the instance table. Should contain all instances referenced by the saved profiles and tokens.
+     *
+     * @param instances The instances to save, each with a different sanitized base URI.
+     */
+    public void storeInstanceTable(@NonNull Collection<Instance> instances) {
+        _migrateCollections();
+        try {
+            _collectionStore.write(KEY_INSTANCE_TABLE, _serializerService.encodeInstanceTable(instances));
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Can not save instance table.", ex);
+        }
+    }
+
     /**
      * Returns a previously saved list of saved profiles.
      *
+     * @param instanceTable The instance table to look up the providers in, see {@link #getInstanceTable()}.
      * @return The saved list, or null if not exists.
      */
-    public List<SavedProfile> getSavedProfileList() {
-        String serializedSavedProfileList = _getSharedPreferences().getString(KEY_SAVED_PROFILES, null);
-        if (serializedSavedProfileList == null) {
+    public List<SavedProfile> getSavedProfileList(@NonNull Map<String, Instance> instanceTable) {
+        _migrateCollections();
+        byte[] data = _collectionStore.read(KEY_SAVED_PROFILES);
+        if (data == null) {
             return null;
         }
         try {
-            return _serializerService.deserializeSavedProfileList(new JSONObject(serializedSavedProfileList));
-        } catch (SerializerService.UnknownFormatException | JSONException ex) {
-            Log.e(TAG, "Unable to deserialize saved profile list", ex);
+            return _serializerService.decodeSavedProfileList(data, instanceTable);
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Unable to decode saved profile list", ex);
+            _collectionStore.moveAside(KEY_SAVED_PROFILES);
             return null;
         }
     }
 
     /**
-     * Stores a saved profile list.
+     * Stores a saved profile list. The providers are not stored, those should be saved with
+     * {@link #storeInstanceTable(Collection)}.
      *
      * @param savedProfileList The list to save.
      */
     public void storeSavedProfileList(@NonNull List<SavedProfile> savedProfileList) {
+        _migrateCollections();
         try {
-            String serializedSavedProfileList = _serializerService.serializeSavedProfileList(savedProfileList).toString();
-            _getSharedPreferences().edit().putString(KEY_SAVED_PROFILES, serializedSavedProfileList).apply();
+            _collectionStore.write(KEY_SAVED_PROFILES, _serializerService.encodeSavedProfileList(savedProfileList));
         } catch (SerializerService.UnknownFormatException ex) {
             Log.e(TAG, "Can not save saved profile list.", ex);
         }
     }
 
-
     /**
      * Returns a previously saved list of saved tokens.
      *
+     * @param instanceTable The instance table to look up the instances in, see {@link #getInstanceTable()}.
      * @return The saved list, or null if not exists.
      */
-    public List<SavedToken> getSavedTokenList() {
-        String serializedSavedTokenList = _getSharedPreferences().getString(KEY_SAVED_TOKENS, null);
-        if (serializedSavedTokenList == null) {
+    public List<SavedToken> getSavedTokenList(@NonNull Map<String, Instance> instanceTable) {
+        _migrateCollections();
+        byte[] data = _collectionStore.read(KEY_SAVED_TOKENS);
+        if (data == null) {
             return null;
         }
         try {
-            return _serializerService.deserializeSavedTokenList(new JSONObject(serializedSavedTokenList));
-        } catch (SerializerService.UnknownFormatException | JSONException ex) {
-            Log.e(TAG, "Unable to deserialize saved token list", ex);
+            return _serializerService.decodeSavedTokenList(data, instanceTable);
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Unable to decode saved token list", ex);
+            _collectionStore.moveAside(KEY_SAVED_TOKENS);
             return null;
         }
     }
 
     /**
-     * Stores a saved token list.
+     * Stores a saved token list. The instances are not stored, those should be saved with
+     * {@link #storeInstanceTable(Collection)}.
      *
      * @param savedTokenList The list to save.
      */
     public void storeSavedTokenList(@NonNull List<SavedToken> savedTokenList) {
+        _migrateCollections();
         try {
-            String serializedSavedTokenList = _serializerService.serializeSavedTokenList(savedTokenList).toString();
-            _getSharedPreferences().edit().putString(KEY_SAVED_TOKENS, serializedSavedTokenList).apply();
+            _collectionStore.write(KEY_SAVED_TOKENS, _serializerService.encodeSavedTokenList(savedTokenList));
         } catch (SerializerService.UnknownFormatException ex) {
             Log.e(TAG, "Can not save saved token list.", ex);
         }
@@ -334,17 +524,18 @@ public class PreferencesService {
      * @return The discovered API cache. Null if no saved one.
      */
     public TTLCache<DiscoveredAPI> getDiscoveredAPICache() {
-        String serializedCache = _getSharedPreferences().getString(KEY_DISCOVERED_API_CACHE, null);
-        if (serializedCache == null) {
+        _migrateCollections();
+        byte[] data = _collectionStore.read(KEY_DISCOVERED_API_CACHE);
+        if (data == null) {
             return null;
         }
         try {
-            return _serializerService.deserializeDiscoveredAPITTLCache(new JSONObject(serializedCache));
-        } catch (SerializerService.UnknownFormatException | JSONException ex) {
-            Log.e(TAG, "Unable to deserialize saved discovered API cache.");
+            return _serializerService.decodeDiscoveredAPITTLCache(data);
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Unable to decode saved discovered API cache.", ex);
+            _collectionStore.moveAside(KEY_DISCOVERED_API_CACHE);
             return null;
         }
-
     }
 
     /**
@@ -353,11 +544,88 @@ public class PreferencesService {
      * @param ttlCache The cache to save.
      */
     public void storeDiscoveredAPICache(@NonNull TTLCache<DiscoveredAPI> ttlCache) {
+        _migrateCollections();
         try {
-            String serializedCache = _serializerService.serializeDiscoveredAPITTLCache(ttlCache).toString();
-            _getSharedPreferences().edit().putString(KEY_DISCOVERED_API_CACHE, serializedCache).apply();
+            _collectionStore.write(KEY_DISCOVERED_API_CACHE, _serializerService.encodeDiscoveredAPITTLCache(ttlCache));
         } catch (SerializerService.UnknownFormatException ex) {
             Log.e(TAG, "Can not save discovered API cache.", ex);
         }
     }
+
+    /**
+     * Retrieves the saved profile lists of the VPN providers.
+     *
+     * @return The profile lists keyed by the sanitized base URI of the provider. Null if no saved one.
+     */
+    public Map<String, List<Profile>> getProfileListCache() {
+        _migrateCollections();
+        byte[] data = _collectionStore.read(KEY_PROFILE_LIST_CACHE);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return _serializerService.decodeProfileListCache(data);
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Unable to decode saved profile list cache.", ex);
+            _collectionStore.moveAside(KEY_PROFILE_LIST_CACHE);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the profile lists of the VPN providers.
+     *
+     * @param profileListCache The profile lists keyed by the sanitized base URI of the provider.
+     */
+    public void storeProfileListCache(@NonNull Map<String, List<Profile>> profileListCache) {
+        _migrateCollections();
+        try {
+            _collectionStore.write(KEY_PROFILE_LIST_CACHE, _serializerService.encodeProfileListCache(profileListCache));
+        } catch (SerializerService.UnknownFormatException ex) {
+            Log.e(TAG, "Can not save profile list cache.", ex);
+        }
+    }
+
+    /**
+     * Saves the UUIDs of the profiles which were downloaded by the profile prefetcher.
+     *
+     * @param profileUUIDs The UUIDs, from the least recently used to the most recently used.
+     */
+    public void storePrefetchedProfileUUIDs(@NonNull List<String> profileUUIDs) {
+        _getSharedPreferences().edit()
+                .putString(KEY_PREFETCHED_PROFILES, new JSONArray(profileUUIDs).toString())
+                .apply();
+    }
+
+    /**
+     * Returns the UUIDs of the profiles which were downloaded by the profile prefetcher.
+     *
+     * @return The UUIDs, from the least recently used to the most recently used. Empty if none saved.
+     */
+    @NonNull
+    public List<String> getPrefetchedProfileUUIDs() {
+        List<String> result = new ArrayList<>();
+        String serializedUUIDs = _getSharedPreferences().getString(KEY_PREFETCHED_PROFILES, null);
+        if (serializedUUIDs == null) {
+            return result;
+        }
+        try {
+            JSONArray array = new JSONArray(serializedUUIDs);
+            for (int i = 0; i < array.length(); ++i) {
+                result.add(array.getString(i));
+            }
+        } catch (JSONException ex) {
+            Log.e(TAG, "Unable to deserialize prefetched profile UUIDs", ex);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all saved values, including the collections. Used by the tests.
+     */
+    @SuppressLint("CommitPrefEdits")
+    void _clear() {
+        _getSharedPreferences().edit().clear().commit();
+        _collectionStore.clear();
+    }
 }
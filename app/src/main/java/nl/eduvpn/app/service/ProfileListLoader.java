@@ -0,0 +1,322 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import nl.eduvpn.app.Constants;
+import nl.eduvpn.app.entity.DiscoveredAPI;
+import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.network.RetryPolicy;
+import nl.eduvpn.app.network.RttEstimator;
+import nl.eduvpn.app.utils.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the profile lists of multiple providers in parallel.
+ * Each provider is resolved through its discovery document (unless it is cached already), and then asked for its
+ * profile list. The results are reported one by one as soon as they arrive. Each request of a provider has its own
+ * timeout, which is restarted when the provider moves on from the discovery to the profile list. The whole load has a
+ * deadline, after which the providers which did not respond yet are reported as failed.
+ * Should be used from the main thread only, all the callbacks are delivered on the thread of the handler.
+ */
+public class ProfileListLoader {
+
+    private static final String TAG = ProfileListLoader.class.getName();
+
+    // Covers an attempt which takes the longest read timeout, followed by the longest backoff and the connect of a retry.
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = RttEstimator.DEFAULT_READ_TIMEOUT_CEILING_MS +
+            RetryPolicy.DEFAULT_MAX_DELAY_MS + RttEstimator.DEFAULT_CONNECT_TIMEOUT_CEILING_MS;
+    // Shorter than two requests which both use up their timeout, so a provider which is slow at every step is given up on.
+    public static final long DEFAULT_DEADLINE_MS = 60000;
+
+    public static final String TIMEOUT_ERROR = "The provider did not respond in time.";
+
+    /**
+     * Receives the results of a load.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the profile list of a provider has been loaded.
+         *
+         * @param instance  The provider.
+         * @param profiles  The profiles of the provider.
+         * @param latencyMs The time it took to load the list, including the discovery.
+         */
+        void onInstanceLoaded(@NonNull Instance instance, @NonNull List<Profile> profiles, long latencyMs);
+
+        /**
+         * Called when the profile list of a provider could not be loaded, or the provider did not respond in time.
+         *
+         * @param instance     The provider.
+         * @param errorMessage The reason of the failure.
+         * @param latencyMs    The time until the failure.
+         */
+        void onInstanceFailed(@NonNull Instance instance, @NonNull String errorMessage, long latencyMs);
+
+        /**
+         * Called when all providers have either been loaded or failed. Not called if the load was cancelled.
+         *
+         * @param failedInstances The providers which failed, in the order they were passed to the loader.
+         */
+        void onFinished(@NonNull List<Instance> failedInstances);
+    }
+
+    private final APIService _apiService;
+    private final HistoryService _historyService;
+    private final Handler _handler;
+    private final long _requestTimeoutMs;
+    private final long _deadlineMs;
+
+    /**
+     * Constructor.
+     *
+     * @param apiService        The API service used for the requests.
+     * @param historyService    The history service, which caches the discovered APIs and the profile lists.
+     * @param handler          The handler the callbacks and timeouts are executed on.
+     * @param requestTimeoutMs The time a provider has to respond to each request, the discovery and the profile list.
+     * @param deadlineMs       The time after which the load is finished, even if some providers are still pending.
+     */
+    public ProfileListLoader(@NonNull APIService apiService, @NonNull HistoryService historyService, @NonNull Handler handler,
+                             long requestTimeoutMs, long deadlineMs) {
+        _apiService = apiService;
+        _historyService = historyService;
+        _handler = handler;
+        _requestTimeoutMs = requestTimeoutMs;
+        _deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Starts loading the profile lists of the given providers.
+     *
+     * @param savedTokens The providers with their access tokens.
+     * @param listener    The listener to report the results to.
+     * @return A handle which cancels all requests of this load.
+     */
+    @NonNull
+    public Cancellable load(@NonNull List<SavedToken> savedTokens, @NonNull Listener listener) {
+        Load load = new Load(savedTokens, listener);
+        load.start();
+        return load;
+    }
+
+    /**
+     * The state of a single provider within a load.
+     */
+    private static class Slot {
+        final SavedToken savedToken;
+        long startTime;
+        Cancellable request;
+        Runnable timeoutRunnable;
+        boolean isDone;
+        boolean isFailed;
+
+        Slot(SavedToken savedToken) {
+            this.savedToken = savedToken;
+        }
+    }
+
+    private class Load implements Cancellable {
+
+        private final Listener _listener;
+        private final List<Slot> _slots;
+        private final Runnable _deadlineRunnable = new Runnable() {
+            @Override
+            public void run() {
+                for (Slot slot : _slots) {
+                    if (!slot.isDone) {
+                        _fail(slot, TIMEOUT_ERROR);
+                    }
+                }
+            }
+        };
+        private long _startTime;
+        private int _pendingCount;
+        private boolean _isFinished;
+
+        Load(List<SavedToken> savedTokens, Listener listener) {
+            _listener = listener;
+            _slots = new ArrayList<>(savedTokens.size());
+            for (SavedToken savedToken : savedTokens) {
+                _slots.add(new Slot(savedToken));
+            }
+            _pendingCount = _slots.size();
+        }
+
+        void start() {
+            _startTime = SystemClock.elapsedRealtime();
+            if (_slots.isEmpty()) {
+                _finish();
+                return;
+            }
+            _handler.postDelayed(_deadlineRunnable, _deadlineMs);
+            for (final Slot slot : _slots) {
+                slot.startTime = _startTime;
+                slot.timeoutRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!slot.isDone) {
+                            _fail(slot, TIMEOUT_ERROR);
+                        }
+                    }
+                };
+                _handler.postDelayed(slot.timeoutRunnable, _requestTimeoutMs);
+                _resolveInstance(slot);
+            }
+        }
+
+        private void _resolveInstance(final Slot slot) {
+            final Instance instance = slot.savedToken.getInstance();
+            DiscoveredAPI discoveredAPI = _historyService.getCachedDiscoveredAPI(instance.getSanitizedBaseURI());
+            if (discoveredAPI != null) {
+                _fetchProfileList(slot, discoveredAPI);
+                return;
+            }
+            _setRequest(slot, _apiService.getDiscoveredAPI(instance.getSanitizedBaseURI() + Constants.API_DISCOVERY_POSTFIX,
+                    RequestScheduler.Priority.DEFAULT, new APIService.Callback<DiscoveredAPI>() {
+                        @Override
+                        public void onSuccess(DiscoveredAPI discoveredAPI) {
+                            if (slot.isDone) {
+                                return;
+                            }
+                            _historyService.cacheDiscoveredAPI(instance.getSanitizedBaseURI(), discoveredAPI);
+                            // The profile list is a new request, which gets its own time.
+                            _handler.removeCallbacks(slot.timeoutRunnable);
+                            _handler.postDelayed(slot.timeoutRunnable, _requestTimeoutMs);
+                            _fetchProfileList(slot, discoveredAPI);
+                        }
+
+                        @Override
+                        public void onError(String errorMessage) {
+                            if (!slot.isDone) {
+                                _fail(slot, "Error while fetching discovered API: " + errorMessage);
+                            }
+                        }
+                    }));
+        }
+
+        private void _fetchProfileList(final Slot slot, DiscoveredAPI discoveredAPI) {
+            final Instance instance = slot.savedToken.getInstance();
+            _setRequest(slot, _apiService.getProfileList(discoveredAPI.getProfileListAPI(), slot.savedToken, new APIService.Callback<List<Profile>>() {
+                @Override
+                public void onSuccess(List<Profile> profiles) {
+                    if (slot.isDone) {
+                        return;
+                    }
+                    _historyService.cacheProfileList(instance.getSanitizedBaseURI(), profiles);
+                    long latencyMs = _complete(slot);
+                    Log.d(TAG, "Profile list of " + instance.getSanitizedBaseURI() + " loaded in " + latencyMs + " ms.");
+                    _listener.onInstanceLoaded(instance, profiles, latencyMs);
+                    _checkFinished();
+                }
+
+                @Override
+                public void onError(String errorMessage) {
+                    if (!slot.isDone) {
+                        _fail(slot, "Error fetching profile list: " + errorMessage);
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Stores the request currently running for the slot. If the slot has finished already (the callback was
+         * called synchronously), the request is not needed anymore.
+         */
+        private void _setRequest(Slot slot, Cancellable request) {
+            if (slot.isDone) {
+                request.cancel();
+            } else {
+                slot.request = request;
+            }
+        }
+
+        private long _complete(Slot slot) {
+            slot.isDone = true;
+            _handler.removeCallbacks(slot.timeoutRunnable);
+            if (slot.request != null) {
+                // Only has an effect if the request is still running, which is the case on a timeout.
+                slot.request.cancel();
+                slot.request = null;
+            }
+            --_pendingCount;
+            return SystemClock.elapsedRealtime() - slot.startTime;
+        }
+
+        private void _fail(Slot slot, String errorMessage) {
+            slot.isFailed = true;
+            long latencyMs = _complete(slot);
+            Instance instance = slot.savedToken.getInstance();
+            Log.e(TAG, "Profile list of " + instance.getSanitizedBaseURI() + " failed after " + latencyMs + " ms. " + errorMessage);
+            _listener.onInstanceFailed(instance, errorMessage, latencyMs);
+            _checkFinished();
+        }
+
+        private void _checkFinished() {
+            if (_pendingCount == 0 && !_isFinished) {
+                _finish();
+            }
+        }
+
+        private void _finish() {
+            _isFinished = true;
+            _handler.removeCallbacks(_deadlineRunnable);
+            List<Instance> failedInstances = new ArrayList<>();
+            for (Slot slot : _slots) {
+                if (slot.isFailed) {
+                    failedInstances.add(slot.savedToken.getInstance());
+                }
+            }
+            Log.i(TAG, "Loaded " + (_slots.size() - failedInstances.size()) + " of " + _slots.size() + " profile lists in " +
+                    (SystemClock.elapsedRealtime() - _startTime) + " ms.");
+            _listener.onFinished(failedInstances);
+        }
+
+        @Override
+        public void cancel() {
+            if (_isFinished) {
+                return;
+            }
+            _isFinished = true;
+            _handler.removeCallbacks(_deadlineRunnable);
+            for (Slot slot : _slots) {
+                if (!slot.isDone) {
+                    slot.isDone = true;
+                    _handler.removeCallbacks(slot.timeoutRunnable);
+                    if (slot.request != null) {
+                        slot.request.cancel();
+                        slot.request = null;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return _isFinished;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.service;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import nl.eduvpn.app.entity.DiscoveredAPI;
+import nl.eduvpn.app.entity.Instance;
+import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.SavedProfile;
+import nl.eduvpn.app.entity.SavedToken;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.RequestScheduler;
+import nl.eduvpn.app.utils.FormattingUtils;
+import nl.eduvpn.app.utils.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Downloads and imports the VPN configs of the listed profiles ahead of time, so connecting to a profile does not
+ * have to wait for the download.
+ * Configs are only downloaded on an unmetered network, while the app is not busy with other requests or with setting
+ * up a connection. The downloads run one after the other, with a minimum interval between them.
+ * The number of kept configs is limited. Nothing is prefetched when the budget is used up, and the least recently
+ * used prefetched configs are removed when a config downloaded by the user exceeds it. The configs downloaded by the
+ * user are never removed.
+ * Should be used from the main thread only.
+ */
+public class ProfilePrefetcher {
+
+    private static final String TAG = ProfilePrefetcher.class.getName();
+
+    public static final int DEFAULT_MAX_SAVED_PROFILES = 8;
+    public static final long DEFAULT_MIN_INTERVAL_MS = 10000;
+
+    private final Context _context;
+    private final APIService _apiService;
+    private final VPNService _vpnService;
+    private final HistoryService _historyService;
+    private final PreferencesService _preferencesService;
+    private final RequestScheduler _requestScheduler;
+    private final Handler _handler;
+    private final int _maxSavedProfiles;
+    private final long _minIntervalMs;
+
+    // The profiles waiting to be downloaded, keyed by provider and profile ID.
+    private final Map<String, Pending> _queue = new LinkedHashMap<>();
+    // The UUIDs of the saved profiles downloaded by the prefetcher, from the least recently used to the most recently used.
+    private final Set<String> _prefetchedUUIDs = new LinkedHashSet<>();
+
+    private Cancellable _runningRequest;
+    private String _runningKey;
+    private long _lastDownloadTime = -1;
+
+    private final Runnable _downloadNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _downloadNext();
+        }
+    };
+
+    /**
+     * A profile waiting to be downloaded.
+     */
+    private static class Pending {
+        final Instance instance;
+        final Profile profile;
+
+        Pending(Instance instance, Profile profile) {
+            this.instance = instance;
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context            The application context.
+     * @param apiService         The API service used for downloading the configs.
+     * @param vpnService         The VPN service which imports the configs.
+     * @param historyService     The history service which stores the saved profiles.
+     * @param preferencesService The preferences service which stores which profiles were prefetched.
+     * @param requestScheduler   The request scheduler, used to check if the app is busy with other requests.
+     * @param handler            The handler the downloads are scheduled on.
+     * @param maxSavedProfiles   The maximum number of saved profiles to keep.
+     * @param minIntervalMs      The minimum time between starting two downloads.
+     */
+    public ProfilePrefetcher(@NonNull Context context, @NonNull APIService apiService, @NonNull VPNService vpnService,
+                             @NonNull HistoryService historyService, @NonNull PreferencesService preferencesService,
+                             @NonNull RequestScheduler requestScheduler, @NonNull Handler handler,
+                             int maxSavedProfiles, long minIntervalMs) {
+        _context = context;
+        _apiService = apiService;
+        _vpnService = vpnService;
+        _historyService = historyService;
+        _preferencesService = preferencesService;
+        _requestScheduler = requestScheduler;
+        _handler = handler;
+        _maxSavedProfiles = maxSavedProfiles;
+        _minIntervalMs = minIntervalMs;
+        _prefetchedUUIDs.addAll(preferencesService.getPrefetchedProfileUUIDs());
+    }
+
+    /**
+     * Queues the profiles of a provider for downloading. The profiles which already have a saved config are skipped,
+     * and no more profiles are queued than what fits in the budget.
+     *
+     * @param instance The provider.
+     * @param profiles The profiles of the provider.
+     */
+    public void prefetch(@NonNull Instance instance, @NonNull Iterable<Profile> profiles) {
+        int savedProfileCount = _removeDeletedProfiles().size();
+        for (Profile profile : profiles) {
+            if (savedProfileCount + _queue.size() >= _maxSavedProfiles) {
+                break;
+            }
+            if (_historyService.getCachedSavedProfile(instance.getSanitizedBaseURI(), profile.getProfileId()) == null) {
+                _queue.put(_getKey(instance, profile), new Pending(instance, profile));
+            }
+        }
+        _scheduleNext();
+    }
+
+    /**
+     * Marks a saved profile as used. A prefetched profile becomes the last one to be removed when the budget is
+     * exceeded. Should also be called after the user downloaded a profile, so the budget is enforced.
+     *
+     * @param savedProfile The profile which was connected to.
+     */
+    public void markUsed(@NonNull SavedProfile savedProfile) {
+        if (_prefetchedUUIDs.remove(savedProfile.getProfileUUID())) {
+            _prefetchedUUIDs.add(savedProfile.getProfileUUID());
+            _storePrefetchedUUIDs();
+        }
+        cancelPrefetch(savedProfile.getInstance(), savedProfile.getProfile());
+        _evictProfiles();
+    }
+
+    /**
+     * Stops prefetching a profile, because the user is downloading it. Cancels the download if it is running.
+     *
+     * @param instance The provider of the profile.
+     * @param profile  The profile.
+     */
+    public void cancelPrefetch(@NonNull Instance instance, @NonNull Profile profile) {
+        String key = _getKey(instance, profile);
+        _queue.remove(key);
+        if (_runningRequest != null && key.equals(_runningKey)) {
+            Log.d(TAG, "Cancelling prefetch of profile " + profile.getProfileId() + ", the user is downloading it.");
+            _runningRequest.cancel();
+            _runningRequest = null;
+            _runningKey = null;
+            _scheduleNext();
+        }
+    }
+
+    /**
+     * Cancels the running download and drops the queued ones.
+     */
+    public void cancel() {
+        _queue.clear();
+        _handler.removeCallbacks(_downloadNextRunnable);
+        if (_runningRequest != null) {
+            _runningRequest.cancel();
+            _runningRequest = null;
+            _runningKey = null;
+        }
+    }
+
+    private void _scheduleNext() {
+        if (_runningRequest != null || _queue.isEmpty()) {
+            return;
+        }
+        long delayMs = 0;
+        if (_lastDownloadTime >= 0) {
+            delayMs = Math.max(0, _lastDownloadTime + _minIntervalMs - SystemClock.elapsedRealtime());
+        }
+        _handler.removeCallbacks(_downloadNextRunnable);
+        _handler.postDelayed(_downloadNextRunnable, delayMs);
+    }
+
+    private void _downloadNext() {
+        if (_runningRequest != null || _queue.isEmpty()) {
+            return;
+        }
+        if (!_isNetworkUnmetered()) {
+            // The queue is filled again the next time the profile lists are loaded.
+            Log.d(TAG, "Not on an unmetered network, dropping " + _queue.size() + " queued prefetches.");
+            _queue.clear();
+            return;
+        }
+        if (!_isIdle()) {
+            // Try again later, the app is usually only busy for a short time.
+            _handler.removeCallbacks(_downloadNextRunnable);
+            _handler.postDelayed(_downloadNextRunnable, _minIntervalMs);
+            return;
+        }
+        Iterator<Map.Entry<String, Pending>> iterator = _queue.entrySet().iterator();
+        Map.Entry<String, Pending> entry = iterator.next();
+        final String key = entry.getKey();
+        final Pending pending = entry.getValue();
+        iterator.remove();
+        final String sanitizedBaseURI = pending.instance.getSanitizedBaseURI();
+        DiscoveredAPI discoveredAPI = _historyService.getCachedDiscoveredAPI(sanitizedBaseURI);
+        SavedToken savedToken = _historyService.getSavedToken(sanitizedBaseURI);
+        if (discoveredAPI == null || savedToken == null ||
+                _historyService.getCachedSavedProfile(sanitizedBaseURI, pending.profile.getProfileId()) != null) {
+            // The provider was removed, or the profile was downloaded in the meantime.
+            _scheduleNext();
+            return;
+        }
+        _lastDownloadTime = SystemClock.elapsedRealtime();
+        _runningKey = key;
+        String requestData = "display_name=eduVPN%20for%20Android&profile_id=" + pending.profile.getProfileId();
+        String configName = FormattingUtils.formatProfileName(_context, pending.instance, pending.profile);
+        _runningRequest = _apiService.postResource(discoveredAPI.getCreateConfigAPI(), requestData, savedToken,
+                RequestScheduler.Priority.BACKGROUND, _vpnService.createConfigParser(configName), new APIService.Callback<VpnProfile>() {
+                    @Override
+                    public void onSuccess(VpnProfile vpnProfile) {
+                        _runningRequest = null;
+                        _runningKey = null;
+                        if (vpnProfile == null) {
+                            Log.w(TAG, "Could not import prefetched config of profile " + pending.profile.getProfileId());
+                        } else if (_historyService.getCachedSavedProfile(sanitizedBaseURI, pending.profile.getProfileId()) == null) {
+                            _vpnService.saveProfile(vpnProfile);
+                            SavedProfile savedProfile = new SavedProfile(pending.instance, pending.profile, vpnProfile.getUUIDString());
+                            _historyService.cacheSavedProfile(savedProfile);
+                            _prefetchedUUIDs.add(savedProfile.getProfileUUID());
+                            _storePrefetchedUUIDs();
+                            _evictProfiles();
+                            Log.i(TAG, "Prefetched config of profile " + pending.profile.getProfileId() + " at " + sanitizedBaseURI);
+                        }
+                        _scheduleNext();
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        _runningRequest = null;
+                        _runningKey = null;
+                        Log.w(TAG, "Error while prefetching config: " + errorMessage);
+                        _scheduleNext();
+                    }
+                });
+    }
+
+    /**
+     * Removes the least recently used prefetched profiles until the number of saved profiles is within the budget.
+     * The profiles downloaded by the user are counted, but never removed.
+     */
+    private void _evictProfiles() {
+        Map<String, SavedProfile> savedProfiles = _removeDeletedProfiles();
+        int savedProfileCount = savedProfiles.size();
+        boolean changed = false;
+        Iterator<String> iterator = _prefetchedUUIDs.iterator();
+        while (savedProfileCount > _maxSavedProfiles && iterator.hasNext()) {
+            SavedProfile savedProfile = savedProfiles.get(iterator.next());
+            iterator.remove();
+            changed = true;
+            --savedProfileCount;
+            _historyService.removeSavedProfile(savedProfile);
+            _vpnService.removeProfile(savedProfile.getProfileUUID());
+            Log.i(TAG, "Removed prefetched profile " + savedProfile.getProfileUUID() + " to stay within the budget.");
+        }
+        if (changed) {
+            _storePrefetchedUUIDs();
+        }
+    }
+
+    /**
+     * Drops the prefetched profiles which were removed from the history by someone else.
+     *
+     * @return The saved profiles keyed by their UUID.
+     */
+    private Map<String, SavedProfile> _removeDeletedProfiles() {
+        Map<String, SavedProfile> savedProfiles = new HashMap<>();
+        for (SavedProfile savedProfile : _historyService.getSavedProfileList()) {
+            savedProfiles.put(savedProfile.getProfileUUID(), savedProfile);
+        }
+        if (_prefetchedUUIDs.retainAll(savedProfiles.keySet())) {
+            _storePrefetchedUUIDs();
+        }
+        return savedProfiles;
+    }
+
+    private void _storePrefetchedUUIDs() {
+        _preferencesService.storePrefetchedProfileUUIDs(new ArrayList<>(_prefetchedUUIDs));
+    }
+
+    /**
+     * Returns if the active network is unmetered. Package-private so the tests can override it.
+     *
+     * @return True if prefetching is allowed on the active network.
+     */
+    boolean _isNetworkUnmetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager)_context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager != null && connectivityManager.getActiveNetworkInfo() != null &&
+                !ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+    }
+
+    /**
+     * Returns if the app is not busy with other requests or with setting up a connection. Package-private so the tests
+     * can override it.
+     *
+     * @return True if a download can be started now.
+     */
+    boolean _isIdle() {
+        return _vpnService.getStatus() != VPNService.VPNStatus.CONNECTING &&
+                _requestScheduler.getQueueDepth(RequestScheduler.Priority.USER_INITIATED) == 0 &&
+                _requestScheduler.getQueueDepth(RequestScheduler.Priority.DEFAULT) == 0;
+    }
+
+    private static String _getKey(@NonNull Instance instance, @NonNull Profile profile) {
+        return instance.getSanitizedBaseURI() + " " + profile.getProfileId();
+    }
+}
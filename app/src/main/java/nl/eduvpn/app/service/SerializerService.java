@@ -17,6 +17,11 @@
 
 package nl.eduvpn.app.service;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 import android.util.Pair;
 
 import nl.eduvpn.app.entity.DiscoveredAPI;
@@ -36,12 +41,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -96,6 +108,48 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes a list of Profile objects directly from a JSON stream.
+     *
+     * @param reader The reader positioned at the start of the JSON document.
+     * @return The JSON parsed to a list of Profile instances.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws UnknownFormatException Thrown if the JSON had an unexpected format.
+     */
+    public List<Profile> deserializeProfileList(JsonReader reader) throws IOException, UnknownFormatException {
+        try {
+            List<Profile> result = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("profile_list".equals(reader.nextName())) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("data".equals(reader.nextName())) {
+                            result = new ArrayList<>();
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                result.add(deserializeProfile(reader));
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (result == null) {
+                throw new UnknownFormatException("'profile_list' key missing!");
+            }
+            return result;
+        } catch (IllegalStateException | MalformedJsonException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Serializes a profile to JSON.
      *
@@ -132,6 +186,42 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes a profile directly from a JSON stream.
+     *
+     * @param reader The reader positioned at the start of the profile object.
+     * @return The profile as a POJO.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws UnknownFormatException Thrown if the format was unknown.
+     */
+    public Profile deserializeProfile(JsonReader reader) throws IOException, UnknownFormatException {
+        try {
+            String displayName = null;
+            String profileId = null;
+            Boolean twoFactor = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("display_name".equals(name)) {
+                    displayName = reader.nextString();
+                } else if ("profile_id".equals(name)) {
+                    profileId = reader.nextString();
+                } else if ("two_factor".equals(name)) {
+                    twoFactor = reader.nextBoolean();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (displayName == null || profileId == null || twoFactor == null) {
+                throw new UnknownFormatException("Profile is missing a required key!");
+            }
+            return new Profile(displayName, profileId, twoFactor);
+        } catch (IllegalStateException | MalformedJsonException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Deserializes a JSON to an InstanceList instance.
      *
@@ -157,6 +247,47 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes an InstanceList directly from a JSON stream.
+     *
+     * @param reader The reader positioned at the start of the JSON document.
+     * @return The JSON in the InstanceList POJO format.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws UnknownFormatException Thrown if there was a problem while parsing the JSON.
+     */
+    public InstanceList deserializeInstanceList(JsonReader reader) throws IOException, UnknownFormatException {
+        try {
+            Integer version = null;
+            List<Instance> instances = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("version".equals(name)) {
+                    version = reader.nextInt();
+                } else if ("instances".equals(name)) {
+                    instances = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        instances.add(deserializeInstance(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (version == null || version != 1) {
+                throw new UnknownFormatException("Unknown version property: " + version);
+            }
+            if (instances == null) {
+                throw new UnknownFormatException("'instances' key missing!");
+            }
+            return new InstanceList(version, instances);
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Serializes an instance to a JSON format.
      *
@@ -203,6 +334,45 @@ public class SerializerService {
 
     }
 
+    /**
+     * Deserializes an instance directly from a JSON stream.
+     *
+     * @param reader The reader positioned at the start of the instance object.
+     * @return The instance as a POJO.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws UnknownFormatException Thrown when the format was not as expected.
+     */
+    public Instance deserializeInstance(JsonReader reader) throws IOException, UnknownFormatException {
+        try {
+            String baseUri = null;
+            String displayName = null;
+            String logoUri = null;
+            boolean isCustom = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("base_uri".equals(name)) {
+                    baseUri = reader.nextString();
+                } else if ("display_name".equals(name)) {
+                    displayName = reader.nextString();
+                } else if ("logo_uri".equals(name)) {
+                    logoUri = _nextStringOrNull(reader);
+                } else if ("is_custom".equals(name)) {
+                    isCustom = reader.nextBoolean();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (baseUri == null || displayName == null) {
+                throw new UnknownFormatException("Instance is missing a required key!");
+            }
+            return new Instance(baseUri, displayName, logoUri, isCustom);
+        } catch (IllegalStateException | MalformedJsonException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Serializes an InstanceList object.
      *
@@ -267,6 +437,70 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes the discovered API endpoints directly from a JSON stream.
+     *
+     * @param reader The reader positioned at the start of the JSON document.
+     * @return The discovered API object.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws UnknownFormatException Thrown if the JSON had an unknown format.
+     */
+    public DiscoveredAPI deserializeDiscoveredAPI(JsonReader reader) throws IOException, UnknownFormatException {
+        try {
+            Integer version = null;
+            String authorizationEndpoint = null;
+            String createConfigAPI = null;
+            String profileListAPI = null;
+            String systemMessagesAPI = null;
+            String userMessagesAPI = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("version".equals(name)) {
+                    version = reader.nextInt();
+                } else if ("authorization_endpoint".equals(name)) {
+                    authorizationEndpoint = _nextStringOrNull(reader);
+                } else if ("api".equals(name)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String apiName = reader.nextName();
+                        if ("create_config".equals(apiName)) {
+                            createConfigAPI = _nextStringOrNull(reader);
+                        } else if ("profile_list".equals(apiName)) {
+                            profileListAPI = _nextStringOrNull(reader);
+                        } else if ("system_messages".equals(apiName)) {
+                            systemMessagesAPI = _nextStringOrNull(reader);
+                        } else if ("user_messages".equals(apiName)) {
+                            userMessagesAPI = _nextStringOrNull(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (version == null || version != 1) {
+                throw new UnknownFormatException("Unknown version: " + version);
+            }
+            if (authorizationEndpoint == null) {
+                throw new UnknownFormatException("'authorization_endpoint' is missing!");
+            }
+            if (createConfigAPI == null) {
+                throw new UnknownFormatException("'create_config' is missing!");
+            }
+            if (profileListAPI == null) {
+                throw new UnknownFormatException("'profile_list' is missing!");
+            }
+            return new DiscoveredAPI(version, authorizationEndpoint, createConfigAPI,
+                    profileListAPI, systemMessagesAPI, userMessagesAPI);
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Serializes a discovered API object.
      *
@@ -307,13 +541,13 @@ public class SerializerService {
             for (int i = 0; i < messagesArray.length(); ++i) {
                 JSONObject messageObject = messagesArray.getJSONObject(i);
                 String dateString = messageObject.getString("date_time");
-                Date date = API_DATE_FORMAT.parse(dateString);
+                Date date = _parseApiDate(dateString);
                 String messageType = messageObject.getString("type");
                 if ("maintenance".equals(messageType)) {
                     String startString = messageObject.getString("begin");
-                    Date startDate = API_DATE_FORMAT.parse(startString);
+                    Date startDate = _parseApiDate(startString);
                     String endString = messageObject.getString("end");
-                    Date endDate = API_DATE_FORMAT.parse(endString);
+                    Date endDate = _parseApiDate(endString);
                     result.add(new Maintenance(date, startDate, endDate));
                 } else if ("notification".equals(messageType)) {
                     String content = messageObject.getString("message");
@@ -328,6 +562,136 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes a list of messages directly from a JSON stream.
+     *
+     * @param reader        The reader positioned at the start of the JSON document.
+     * @param messageSource the message source, either "user_messages" or "system_messages"
+     * @return The message instances in a list.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws UnknownFormatException Thrown if there was a problem while parsing.
+     */
+    public List<Message> deserializeMessageList(JsonReader reader, String messageSource) throws IOException, UnknownFormatException {
+        try {
+            List<Message> result = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (messageSource.equals(reader.nextName())) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("data".equals(reader.nextName())) {
+                            result = new ArrayList<>();
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                Message message = _deserializeMessage(reader);
+                                if (message != null) {
+                                    result.add(message);
+                                }
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (result == null) {
+                throw new UnknownFormatException("'" + messageSource + "' key missing!");
+            }
+            return result;
+        } catch (IllegalStateException | MalformedJsonException | ParseException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes a single message from a JSON stream.
+     *
+     * @param reader The reader positioned at the start of the message object.
+     * @return The message, or null if the message type is unknown.
+     * @throws IOException            Thrown if there was a problem while reading from the stream.
+     * @throws ParseException         Thrown if one of the dates had an invalid format.
+     * @throws UnknownFormatException Thrown if a required key was missing.
+     */
+    @Nullable
+    private Message _deserializeMessage(JsonReader reader) throws IOException, ParseException, UnknownFormatException {
+        String dateString = null;
+        String messageType = null;
+        String startString = null;
+        String endString = null;
+        String content = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("date_time".equals(name)) {
+                dateString = reader.nextString();
+            } else if ("type".equals(name)) {
+                messageType = reader.nextString();
+            } else if ("begin".equals(name)) {
+                startString = reader.nextString();
+            } else if ("end".equals(name)) {
+                endString = reader.nextString();
+            } else if ("message".equals(name)) {
+                content = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (dateString == null || messageType == null) {
+            throw new UnknownFormatException("Message is missing a required key!");
+        }
+        Date date = _parseApiDate(dateString);
+        if ("maintenance".equals(messageType)) {
+            if (startString == null || endString == null) {
+                throw new UnknownFormatException("Maintenance message is missing its begin or end date!");
+            }
+            return new Maintenance(date, _parseApiDate(startString), _parseApiDate(endString));
+        } else if ("notification".equals(messageType)) {
+            if (content == null) {
+                throw new UnknownFormatException("Notification is missing its message!");
+            }
+            return new Notification(date, content);
+        } else {
+            Log.w(TAG, "Unknown message type: " + messageType);
+            return null;
+        }
+    }
+
+    /**
+     * Parses a date in the API format.
+     * Date formats are not thread safe, and the deserializers are called from multiple background threads.
+     *
+     * @param dateString The date as a string.
+     * @return The parsed date.
+     * @throws ParseException Thrown if the date had an invalid format.
+     */
+    private static Date _parseApiDate(String dateString) throws ParseException {
+        synchronized (API_DATE_FORMAT) {
+            return API_DATE_FORMAT.parse(dateString);
+        }
+    }
+
+    /**
+     * Returns the next string value from the reader, or null if the value was a JSON null.
+     *
+     * @param reader The reader to read the value from.
+     * @return The string value, or null.
+     * @throws IOException Thrown if there was a problem while reading from the stream.
+     */
+    @Nullable
+    private static String _nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
     /**
      * Serializes a list of messages into a JSON format.
      *
@@ -396,12 +760,55 @@ public class SerializerService {
      * @throws UnknownFormatException Thrown if there was an error while deserializing.
      */
     public List<SavedToken> deserializeSavedTokenList(JSONObject jsonObject) throws UnknownFormatException {
+        return deserializeSavedTokenList(jsonObject, new HashMap<String, Instance>());
+    }
+
+    /**
+     * Serializes a list of saved access tokens, which reference their instance by its key in the instance table.
+     *
+     * @param savedTokenList The list with the saved access tokens.
+     * @return The list in a JSON format.
+     * @throws UnknownFormatException Thrown if there was an unexpected error.
+     * @see #serializeInstanceTable(Collection)
+     */
+    public JSONObject serializeSavedTokenReferenceList(List<SavedToken> savedTokenList) throws UnknownFormatException {
+        try {
+            JSONObject result = new JSONObject();
+            JSONArray array = new JSONArray();
+            for (SavedToken savedToken : savedTokenList) {
+                JSONObject tokenJson = new JSONObject();
+                tokenJson.put("instance_key", savedToken.getInstance().getSanitizedBaseURI());
+                tokenJson.put("access_token", savedToken.getAccessToken());
+                array.put(tokenJson);
+            }
+            result.put("data", array);
+            return result;
+        } catch (JSONException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes a JSON containing the list of the saved access tokens.
+     * The instances are looked up in the instance table. Tokens with an embedded instance (the format of
+     * {@link #serializeSavedTokenList(List)}) are also accepted, their instances are added to the table.
+     *
+     * @param jsonObject    The JSON containing the information.
+     * @param instanceTable The instances keyed by their sanitized base URI. The same instance object is shared by all
+     *                      entries which reference it.
+     * @return The list as a POJO. Tokens referencing an unknown instance are left out.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public List<SavedToken> deserializeSavedTokenList(JSONObject jsonObject, @NonNull Map<String, Instance> instanceTable) throws UnknownFormatException {
         try {
             List<SavedToken> result = new ArrayList<>();
             JSONArray dataArray = jsonObject.getJSONArray("data");
             for (int i = 0; i < dataArray.length(); ++i) {
                 JSONObject tokenObject = dataArray.getJSONObject(i);
-                Instance instance = deserializeInstance(tokenObject.getJSONObject("instance"));
+                Instance instance = _resolveInstance(tokenObject, "instance_key", "instance", instanceTable);
+                if (instance == null) {
+                    continue;
+                }
                 String accessToken = tokenObject.getString("access_token");
                 result.add(new SavedToken(instance, accessToken));
             }
@@ -444,12 +851,56 @@ public class SerializerService {
      * @throws UnknownFormatException Thrown if there was an error while deserializing.
      */
     public List<SavedProfile> deserializeSavedProfileList(JSONObject jsonObject) throws UnknownFormatException {
+        return deserializeSavedProfileList(jsonObject, new HashMap<String, Instance>());
+    }
+
+    /**
+     * Serializes a list of saved profiles, which reference their provider by its key in the instance table.
+     *
+     * @param savedProfileList The list of saved profiles.
+     * @return The list as a JSON.
+     * @throws UnknownFormatException Thrown if there was an error while serializing.
+     * @see #serializeInstanceTable(Collection)
+     */
+    public JSONObject serializeSavedProfileReferenceList(List<SavedProfile> savedProfileList) throws UnknownFormatException {
+        try {
+            JSONObject result = new JSONObject();
+            JSONArray array = new JSONArray();
+            for (SavedProfile savedProfile : savedProfileList) {
+                JSONObject profileJson = new JSONObject();
+                profileJson.put("provider_key", savedProfile.getInstance().getSanitizedBaseURI());
+                profileJson.put("profile", serializeProfile(savedProfile.getProfile()));
+                profileJson.put("profile_uuid", savedProfile.getProfileUUID());
+                array.put(profileJson);
+            }
+            result.put("data", array);
+            return result;
+        } catch (JSONException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes a list of saved profiles.
+     * The providers are looked up in the instance table. Profiles with an embedded provider (the format of
+     * {@link #serializeSavedProfileList(List)}) are also accepted, their providers are added to the table.
+     *
+     * @param jsonObject    The JSON to deserialize from.
+     * @param instanceTable The instances keyed by their sanitized base URI. The same instance object is shared by all
+     *                      entries which reference it.
+     * @return The list of saved profiles as a POJO. Profiles referencing an unknown provider are left out.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public List<SavedProfile> deserializeSavedProfileList(JSONObject jsonObject, @NonNull Map<String, Instance> instanceTable) throws UnknownFormatException {
         try {
             List<SavedProfile> result = new ArrayList<>();
             JSONArray dataArray = jsonObject.getJSONArray("data");
             for (int i = 0; i < dataArray.length(); ++i) {
                 JSONObject profileObject = dataArray.getJSONObject(i);
-                Instance instance = deserializeInstance(profileObject.getJSONObject("provider"));
+                Instance instance = _resolveInstance(profileObject, "provider_key", "provider", instanceTable);
+                if (instance == null) {
+                    continue;
+                }
                 Profile profile = deserializeProfile(profileObject.getJSONObject("profile"));
                 String profileUUID = profileObject.getString("profile_uuid");
                 result.add(new SavedProfile(instance, profile, profileUUID));
@@ -460,6 +911,134 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Serializes the instance table, which stores each instance once for the entries referencing it.
+     *
+     * @param instances The instances to serialize. Each should have a different sanitized base URI.
+     * @return The instance table as a JSON.
+     * @throws UnknownFormatException Thrown if there was an error while serializing.
+     */
+    public JSONObject serializeInstanceTable(Collection<Instance> instances) throws UnknownFormatException {
+        try {
+            JSONObject result = new JSONObject();
+            JSONArray array = new JSONArray();
+            for (Instance instance : instances) {
+                array.put(serializeInstance(instance));
+            }
+            result.put("data", array);
+            return result;
+        } catch (JSONException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes the instance table.
+     *
+     * @param jsonObject The JSON to deserialize from.
+     * @return The instances keyed by their sanitized base URI, in the order they were serialized.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public Map<String, Instance> deserializeInstanceTable(JSONObject jsonObject) throws UnknownFormatException {
+        try {
+            Map<String, Instance> result = new LinkedHashMap<>();
+            JSONArray dataArray = jsonObject.getJSONArray("data");
+            for (int i = 0; i < dataArray.length(); ++i) {
+                Instance instance = deserializeInstance(dataArray.getJSONObject(i));
+                result.put(instance.getSanitizedBaseURI(), instance);
+            }
+            return result;
+        } catch (JSONException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Returns the instance of a saved entry, either by looking up its key in the instance table, or by deserializing
+     * the embedded instance. Embedded instances are interned in the table, so equal instances are only kept once.
+     *
+     * @param entryObject   The JSON of the saved entry.
+     * @param keyName       The name of the instance key.
+     * @param instanceName  The name of the embedded instance.
+     * @param instanceTable The instances keyed by their sanitized base URI.
+     * @return The instance, or null if the key is not in the table.
+     * @throws JSONException          Thrown if the entry has neither a key nor an embedded instance.
+     * @throws UnknownFormatException Thrown if the embedded instance could not be deserialized.
+     */
+    @Nullable
+    private Instance _resolveInstance(JSONObject entryObject, String keyName, String instanceName,
+                                      Map<String, Instance> instanceTable) throws JSONException, UnknownFormatException {
+        if (entryObject.has(keyName)) {
+            String key = entryObject.getString(keyName);
+            Instance instance = instanceTable.get(key);
+            if (instance == null) {
+                Log.w(TAG, "Instance " + key + " is missing from the instance table, skipping entry.");
+            }
+            return instance;
+        }
+        Instance instance = deserializeInstance(entryObject.getJSONObject(instanceName));
+        Instance internedInstance = instanceTable.get(instance.getSanitizedBaseURI());
+        if (internedInstance == null) {
+            instanceTable.put(instance.getSanitizedBaseURI(), instance);
+            return instance;
+        }
+        return internedInstance;
+    }
+
+    /**
+     * Serializes the last fetched profile lists of the VPN providers.
+     *
+     * @param profileListCache The profile lists, keyed by the sanitized base URI of the provider.
+     * @return The profile lists as a JSON.
+     * @throws UnknownFormatException Thrown if there was an error while serializing.
+     */
+    public JSONObject serializeProfileListCache(Map<String, List<Profile>> profileListCache) throws UnknownFormatException {
+        try {
+            JSONObject result = new JSONObject();
+            JSONArray array = new JSONArray();
+            for (Map.Entry<String, List<Profile>> entry : profileListCache.entrySet()) {
+                JSONObject entity = new JSONObject();
+                entity.put("key", entry.getKey());
+                JSONArray profileArray = new JSONArray();
+                for (Profile profile : entry.getValue()) {
+                    profileArray.put(serializeProfile(profile));
+                }
+                entity.put("profile_list", profileArray);
+                array.put(entity);
+            }
+            result.put("data", array);
+            return result;
+        } catch (JSONException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes the last fetched profile lists of the VPN providers.
+     *
+     * @param jsonObject The JSON to deserialize from.
+     * @return The profile lists, keyed by the sanitized base URI of the provider.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public Map<String, List<Profile>> deserializeProfileListCache(JSONObject jsonObject) throws UnknownFormatException {
+        try {
+            Map<String, List<Profile>> result = new LinkedHashMap<>();
+            JSONArray dataArray = jsonObject.getJSONArray("data");
+            for (int i = 0; i < dataArray.length(); ++i) {
+                JSONObject entity = dataArray.getJSONObject(i);
+                JSONArray profileArray = entity.getJSONArray("profile_list");
+                List<Profile> profileList = new ArrayList<>(profileArray.length());
+                for (int j = 0; j < profileArray.length(); ++j) {
+                    profileList.add(deserializeProfile(profileArray.getJSONObject(j)));
+                }
+                result.put(entity.getString("key"), profileList);
+            }
+            return result;
+        } catch (JSONException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Serializes a TTL cache of discovered APIs.
      *
@@ -547,4 +1126,352 @@ public class SerializerService {
             throw new UnknownFormatException(ex);
         }
     }
+
+    /**
+     * Encodes the instance table in the compact binary format.
+     * <p>
+     * The binary encoders store strings with {@link DataOutputStream#writeUTF(String)}, which limits each string to
+     * 65535 bytes of modified UTF-8. A longer string makes the encoding fail with an {@link UnknownFormatException}.
+     *
+     * @param instances The instances to encode. Each should have a different sanitized base URI.
+     * @return The binary representation.
+     * @throws UnknownFormatException Thrown if there was an error while encoding.
+     */
+    public byte[] encodeInstanceTable(Collection<Instance> instances) throws UnknownFormatException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(result);
+            _writeVarInt(output, instances.size());
+            for (Instance instance : instances) {
+                _writeInstance(output, instance);
+            }
+            return result.toByteArray();
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Decodes the instance table from the compact binary format.
+     *
+     * @param data The binary representation.
+     * @return The instances keyed by their sanitized base URI, in the order they were encoded.
+     * @throws UnknownFormatException Thrown if there was an error while decoding.
+     */
+    public Map<String, Instance> decodeInstanceTable(byte[] data) throws UnknownFormatException {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            int count = _readCount(input);
+            Map<String, Instance> result = new LinkedHashMap<>();
+            for (int i = 0; i < count; ++i) {
+                Instance instance = _readInstance(input);
+                result.put(instance.getSanitizedBaseURI(), instance);
+            }
+            return result;
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Encodes a list of saved access tokens in the compact binary format. The instances are referenced by their key in
+     * the instance table.
+     *
+     * @param savedTokenList The list with the saved access tokens.
+     * @return The binary representation.
+     * @throws UnknownFormatException Thrown if there was an error while encoding.
+     */
+    public byte[] encodeSavedTokenList(List<SavedToken> savedTokenList) throws UnknownFormatException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(result);
+            _writeVarInt(output, savedTokenList.size());
+            for (SavedToken savedToken : savedTokenList) {
+                output.writeUTF(savedToken.getInstance().getSanitizedBaseURI());
+                output.writeUTF(savedToken.getAccessToken());
+            }
+            return result.toByteArray();
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Decodes a list of saved access tokens from the compact binary format.
+     *
+     * @param data          The binary representation.
+     * @param instanceTable The instances keyed by their sanitized base URI.
+     * @return The list of saved tokens. Tokens referencing an unknown instance are left out.
+     * @throws UnknownFormatException Thrown if there was an error while decoding.
+     */
+    public List<SavedToken> decodeSavedTokenList(byte[] data, @NonNull Map<String, Instance> instanceTable) throws UnknownFormatException {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            int count = _readCount(input);
+            List<SavedToken> result = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String instanceKey = input.readUTF();
+                String accessToken = input.readUTF();
+                Instance instance = instanceTable.get(instanceKey);
+                if (instance == null) {
+                    Log.w(TAG, "Instance " + instanceKey + " is missing from the instance table, skipping entry.");
+                } else {
+                    result.add(new SavedToken(instance, accessToken));
+                }
+            }
+            return result;
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Encodes a list of saved profiles in the compact binary format. The providers are referenced by their key in the
+     * instance table.
+     *
+     * @param savedProfileList The list of saved profiles.
+     * @return The binary representation.
+     * @throws UnknownFormatException Thrown if there was an error while encoding.
+     */
+    public byte[] encodeSavedProfileList(List<SavedProfile> savedProfileList) throws UnknownFormatException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(result);
+            _writeVarInt(output, savedProfileList.size());
+            for (SavedProfile savedProfile : savedProfileList) {
+                output.writeUTF(savedProfile.getInstance().getSanitizedBaseURI());
+                _writeProfile(output, savedProfile.getProfile());
+                output.writeUTF(savedProfile.getProfileUUID());
+            }
+            return result.toByteArray();
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Decodes a list of saved profiles from the compact binary format.
+     *
+     * @param data          The binary representation.
+     * @param instanceTable The instances keyed by their sanitized base URI.
+     * @return The list of saved profiles. Profiles referencing an unknown provider are left out.
+     * @throws UnknownFormatException Thrown if there was an error while decoding.
+     */
+    public List<SavedProfile> decodeSavedProfileList(byte[] data, @NonNull Map<String, Instance> instanceTable) throws UnknownFormatException {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            int count = _readCount(input);
+            List<SavedProfile> result = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String instanceKey = input.readUTF();
+                Profile profile = _readProfile(input);
+                String profileUUID = input.readUTF();
+                Instance instance = instanceTable.get(instanceKey);
+                if (instance == null) {
+                    Log.w(TAG, "Instance " + instanceKey + " is missing from the instance table, skipping entry.");
+                } else {
+                    result.add(new SavedProfile(instance, profile, profileUUID));
+                }
+            }
+            return result;
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Encodes the last fetched profile lists of the VPN providers in the compact binary format.
+     *
+     * @param profileListCache The profile lists, keyed by the sanitized base URI of the provider.
+     * @return The binary representation.
+     * @throws UnknownFormatException Thrown if there was an error while encoding.
+     */
+    public byte[] encodeProfileListCache(Map<String, List<Profile>> profileListCache) throws UnknownFormatException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(result);
+            _writeVarInt(output, profileListCache.size());
+            for (Map.Entry<String, List<Profile>> entry : profileListCache.entrySet()) {
+                output.writeUTF(entry.getKey());
+                _writeVarInt(output, entry.getValue().size());
+                for (Profile profile : entry.getValue()) {
+                    _writeProfile(output, profile);
+                }
+            }
+            return result.toByteArray();
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Decodes the last fetched profile lists of the VPN providers from the compact binary format.
+     *
+     * @param data The binary representation.
+     * @return The profile lists, keyed by the sanitized base URI of the provider.
+     * @throws UnknownFormatException Thrown if there was an error while decoding.
+     */
+    public Map<String, List<Profile>> decodeProfileListCache(byte[] data) throws UnknownFormatException {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            int count = _readCount(input);
+            Map<String, List<Profile>> result = new LinkedHashMap<>();
+            for (int i = 0; i < count; ++i) {
+                String key = input.readUTF();
+                int profileCount = _readCount(input);
+                List<Profile> profileList = new ArrayList<>(profileCount);
+                for (int j = 0; j < profileCount; ++j) {
+                    profileList.add(_readProfile(input));
+                }
+                result.put(key, profileList);
+            }
+            return result;
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Encodes a TTL cache of discovered APIs in the compact binary format.
+     *
+     * @param ttlCache The cache to encode.
+     * @return The binary representation.
+     * @throws UnknownFormatException Thrown if there was an error while encoding.
+     */
+    public byte[] encodeDiscoveredAPITTLCache(TTLCache<DiscoveredAPI> ttlCache) throws UnknownFormatException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(result);
+            output.writeLong(ttlCache.getPurgeAfterSeconds());
+            Map<String, Pair<Date, DiscoveredAPI>> entries = ttlCache.getEntries();
+            _writeVarInt(output, entries.size());
+            for (Map.Entry<String, Pair<Date, DiscoveredAPI>> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().first.getTime());
+                DiscoveredAPI discoveredAPI = entry.getValue().second;
+                _writeVarInt(output, discoveredAPI.getVersion());
+                output.writeUTF(discoveredAPI.getAuthorizationEndpoint());
+                output.writeUTF(discoveredAPI.getCreateConfigAPI());
+                output.writeUTF(discoveredAPI.getProfileListAPI());
+                _writeNullableString(output, discoveredAPI.getSystemMessagesAPI());
+                _writeNullableString(output, discoveredAPI.getUserMessagesAPI());
+            }
+            return result.toByteArray();
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Decodes a TTL cache of discovered APIs from the compact binary format.
+     *
+     * @param data The binary representation.
+     * @return The cache object.
+     * @throws UnknownFormatException Thrown if there was an error while decoding.
+     */
+    public TTLCache<DiscoveredAPI> decodeDiscoveredAPITTLCache(byte[] data) throws UnknownFormatException {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            long purgeAfterSeconds = input.readLong();
+            int count = _readCount(input);
+            Map<String, Pair<Date, DiscoveredAPI>> originalData = new HashMap<>();
+            for (int i = 0; i < count; ++i) {
+                String key = input.readUTF();
+                Date entryDate = new Date(input.readLong());
+                int version = _readVarInt(input);
+                String authorizationEndpoint = input.readUTF();
+                String createConfigAPI = input.readUTF();
+                String profileListAPI = input.readUTF();
+                String systemMessagesAPI = _readNullableString(input);
+                String userMessagesAPI = _readNullableString(input);
+                originalData.put(key, new Pair<>(entryDate, new DiscoveredAPI(version, authorizationEndpoint, createConfigAPI,
+                        profileListAPI, systemMessagesAPI, userMessagesAPI)));
+            }
+            return new TTLCache<>(originalData, purgeAfterSeconds);
+        } catch (IOException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    private static void _writeInstance(DataOutputStream output, Instance instance) throws IOException {
+        output.writeUTF(instance.getBaseURI());
+        output.writeUTF(instance.getDisplayName());
+        _writeNullableString(output, instance.getLogoUri());
+        output.writeBoolean(instance.isCustom());
+    }
+
+    private static Instance _readInstance(DataInputStream input) throws IOException {
+        String baseUri = input.readUTF();
+        String displayName = input.readUTF();
+        String logoUri = _readNullableString(input);
+        boolean isCustom = input.readBoolean();
+        return new Instance(baseUri, displayName, logoUri, isCustom);
+    }
+
+    private static void _writeProfile(DataOutputStream output, Profile profile) throws IOException {
+        output.writeUTF(profile.getDisplayName());
+        output.writeUTF(profile.getProfileId());
+        Boolean twoFactor = profile.getTwoFactor();
+        output.writeByte(twoFactor == null ? 2 : twoFactor ? 1 : 0);
+    }
+
+    private static Profile _readProfile(DataInputStream input) throws IOException {
+        String displayName = input.readUTF();
+        String profileId = input.readUTF();
+        byte twoFactor = input.readByte();
+        return new Profile(displayName, profileId, twoFactor == 2 ? null : twoFactor == 1);
+    }
+
+    private static void _writeNullableString(DataOutputStream output, @Nullable String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    private static String _readNullableString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    /**
+     * Writes a non-negative number in as few bytes as possible: 7 bits per byte, the highest bit marks if more follow.
+     */
+    private static void _writeVarInt(DataOutputStream output, int value) throws IOException {
+        if (value < 0) {
+            throw new IOException("Negative value: " + value);
+        }
+        while (value >= 0x80) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    /**
+     * Reads the number of entries which follow. Each entry takes at least one byte, so a count larger than the remaining
+     * data can only come from a corrupt file, and is rejected before anything is allocated for it.
+     */
+    private static int _readCount(DataInputStream input) throws IOException {
+        int count = _readVarInt(input);
+        if (count > input.available()) {
+            throw new IOException("Entry count " + count + " exceeds the remaining " + input.available() + " bytes.");
+        }
+        return count;
+    }
+
+    private static int _readVarInt(DataInputStream input) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int value = input.readUnsignedByte();
+            result |= (value & 0x7F) << shift;
+            if ((value & 0x80) == 0) {
+                if (result < 0) {
+                    throw new IOException("Value out of range.");
+                }
+                return result;
+            }
+        }
+        throw new IOException("Value is too long.");
+    }
 }
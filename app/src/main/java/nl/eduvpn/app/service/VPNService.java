@@ -22,22 +22,28 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.Pair;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Observable;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import de.blinkt.openvpn.LaunchVPN;
@@ -47,39 +53,56 @@ import de.blinkt.openvpn.core.Connection;
 import de.blinkt.openvpn.core.OpenVPNService;
 import de.blinkt.openvpn.core.ProfileManager;
 import de.blinkt.openvpn.core.VpnStatus;
+import nl.eduvpn.app.entity.ConnectionMetadata;
+import nl.eduvpn.app.entity.ConnectionStatistics;
+import nl.eduvpn.app.entity.SessionRecord;
+import nl.eduvpn.app.network.Cancellable;
+import nl.eduvpn.app.network.RemoteProber;
 import nl.eduvpn.app.utils.Log;
+import nl.eduvpn.app.utils.TrafficHistory;
+import nl.eduvpn.app.utils.UpdateThrottle;
 
 /**
  * Service responsible for managing the VPN profiles and the connection.
  * Created by Daniel Zolnai on 2016-10-13.
  */
-public class VPNService extends Observable implements VpnStatus.StateListener {
+public class VPNService implements VpnStatus.StateListener {
 
     public enum VPNStatus {
         DISCONNECTED, CONNECTING, CONNECTED, PAUSED, FAILED
     }
 
-    private static final Long CONNECTION_INFO_UPDATE_INTERVAL_MS = 1000L;
+    public static final long STATISTICS_UPDATE_INTERVAL_MS = 1000;
+
     private static final String VPN_INTERFACE_NAME = "tun0";
+    private static final String CONFIG_CHARSET = "UTF-8";
 
     private static final String TAG = VPNService.class.getName();
 
     private Context _context;
 
     private PreferencesService _preferencesService;
+    private AccountingService _accountingService;
+    private ConnectionTimingService _connectionTimingService;
+    private RemoteProber _remoteProber;
 
     // Stores the current VPN status.
     private VpnStatus.ConnectionStatus _connectionStatus = VpnStatus.ConnectionStatus.LEVEL_NOTCONNECTED;
     // These are used to provide connection info updates
-    private ConnectionInfoCallback _connectionInfoCallback;
+    private final ConnectionEventBus _eventBus;
+    private final UpdateThrottle _statisticsThrottle;
     private Handler _updatesHandler = new Handler();
-    // These store the current connection statistics
-    private Date _connectionTime;
-    private Long _bytesIn;
-    private Long _bytesOut;
+    // These store the current connection statistics. The byte counts are written by the OpenVPN threads.
+    private volatile long _connectionStartTime = ConnectionStatistics.NOT_AVAILABLE;
+    private volatile long _bytesIn = ConnectionStatistics.NOT_AVAILABLE;
+    private volatile long _bytesOut = ConnectionStatistics.NOT_AVAILABLE;
     private String _serverIpV4;
     private String _serverIpV6;
     private Integer _errorResource;
+    // The profile of the last connection attempt, the sessions are recorded for this one.
+    private String _sessionProfileUUID;
+    // Probes the remotes of the profile which is about to be connected.
+    private Cancellable _remoteProbe;
 
     private OpenVPNService _openVPNService;
     private ServiceConnection _serviceConnection = new ServiceConnection() {
@@ -97,28 +120,64 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
         }
     };
 
+    private final TrafficHistory _trafficHistory = new TrafficHistory(TrafficHistory.DEFAULT_CAPACITY_SECONDS);
+
+    // Registered for the whole lifetime of the service, so the statistics are complete even if nobody displays them.
     private VpnStatus.ByteCountListener _byteCountListener = new VpnStatus.ByteCountListener() {
         @Override
         public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+            _trafficHistory.record(SystemClock.elapsedRealtime(), diffIn, diffOut);
             _bytesIn = in;
             _bytesOut = out;
+            _requestStatisticsUpdate();
+        }
+    };
+
+    private final Runnable _publishStatisticsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            _publishStatistics();
         }
     };
 
     /**
      * Constructor.
      *
-     * @param context The application or activity context.
+     * @param context            The application or activity context.
+     * @param preferencesService The preferences service.
+     * @param eventBus           The bus to publish the events of the connection on.
+     * @param accountingService       The service which stores the finished sessions.
+     * @param connectionTimingService The service which measures how long connecting takes.
+     * @param remoteProber            Measures the round trip time to the remotes before connecting.
      */
-    public VPNService(Context context, PreferencesService preferencesService) {
+    public VPNService(Context context, PreferencesService preferencesService, ConnectionEventBus eventBus,
+                      AccountingService accountingService, ConnectionTimingService connectionTimingService,
+                      RemoteProber remoteProber) {
         _context = context;
         _preferencesService = preferencesService;
+        _accountingService = accountingService;
+        _connectionTimingService = connectionTimingService;
+        _remoteProber = remoteProber;
+        _eventBus = eventBus;
+        _statisticsThrottle = new UpdateThrottle(_updatesHandler, STATISTICS_UPDATE_INTERVAL_MS, _publishStatisticsRunnable);
+        // The statistics are only produced while someone is subscribed to them.
+        _eventBus.setSubscribeListener(ConnectionEventBus.STATISTICS, new Runnable() {
+            @Override
+            public void run() {
+                _statisticsThrottle.request();
+            }
+        });
+        _eventBus.publish(ConnectionEventBus.STATUS, getStatus());
+        _eventBus.publish(ConnectionEventBus.METADATA, new ConnectionMetadata(null, null));
+        _eventBus.publish(ConnectionEventBus.STATISTICS, new ConnectionStatistics(ConnectionStatistics.NOT_AVAILABLE,
+                ConnectionStatistics.NOT_AVAILABLE, ConnectionStatistics.NOT_AVAILABLE));
     }
 
 
     public void onCreate(@NonNull Activity activity) {
         OpenVPNService.setNotificationActivityClass(activity.getClass());
         VpnStatus.addStateListener(this);
+        VpnStatus.addByteCountListener(_byteCountListener);
         Intent intent = new Intent(activity, OpenVPNService.class);
         intent.setAction(OpenVPNService.START_SERVICE);
         activity.bindService(intent, _serviceConnection, Context.BIND_AUTO_CREATE);
@@ -127,6 +186,7 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
     public void onDestroy(@NonNull Activity activity) {
         activity.unbindService(_serviceConnection);
         VpnStatus.removeStateListener(this);
+        VpnStatus.removeByteCountListener(_byteCountListener);
     }
 
     /**
@@ -138,18 +198,9 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
      */
     @Nullable
     public VpnProfile importConfig(String configString, String preferredName) {
-        ConfigParser configParser = new ConfigParser();
         try {
-            configParser.parseConfig(new StringReader(configString));
-            VpnProfile profile = configParser.convertProfile();
-            if (preferredName != null) {
-                profile.mName = preferredName;
-            }
-            ProfileManager profileManager = ProfileManager.getInstance(_context);
-            profileManager.addProfile(profile);
-            profileManager.saveProfile(_context, profile);
-            profileManager.saveProfileList(_context);
-            Log.i(TAG, "Added and saved profile with UUID: " + profile.getUUIDString());
+            VpnProfile profile = _parseConfig(new StringReader(configString), preferredName);
+            saveProfile(profile);
             return profile;
         } catch (IOException | ConfigParser.ConfigParseError e) {
             Log.e(TAG, "Error converting profile!", e);
@@ -157,23 +208,195 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
         }
     }
 
+    /**
+     * Creates a parser which converts a config to a profile while it is being downloaded, so the config is never kept
+     * in memory as a whole. The profile is not saved yet, use {@link #saveProfile(VpnProfile)} for that.
+     *
+     * @param preferredName The preferred name for the config.
+     * @return The parser, which returns null if the config is invalid.
+     */
+    public APIService.ResponseParser<VpnProfile> createConfigParser(@Nullable final String preferredName) {
+        return new APIService.ResponseParser<VpnProfile>() {
+            @Override
+            public VpnProfile parse(@NonNull InputStream inputStream) throws IOException {
+                try {
+                    return _parseConfig(new InputStreamReader(inputStream, CONFIG_CHARSET), preferredName);
+                } catch (ConfigParser.ConfigParseError e) {
+                    Log.e(TAG, "Error converting profile!", e);
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds a profile to the profile manager and saves it.
+     *
+     * @param profile The profile to save.
+     */
+    public void saveProfile(@NonNull VpnProfile profile) {
+        ProfileManager profileManager = ProfileManager.getInstance(_context);
+        profileManager.addProfile(profile);
+        profileManager.saveProfile(_context, profile);
+        profileManager.saveProfileList(_context);
+        Log.i(TAG, "Added and saved profile with UUID: " + profile.getUUIDString());
+    }
+
+    /**
+     * Parses a config into a profile.
+     * The parser reads the config line by line, so only a single buffer is needed besides the profile itself.
+     *
+     * @param reader        The reader of the config.
+     * @param preferredName The preferred name for the config.
+     * @return The parsed profile.
+     * @throws IOException                   Thrown if the config could not be read.
+     * @throws ConfigParser.ConfigParseError Thrown if the config is invalid.
+     */
+    private VpnProfile _parseConfig(@NonNull Reader reader, @Nullable String preferredName) throws IOException, ConfigParser.ConfigParseError {
+        long startTime = SystemClock.elapsedRealtime();
+        long allocatedBefore = _getAllocatedBytes();
+        ConfigParser configParser = new ConfigParser();
+        configParser.parseConfig(reader);
+        VpnProfile profile = configParser.convertProfile();
+        if (preferredName != null) {
+            profile.mName = preferredName;
+        }
+        long allocatedAfter = _getAllocatedBytes();
+        Runtime runtime = Runtime.getRuntime();
+        String allocated = allocatedBefore < 0 || allocatedAfter < 0 ? "unknown" : ((allocatedAfter - allocatedBefore) / 1024) + " KiB";
+        Log.i(TAG, "Parsed config in " + (SystemClock.elapsedRealtime() - startTime) + " ms, allocated: " + allocated +
+                ", heap in use: " + ((runtime.totalMemory() - runtime.freeMemory()) / 1024) + " KiB");
+        return profile;
+    }
+
+    /**
+     * Returns the amount of bytes allocated by the runtime so far.
+     *
+     * @return The allocated bytes, or -1 if this is not supported on this device.
+     */
+    private static long _getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return allocated == null ? -1 : Long.parseLong(allocated);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
     /**
      * Connects to the VPN using the profile supplied as a parameter.
+     * If the profile has multiple remotes with the same protocol, they are probed first, and the fastest one of them is
+     * tried first.
      *
      * @param activity   The current activity, required for providing a context.
      * @param vpnProfile The profile to connect to.
      */
-    public void connect(@NonNull Activity activity, @NonNull VpnProfile vpnProfile) {
+    public void connect(@NonNull final Activity activity, @NonNull final VpnProfile vpnProfile) {
         Log.i(TAG, "Initiating connection with profile:" + vpnProfile.getUUIDString());
+        _sessionProfileUUID = vpnProfile.getUUIDString();
         boolean forceTcp = _preferencesService.getAppSettings().forceTcp();
         Log.i(TAG, "Force TCP: " + forceTcp);
         // If force TCP is enabled, disable the UDP connections
+        boolean usesUdp = false;
         for (Connection connection : vpnProfile.mConnections) {
             if (connection.mUseUdp) {
                 connection.mEnabled = !forceTcp;
             }
+            usesUdp |= connection.mUseUdp && connection.mEnabled;
         }
+        _connectionTimingService.onConnectRequested(vpnProfile.getUUIDString(),
+                usesUdp ? ConnectionTimingService.Transport.UDP : ConnectionTimingService.Transport.TCP,
+                SystemClock.elapsedRealtime());
         // Make sure these changes are NOT saved, since we don't want the config changes to be permanent.
+        if (_remoteProbe != null) {
+            _remoteProbe.cancel();
+            _remoteProbe = null;
+        }
+        List<String> remoteKeys = new ArrayList<>();
+        int udpRemoteCount = 0;
+        for (Connection connection : vpnProfile.mConnections) {
+            String remoteKey = _getRemoteKey(connection);
+            if (connection.mEnabled && remoteKey != null) {
+                remoteKeys.add(remoteKey);
+                udpRemoteCount += connection.mUseUdp ? 1 : 0;
+            }
+        }
+        if (udpRemoteCount < 2 && remoteKeys.size() - udpRemoteCount < 2) {
+            // Nothing to choose from, the remotes are only reordered within the same protocol.
+            _launchVPN(activity, vpnProfile);
+            return;
+        }
+        _remoteProbe = _remoteProber.probe(remoteKeys, new RemoteProber.Callback() {
+            @Override
+            public void onProbed(@NonNull Map<String, Long> roundTripTimes) {
+                _remoteProbe = null;
+                _orderConnections(vpnProfile, roundTripTimes);
+                _launchVPN(activity, vpnProfile);
+            }
+        });
+    }
+
+    /**
+     * Sorts the connections of the profile, so the fastest reachable remote is tried first. The remotes are only
+     * reordered among the ones with the same protocol, each protocol keeps its positions from the configuration,
+     * because the probe results of different protocols are not comparable. Remotes with the same result keep their
+     * order from the configuration.
+     *
+     * @param vpnProfile     The profile to sort the connections of. The new order is not saved.
+     * @param roundTripTimes The results of the probes.
+     */
+    private void _orderConnections(@NonNull VpnProfile vpnProfile, @NonNull final Map<String, Long> roundTripTimes) {
+        Connection[] connections = vpnProfile.mConnections.clone();
+        Comparator<Connection> comparator = new Comparator<Connection>() {
+            @Override
+            public int compare(Connection lhs, Connection rhs) {
+                return RemoteProber.compare(_getRoundTripTime(roundTripTimes, lhs), _getRoundTripTime(roundTripTimes, rhs));
+            }
+        };
+        for (boolean useUdp : new boolean[]{ false, true }) {
+            List<Connection> sameProtocolConnections = new ArrayList<>();
+            for (Connection connection : connections) {
+                if (connection.mUseUdp == useUdp) {
+                    sameProtocolConnections.add(connection);
+                }
+            }
+            // Sorting a list is stable.
+            Collections.sort(sameProtocolConnections, comparator);
+            int index = 0;
+            for (int i = 0; i < connections.length; ++i) {
+                if (connections[i].mUseUdp == useUdp) {
+                    connections[i] = sameProtocolConnections.get(index++);
+                }
+            }
+        }
+        vpnProfile.mConnections = connections;
+        Connection first = connections[0];
+        Log.i(TAG, "Trying remote " + first.mServerName + ":" + first.mServerPort + " first, round trip time: "
+                + _getRoundTripTime(roundTripTimes, first) + " ms.");
+    }
+
+    @Nullable
+    private static Long _getRoundTripTime(@NonNull Map<String, Long> roundTripTimes, @NonNull Connection connection) {
+        String remoteKey = _getRemoteKey(connection);
+        return remoteKey == null || !connection.mEnabled ? null : roundTripTimes.get(remoteKey);
+    }
+
+    @Nullable
+    private static String _getRemoteKey(@NonNull Connection connection) {
+        if (connection.mServerName == null || connection.mServerPort == null) {
+            return null;
+        }
+        try {
+            return RemoteProber.createKey(connection.mServerName, Integer.parseInt(connection.mServerPort.trim()), connection.mUseUdp);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private void _launchVPN(@NonNull Activity activity, @NonNull VpnProfile vpnProfile) {
         Intent intent = new Intent(activity, LaunchVPN.class);
         intent.putExtra(LaunchVPN.EXTRA_KEY, vpnProfile.getUUIDString());
         intent.putExtra(LaunchVPN.EXTRA_HIDELOG, true);
@@ -185,6 +408,10 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
      * Disconnects the current VPN connection.
      */
     public void disconnect() {
+        if (_remoteProbe != null) {
+            _remoteProbe.cancel();
+            _remoteProbe = null;
+        }
         _openVPNService.getManagement().stopVPN(false);
         _onDisconnect();
     }
@@ -193,17 +420,66 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
      * Call this if the service has disconnected. Resets all statistics.
      */
     private void _onDisconnect() {
+        _recordSession();
         // Reset all statistics
-        detachConnectionInfoListener();
-        _updatesHandler.removeCallbacksAndMessages(null);
-        _connectionTime = null;
-        _bytesIn = null;
-        _bytesOut = null;
+        _connectionStartTime = ConnectionStatistics.NOT_AVAILABLE;
+        _bytesIn = ConnectionStatistics.NOT_AVAILABLE;
+        _bytesOut = ConnectionStatistics.NOT_AVAILABLE;
         _serverIpV4 = null;
         _serverIpV6 = null;
         _errorResource = null;
+        _eventBus.publish(ConnectionEventBus.METADATA, new ConnectionMetadata(null, null));
+        _requestStatisticsUpdate();
+    }
+
+
+    /**
+     * Forwards the connection level to the timing measurements.
+     *
+     * @param level The new connection level.
+     */
+    private void _updateConnectionTiming(VpnStatus.ConnectionStatus level) {
+        long now = SystemClock.elapsedRealtime();
+        switch (level) {
+            case LEVEL_START:
+                _connectionTimingService.onPhaseReached(ConnectionTimingService.Phase.STARTED, now);
+                break;
+            case LEVEL_CONNECTING_NO_SERVER_REPLY_YET:
+                _connectionTimingService.onPhaseReached(ConnectionTimingService.Phase.WAITING_FOR_SERVER, now);
+                break;
+            case LEVEL_CONNECTING_SERVER_REPLIED:
+                _connectionTimingService.onPhaseReached(ConnectionTimingService.Phase.SERVER_REPLIED, now);
+                break;
+            case LEVEL_CONNECTED:
+                _connectionTimingService.onPhaseReached(ConnectionTimingService.Phase.CONNECTED, now);
+                break;
+            case LEVEL_AUTH_FAILED:
+            case LEVEL_NOTCONNECTED:
+            case LEVEL_NONETWORK:
+            case LEVEL_VPNPAUSED:
+                _connectionTimingService.onAborted();
+                break;
+            default:
+                // Waiting for the user does not end the attempt.
+                break;
+        }
     }
 
+    /**
+     * Stores the duration and the traffic of the current session, if there is one.
+     */
+    private void _recordSession() {
+        long connectionStartTime = _connectionStartTime;
+        if (connectionStartTime == ConnectionStatistics.NOT_AVAILABLE || _sessionProfileUUID == null) {
+            return;
+        }
+        long durationMs = SystemClock.elapsedRealtime() - connectionStartTime;
+        _accountingService.record(new SessionRecord(_sessionProfileUUID, System.currentTimeMillis() - durationMs, durationMs,
+                _trafficHistory.getTotalBytes(TrafficHistory.DIRECTION_IN),
+                _trafficHistory.getTotalBytes(TrafficHistory.DIRECTION_OUT)));
+        // Make sure the same session is not recorded twice.
+        _connectionStartTime = ConnectionStatistics.NOT_AVAILABLE;
+    }
 
     /**
      * Returns a more simple status for the current connection level.
@@ -313,8 +589,13 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
             // Nothing changed.
             return;
         }
+        _updateConnectionTiming(level);
         if (getStatus() == VPNStatus.CONNECTED) {
-            _connectionTime = new Date();
+            // A reconnect without disconnecting first, close the previous session.
+            _recordSession();
+            _connectionStartTime = SystemClock.elapsedRealtime();
+            _trafficHistory.clear();
+            _requestStatisticsUpdate();
             // Try to get the address from a lookup
             Pair<String, String> ips = _lookupVpnIpAddresses();
             if (ips != null) {
@@ -328,54 +609,59 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
                     _serverIpV6 = ips.second;
                 }
             }
-            if (_connectionInfoCallback != null) {
-                _updatesHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        _connectionInfoCallback.metadataAvailable(_serverIpV4, _serverIpV6);
-                    }
-                });
-            }
+            _eventBus.publish(ConnectionEventBus.METADATA, new ConnectionMetadata(_serverIpV4, _serverIpV6));
         } else if (getStatus() == VPNStatus.FAILED) {
             _errorResource = localizedResId;
         } else if (getStatus() == VPNStatus.DISCONNECTED) {
             _onDisconnect();
         }
-        // Notify the observers.
-        _updatesHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                setChanged();
-                notifyObservers(getStatus());
-            }
-        });
+        _eventBus.publish(ConnectionEventBus.STATUS, getStatus());
     }
 
 
     /**
-     * Attaches a connection info listener callback, which will be called frequently with the latest data.
+     * Returns the bus which publishes the status, the statistics and the metadata of the connection.
      *
-     * @param callback The callback.
+     * @return The event bus.
      */
-    public void attachConnectionInfoListener(ConnectionInfoCallback callback) {
-        _connectionInfoCallback = callback;
-        if (_serverIpV4 != null && _serverIpV6 != null) {
-            _connectionInfoCallback.metadataAvailable(_serverIpV4, _serverIpV6);
+    @NonNull
+    public ConnectionEventBus getEventBus() {
+        return _eventBus;
+    }
+
+    /**
+     * Requests the statistics to be published, if anyone is subscribed to them.
+     * Can be called from any thread, the requests are coalesced by the throttle.
+     */
+    private void _requestStatisticsUpdate() {
+        if (_eventBus.hasSubscribers(ConnectionEventBus.STATISTICS)) {
+            _statisticsThrottle.request();
         }
-        VpnStatus.addByteCountListener(_byteCountListener);
-        _updatesHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (_connectionInfoCallback != null) {
-                    Long secondsElapsed = null;
-                    if (_connectionTime != null) {
-                        secondsElapsed = (Calendar.getInstance().getTimeInMillis() - _connectionTime.getTime()) / 1000L;
-                    }
-                    _connectionInfoCallback.updateStatus(secondsElapsed, _bytesIn, _bytesOut);
-                    _updatesHandler.postDelayed(this, CONNECTION_INFO_UPDATE_INTERVAL_MS);
-                }
-            }
-        });
+    }
+
+    /**
+     * Publishes the current statistics, if they have changed since the last time.
+     */
+    private void _publishStatistics() {
+        if (!_eventBus.hasSubscribers(ConnectionEventBus.STATISTICS)) {
+            return;
+        }
+        long secondsConnected = ConnectionStatistics.NOT_AVAILABLE;
+        long connectionStartTime = _connectionStartTime;
+        if (connectionStartTime != ConnectionStatistics.NOT_AVAILABLE) {
+            long connectedMs = SystemClock.elapsedRealtime() - connectionStartTime;
+            secondsConnected = connectedMs / 1000;
+            // The duration changes at the next full second, even if there is no traffic until then.
+            _statisticsThrottle.requestDelayed(1000 - connectedMs % 1000);
+        }
+        long bytesIn = _bytesIn;
+        long bytesOut = _bytesOut;
+        ConnectionStatistics lastStatistics = _eventBus.getLastValue(ConnectionEventBus.STATISTICS);
+        if (lastStatistics != null && secondsConnected == lastStatistics.getSecondsConnected() &&
+                bytesIn == lastStatistics.getBytesIn() && bytesOut == lastStatistics.getBytesOut()) {
+            return;
+        }
+        _eventBus.publish(ConnectionEventBus.STATISTICS, new ConnectionStatistics(secondsConnected, bytesIn, bytesOut));
     }
 
     /**
@@ -396,18 +682,26 @@ public class VPNService extends Observable implements VpnStatus.StateListener {
     }
 
     /**
-     * Detaches the current connection info listener.
+     * Returns the traffic of the current connection per second.
+     * It is cleared when a new connection is established.
+     *
+     * @return The traffic history.
      */
-    public void detachConnectionInfoListener() {
-        _connectionInfoCallback = null;
-        VpnStatus.removeByteCountListener(_byteCountListener);
+    @NonNull
+    public TrafficHistory getTrafficHistory() {
+        return _trafficHistory;
     }
 
-    public interface ConnectionInfoCallback {
-        void updateStatus(Long secondsConnected, Long bytesIn, Long bytesOut);
-
-        void metadataAvailable(String localIpV4, String localIpV6);
+    /**
+     * Removes a profile from the profile manager.
+     *
+     * @param profileUUID The UUID of the profile.
+     */
+    public void removeProfile(@NonNull String profileUUID) {
+        VpnProfile vpnProfile = getProfileWithUUID(profileUUID);
+        if (vpnProfile != null) {
+            ProfileManager.getInstance(_context).removeProfile(_context, vpnProfile);
+            Log.i(TAG, "Removed profile with UUID: " + profileUUID);
+        }
     }
-
-
 }
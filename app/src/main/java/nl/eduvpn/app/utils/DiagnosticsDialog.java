@@ -0,0 +1,71 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.utils;
+
+import android.app.Dialog;
+import android.content.ActivityNotFoundException;
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.widget.TextView;
+
+import nl.eduvpn.app.R;
+
+/**
+ * Dialog which displays a diagnostics report, and lets the user share it, for example to send it to the helpdesk.
+ */
+public class DiagnosticsDialog {
+
+    private static final String TAG = DiagnosticsDialog.class.getName();
+
+    /**
+     * Shows a new diagnostics dialog.
+     *
+     * @param context The activity context.
+     * @param report  The report to display.
+     */
+    public static void show(@NonNull final Context context, @NonNull final String report) {
+        final Dialog dialog = new Dialog(context, R.style.ErrorDialog);
+        dialog.setCanceledOnTouchOutside(true);
+        dialog.setContentView(R.layout.dialog_diagnostics);
+        View view = dialog.findViewById(R.id.diagnosticsDialog);
+        ((TextView)view.findViewById(R.id.reportText)).setText(report);
+        view.findViewById(R.id.shareButton).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("text/plain");
+                intent.putExtra(Intent.EXTRA_SUBJECT, context.getString(R.string.diagnostics_title));
+                intent.putExtra(Intent.EXTRA_TEXT, report);
+                try {
+                    context.startActivity(Intent.createChooser(intent, context.getString(R.string.diagnostics_share_chooser)));
+                } catch (ActivityNotFoundException ex) {
+                    Log.w(TAG, "No application found to share the report with.", ex);
+                }
+            }
+        });
+        view.findViewById(R.id.confirmButton).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                dialog.dismiss();
+            }
+        });
+        dialog.show();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A list which keeps its elements in insertion order, and indexes them by a group key and by an optional key within
+ * the group. This allows looking up the elements by key without scanning the whole list.
+ * The list is not thread-safe.
+ */
+public class IndexedList<E> {
+
+    /**
+     * Extracts a key from an element.
+     */
+    public interface KeyFunction<E> {
+        @NonNull
+        String getKey(@NonNull E element);
+    }
+
+    /**
+     * The elements which share the same group key.
+     */
+    private static class Group<E> {
+        final List<E> elements = new ArrayList<>(1);
+        final Map<String, E> elementsByKey = new HashMap<>();
+    }
+
+    private final List<E> _elements = new ArrayList<>();
+    private final List<E> _unmodifiableElements = Collections.unmodifiableList(_elements);
+    private final Map<String, Group<E>> _groups = new HashMap<>();
+
+    private final KeyFunction<E> _groupKeyFunction;
+    private final KeyFunction<E> _keyFunction;
+
+    /**
+     * Constructor.
+     *
+     * @param groupKeyFunction Returns the key of the group an element belongs to.
+     * @param keyFunction      Returns the key of the element within its group. Can be null if elements are only looked
+     *                         up by their group.
+     */
+    public IndexedList(@NonNull KeyFunction<E> groupKeyFunction, @Nullable KeyFunction<E> keyFunction) {
+        _groupKeyFunction = groupKeyFunction;
+        _keyFunction = keyFunction;
+    }
+
+    /**
+     * Constructor which also adds the initial elements.
+     *
+     * @param elements         The elements to add, in order.
+     * @param groupKeyFunction Returns the key of the group an element belongs to.
+     * @param keyFunction      Returns the key of the element within its group. Can be null if elements are only looked
+     *                         up by their group.
+     */
+    public IndexedList(@NonNull Collection<E> elements, @NonNull KeyFunction<E> groupKeyFunction, @Nullable KeyFunction<E> keyFunction) {
+        this(groupKeyFunction, keyFunction);
+        for (E element : elements) {
+            add(element);
+        }
+    }
+
+    /**
+     * Adds an element to the end of the list.
+     *
+     * @param element The element to add.
+     */
+    public void add(@NonNull E element) {
+        _elements.add(element);
+        String groupKey = _groupKeyFunction.getKey(element);
+        Group<E> group = _groups.get(groupKey);
+        if (group == null) {
+            group = new Group<>();
+            _groups.put(groupKey, group);
+        }
+        group.elements.add(element);
+        if (_keyFunction != null) {
+            String key = _keyFunction.getKey(element);
+            // Lookups return the first added element, like a scan of the list would.
+            if (!group.elementsByKey.containsKey(key)) {
+                group.elementsByKey.put(key, element);
+            }
+        }
+    }
+
+    /**
+     * Removes an element from the list.
+     *
+     * @param element The element to remove.
+     * @return True if the element was in the list.
+     */
+    public boolean remove(@NonNull E element) {
+        if (!_elements.remove(element)) {
+            return false;
+        }
+        String groupKey = _groupKeyFunction.getKey(element);
+        Group<E> group = _groups.get(groupKey);
+        if (group == null) {
+            return true;
+        }
+        group.elements.remove(element);
+        if (group.elements.isEmpty()) {
+            _groups.remove(groupKey);
+        } else if (_keyFunction != null) {
+            String key = _keyFunction.getKey(element);
+            if (group.elementsByKey.get(key) == element) {
+                // Promote the next element with the same key, if there is one.
+                group.elementsByKey.remove(key);
+                for (E other : group.elements) {
+                    if (_keyFunction.getKey(other).equals(key)) {
+                        group.elementsByKey.put(key, other);
+                        break;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all elements of a group.
+     *
+     * @param groupKey The key of the group.
+     * @return True if any elements were removed.
+     */
+    public boolean removeGroup(@NonNull String groupKey) {
+        Group<E> group = _groups.remove(groupKey);
+        if (group == null) {
+            return false;
+        }
+        Set<E> removed = Collections.newSetFromMap(new IdentityHashMap<E, Boolean>(group.elements.size()));
+        removed.addAll(group.elements);
+        Iterator<E> iterator = _elements.iterator();
+        while (iterator.hasNext()) {
+            if (removed.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first added element of a group.
+     *
+     * @param groupKey The key of the group.
+     * @return The first element of the group, or null if the group is empty.
+     */
+    @Nullable
+    public E getFirst(@NonNull String groupKey) {
+        Group<E> group = _groups.get(groupKey);
+        return group == null ? null : group.elements.get(0);
+    }
+
+    /**
+     * Returns the first added element with the given group key and key within the group.
+     *
+     * @param groupKey The key of the group.
+     * @param key      The key of the element within the group.
+     * @return The element if found, otherwise null.
+     */
+    @Nullable
+    public E get(@NonNull String groupKey, @NonNull String key) {
+        Group<E> group = _groups.get(groupKey);
+        return group == null ? null : group.elementsByKey.get(key);
+    }
+
+    /**
+     * Returns the elements of a group.
+     *
+     * @param groupKey The key of the group.
+     * @return The unmodifiable list of the elements in the group, in insertion order. Empty if the group has none.
+     */
+    @NonNull
+    public List<E> getGroup(@NonNull String groupKey) {
+        Group<E> group = _groups.get(groupKey);
+        return group == null ? Collections.<E>emptyList() : Collections.unmodifiableList(group.elements);
+    }
+
+    /**
+     * Returns all elements.
+     *
+     * @return The unmodifiable list of all elements, in insertion order. The list reflects later changes.
+     */
+    @NonNull
+    public List<E> asList() {
+        return _unmodifiableElements;
+    }
+
+    /**
+     * Returns the number of elements.
+     *
+     * @return The size of the list.
+     */
+    public int size() {
+        return _elements.size();
+    }
+}
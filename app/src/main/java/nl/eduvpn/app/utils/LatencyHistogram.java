@@ -0,0 +1,154 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.utils;
+
+/**
+ * Histogram of durations in milliseconds, which uses the same amount of memory regardless of the number of values.
+ * <p/>
+ * Each power of two is divided into {@link #SUB_BUCKET_COUNT} buckets, so the percentiles are accurate within about
+ * 25%, which is plenty for telling a 200 ms handshake from a 2 second one. Values above {@link #getMaxTrackedValue()}
+ * are counted in the last bucket, but the maximum is kept exactly.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_COUNT = 4;
+    // Values below SUB_BUCKET_COUNT have their own bucket, the powers of two from there on up to 2^19 ms (about 9 min)
+    // are divided in sub-buckets.
+    private static final int MAX_EXPONENT = 19;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - 2) * SUB_BUCKET_COUNT;
+
+    private final long[] _counts = new long[BUCKET_COUNT];
+    private long _count;
+    private long _sum;
+    private long _min = Long.MAX_VALUE;
+    private long _max;
+
+    /**
+     * Adds a value to the histogram.
+     *
+     * @param valueMs The duration in milliseconds. Negative values are counted as zero.
+     */
+    public synchronized void record(long valueMs) {
+        long value = Math.max(0, valueMs);
+        _counts[_getBucketIndex(value)]++;
+        _count++;
+        _sum += value;
+        _min = Math.min(_min, value);
+        _max = Math.max(_max, value);
+    }
+
+    public synchronized long getCount() {
+        return _count;
+    }
+
+    /**
+     * Returns the average of the values.
+     *
+     * @return The average in milliseconds, or 0 if there are no values.
+     */
+    public synchronized long getMean() {
+        return _count == 0 ? 0 : _sum / _count;
+    }
+
+    /**
+     * Returns the smallest value.
+     *
+     * @return The smallest value in milliseconds, or 0 if there are no values.
+     */
+    public synchronized long getMin() {
+        return _count == 0 ? 0 : _min;
+    }
+
+    /**
+     * Returns the largest value.
+     *
+     * @return The largest value in milliseconds, or 0 if there are no values.
+     */
+    public synchronized long getMax() {
+        return _max;
+    }
+
+    /**
+     * Returns an estimate of a percentile. This is the upper bound of the bucket the percentile falls in, but never
+     * more than the largest value.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The estimated value in milliseconds, or 0 if there are no values.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (_count == 0) {
+            return 0;
+        }
+        long targetCount = Math.max(1, (long)Math.ceil(_count * percentile / 100.0));
+        long cumulativeCount = 0;
+        int i = 0;
+        for (; i < BUCKET_COUNT - 1; ++i) {
+            cumulativeCount += _counts[i];
+            if (cumulativeCount >= targetCount) {
+                break;
+            }
+        }
+        if (i == BUCKET_COUNT - 1) {
+            // The last bucket has no upper bound.
+            return _max;
+        }
+        return Math.max(_min, Math.min(_max, _getBucketUpperBound(i)));
+    }
+
+    /**
+     * Returns the largest value which is counted in its own bucket.
+     *
+     * @return The value in milliseconds.
+     */
+    public static long getMaxTrackedValue() {
+        return _getBucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            _counts[i] = 0;
+        }
+        _count = 0;
+        _sum = 0;
+        _min = Long.MAX_VALUE;
+        _max = 0;
+    }
+
+    private static int _getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        // The two bits after the highest one select the sub-bucket.
+        int subBucket = (int)(value >> (exponent - 2)) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (exponent - 2) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long _getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + 2;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long lowerBound = (long)(SUB_BUCKET_COUNT + subBucket) << (exponent - 2);
+        return lowerBound + (1L << (exponent - 2)) - 1;
+    }
+}
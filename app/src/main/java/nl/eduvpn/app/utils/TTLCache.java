@@ -106,8 +106,11 @@ public class TTLCache<T> {
 
     /**
      * Purges the entries from the list, where the TTL time has exceeded the preset limit.
+     *
+     * @return The amount of entries which were purged.
      */
-    public void purge() {
+    public int purge() {
+        int purgedCount = 0;
         synchronized (_lock) {
             Iterator<Map.Entry<String, Pair<Date, T>>> entryIterator = _entries.entrySet().iterator();
             final Date now = new Date();
@@ -116,9 +119,11 @@ public class TTLCache<T> {
                 long secondsDiff = (now.getTime() - entryInserted.getTime()) / 1000;
                 if (secondsDiff >= _purgeAfterSeconds) {
                     entryIterator.remove();
+                    purgedCount++;
                 }
             }
         }
+        return purgedCount;
     }
 
     /**
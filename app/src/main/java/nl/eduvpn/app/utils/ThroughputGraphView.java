@@ -0,0 +1,111 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.view.View;
+
+import nl.eduvpn.app.R;
+
+/**
+ * Draws the throughput of the last minute as two lines, one for the incoming and one for the outgoing traffic.
+ * All the objects used while drawing are allocated once, so redrawing it every second does not create garbage.
+ */
+public class ThroughputGraphView extends View {
+
+    private static final int DISPLAYED_SECONDS = TrafficHistory.WINDOW_1_MINUTE;
+    private static final float LINE_WIDTH_DP = 1.5f;
+
+    private final long[] _ratesIn = new long[DISPLAYED_SECONDS];
+    private final long[] _ratesOut = new long[DISPLAYED_SECONDS];
+    private final Path _path = new Path();
+    private final Paint _inPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint _outPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint _axisPaint = new Paint();
+
+    private TrafficHistory _trafficHistory;
+
+    public ThroughputGraphView(Context context) {
+        this(context, null);
+    }
+
+    public ThroughputGraphView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        float lineWidth = LINE_WIDTH_DP * context.getResources().getDisplayMetrics().density;
+        _inPaint.setStyle(Paint.Style.STROKE);
+        _inPaint.setStrokeWidth(lineWidth);
+        _inPaint.setColor(ContextCompat.getColor(context, R.color.mainColor));
+        _outPaint.setStyle(Paint.Style.STROKE);
+        _outPaint.setStrokeWidth(lineWidth);
+        _outPaint.setColor(ContextCompat.getColor(context, R.color.textColor));
+        _axisPaint.setColor(ContextCompat.getColor(context, R.color.disabledColor));
+    }
+
+    /**
+     * Sets the history to draw. Call {@link #invalidate()} to redraw it with the latest values.
+     *
+     * @param trafficHistory The traffic history. Use null to draw an empty graph.
+     */
+    public void setTrafficHistory(@Nullable TrafficHistory trafficHistory) {
+        _trafficHistory = trafficHistory;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        canvas.drawLine(left, top + height, left + width, top + height, _axisPaint);
+        if (_trafficHistory == null || width <= 0 || height <= 0) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        long maximum = Math.max(_trafficHistory.copyRates(TrafficHistory.DIRECTION_IN, nowMs, _ratesIn),
+                _trafficHistory.copyRates(TrafficHistory.DIRECTION_OUT, nowMs, _ratesOut));
+        if (maximum == 0) {
+            return;
+        }
+        _drawSeries(canvas, _ratesIn, maximum, left, top, width, height, _inPaint);
+        _drawSeries(canvas, _ratesOut, maximum, left, top, width, height, _outPaint);
+    }
+
+    private void _drawSeries(Canvas canvas, long[] rates, long maximum, float left, float top, float width, float height,
+                             Paint paint) {
+        _path.rewind();
+        float step = width / (rates.length - 1);
+        for (int i = 0; i < rates.length; ++i) {
+            float x = left + i * step;
+            float y = top + height - height * rates[i] / maximum;
+            if (i == 0) {
+                _path.moveTo(x, y);
+            } else {
+                _path.lineTo(x, y);
+            }
+        }
+        canvas.drawPath(_path, paint);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Keeps the traffic of the VPN connection per second, for a limited amount of time.
+ * The values are stored in ring buffers of primitives, so recording and querying do not allocate any objects.
+ * Timestamps are expected to come from a monotonic clock, such as {@link android.os.SystemClock#elapsedRealtime()}.
+ * The current second is still being filled, so the rates are calculated from the completed seconds only.
+ */
+public class TrafficHistory {
+
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    public static final int WINDOW_1_MINUTE = 60;
+    public static final int WINDOW_5_MINUTES = 5 * 60;
+    public static final int WINDOW_1_HOUR = 60 * 60;
+
+    public static final int DEFAULT_CAPACITY_SECONDS = WINDOW_1_HOUR;
+
+    // Longer gaps between two measurements mean the connection was interrupted, so the traffic is not spread over them.
+    private static final long MAX_SPREAD_SECONDS = 5;
+
+    private final int _capacity;
+    private final long[] _bytesIn;
+    private final long[] _bytesOut;
+
+    // The first and the last second which has been recorded, or -1 if nothing was recorded yet.
+    private long _firstSecond = -1;
+    private long _lastSecond = -1;
+
+    private long _totalBytesIn;
+    private long _totalBytesOut;
+    private long _peakBytesIn;
+    private long _peakBytesOut;
+
+    /**
+     * Constructor.
+     *
+     * @param capacitySeconds The number of seconds to keep.
+     */
+    public TrafficHistory(int capacitySeconds) {
+        if (capacitySeconds <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+        _capacity = capacitySeconds;
+        _bytesIn = new long[capacitySeconds];
+        _bytesOut = new long[capacitySeconds];
+    }
+
+    /**
+     * Records the traffic since the previous call.
+     * OpenVPN reports the byte counts every few seconds, so the traffic is spread evenly over the seconds since the
+     * previous measurement, otherwise every other second would look idle.
+     *
+     * @param timestampMs The time of the measurement in milliseconds.
+     * @param diffIn      The number of bytes received since the previous measurement.
+     * @param diffOut     The number of bytes sent since the previous measurement.
+     */
+    public synchronized void record(long timestampMs, long diffIn, long diffOut) {
+        long second = timestampMs / 1000;
+        long spreadSeconds = 1;
+        if (_lastSecond < 0) {
+            _firstSecond = second;
+            _lastSecond = second;
+        } else if (second > _lastSecond) {
+            if (second - _lastSecond <= MAX_SPREAD_SECONDS) {
+                spreadSeconds = second - _lastSecond;
+            }
+            _advanceTo(second);
+        }
+        _totalBytesIn += diffIn;
+        _totalBytesOut += diffOut;
+        // The newest second also gets the remainder of the division.
+        long shareIn = diffIn / spreadSeconds;
+        long shareOut = diffOut / spreadSeconds;
+        _add(second, diffIn - shareIn * (spreadSeconds - 1), diffOut - shareOut * (spreadSeconds - 1));
+        for (long i = 1; i < spreadSeconds; ++i) {
+            _add(second - i, shareIn, shareOut);
+        }
+    }
+
+    private void _add(long second, long bytesIn, long bytesOut) {
+        if (second <= _lastSecond - _capacity || second < _firstSecond) {
+            // Outside of what we keep, only counts in the totals.
+            return;
+        }
+        int index = _indexOf(second);
+        _bytesIn[index] += bytesIn;
+        _bytesOut[index] += bytesOut;
+        _peakBytesIn = Math.max(_peakBytesIn, _bytesIn[index]);
+        _peakBytesOut = Math.max(_peakBytesOut, _bytesOut[index]);
+    }
+
+    /**
+     * Returns the rate of the last completed second.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}.
+     * @param nowMs     The current time in milliseconds.
+     * @return The rate in bytes per second.
+     */
+    public synchronized long getCurrentRate(int direction, long nowMs) {
+        return _getValue(_getSeries(direction), nowMs / 1000 - 1);
+    }
+
+    /**
+     * Returns the average rate over the last completed seconds. If the connection is younger than the window, only
+     * the time since the first measurement is taken into account.
+     *
+     * @param direction     {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}.
+     * @param windowSeconds The length of the window, for example {@link #WINDOW_5_MINUTES}. Limited to the capacity.
+     * @param nowMs         The current time in milliseconds.
+     * @return The average rate in bytes per second.
+     */
+    public synchronized long getAverageRate(int direction, int windowSeconds, long nowMs) {
+        if (_firstSecond < 0) {
+            return 0;
+        }
+        long[] series = _getSeries(direction);
+        long endSecond = nowMs / 1000 - 1;
+        long startSecond = Math.max(endSecond - Math.min(windowSeconds, _capacity) + 1, _firstSecond);
+        if (endSecond < startSecond) {
+            return 0;
+        }
+        long sum = 0;
+        for (long second = startSecond; second <= endSecond; ++second) {
+            sum += _getValue(series, second);
+        }
+        return sum / (endSecond - startSecond + 1);
+    }
+
+    /**
+     * Returns the average rate since the first measurement.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}.
+     * @param nowMs     The current time in milliseconds.
+     * @return The average rate in bytes per second.
+     */
+    public synchronized long getSessionAverageRate(int direction, long nowMs) {
+        if (_firstSecond < 0) {
+            return 0;
+        }
+        long seconds = Math.max(1, nowMs / 1000 - _firstSecond + 1);
+        return (direction == DIRECTION_IN ? _totalBytesIn : _totalBytesOut) / seconds;
+    }
+
+    /**
+     * Returns the highest rate of a single second since the first measurement.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}.
+     * @return The peak rate in bytes per second.
+     */
+    public synchronized long getPeakRate(int direction) {
+        return direction == DIRECTION_IN ? _peakBytesIn : _peakBytesOut;
+    }
+
+    /**
+     * Returns the total number of bytes recorded.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}.
+     * @return The total number of bytes.
+     */
+    public synchronized long getTotalBytes(int direction) {
+        return direction == DIRECTION_IN ? _totalBytesIn : _totalBytesOut;
+    }
+
+    /**
+     * Copies the rates of the last completed seconds into the target array, so it can be drawn without allocating.
+     * The last item of the target is the last completed second, the items before are the seconds before it.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}.
+     * @param nowMs     The current time in milliseconds.
+     * @param target    The array to fill, its length determines the number of seconds.
+     * @return The highest rate copied.
+     */
+    public synchronized long copyRates(int direction, long nowMs, @NonNull long[] target) {
+        long[] series = _getSeries(direction);
+        long endSecond = nowMs / 1000 - 1;
+        long maximum = 0;
+        for (int i = 0; i < target.length; ++i) {
+            long value = _getValue(series, endSecond - (target.length - 1 - i));
+            target[i] = value;
+            maximum = Math.max(maximum, value);
+        }
+        return maximum;
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < _capacity; ++i) {
+            _bytesIn[i] = 0;
+            _bytesOut[i] = 0;
+        }
+        _firstSecond = -1;
+        _lastSecond = -1;
+        _totalBytesIn = 0;
+        _totalBytesOut = 0;
+        _peakBytesIn = 0;
+        _peakBytesOut = 0;
+    }
+
+    /**
+     * Moves the newest second forward, clearing the slots of the seconds which are reused.
+     */
+    private void _advanceTo(long second) {
+        long clearCount = Math.min(second - _lastSecond, _capacity);
+        for (long clearedSecond = second - clearCount + 1; clearedSecond <= second; ++clearedSecond) {
+            int index = _indexOf(clearedSecond);
+            _bytesIn[index] = 0;
+            _bytesOut[index] = 0;
+        }
+        _lastSecond = second;
+    }
+
+    private long _getValue(long[] series, long second) {
+        if (_firstSecond < 0 || second < _firstSecond || second > _lastSecond || second <= _lastSecond - _capacity) {
+            return 0;
+        }
+        return series[_indexOf(second)];
+    }
+
+    private int _indexOf(long second) {
+        return (int)(second % _capacity);
+    }
+
+    private long[] _getSeries(int direction) {
+        if (direction == DIRECTION_IN) {
+            return _bytesIn;
+        } else if (direction == DIRECTION_OUT) {
+            return _bytesOut;
+        }
+        throw new IllegalArgumentException("Unknown direction: " + direction);
+    }
+}
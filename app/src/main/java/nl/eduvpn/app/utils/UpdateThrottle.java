@@ -0,0 +1,98 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.utils;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+/**
+ * Coalesces update requests, so the update is executed at most once per interval.
+ * Requests made while an update is already scheduled are merged into that update. The first request after a quiet
+ * period is executed right away, the following ones are delayed until the interval has passed.
+ * Requests can be made from any thread, the update is always executed on the thread of the handler.
+ */
+public class UpdateThrottle {
+
+    private final Handler _handler;
+    private final long _minIntervalMs;
+    private final Runnable _update;
+
+    private boolean _isScheduled;
+    private long _lastUpdateTime = -1;
+
+    private final Runnable _executeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UpdateThrottle.this) {
+                if (!_isScheduled) {
+                    // Cancelled in the meantime.
+                    return;
+                }
+                _isScheduled = false;
+                _lastUpdateTime = SystemClock.elapsedRealtime();
+            }
+            _update.run();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param handler       The handler to execute the update on.
+     * @param minIntervalMs The minimum time between two updates.
+     * @param update        The update to execute.
+     */
+    public UpdateThrottle(@NonNull Handler handler, long minIntervalMs, @NonNull Runnable update) {
+        _handler = handler;
+        _minIntervalMs = minIntervalMs;
+        _update = update;
+    }
+
+    /**
+     * Requests an update. Does nothing if an update is already scheduled.
+     */
+    public void request() {
+        requestDelayed(0);
+    }
+
+    /**
+     * Requests an update after the given delay, or later if the interval requires it.
+     * Does nothing if an update is already scheduled.
+     *
+     * @param delayMs The minimum delay before the update.
+     */
+    public synchronized void requestDelayed(long delayMs) {
+        if (_isScheduled) {
+            return;
+        }
+        _isScheduled = true;
+        long intervalDelayMs = 0;
+        if (_lastUpdateTime >= 0) {
+            intervalDelayMs = _lastUpdateTime + _minIntervalMs - SystemClock.elapsedRealtime();
+        }
+        _handler.postDelayed(_executeRunnable, Math.max(delayMs, Math.max(0, intervalDelayMs)));
+    }
+
+    /**
+     * Cancels the scheduled update, if any.
+     */
+    public synchronized void cancel() {
+        _isScheduled = false;
+        _handler.removeCallbacks(_executeRunnable);
+    }
+}